@@ -86,6 +86,8 @@ import be.uclouvain.ngs.highlander.datatype.HighlightingRule;
 import be.uclouvain.ngs.highlander.datatype.VariantsList;
 import be.uclouvain.ngs.highlander.datatype.filter.ComboFilter;
 import be.uclouvain.ngs.highlander.datatype.filter.Filter;
+import be.uclouvain.ngs.highlander.datatype.filter.FilterCache;
+import be.uclouvain.ngs.highlander.datatype.filter.FilterPager;
 
 import com.install4j.api.launcher.ApplicationLauncher;
 
@@ -443,9 +445,25 @@ public class Highlander extends JFrame {
 					waitingPanel.start(true);
 					variantsTable.saveUserColumnWidths();
 					List<Field> headers = getColumnSelection();
-					VariantResults variantResults = filteringPanel.getFilter().retreiveData(headers, filteringPanel.getFilter().getAllSamples(), "Query results");
-					Highlander.waitingPanel.setProgressString("Populating table", true);
-					if (variantResults != null) variantsTable.fillTable(variantResults);
+					ComboFilter filter = filteringPanel.getFilter();
+					int pageSize = getParameters().getFilteringPageSize();
+					if (pageSize > 0 && FilterCache.getData(filter, headers, filter.getAllSamples()) == null){
+						//Display the first variants as soon as possible, next ones are retreived when scrolling down
+						FilterPager pager = filter.getPager(headers, filter.getAllSamples(), sortingPanel.getSortingCriteria(), pageSize);
+						VariantResults firstPage;
+						try{
+							firstPage = pager.nextPage("Query results");
+						}catch(Exception ex){
+							pager.close();
+							throw ex;
+						}
+						Highlander.waitingPanel.setProgressString("Populating table", true);
+						variantsTable.fillTable(pager, firstPage);
+					}else{
+						VariantResults variantResults = filter.retreiveData(headers, filter.getAllSamples(), "Query results");
+						Highlander.waitingPanel.setProgressString("Populating table", true);
+						if (variantResults != null) variantsTable.fillTable(variantResults);
+					}
 					Highlander.waitingPanel.setProgressDone();
 				} catch (CancelException ex){
 					waitingPanel.setProgressString("Cancelling query", true);
@@ -495,9 +513,13 @@ public class Highlander extends JFrame {
 						"Overwriting variants list in your profile", JOptionPane.YES_NO_OPTION , JOptionPane.QUESTION_MESSAGE, Resources.getScaledIcon(Resources.iDbSave,64));
 				if (yesno == JOptionPane.NO_OPTION)	return;
 			}
+			//All variants must be retreived first, the list is not saved if it fails or is cancelled
+			List<Integer> variantIds = variantsTable.getAllVariantsIds();
 			VariantsList list = new VariantsList(getCurrentAnalysis(), getColumnSelection(), getCurrentFilter(), 
-					navigationPanel.getColumnMask(), sortingPanel.getSortingCriteria(), highlightPanel.getHighlightingRules(), variantsTable.getAllVariantsIds(), listName);
+					navigationPanel.getColumnMask(), sortingPanel.getSortingCriteria(), highlightPanel.getHighlightingRules(), variantIds, listName);
 			Highlander.getLoggedUser().saveVariantList(list, listName);
+		} catch (CancelException ex) {
+			//Variants list not saved, cancelled by the user
 		} catch (Exception ex) {
 			Tools.exception(ex);
 			JOptionPane.showMessageDialog(new JFrame(), Tools.getMessage("Error", ex), "Save current variants list in your profile", JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCross,64));
@@ -136,6 +136,18 @@ public class Parameters {
 	private String httpProxyBypass;
 	private PasswordPolicy httpProxyPasswordPolicy;
 
+	//Filtering
+	private boolean filteringServerSideCombo = true;
+	private int filteringThreads = 3;
+	private long filteringCacheSize = 10_000_000;
+	private String filteringCacheDirectory = null;
+	private int filteringPageSize = 5000;
+	private long filteringExplainThreshold = 5000;
+
+	//Annotation
+	private String annotationCacheDirectory = null;
+	private String annotationStoreDirectory = null;
+
 	public class MissingParameterException extends Exception {
 
 		public MissingParameterException() {}
@@ -303,6 +315,23 @@ public class Parameters {
 		if (httpProxyBypass != null) System.setProperty("http.nonProxyHosts", httpProxyBypass);
 		setProxyLogin();
 
+		//Filtering
+		String combo = readParameterInXml("filtering", "combo", false);
+		if (combo != null) filteringServerSideCombo = !combo.equalsIgnoreCase("client");
+		String threads = readParameterInXml("filtering", "threads", false);
+		if (threads != null) filteringThreads = Integer.parseInt(threads);
+		String cache = readParameterInXml("filtering", "cache", false);
+		if (cache != null) filteringCacheSize = Long.parseLong(cache);
+		filteringCacheDirectory = readParameterInXml("filtering", "cachedir", false);
+		String page = readParameterInXml("filtering", "page", false);
+		if (page != null) filteringPageSize = Integer.parseInt(page);
+		String explain = readParameterInXml("filtering", "explain", false);
+		if (explain != null) filteringExplainThreshold = Long.parseLong(explain);
+
+		//Annotation
+		annotationCacheDirectory = readParameterInXml("annotation", "cachedir", false);
+		annotationStoreDirectory = readParameterInXml("annotation", "storedir", false);
+
 		dataSource.close();
 	}
 
@@ -709,4 +738,68 @@ public class Parameters {
 		this.httpProxyPasswordPolicy = httpProxyPasswordPolicy;
 	}
 
+	public boolean isFilteringServerSideCombo() {
+		return filteringServerSideCombo;
+	}
+
+	public void setFilteringServerSideCombo(boolean filteringServerSideCombo) {
+		this.filteringServerSideCombo = filteringServerSideCombo;
+	}
+
+	public int getFilteringThreads() {
+		return filteringThreads;
+	}
+
+	public void setFilteringThreads(int filteringThreads) {
+		this.filteringThreads = filteringThreads;
+	}
+
+	public long getFilteringCacheSize() {
+		return filteringCacheSize;
+	}
+
+	public void setFilteringCacheSize(long filteringCacheSize) {
+		this.filteringCacheSize = filteringCacheSize;
+	}
+
+	public String getFilteringCacheDirectory() {
+		return filteringCacheDirectory;
+	}
+
+	public void setFilteringCacheDirectory(String filteringCacheDirectory) {
+		this.filteringCacheDirectory = filteringCacheDirectory;
+	}
+
+	public int getFilteringPageSize() {
+		return filteringPageSize;
+	}
+
+	public void setFilteringPageSize(int filteringPageSize) {
+		this.filteringPageSize = filteringPageSize;
+	}
+
+	public long getFilteringExplainThreshold() {
+		return filteringExplainThreshold;
+	}
+
+	public void setFilteringExplainThreshold(long filteringExplainThreshold) {
+		this.filteringExplainThreshold = filteringExplainThreshold;
+	}
+
+	public String getAnnotationCacheDirectory() {
+		return annotationCacheDirectory;
+	}
+
+	public void setAnnotationCacheDirectory(String annotationCacheDirectory) {
+		this.annotationCacheDirectory = annotationCacheDirectory;
+	}
+
+	public String getAnnotationStoreDirectory() {
+		return annotationStoreDirectory;
+	}
+
+	public void setAnnotationStoreDirectory(String annotationStoreDirectory) {
+		this.annotationStoreDirectory = annotationStoreDirectory;
+	}
+
 }
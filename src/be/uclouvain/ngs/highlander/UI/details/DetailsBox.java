@@ -67,6 +67,7 @@ import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.Resources.Palette;
 import be.uclouvain.ngs.highlander.administration.users.User.Settings;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.Priority;
 
 public abstract class DetailsBox extends JPanel implements Transferable, DragSourceListener, DragGestureListener, DropTargetListener, Comparable<DetailsBox> {
 
@@ -124,19 +125,25 @@ public abstract class DetailsBox extends JPanel implements Transferable, DragSou
 		add(detailsPanel, BorderLayout.CENTER);
 		setBorder(BorderFactory.createBevelBorder(BevelBorder.RAISED));
 		if (visible){
-			new Thread(new Runnable(){
-				public void run(){
-					try{
-						loadDetails();
-					}catch(Exception ex){
-						Tools.exception(ex);
-						detailsPanel.removeAll();
-						detailsPanel.add(Tools.getMessage("Cannot create panel", ex), BorderLayout.CENTER);
-					}
-				}
-			}, "DetailsBox.loadDetails").start();
+			submitLoadDetails();
 		}
 	}
+
+	/**
+	 * Details are loaded by the query scheduler, and are cancelled if another variant is selected before they are loaded.
+	 */
+	private void submitLoadDetails(){
+		DB.getScheduler().submit(getTitle(), Priority.NORMAL, getDetailsPanel().getSelectionToken(), () -> {
+			try{
+				loadDetails();
+			}catch(Exception ex){
+				Tools.exception(ex);
+				detailsPanel.removeAll();
+				detailsPanel.add(Tools.getMessage("Cannot create panel", ex), BorderLayout.CENTER);
+			}
+			return null;
+		});
+	}
  
 	public DataFlavor[] getTransferDataFlavors() {
 		return new DataFlavor[]{new DataFlavor(String.class, "DetailsBox")};
@@ -263,17 +270,7 @@ public abstract class DetailsBox extends JPanel implements Transferable, DragSou
 		showButton.setSelected(true);
 		detailsPanel.setVisible(true);
 		if (!isDetailsLoaded()){
-			new Thread(new Runnable(){
-  			public void run(){
-					try{
-						loadDetails();
-					}catch(Exception ex){
-						Tools.exception(ex);
-						detailsPanel.removeAll();
-						detailsPanel.add(Tools.getMessage("Cannot create panel", ex), BorderLayout.CENTER);
-					}
-  			}
-  		}, "DetailsBox.loadDetails").start();
+			submitLoadDetails();
 		}
 	}
 
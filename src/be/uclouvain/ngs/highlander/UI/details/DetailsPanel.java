@@ -81,6 +81,7 @@ import be.uclouvain.ngs.highlander.administration.users.User.UserData;
 import be.uclouvain.ngs.highlander.database.Category;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.Field.Tag;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.CancellationToken;
 import ca.odell.glazedlists.EventList;
 import ca.odell.glazedlists.GlazedLists;
 import ca.odell.glazedlists.matchers.TextMatcherEditor;
@@ -96,6 +97,7 @@ public class DetailsPanel extends JScrollPane implements DropTargetListener {
 	private JPanel mainPanel;
 	private AutoCompleteSupport<Field> support;
 	private VariantsTable variantsTable;
+	private volatile CancellationToken selectionToken = new CancellationToken();
 	
 	public DetailsPanel(VariantsTable variantsTable) {
 		this.variantsTable = variantsTable;
@@ -183,7 +185,17 @@ public class DetailsPanel extends JScrollPane implements DropTargetListener {
 		return true;
 	}
 
+	/**
+	 * Shared by the details boxes of the current selection.
+	 */
+	public CancellationToken getSelectionToken(){
+		return selectionToken;
+	}
+
 	public void setSelection(final int variantId, final VariantsTable table){
+		//Details of the previous selection still waiting or loading are not needed anymore
+		selectionToken.cancel();
+		selectionToken = new CancellationToken();
 		new Thread(new Runnable(){
 			public void run(){
 				try{	
@@ -314,6 +314,9 @@ public class AskListOfPossibleValuesDialog extends JDialog {
 				}
 			});
 		}else{
+			if (userTable.isPartial()){
+				JOptionPane.showMessageDialog(this, "Only a part of the variants has been retreived in the table,\nonly values of those variants are available.", "Fill available values", JOptionPane.WARNING_MESSAGE, Resources.getScaledIcon(Resources.iAttention,64));
+			}
 			values = userTable.getDistinctValues(field);
 		}
 		updateSourceTable();
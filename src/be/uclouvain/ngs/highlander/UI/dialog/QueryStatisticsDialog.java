@@ -0,0 +1,325 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.UI.dialog;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FileDialog;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.FileWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTabbedPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.table.AbstractTableModel;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Resources;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.QueryStatistics;
+import be.uclouvain.ngs.highlander.database.QueryStatistics.QueryRecord;
+import be.uclouvain.ngs.highlander.database.QueryStatistics.TemplateStatistics;
+
+/**
+ * Display the timings of the queries executed by this client (see QueryStatistics),
+ * grouped by query template or one by one.
+ */
+public class QueryStatisticsDialog extends JFrame {
+
+	private static final long serialVersionUID = 1L;
+
+	private final QueryStatistics statistics;
+	private final TemplatesTableModel templatesModel = new TemplatesTableModel();
+	private final HistoryTableModel historyModel = new HistoryTableModel();
+	private JTable templatesTable;
+	private JTable historyTable;
+	private JTextArea detailsArea;
+
+	public QueryStatisticsDialog(){
+		statistics = Highlander.getDB().getQueryStatistics();
+		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+		int width = screenSize.width - (screenSize.width/3);
+		int height = screenSize.height - (screenSize.height/3);
+		setSize(new Dimension(width,height));
+		initUI();
+		refresh();
+	}
+
+	private void initUI(){
+		setTitle("Query statistics");
+		setIconImage(Resources.getScaledIcon(Resources.iDbStatus, 64).getImage());
+		getContentPane().setLayout(new BorderLayout());
+
+		templatesTable = new JTable(templatesModel);
+		templatesTable.setAutoCreateRowSorter(true);
+		templatesTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		templatesTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+			@Override
+			public void valueChanged(ListSelectionEvent e) {
+				if (e.getValueIsAdjusting() || templatesTable.getSelectedRow() < 0) return;
+				TemplateStatistics stats = templatesModel.get(templatesTable.convertRowIndexToModel(templatesTable.getSelectedRow()));
+				StringBuilder sb = new StringBuilder();
+				sb.append(stats.template + "\n\n");
+				int[] histogram = stats.getHistogram();
+				sb.append("Last executions:");
+				for (int i=0 ; i < histogram.length ; i++){
+					sb.append("  " + QueryStatistics.HISTOGRAM_LABELS[i] + ": " + histogram[i]);
+				}
+				sb.append("\n");
+				if (stats.getExplain() != null){
+					sb.append("\nEXPLAIN of a slow execution:\n" + stats.getExplainedQuery() + "\n\n" + stats.getExplain());
+				}
+				detailsArea.setText(sb.toString());
+				detailsArea.setCaretPosition(0);
+			}
+		});
+
+		historyTable = new JTable(historyModel);
+		historyTable.setAutoCreateRowSorter(true);
+		historyTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		historyTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+			@Override
+			public void valueChanged(ListSelectionEvent e) {
+				if (e.getValueIsAdjusting() || historyTable.getSelectedRow() < 0) return;
+				QueryRecord record = historyModel.get(historyTable.convertRowIndexToModel(historyTable.getSelectedRow()));
+				detailsArea.setText(record.query);
+				detailsArea.setCaretPosition(0);
+			}
+		});
+
+		JTabbedPane tabs = new JTabbedPane();
+		tabs.addTab("By query template", new JScrollPane(templatesTable));
+		tabs.addTab("Last queries", new JScrollPane(historyTable));
+
+		detailsArea = new JTextArea();
+		detailsArea.setEditable(false);
+		detailsArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, detailsArea.getFont().getSize()));
+
+		JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, tabs, new JScrollPane(detailsArea));
+		splitPane.setResizeWeight(0.7);
+		getContentPane().add(splitPane, BorderLayout.CENTER);
+
+		JPanel southPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+		JButton refreshButton = new JButton("Refresh", Resources.getScaledIcon(Resources.iReset, 24));
+		refreshButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		southPanel.add(refreshButton);
+		JButton clearButton = new JButton("Clear", Resources.getScaledIcon(Resources.iDbRemove, 24));
+		clearButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				statistics.clear();
+				refresh();
+			}
+		});
+		southPanel.add(clearButton);
+		JButton exportButton = new JButton("Export to JSON", Resources.getScaledIcon(Resources.iExportFile, 24));
+		exportButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				export();
+			}
+		});
+		southPanel.add(exportButton);
+		JButton closeButton = new JButton("Close", Resources.getScaledIcon(Resources.iCross, 24));
+		closeButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				dispose();
+			}
+		});
+		southPanel.add(closeButton);
+		getContentPane().add(southPanel, BorderLayout.SOUTH);
+	}
+
+	private void refresh(){
+		templatesModel.setData(statistics.getTemplates());
+		historyModel.setData(statistics.getHistory());
+		detailsArea.setText("");
+	}
+
+	private void export(){
+		FileDialog chooser = new FileDialog(this, "Export query statistics", FileDialog.SAVE);
+		chooser.setFile(Tools.formatFilename("Highlander query statistics.json"));
+		Tools.centerWindow(chooser, false);
+		chooser.setVisible(true);
+		if (chooser.getFile() != null) {
+			String filename = chooser.getDirectory() + chooser.getFile();
+			if (!filename.endsWith(".json")) filename += ".json";
+			try (FileWriter fw = new FileWriter(new File(filename))){
+				fw.write(statistics.toJson());
+			}catch(Exception ex){
+				Tools.exception(ex);
+				JOptionPane.showMessageDialog(this, Tools.getMessage("Cannot export query statistics", ex), "Query statistics",
+						JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCross,64));
+			}
+		}
+	}
+
+	private static class TemplatesTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		private final String[] headers = new String[]{"Template", "Count", "Failures", "Total (ms)", "Mean (ms)", "Median (ms)", "95th percentile (ms)", "Max (ms)", "Mean pool wait (ms)", "Rows", "Bytes", "Explained"};
+		private List<TemplateStatistics> data = new ArrayList<TemplateStatistics>();
+
+		public void setData(List<TemplateStatistics> data){
+			this.data = data;
+			fireTableDataChanged();
+		}
+
+		public TemplateStatistics get(int row){
+			return data.get(row);
+		}
+
+		@Override
+		public int getRowCount() {
+			return data.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return headers.length;
+		}
+
+		@Override
+		public String getColumnName(int columnIndex) {
+			return headers[columnIndex];
+		}
+
+		@Override
+		public Class<?> getColumnClass(int columnIndex) {
+			switch(columnIndex){
+			case 0: return String.class;
+			case 4: case 8: return Double.class;
+			case 11: return Boolean.class;
+			default: return Long.class;
+			}
+		}
+
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			TemplateStatistics stats = data.get(rowIndex);
+			switch(columnIndex){
+			case 0: return stats.template;
+			case 1: return stats.getCount();
+			case 2: return stats.getFailures();
+			case 3: return stats.getTotalTime();
+			case 4: return Math.round(stats.getMeanTime()*10)/10.0;
+			case 5: return stats.getPercentile(50);
+			case 6: return stats.getPercentile(95);
+			case 7: return stats.getMaxTime();
+			case 8: return Math.round(stats.getMeanPoolWait()*10)/10.0;
+			case 9: return stats.getRows();
+			case 10: return stats.getBytes();
+			case 11: return stats.getExplain() != null;
+			default: return null;
+			}
+		}
+	}
+
+	private static class HistoryTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		private final DateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
+		private final String[] headers = new String[]{"Time", "Schema", "Pool wait (ms)", "Execution (ms)", "Total (ms)", "Rows", "Bytes", "Failed", "Query"};
+		private List<QueryRecord> data = new ArrayList<QueryRecord>();
+
+		public void setData(List<QueryRecord> data){
+			this.data = data;
+			fireTableDataChanged();
+		}
+
+		public QueryRecord get(int row){
+			return data.get(row);
+		}
+
+		@Override
+		public int getRowCount() {
+			return data.size();
+		}
+
+		@Override
+		public int getColumnCount() {
+			return headers.length;
+		}
+
+		@Override
+		public String getColumnName(int columnIndex) {
+			return headers[columnIndex];
+		}
+
+		@Override
+		public Class<?> getColumnClass(int columnIndex) {
+			switch(columnIndex){
+			case 0: case 1: case 8: return String.class;
+			case 7: return Boolean.class;
+			default: return Long.class;
+			}
+		}
+
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			QueryRecord record = data.get(rowIndex);
+			switch(columnIndex){
+			case 0: return df.format(record.timestamp);
+			case 1: return record.schema.toString();
+			case 2: return record.poolWait;
+			case 3: return record.execution;
+			case 4: return record.total;
+			case 5: return record.rows;
+			case 6: return record.bytes;
+			case 7: return record.failed;
+			case 8: return record.query;
+			default: return null;
+			}
+		}
+	}
+
+}
@@ -61,12 +61,15 @@ public class WaitingPanel extends JPanel implements Runnable {
 
 	private boolean cancelAsked = false;
 
+	//Threads helping an operation that already started the panel (e.g. filter branches, see FilterExecutor) don't start, stop or update it
+	private static final ThreadLocal<Boolean> helperThread = ThreadLocal.withInitial(() -> false);
+
 	final JButton cancelButton;
 	final JButton sendQueryButton;
 	final CardLayout logoCardLayout;
 	final JPanel logoPanel;
 	int numImages = 9;
-	int running = 0;
+	volatile int running = 0;
 	final JProgressBar progress;
 	//Finally the progress bar seems better
 	JTextArea text;
@@ -168,7 +171,16 @@ public class WaitingPanel extends JPanel implements Runnable {
 		return cancelAsked;
 	}
 
+	/**
+	 * Calls to start(), stop() and progress methods made by the current thread are ignored while set,
+	 * the panel being managed by the thread that started the operation.
+	 */
+	public static void setHelperThread(boolean helper){
+		helperThread.set(helper);
+	}
+
 	public void setProgressString(final String label, final boolean indeterminate){
+		if (helperThread.get()) return;
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				progress.setVisible(true);
@@ -180,6 +192,7 @@ public class WaitingPanel extends JPanel implements Runnable {
 	}
 
 	public void setProgressMaximum(final int value){
+		if (helperThread.get()) return;
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				progress.setVisible(true);
@@ -189,6 +202,7 @@ public class WaitingPanel extends JPanel implements Runnable {
 	}
 
 	public void setProgressValue(final int value){
+		if (helperThread.get()) return;
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				progress.setValue(value);
@@ -197,6 +211,7 @@ public class WaitingPanel extends JPanel implements Runnable {
 	}
 
 	public void setProgressDone(){
+		if (helperThread.get()) return;
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				progress.setValue(progress.getMaximum());
@@ -240,7 +255,8 @@ public class WaitingPanel extends JPanel implements Runnable {
 	}
 
 	//TODO ici changer le boolean par un thread pass en paramtre, tuer le thread si le bouton est utilis
-	public void start(boolean allowCancelHighlanderQuery){
+	public synchronized void start(boolean allowCancelHighlanderQuery){
+		if (helperThread.get()) return;
 		cancelAsked = false;
 		cancelButton.setVisible(allowCancelHighlanderQuery);
 		if (Highlander.getDB().isBetaFunctionalitiesActivated()) sendQueryButton.setVisible(allowCancelHighlanderQuery);
@@ -252,7 +268,8 @@ public class WaitingPanel extends JPanel implements Runnable {
 		}
 	}
 
-	public void stop(){			
+	public synchronized void stop(){			
+		if (helperThread.get()) return;
 		running--;
 		if (running == 0){
 			progress.setVisible(false);
@@ -260,7 +277,7 @@ public class WaitingPanel extends JPanel implements Runnable {
 		}
 	}
 
-	public void forceStop(){
+	public synchronized void forceStop(){
 		running = 0;
 		progress.setVisible(false);
 		setVisible(false);
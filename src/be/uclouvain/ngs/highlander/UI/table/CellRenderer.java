@@ -177,9 +177,9 @@ public class CellRenderer {
     else label.setBackground(oddColor);
     if (!isSelected) {
     	if (isVariantsTable) {
-    		String uniqueVariantId = table.getUniqueVariantId(row);
-    		for (String unique : table.getSelectedUniqueVariantId()) {
-    			if (unique.equals(uniqueVariantId)) {
+    		long uniqueVariantId = table.getUniqueVariantId(row);
+    		for (long unique : table.getSelectedUniqueVariantId()) {
+    			if (unique == uniqueVariantId) {
     				if (row%2 == 0) label.setBackground(Resources.getTableEvenRowBackgroundColor(((VariantsTable)table).getColor(TargetColor.SAME_VARIANT)));
     		    else label.setBackground(Resources.getTableOddRowBackgroundColor(((VariantsTable)table).getColor(TargetColor.SAME_VARIANT)));
     			}
@@ -36,6 +36,8 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 
@@ -43,22 +45,23 @@ import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.imageio.ImageIO;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
@@ -77,7 +80,9 @@ import java.awt.FlowLayout;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.BufferedOutputStream;
 
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
@@ -102,6 +107,7 @@ import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.Resources.Palette;
 import be.uclouvain.ngs.highlander.UI.dialog.FilteringTree;
 import be.uclouvain.ngs.highlander.UI.misc.ToolbarScrollablePanel;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
 import be.uclouvain.ngs.highlander.UI.tools.BamViewer;
 import be.uclouvain.ngs.highlander.administration.users.User.Settings;
 import be.uclouvain.ngs.highlander.administration.users.User.TargetColor;
@@ -109,14 +115,15 @@ import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.VariantResults;
-import be.uclouvain.ngs.highlander.database.Field.Annotation;
-import be.uclouvain.ngs.highlander.database.Field.JSon;
 import be.uclouvain.ngs.highlander.database.Field.SampleType;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.Interval;
 import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
-import be.uclouvain.ngs.highlander.datatype.SNPEffect.Zygosity;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
+import be.uclouvain.ngs.highlander.datatype.filter.FilterPager;
+import be.uclouvain.ngs.highlander.datatype.filter.FilterExporter;
+import be.uclouvain.ngs.highlander.datatype.filter.VCFBuilder;
 
 
 public class VariantsTable extends JPanel {
@@ -142,6 +149,8 @@ public class VariantsTable extends JPanel {
 	private JProgressBar countBar = new JProgressBar();
 	private JLabel databaseLoadLabel;
 	private String nbUniques = "?";
+	private volatile FilterPager pager = null;
+	private volatile boolean loadingPage = false;
 
 	public VariantsTable(Highlander mainFrame, boolean bottomBarVisible) {
 		this.mainFrame = mainFrame;
@@ -163,7 +172,7 @@ public class VariantsTable extends JPanel {
 	private void initUI(boolean bottomBarVisible) throws Exception {
 		setLayout(new BorderLayout());
 		columnModel = new XTableColumnModel();
-		VariantsTableModel model = new VariantsTableModel(new Field[0],new Object[0][0],new int[0],new String[0]);
+		VariantsTableModel model = new VariantsTableModel(new VariantResults());
 		sorter = new TableRowSorter<VariantsTableModel>(model);
 		table = new JTable(model){
 			@Override
@@ -232,6 +241,16 @@ public class VariantsTable extends JPanel {
 		}); 
 		scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);	
 		scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED);	
+		scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+			@Override
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				//Retreive next page when the last screen of variants is reached
+				JScrollBar bar = scrollPane.getVerticalScrollBar();
+				if (bar.getValue() + 2 * bar.getVisibleAmount() >= bar.getMaximum()){
+					loadNextPage();
+				}
+			}
+		});
 		scrollPane.setViewportView(startTxt);	
 		add(scrollPane, BorderLayout.CENTER);
 
@@ -416,16 +435,48 @@ public class VariantsTable extends JPanel {
 	}
 
 	public static class VariantsTableModel	extends AbstractTableModel {
-		private Object[][] data;
-		private int[] id;
-		private String[] uniqueVariant;
+		//Rows can be added page by page (see FilterPager), pages are never removed
+		private final List<VariantResults> pages = new CopyOnWriteArrayList<VariantResults>();
+		private volatile int[] offsets = new int[0];
+		private volatile int rowCount = 0;
 		private Field[] headers;
 
-		public VariantsTableModel(Field[] headers, Object[][] data, int[] id, String[] uniqueVariant) throws Exception {    	
-			this.data = data;
-			this.headers = headers;
-			this.id = id;
-			this.uniqueVariant = uniqueVariant;
+		public VariantsTableModel(VariantResults data) throws Exception {    	
+			this.headers = data.headers;
+			addPage(data);
+		}
+
+		/**
+		 * Add rows at the end of the table.
+		 * Must be called from the event dispatch thread.
+		 */
+		public void addPage(VariantResults page){
+			if (page.getRowCount() == 0 && !pages.isEmpty()) return;
+			if (rowCount == 0){
+				pages.clear();
+				offsets = new int[0];
+			}
+			int first = rowCount;
+			int[] newOffsets = Arrays.copyOf(offsets, offsets.length+1);
+			newOffsets[offsets.length] = first;
+			pages.add(page);
+			offsets = newOffsets;
+			rowCount = first + page.getRowCount();
+			if (rowCount > first) fireTableRowsInserted(first, rowCount-1);
+		}
+
+		private int getPage(int row){
+			int page = Arrays.binarySearch(offsets, row);
+			return (page >= 0) ? page : -page-2;
+		}
+
+		public String getNumberUniqueVariants(){
+			if (pages.size() == 1) return pages.get(0).getNumberUniqueVariants();
+			Set<Long> set = new HashSet<Long>();
+			for (VariantResults page : pages){
+				for (long key : page.variant) set.add(key);
+			}
+			return Tools.doubleToString(set.size(), 0, false);
 		}
 
 		public int getColumnCount() {
@@ -452,7 +503,7 @@ public class VariantsTable extends JPanel {
 		}
 
 		public int getRowCount() {
-			return data.length;
+			return rowCount;
 		}
 
 		public Class<?> getColumnClass(int columnIndex) {
@@ -464,42 +515,46 @@ public class VariantsTable extends JPanel {
 		}
 		
 		public Object getValueAt(int row, int col) {
-			return data[row][col];
+			int page = getPage(row);
+			return pages.get(page).getValue(row - offsets[page], col);
 		}
 
 		public List<Integer> getVariantIds(){
-			List<Integer> list = new ArrayList<Integer>(id.length);
-			for (int i : id) list.add(i);
+			List<Integer> list = new ArrayList<Integer>(rowCount);
+			for (VariantResults page : pages){
+				for (int i : page.id) list.add(i);
+			}
 			return list;
 		}
 
 		public int getVariantId(int row){
-			return id[row];
+			int page = getPage(row);
+			return pages.get(page).id[row - offsets[page]];
+		}
+
+		public long getVariantUniqueKey(int row){
+			int page = getPage(row);
+			return pages.get(page).variant[row - offsets[page]];
 		}
 
 		public String getVariantUniqueLabel(int row){
-			return uniqueVariant[row];
+			return VariantKey.getLabel(getVariantUniqueKey(row));
 		}
 		
 		public void setAnnotation(int variantSampleId, Field fieldToModify, Object valueToModify){
-			for (int i=0 ; i < id.length ; i++){
-				if (id[i] == variantSampleId) {
-					int j = getColumnIndex(fieldToModify);
-					if (j >= 0){
-						data[i][j] = valueToModify;
-						final int row = i;
-						SwingUtilities.invokeLater(new Runnable(){
-							public void run(){
-								try{
-									fireTableRowsUpdated(row,row);
-								}catch(Exception ex){
-									Tools.exception(ex);
-								}
-							}
-						});
+			int offset = 0;
+			for (VariantResults data : pages){
+				for (int i=0 ; i < data.id.length ; i++){
+					if (data.id[i] == variantSampleId) {
+						int j = getColumnIndex(fieldToModify);
+						if (j >= 0){
+							data.setValue(i, j, valueToModify);
+							fireRowUpdated(offset + i);
+						}
+						return;
 					}
-					break;
 				}
+				offset += data.getRowCount();
 			}
 		}
 
@@ -507,23 +562,19 @@ public class VariantsTable extends JPanel {
 			try{
 				int k = getColumnIndex(Field.gene_symbol);
 				if (k >= 0){
-					for (int i=0 ; i < id.length ; i++){
-						if (data[i][k] != null && data[i][k].equals(geneSymbol) && uniqueVariant[i].equals(chr+"-"+pos+"-"+length+"-"+reference+"-"+alternative)) {
-							int j = getColumnIndex(fieldToModify);
-							if (j >= 0){
-								data[i][j] = valueToModify;
-								final int row = i;
-								SwingUtilities.invokeLater(new Runnable(){
-									public void run(){
-										try{
-											fireTableRowsUpdated(row,row);
-										}catch(Exception ex){
-											Tools.exception(ex);
-										}
-									}
-								});
+					long key = VariantKey.getKey(chr, pos, length, reference, alternative);
+					int offset = 0;
+					for (VariantResults data : pages){
+						for (int i=0 ; i < data.id.length ; i++){
+							if (data.getValue(i, k) != null && data.getValue(i, k).equals(geneSymbol) && data.variant[i] == key) {
+								int j = getColumnIndex(fieldToModify);
+								if (j >= 0){
+									data.setValue(i, j, valueToModify);
+									fireRowUpdated(offset + i);
+								}
 							}
 						}
+						offset += data.getRowCount();
 					}
 				}
 			}catch(Exception ex){
@@ -535,23 +586,18 @@ public class VariantsTable extends JPanel {
 			try{
 				int k = getColumnIndex(conditionField);
 				if (k >= 0){
-					for (int i=0 ; i < id.length ; i++){
-						if (data[i][k] != null && data[i][k].equals(conditionValue)) {
-							int j = getColumnIndex(fieldToModify);
-							if (j >= 0){
-								data[i][j] = valueToModify;
-								final int row = i;
-								SwingUtilities.invokeLater(new Runnable(){
-									public void run(){
-										try{
-											fireTableRowsUpdated(row,row);
-										}catch(Exception ex){
-											Tools.exception(ex);
-										}
-									}
-								});
+					int offset = 0;
+					for (VariantResults data : pages){
+						for (int i=0 ; i < data.id.length ; i++){
+							if (data.getValue(i, k) != null && data.getValue(i, k).equals(conditionValue)) {
+								int j = getColumnIndex(fieldToModify);
+								if (j >= 0){
+									data.setValue(i, j, valueToModify);
+									fireRowUpdated(offset + i);
+								}
 							}
 						}
+						offset += data.getRowCount();
 					}
 				}
 			}catch(Exception ex){
@@ -559,9 +605,23 @@ public class VariantsTable extends JPanel {
 			}
 		}
 
+		private void fireRowUpdated(final int row){
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					try{
+						fireTableRowsUpdated(row,row);
+					}catch(Exception ex){
+						Tools.exception(ex);
+					}
+				}
+			});
+		}
+
 		public Object[] getRow(int variantId){
-			for (int i=0 ; i < id.length ; i++){
-				if (id[i] == variantId) return data[i];
+			for (VariantResults data : pages){
+				for (int i=0 ; i < data.id.length ; i++){
+					if (data.id[i] == variantId) return data.getRow(i);
+				}
 			}
 			return null;
 		}
@@ -620,28 +680,39 @@ public class VariantsTable extends JPanel {
 	}
 
 	public void fillTable(final VariantResults variantResults){
+		fillTable(null, variantResults);
+	}
+
+	/**
+	 * Fill the table with the first page of results, next pages are retreived when scrolling down.
+	 * While all pages are not retreived, sorting is done by the database (see setSorting()).
+	 * 
+	 * @param pager the pager that retreived the first page, will be closed when the table is filled again. Can be null if all results are given.
+	 * @param variantResults the first page of results
+	 */
+	public void fillTable(final FilterPager pager, final VariantResults variantResults){
+		FilterPager previous = this.pager;
+		this.pager = pager;
+		if (previous != null) previous.close();
 		scrollPane.setViewportView(table);
 		SwingUtilities.invokeLater(new Runnable(){
 			public void run(){
 				try{
-					VariantsTableModel model = new VariantsTableModel(variantResults.headers, variantResults.data, variantResults.id, variantResults.variant);
+					VariantsTableModel model = new VariantsTableModel(variantResults);
 					sorter = new TableRowSorter<VariantsTableModel>(model);
 					table.setModel(model);					
 					table.setRowSorter(sorter);
-					sorter.setSortKeys(sortKeys);
+					if (isPartial()){
+						sorter.setSortKeys(null);
+					}else{
+						sorter.setSortKeys(sortKeys);
+					}
 					for (int i=0 ; i < variantResults.headers.length ; i++){
 						table.getColumnModel().getColumn(i).setPreferredWidth(variantResults.headers[i].getSize());
 						sorter.setSortable(i, false);
 					}
-					countBar.setMaximum(variantResults.data.length);
-					countBar.setValue(variantResults.data.length);
-					nbUniques = variantResults.getNumberUniqueVariants();
-					if (nbUniques.equals("?")){
-						countBar.setString(Tools.doubleToString(variantResults.data.length, 0, false) + " / " + Tools.doubleToString(variantResults.data.length, 0, false) + " variants");
-					}else{
-						countBar.setString(Tools.doubleToString(variantResults.data.length, 0, false) + " / " + Tools.doubleToString(variantResults.data.length, 0, false) + " variants ("+nbUniques+" uniques)");						
-					}
-					countBar.setStringPainted(true);
+					nbUniques = isPartial() ? "?" : variantResults.getNumberUniqueVariants();
+					updateCountBar();
 					Highlander.getCellRenderer().registerTableForHeatMap(VariantsTable.this);
 					mainFrame.refreshTableView();
 				}catch(Exception ex){
@@ -652,6 +723,72 @@ public class VariantsTable extends JPanel {
 
 	}
 
+	/**
+	 * @return true if some variants of the current results have not been retreived yet
+	 */
+	public boolean isPartial(){
+		return pager != null && !pager.isComplete();
+	}
+
+	private void loadNextPage(){
+		final FilterPager current = pager;
+		if (current == null || current.isComplete() || loadingPage) return;
+		loadingPage = true;
+		new Thread(new Runnable(){
+			public void run(){
+				try{
+					addPage(current, current.nextPage(null));
+				}catch(Exception ex){
+					Tools.exception(ex);
+				}finally{
+					loadingPage = false;
+				}
+			}
+		}, "VariantsTable.loadNextPage").start();
+	}
+
+	/**
+	 * Retreive all variants of the current results that are not yet in the table.
+	 * Needed before using the whole table (e.g. exporting it), must not be called from the event dispatch thread.
+	 * 
+	 * @throws CancelException if the user cancelled the retrieval, the table then only contains a part of the results
+	 */
+	public void loadAllPages() throws Exception {
+		final FilterPager current = pager;
+		if (current == null || current.isComplete()) return;
+		if (SwingUtilities.isEventDispatchThread()){
+			throw new IllegalStateException("Cannot retreive all variants from the event dispatch thread");
+		}
+		while (!current.isComplete() && current == pager){
+			if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+			int total = current.getTotalCount();
+			Highlander.waitingPanel.setProgressString("Retreiving all variants ("+Tools.doubleToString(current.getRetreivedCount(), 0, false)
+				+((total >= 0) ? " / "+Tools.doubleToString(total, 0, false) : "")+")", true);
+			addPage(current, current.nextPage(null));
+		}
+	}
+
+	private void addPage(final FilterPager source, final VariantResults page) throws Exception {
+		if (page == null) return;
+		Runnable add = new Runnable(){
+			public void run(){
+				if (source != pager) return;
+				((VariantsTableModel)table.getModel()).addPage(page);
+				if (source.isComplete()){
+					nbUniques = ((VariantsTableModel)table.getModel()).getNumberUniqueVariants();
+					sorter.setSortKeys(sortKeys);
+				}
+				updateCountBar();
+				Highlander.getCellRenderer().registerTableForHeatMap(VariantsTable.this);
+			}
+		};
+		if (SwingUtilities.isEventDispatchThread()){
+			add.run();
+		}else{
+			SwingUtilities.invokeAndWait(add);
+		}
+	}
+
 	public Palette getColor(TargetColor target) {
 		switch(target) {
 		case VARIANT_TABLE:
@@ -676,7 +813,7 @@ public class VariantsTable extends JPanel {
 		table.repaint();
 	}
 
-	public void setSorting(List<SortingCriterion> sortItems){
+	public void setSorting(final List<SortingCriterion> sortItems){
 		sortKeys.clear();
 		VariantsTableModel model = (VariantsTableModel)table.getModel();
 		for (SortingCriterion item  : sortItems){	
@@ -684,7 +821,34 @@ public class VariantsTable extends JPanel {
 				sortKeys.add(new SortKey(table.convertColumnIndexToModel(table.getColumnModel().getColumnIndex(item.getFieldName())), item.getSortOrder()));
 			}
 		}
-		sorter.setSortKeys(sortKeys);
+		if (isPartial()){
+			//Only a part of the results is in the table, so they must be sorted by the database
+			final FilterPager current = pager;
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						Highlander.waitingPanel.start(true);
+						FilterPager sortedPager = current.getFilter().getPager(current.getHeaders(), current.getAutoSamples(), sortItems, current.getPageSize());
+						VariantResults firstPage;
+						try{
+							firstPage = sortedPager.nextPage("Sorting results");
+						}catch(Exception ex){
+							sortedPager.close();
+							throw ex;
+						}
+						fillTable(sortedPager, firstPage);
+					}catch (CancelException ex){
+						Highlander.waitingPanel.setProgressString("Cancelling query", true);
+					}catch(Exception ex){
+						Tools.exception(ex);
+					}finally{
+						Highlander.waitingPanel.forceStop();
+					}
+				}
+			}, "VariantsTable.setSorting").start();
+		}else{
+			sorter.setSortKeys(sortKeys);
+		}
 	}
 
 	public void setTextFilter(RowFilter<VariantsTableModel, Object> rf, String filteringExpression){
@@ -773,11 +937,20 @@ public class VariantsTable extends JPanel {
 		if (!filters.isEmpty()){
 			sorter.setRowFilter(RowFilter.andFilter(filters));
 		}
+		updateCountBar();
+	}
+
+	private void updateCountBar(){
+		String total = Tools.doubleToString(sorter.getModelRowCount(), 0, false);
+		if (isPartial()){
+			total += (pager.getTotalCount() >= 0) ? " retreived of " + Tools.doubleToString(pager.getTotalCount(), 0, false) : "+";
+		}
+		countBar.setMaximum(Math.max(1, sorter.getModelRowCount()));
 		countBar.setValue(sorter.getViewRowCount());
 		if (nbUniques.equals("?")){
-			countBar.setString(Tools.doubleToString(sorter.getViewRowCount(), 0, false) + " / " + Tools.doubleToString(sorter.getModelRowCount(), 0, false) + " variants");
+			countBar.setString(Tools.doubleToString(sorter.getViewRowCount(), 0, false) + " / " + total + " variants");
 		}else{
-			countBar.setString(Tools.doubleToString(sorter.getViewRowCount(), 0, false) + " / " + Tools.doubleToString(sorter.getModelRowCount(), 0, false) + " variants ("+nbUniques+" uniques)");
+			countBar.setString(Tools.doubleToString(sorter.getViewRowCount(), 0, false) + " / " + total + " variants ("+nbUniques+" uniques)");
 		}
 		countBar.setStringPainted(true);				     
 	}
@@ -812,7 +985,20 @@ public class VariantsTable extends JPanel {
 		return set;	
 	}
 
-	public List<Integer> getAllVariantsIds(){
+	/**
+	 * Retreive all variants of the current results if needed (see loadAllPages()), must not be called from the event dispatch thread.
+	 * 
+	 * @throws CancelException if the user cancelled the retrieval
+	 */
+	public List<Integer> getAllVariantsIds() throws Exception {
+		if (isPartial()){
+			Highlander.waitingPanel.start(true);
+			try{
+				loadAllPages();
+			}finally{
+				Highlander.waitingPanel.forceStop();
+			}
+		}
 		VariantsTableModel model = (VariantsTableModel)table.getModel();
 		return model.getVariantIds();
 	}
@@ -830,12 +1016,12 @@ public class VariantsTable extends JPanel {
 		return selection;
 	}
 
-	public List<String> getSelectedUniqueVariantId() {
-		List<String> selection = new ArrayList<String>();
+	public List<Long> getSelectedUniqueVariantId() {
+		List<Long> selection = new ArrayList<Long>();
 		try{
 			VariantsTableModel model = (VariantsTableModel)table.getModel();
 			for (int row : table.getSelectedRows()){
-				selection.add(model.getVariantUniqueLabel(table.convertRowIndexToModel(row)));
+				selection.add(model.getVariantUniqueKey(table.convertRowIndexToModel(row)));
 			}
 		}catch(Exception ex){
 			Tools.exception(ex);
@@ -843,8 +1029,8 @@ public class VariantsTable extends JPanel {
 		return selection;
 	}
 	
-	public String getUniqueVariantId(int row) {
-		return ((VariantsTableModel)table.getModel()).getVariantUniqueLabel(table.convertRowIndexToModel(row));
+	public long getUniqueVariantId(int row) {
+		return ((VariantsTableModel)table.getModel()).getVariantUniqueKey(table.convertRowIndexToModel(row));
 	}
 	
 	public void setRowSelectionAllowed(boolean allow){
@@ -869,11 +1055,34 @@ public class VariantsTable extends JPanel {
 		}
 	}
 
+	/**
+	 * When only a part of the results has been retreived, exports are streamed from the database instead of loading all variants in the table.
+	 * The search criterion is only applied to the table, so the table is used in that case.
+	 */
+	private boolean isStreamableExport(){
+		return isPartial() && (rowFilterExp == null || rowFilterExp.length() == 0);
+	}
+
+	private FilterExporter getExporter(){
+		VariantsTableModel model = (VariantsTableModel)table.getModel();
+		List<Field> fields = new ArrayList<>();
+		for (int c = 0 ; c < table.getColumnCount() ; c++){
+			fields.add(model.getColumnField(table.convertColumnIndexToModel(c)));
+		}
+		FilterPager current = pager;
+		return new FilterExporter(current.getFilter(), fields, current.getAutoSamples(), current.getSorting());
+	}
+
 	public void toTSV(File file) throws Exception {
+		if (isStreamableExport()){
+			getExporter().toTSV(file);
+			return;
+		}
 		Highlander.waitingPanel.start();
+		loadAllPages();
 		char delimiter = '\t';
 		char endline = '\n';
-		try(FileWriter fw = new FileWriter(file)){
+		try(Writer fw = FilterExporter.openWriter(file)){
 			for (int c = 0 ; c < table.getColumnCount() ; c++){
 				fw.write(table.getColumnName(c));
 				if (c < table.getColumnCount()-1) fw.write(delimiter);
@@ -883,7 +1092,7 @@ public class VariantsTable extends JPanel {
 			Highlander.waitingPanel.setProgressString("Exporting "+Tools.doubleToString(nrow, 0, false)+" variants", false);
 			Highlander.waitingPanel.setProgressMaximum(nrow);
 			for (int i=0 ; i < nrow ; i++ ){
-				Highlander.waitingPanel.setProgressValue(i);
+				if (i % 1024 == 0) Highlander.waitingPanel.setProgressValue(i);
 				for (int c = 0 ; c < table.getColumnCount() ; c++){
 					if (table.getValueAt(i, c) != null){
 						fw.write(table.getValueAt(i, c).toString());
@@ -906,7 +1115,7 @@ public class VariantsTable extends JPanel {
 	}
 
 	/**
-	 * Export this table to a VCF file.
+	 * Export this table to a VCF file (see VCFBuilder).
 	 * Important: if a variant span multiple genes, only one of them will we outputed in the VCF.
 	 * 
 	 * @param file
@@ -914,452 +1123,109 @@ public class VariantsTable extends JPanel {
 	 * @throws Exception
 	 */
 	public void toVCF(File file, String sampleFilter) throws Exception {
+		if (isStreamableExport()){
+			getExporter().toVCF(file, sampleFilter);
+			return;
+		}
+		Highlander.waitingPanel.start();
+		try (VCFBuilder vcf = getVCFBuilder(sampleFilter)){
+			vcf.write(file);
+			Highlander.waitingPanel.setProgressDone();
+		}catch(Exception ex){
+			Highlander.waitingPanel.forceStop();
+			throw ex;
+		}
+		Highlander.waitingPanel.stop();
+	}
+
+	/**
+	 * Export this table to one VCF file per sample, named prefix_sample.vcf.
+	 * Variants are retreived only once for all samples.
+	 * 
+	 * @param prefix
+	 * @throws Exception
+	 */
+	public void toVCFPerSample(String prefix) throws Exception {
+		if (isStreamableExport()){
+			getExporter().toVCFPerSample(prefix);
+			return;
+		}
 		Highlander.waitingPanel.start();
-		AnalysisFull analysis = Highlander.getCurrentAnalysis();
-		String columnDelimiter = "\t";
-		String idDelimiter = ";";
-		String altDelimiter = ",";
-		String filterDelimiter = ";";
-		String infoDelimiter = ";";
-		String formatDelimiter = ":";
-		String endline = "\n";
-		String missing = ".";
-		int cCHR = -1;
-		int cPOS = -1;
-		int cREF = -1;
-		int cALT = -1;
-		int cID = -1;
-		int cQUAL = -1;
-		int cFILTER = -1;
-		int cSAMPLE = -1;
-		int cGT = -1;
-		int cADref = -1;
-		int cADalt = -1;
-		int cDP = -1;
-		List<Integer> cINFO = new ArrayList<>();
-		List<Integer> cFORMAT = new ArrayList<>();
-		List<Integer> cNOTEXPORTED = new ArrayList<>();
-		int nrow = table.getRowCount();
-		int ncol = table.getColumnCount();
+		try (VCFBuilder vcf = getVCFBuilder(null)){
+			vcf.writePerSample(prefix);
+			Highlander.waitingPanel.setProgressDone();
+		}catch(Exception ex){
+			Highlander.waitingPanel.forceStop();
+			throw ex;
+		}
+		Highlander.waitingPanel.stop();
+	}
+
+	/**
+	 * Give all variants of the table (those passing the table filters) to a new VCFBuilder.
+	 * Mandatory VCF fields missing from the table are retreived from the database.
+	 */
+	private VCFBuilder getVCFBuilder(String sampleFilter) throws Exception {
+		loadAllPages();
 		VariantsTableModel model = (VariantsTableModel)table.getModel();
-		for (int c = 0 ; c < ncol ; c++){
-			Field f = model.getColumnField(c);
-			if (f.getAnnotationCode() == Annotation.VCF) {
-				if (f.getAnnotationHeaders()[0].equals("CHROM")) cCHR = c;	
-				else if (f.getAnnotationHeaders()[0].equals("POS")) cPOS = c;	
-				else if (f.getAnnotationHeaders()[0].equals("REF")) cREF = c;	
-				else if (f.getAnnotationHeaders()[0].startsWith("ALT")) cALT = c;	
-				else if (f.getAnnotationHeaders()[0].equals("ID")) cID = c;	
-				else if (f.getAnnotationHeaders()[0].equals("QUAL")) cQUAL = c;	
-				else if (f.getAnnotationHeaders()[0].equals("FILTER")) cFILTER = c;	
-				else if (f.getName().equals(Field.sample.getName())) cSAMPLE = c;	
-				else if (f.getAnnotationHeaders()[0].equals("FORMAT") && f.getAnnotationHeaders()[1].equals("GT")) cGT = c;	
-				else if (f.getName().equals(Field.allelic_depth_ref.getName())) cADref = c;	
-				else if (f.getName().equals(Field.allelic_depth_alt.getName())) cADalt = c;	
-				else if (f.getName().equals(Field.read_depth.getName())) cDP = c;	
-				else if (f.getAnnotationHeaders()[0].equals("FORMAT")) cFORMAT.add(c);
-				else if (f.getAnnotationHeaders()[0].equals("INFO")) cINFO.add(c);
-			}else {
-				if (f.getJSonPath() == JSon.CALLS) cFORMAT.add(c);
-				else if (f.getJSonPath() == JSon.INFO) cINFO.add(c);
-				else cNOTEXPORTED.add(c);
-			}
+		List<Field> columns = new ArrayList<>();
+		for (int c = 0 ; c < table.getColumnCount() ; c++){
+			columns.add(model.getColumnField(table.convertColumnIndexToModel(c)));
 		}
-		Map<String,Set<Integer>> samples = new TreeMap<>(); // sample -> [set of variant_ids] 
-		Map<String, Map<Integer,Map<String,Map<String,Set<Integer>>>>> variantsIds = new HashMap<>(); // chromosome (need to be sorted by hand !) -> position -> reference -> alternative -> [set of variant_ids]
-		Map<Integer, String> dbsnps = new HashMap<>(); // variant_id -> ID
-		Map<Integer, String> quals = new HashMap<>(); // variant_id -> QUAL
-		Map<Integer, String> filters = new HashMap<>(); // variant_id -> FILTER
-		Map<Integer, String> gts = new HashMap<>(); // variant_id -> GT
-		Map<Integer, String> adrefs = new HashMap<>(); // variant_id -> AD (ref)
-		Map<Integer, String> adalts = new HashMap<>(); // variant_id -> AD (alt)
-		Map<Integer, String> dps = new HashMap<>(); // variant_id -> DP
-		Map<Integer, Integer> rows = new HashMap<>(); // variant_id -> row id
-		if (cCHR > -1 && 
-				cPOS > -1 && 
-				cREF > -1 && 
-				cALT > -1 && 
-				cID > -1 && 
-				cQUAL > -1 && 
-				cFILTER > -1 && 
-				cSAMPLE > -1 && 
-				cGT > -1 && 
-				cADref > -1 && 
-				cADalt > -1 && 
-				cDP > -1 ) {
-			//All mandatory fields are present in the table
-			for (int i=0 ; i < nrow ; i++ ){
-				String sample = table.getValueAt(i, cSAMPLE).toString(); 
-				if (sampleFilter == null || sample.equalsIgnoreCase(sampleFilter)) {
-					String chromosome = table.getValueAt(i, cCHR).toString();
-					int position = Integer.parseInt(table.getValueAt(i, cPOS).toString());
-					String reference = table.getValueAt(i, cREF).toString();
-					String alternative = table.getValueAt(i, cALT).toString();
-					int variantId = model.getVariantId(i);
-					if (!samples.containsKey(sample)) {
-						samples.put(sample, new HashSet<Integer>());
-					}
-					samples.get(sample).add(variantId);
-					if (!variantsIds.containsKey(chromosome)) {
-						variantsIds.put(chromosome, new TreeMap<Integer, Map<String,Map<String,Set<Integer>>>>());
-					}
-					if (!variantsIds.get(chromosome).containsKey(position)) {
-						variantsIds.get(chromosome).put(position, new TreeMap<String,Map<String,Set<Integer>>>());
-					}
-					if (!variantsIds.get(chromosome).get(position).containsKey(reference)) {
-						variantsIds.get(chromosome).get(position).put(reference, new TreeMap<String,Set<Integer>>());
-					}
-					if (!variantsIds.get(chromosome).get(position).get(reference).containsKey(alternative)) {
-						variantsIds.get(chromosome).get(position).get(reference).put(alternative, new TreeSet<Integer>());
-					}
-					variantsIds.get(chromosome).get(position).get(reference).get(alternative).add(variantId);
-					dbsnps.put(variantId, ((table.getValueAt(i, cID) != null) ? table.getValueAt(i, cID).toString() : missing));
-					quals.put(variantId, ((table.getValueAt(i, cQUAL) != null) ? table.getValueAt(i, cQUAL).toString() : missing));
-					filters.put(variantId, ((table.getValueAt(i, cFILTER) != null) ? table.getValueAt(i, cFILTER).toString() : missing));
-					gts.put(variantId, ((table.getValueAt(i, cGT) != null) ? table.getValueAt(i, cGT).toString() : missing));
-					adrefs.put(variantId, ((table.getValueAt(i, cADref) != null) ? table.getValueAt(i, cADref).toString() : missing));
-					adalts.put(variantId, ((table.getValueAt(i, cADalt) != null) ? table.getValueAt(i, cADalt).toString() : missing));
-					dps.put(variantId, ((table.getValueAt(i, cDP) != null) ? table.getValueAt(i, cDP).toString() : missing));
-					rows.put(variantId, i);
-				}
-			}
-		}else {
-			//Need to fetch missing mandatory fields from the database
-			try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, 
-					"SELECT "
-							+Field.variant_sample_id.getQuerySelectName(analysis, false)+", "
-							+Field.chr.getQuerySelectName(analysis, false)+", "
-							+Field.pos.getQuerySelectName(analysis, false)+", "
-							+Field.reference.getQuerySelectName(analysis, false)+", "
-							+Field.alternative.getQuerySelectName(analysis, false)+", "
-							+Field.dbsnp_id.getQuerySelectName(analysis, false)+", "
-							+Field.confidence.getQuerySelectName(analysis, false)+", "
-							+Field.filters.getQuerySelectName(analysis, false)+", "
-							+Field.sample.getQuerySelectName(analysis, false)+", "
-							+Field.zygosity.getQuerySelectName(analysis, false)+", "
-							+Field.allelic_depth_ref.getQuerySelectName(analysis, false)+", "
-							+Field.allelic_depth_alt.getQuerySelectName(analysis, false)+", "
-							+Field.read_depth.getQuerySelectName(analysis, false)
-							+" FROM "+analysis.getFromSampleAnnotations()
-							+ analysis.getJoinProjects()
-							+ analysis.getJoinStaticAnnotations()
-							+" WHERE variant_sample_id in ("+HighlanderDatabase.makeSqlList(model.getVariantIds(), Integer.class)+")"
-					)){
-				while (res.next()) {
-					String sample = res.getString(Field.sample.getName()); 
-					if (sampleFilter == null || sample.equalsIgnoreCase(sampleFilter)) {
-						String chromosome = res.getString(Field.chr.getName());
-						int position = res.getInt(Field.pos.getName());
-						String reference = res.getString(Field.reference.getName());
-						String alternative = res.getString(Field.alternative.getName());
-						int variantId = res.getInt("variant_sample_id");
-						if (!samples.containsKey(sample)) {
-							samples.put(sample, new HashSet<Integer>());
-						}
-						samples.get(sample).add(variantId);
-						if (!variantsIds.containsKey(chromosome)) {
-							variantsIds.put(chromosome, new TreeMap<Integer, Map<String,Map<String,Set<Integer>>>>());
-						}
-						if (!variantsIds.get(chromosome).containsKey(position)) {
-							variantsIds.get(chromosome).put(position, new TreeMap<String,Map<String,Set<Integer>>>());
-						}
-						if (!variantsIds.get(chromosome).get(position).containsKey(reference)) {
-							variantsIds.get(chromosome).get(position).put(reference, new TreeMap<String,Set<Integer>>());
-						}
-						if (!variantsIds.get(chromosome).get(position).get(reference).containsKey(alternative)) {
-							variantsIds.get(chromosome).get(position).get(reference).put(alternative, new TreeSet<Integer>());
-						}
-						variantsIds.get(chromosome).get(position).get(reference).get(alternative).add(variantId);
-						dbsnps.put(variantId, ((res.getString(Field.dbsnp_id.getName()) != null) ? res.getString(Field.dbsnp_id.getName()) : missing));
-						quals.put(variantId, ((res.getString(Field.confidence.getName()) != null) ? res.getString(Field.confidence.getName()) : missing));
-						filters.put(variantId, ((res.getString(Field.filters.getName()) != null) ? res.getString(Field.filters.getName()) : missing));
-						gts.put(variantId, ((res.getString(Field.zygosity.getName()) != null) ? res.getString(Field.zygosity.getName()) : missing));
-						adrefs.put(variantId, ((res.getString(Field.allelic_depth_ref.getName()) != null) ? res.getString(Field.allelic_depth_ref.getName()) : missing));
-						adalts.put(variantId, ((res.getString(Field.allelic_depth_alt.getName()) != null) ? res.getString(Field.allelic_depth_alt.getName()) : missing));
-						dps.put(variantId, ((res.getString(Field.read_depth.getName()) != null) ? res.getString(Field.read_depth.getName()) : missing));
-					}
-				}
-			}catch(Exception ex){
-				Highlander.waitingPanel.forceStop();
-				throw ex;
-			}
-			for (int i=0 ; i < nrow ; i++ ){
-				rows.put(model.getVariantId(i), i);
+		VCFBuilder vcf = new VCFBuilder(columns, sampleFilter);
+		try{
+			List<Field> fields = vcf.getFields();
+			int[] indexes = new int[fields.size()];
+			boolean complete = true;
+			for (int f = 0 ; f < indexes.length ; f++){
+				indexes[f] = model.getColumnIndex(fields.get(f));
+				if (f < VCFBuilder.MANDATORY.length && indexes[f] < 0) complete = false;
 			}
-		}
-		List<String> chromosomes = new ArrayList<>(variantsIds.keySet());
-		Collections.sort(chromosomes, new Tools.NaturalOrderComparator(true));
-
-		try(FileWriter fw = new FileWriter(file)){
-			//meta informations
-			fw.write("##fileformat=VCFv4.3" + endline);
-			//FILTER
-			Set<String> possibleFilters = new TreeSet<>();
-			try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, "SELECT `value` FROM "+analysis.getFromPossibleValues()+" WHERE `field` = 'filters'")) {
-				while (res.next()) {
-					for (String f : res.getString(1).split(";")) {
-						possibleFilters.add(f);
-					}
+			int nrow = table.getRowCount();
+			Map<Integer, Object[]> mandatory = new HashMap<>(); // variant_id -> values of VCFBuilder.MANDATORY
+			if (!complete){
+				//Need to fetch missing mandatory fields from the database
+				AnalysisFull analysis = Highlander.getCurrentAnalysis();
+				List<Integer> ids = new ArrayList<>();
+				for (int i=0 ; i < nrow ; i++){
+					ids.add(model.getVariantId(table.convertRowIndexToModel(i)));
 				}
-			}
-			possibleFilters.remove("PASS");
-			for (String f : possibleFilters) {
-				fw.write("##FILTER=<ID="+f+",Description=\"\">" + endline);
-			}
-			//FORMAT
-			fw.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">" + endline);
-			fw.write("##FORMAT=<ID=AD,Number=R,Type=Integer,Description=\"Allelic depths for the ref and alt alleles in the order listed\">" + endline);
-			fw.write("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Approximate read depth (reads with MQ=255 or with bad mates are filtered)\">" + endline);
-			for (int format : cFORMAT) {
-				Field f = Field.getField(table.getColumnName(format));
-				fw.write("##FORMAT=<ID="+f+",Number=G,Type="+f.getVcfClass()+",Description=\""+f.getDescription()+"\">" + endline);
-			}
-			//INFO
-			for (int info : cINFO) {
-				Field f = Field.getField(table.getColumnName(info));
-				fw.write("##INFO=<ID="+f+",Number=A,Type="+f.getVcfClass()+",Description=\""+f.getDescription().replaceAll("\"", "'")+"\">" + endline);
-			}
-			fw.write("##HighlanderVersion=\""+Highlander.version+", by Raphael Helaers\"" + endline);
-			//Headers
-			fw.write("#CHROM"+columnDelimiter+"POS"+columnDelimiter+"ID"+columnDelimiter+"REF"+columnDelimiter+"ALT"+columnDelimiter+"QUAL"+columnDelimiter+"FILTER"+columnDelimiter+"INFO"+columnDelimiter+"FORMAT");
-			if (sampleFilter == null) {
-				for (String sample : samples.keySet()) {
-					fw.write(columnDelimiter + sample);
+				StringBuilder select = new StringBuilder("SELECT " + Field.variant_sample_id.getQuerySelectName(analysis, false));
+				for (Field field : VCFBuilder.MANDATORY){
+					select.append(", " + field.getQuerySelectName(analysis, false));
 				}
-			}else {
-				fw.write(columnDelimiter + sampleFilter);				
-			}
-			fw.write(endline);
-			//Records
-			Highlander.waitingPanel.setProgressString("Exporting "+Tools.doubleToString(variantsIds.size(), 0, false)+" chromosomes", false);
-			Highlander.waitingPanel.setProgressMaximum(variantsIds.size());
-			int progress = 0;
-			for (String chr : chromosomes){
-				Highlander.waitingPanel.setProgressValue(progress++);
-				for (int pos : variantsIds.get(chr).keySet()){
-					for (String ref : variantsIds.get(chr).get(pos).keySet()){
-						//CHR
-						fw.write(chr + columnDelimiter);
-						//POS
-						fw.write(pos + columnDelimiter);
-						//ID
-						Set<String> distinctIds = new LinkedHashSet<String>();
-						for (Set<Integer> ids : variantsIds.get(chr).get(pos).get(ref).values()) {
-							int id = ids.iterator().next();
-							if (!dbsnps.get(id).equals(missing) && dbsnps.get(id).length() > 0) {
-								distinctIds.add(dbsnps.get(id));
-							}
-						}
-						if (distinctIds.isEmpty()) {
-							fw.write(missing);
-						}else {
-							String[] array = distinctIds.toArray(new String[0]);
-							for (int i=0 ; i < array.length ; i++) {
-								fw.write(array[i]);
-								if (i < array.length-1) fw.write(idDelimiter);
-							}
-						}
-						fw.write(columnDelimiter);
-						//REF
-						fw.write(ref + columnDelimiter);
-						//ALT
-						String[] array = variantsIds.get(chr).get(pos).get(ref).keySet().toArray(new String[0]);
-						for (int i=0 ; i < array.length ; i++) {
-							fw.write(array[i]);
-							if (i < array.length-1) fw.write(altDelimiter);
-						}
-						fw.write(columnDelimiter);
-						//QUAL
-						double sumQuals = 0;
-						int numQuals = 0;
-						for (Set<Integer> ids : variantsIds.get(chr).get(pos).get(ref).values()) {
-							for (int id : ids) {
-								if (!quals.get(id).equals(missing) && quals.get(id).length() > 0) {
-									numQuals++;
-									sumQuals += Double.parseDouble(quals.get(id));
-								}
-							}
-						}
-						if (numQuals == 0) {
-							fw.write(missing);
-						}else {
-							fw.write(Tools.doubleToString(sumQuals/(double)numQuals, 2, false, false));
-						}
-						fw.write(columnDelimiter);
-						//FILTER
-						Set<String> distinctFilters = new TreeSet<String>();
-						for (Set<Integer> ids : variantsIds.get(chr).get(pos).get(ref).values()) {
-							for (int id : ids) {
-								if (!filters.get(id).equals(missing) && filters.get(id).length() > 0) {
-									for (String f : filters.get(id).split(";"))
-										if (!f.equalsIgnoreCase("PASS")) distinctFilters.add(f);
-								}
-							}
-						}
-						if (distinctFilters.isEmpty()) {
-							fw.write("PASS");
-						}else {
-							array = distinctFilters.toArray(new String[0]);
-							for (int i=0 ; i < array.length ; i++) {
-								fw.write(array[i]);
-								if (i < array.length-1) fw.write(filterDelimiter);
-							}
-						}
-						fw.write(columnDelimiter);
-						//INFO
-						for (int j=0 ; j < cINFO.size() ; j++) {
-							int info = cINFO.get(j);
-							fw.write(table.getColumnName(info) + "=");
-							array = new String[variantsIds.get(chr).get(pos).get(ref).size()];
-							int k=0;
-							for (Set<Integer> ids : variantsIds.get(chr).get(pos).get(ref).values()) {
-								int id = ids.iterator().next();
-								Object o = table.getValueAt(rows.get(id), info);
-								if (o == null || o.toString().length() == 0) {
-									array[k++] = missing;
-								}else {
-									array[k++] = o.toString().replace(';', '|');
-								}
-							}
-							for (int i=0 ; i < array.length ; i++) {
-								fw.write(array[i]);
-								if (i < array.length-1) fw.write(",");
-							}
-							if (j < cINFO.size()-1) fw.write(infoDelimiter);
-						}
-						if (cINFO.size() == 0) fw.write(missing); 
-						fw.write(columnDelimiter);
-						//FORMAT
-						fw.write("GT"+formatDelimiter+"AD"+formatDelimiter+"DP");
-						for (int format : cFORMAT) {
-							fw.write(formatDelimiter+table.getColumnName(format));
-						}
-						for (String sample : samples.keySet()) {
-							fw.write(columnDelimiter);
-							//GT:AD:DP
-							//Gather all alternatives of current sample with their variant_id
-							Map<Integer,String> altVarid = new TreeMap<>(); //  variant_id -> ALT
-							Map<String,Integer> altNum = new TreeMap<>(); // ALT -> alt pos
-							int l = 1;
-							for (String alt : variantsIds.get(chr).get(pos).get(ref).keySet()) {
-								altNum.put(alt, l++);
-								Set<Integer> sampleId = new HashSet<>(variantsIds.get(chr).get(pos).get(ref).get(alt));
-								sampleId.retainAll(samples.get(sample));
-								if (!sampleId.isEmpty()) {
-									//Happens each time a variant span multiple genes
-									//if (sampleId.size() > 1) System.err.println("Problem with format field of sample " + sample + " variant " + chr +":"+pos+", multiple variant ids for same variant");
-									altVarid.put(sampleId.iterator().next(), alt);
-								}
-							}
-							//Determine the genotype
-							if (altVarid.isEmpty()) {
-								//GT
-								fw.write("./.");
-								fw.write(formatDelimiter);
-								//AD
-								fw.write(".");
-								for (int i=0 ; i < altNum.size() ; i++) {
-									fw.write(",.");
-								}
-								fw.write(formatDelimiter);
-								//DP
-								fw.write(".");
-							}else if (altVarid.size() == 1) {
-								int id = altVarid.keySet().iterator().next();
-								Zygosity zig = Zygosity.valueOf(gts.get(id));
-								switch(zig) {
-								case Heterozygous:
-									fw.write("0/"+altNum.get(altVarid.get(id)));
-									break;
-								case Homozygous:
-									fw.write(altNum.get(altVarid.get(id))+"/"+altNum.get(altVarid.get(id)));
-									break;
-								case Reference:
-									fw.write("0/0");
-									break;
-								default:
-									fw.write("./.");
-									break;
-								}
-								fw.write(formatDelimiter);
-								//AD
-								array = new String[altNum.size()+1];
-								for (int i=0 ; i< array.length ; i++) array[i] = "0";
-								array[0] = adrefs.get(id);
-								array[altNum.get(altVarid.get(id))] = adalts.get(id);	
-								for (int i=0 ; i < array.length ; i++) {
-									fw.write(array[i]);
-									if (i < array.length-1) fw.write(",");
-								}
-								fw.write(formatDelimiter);
-								//DP
-								fw.write(dps.get(id));
-							}else {
-								Set<Integer> orderedAlts = new TreeSet<>();
-								for (String alt : altVarid.values()) {
-									orderedAlts.add(altNum.get(alt));
-								}
-								String genotype = "";
-								for (int idx : orderedAlts){
-									genotype += "/" + idx;
-								}
-								fw.write(genotype.substring(1));
-								fw.write(formatDelimiter);
-								//AD
-								array = new String[altNum.size()+1];
-								for (int i=0 ; i< array.length ; i++) array[i] = "0";
-								array[0] = adrefs.get(altVarid.keySet().iterator().next());
-								for (int id : altVarid.keySet()) {
-									array[altNum.get(altVarid.get(id))] = adalts.get(id);
-								}
-								for (int i=0 ; i < array.length ; i++) {
-									fw.write(array[i]);
-									if (i < array.length-1) fw.write(",");
-								}
-								fw.write(formatDelimiter);
-								//DP
-								fw.write(dps.get(altVarid.keySet().iterator().next()));
-							}
-							//Other format fields
-							for (int j=0 ; j < cFORMAT.size() ; j++) {
-								fw.write(formatDelimiter);
-								int format = (j < 0) ? j : cFORMAT.get(j);
-								array = new String[variantsIds.get(chr).get(pos).get(ref).size()];
-								int k=0;
-								for (Set<Integer> ids : variantsIds.get(chr).get(pos).get(ref).values()) {
-									Set<Integer> sampleId = new HashSet<>(ids);
-									sampleId.retainAll(samples.get(sample));
-									if (sampleId.isEmpty()) {
-										array[k++] = missing;
-									}else{
-										//Happens each time a variant span multiple genes
-										//if (sampleId.size() > 1) System.err.println("Problem with format field of sample " + sample + " variant " + chr +":"+pos+", multiple variant ids for same variant");
-										int id = sampleId.iterator().next();
-										Object o = table.getValueAt(rows.get(id), format);
-										if (o == null || o.toString().length() == 0) {
-											array[k++] = missing;
-										}else {
-											array[k++] = o.toString().replace(':', '|');
-										}
-									}
-								}
-								for (int i=0 ; i < array.length ; i++) {
-									fw.write(array[i]);
-									if (i < array.length-1) fw.write(",");
-								}
-							}
+				try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, select.toString()
+						+" FROM "+analysis.getFromSampleAnnotations()
+						+ analysis.getJoinProjects()
+						+ analysis.getJoinStaticAnnotations()
+						+" WHERE variant_sample_id in ("+HighlanderDatabase.makeSqlList(ids, Integer.class)+")"
+						)){
+					while (res.next()) {
+						Object[] values = new Object[VCFBuilder.MANDATORY.length];
+						for (int f = 0 ; f < values.length ; f++){
+							values[f] = res.getString(VCFBuilder.MANDATORY[f].getName());
 						}
-						fw.write(endline);
+						mandatory.put(res.getInt("variant_sample_id"), values);
 					}
 				}
 			}
-			Highlander.waitingPanel.setProgressDone();
+			Object[] values = new Object[fields.size()];
+			for (int i=0 ; i < nrow ; i++){
+				int row = table.convertRowIndexToModel(i);
+				int variantId = model.getVariantId(row);
+				Object[] fromDatabase = mandatory.get(variantId);
+				if (!complete && fromDatabase == null) continue;
+				for (int f = 0 ; f < values.length ; f++){
+					if (fromDatabase != null && f < fromDatabase.length) values[f] = fromDatabase[f];
+					else values[f] = (indexes[f] < 0) ? null : model.getValueAt(row, indexes[f]);
+				}
+				vcf.add(variantId, values);
+			}
 		}catch(Exception ex){
-			Highlander.waitingPanel.forceStop();
+			vcf.close();
 			throw ex;
 		}
-		Highlander.waitingPanel.stop();
-
+		return vcf;
 	}
 
 	public void toXlsx(File file) throws Exception {
@@ -1367,8 +1233,13 @@ public class VariantsTable extends JPanel {
 	}
 
 	public void toXlsx(File file, boolean addNormalReadCount) throws Exception {
+		if (!addNormalReadCount && isStreamableExport()){
+			getExporter().toXlsx(file);
+			return;
+		}
 		Highlander.waitingPanel.start();
 		try{
+			loadAllPages();
 			int columnCount = table.getColumnCount();
 			if (addNormalReadCount) columnCount += 2;
 			Workbook wb = new SXSSFWorkbook(100);  		
@@ -1412,7 +1283,7 @@ public class VariantsTable extends JPanel {
 			Highlander.waitingPanel.setProgressMaximum(nrow);
 			Highlander.getCellRenderer().clearCellStyles();
 			for (int i=0 ; i < nrow ; i++ ){
-				Highlander.waitingPanel.setProgressValue(r);
+				if (r % 1024 == 0) Highlander.waitingPanel.setProgressValue(r);
 				row = sheet.createRow(r++);
 				for (int c = 0 ; c < table.getColumnCount() ; c++){
 					Cell cell = row.createCell(c);
@@ -1549,8 +1420,10 @@ public class VariantsTable extends JPanel {
 			}
 			
 			Highlander.waitingPanel.setProgressString("Writing file ...",true);		
-			try (FileOutputStream fileOut = new FileOutputStream(file)){
+			try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file), FilterExporter.BUFFER_SIZE)){
 				wb.write(fileOut);
+			}finally{
+				((SXSSFWorkbook)wb).dispose();
 			}
 			Highlander.waitingPanel.setProgressDone();
 		}catch(Exception ex){
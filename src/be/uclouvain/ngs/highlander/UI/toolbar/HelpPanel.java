@@ -52,6 +52,7 @@ import javax.swing.ScrollPaneConstants;
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Resources;
 import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.UI.dialog.QueryStatisticsDialog;
 import be.uclouvain.ngs.highlander.UI.misc.ToolbarScrollablePanel;
 import be.uclouvain.ngs.highlander.UI.table.WelcomePage;
 
@@ -90,10 +91,24 @@ public class HelpPanel extends JPanel {
 			}
 		});
 
+		JButton queryStatistics = new JButton(Resources.getScaledIcon(Resources.iDbStatus, 40));
+		queryStatistics.setPreferredSize(new Dimension(54,54));
+		queryStatistics.setToolTipText("<html><b>Query statistics</b><br>"
+				+ "Timings of the queries sent to the database since Highlander was started, grouped by query template.<br>"
+				+ "Slow queries are explained, and statistics can be exported in JSON to send them to your administrator.</html>");
+		queryStatistics.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				QueryStatisticsDialog dialog = new QueryStatisticsDialog();
+				Tools.centerWindow(dialog, false);
+				dialog.setVisible(true);
+			}
+		});
+
 		JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEADING));
 
 		panel.add(setMemory);	  
 		panel.add(helpLastChanges);
+		panel.add(queryStatistics);
 
 		ToolbarScrollablePanel scrollablePanel = new ToolbarScrollablePanel(panel, Highlander.getHighlanderObserver(), 40);
 		add(scrollablePanel, BorderLayout.CENTER);
@@ -64,6 +64,7 @@ import be.uclouvain.ngs.highlander.UI.dialog.AskSamplesDialog;
 import be.uclouvain.ngs.highlander.UI.dialog.AskTumorNormalAssociation;
 import be.uclouvain.ngs.highlander.UI.dialog.CreateRunSelection;
 import be.uclouvain.ngs.highlander.UI.misc.ToolbarScrollablePanel;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
 import be.uclouvain.ngs.highlander.UI.tools.AlignmentViewer;
 import be.uclouvain.ngs.highlander.UI.tools.BamViewer;
 import be.uclouvain.ngs.highlander.UI.tools.BurdenTest;
@@ -796,6 +797,8 @@ public class ToolsPanel extends JPanel {
 			File xls = new File(filename);
 			try{
 				mainFrame.getVariantTable().toXlsx(xls);
+			}catch (CancelException ex){
+				//Export cancelled by the user
 			}catch (IOException ex){
 				Tools.exception(ex);
 				JOptionPane.showMessageDialog(new JFrame(),  Tools.getMessage("I/O error when creating file", ex), "Exporting to Excel",
@@ -817,10 +820,12 @@ public class ToolsPanel extends JPanel {
 		chooser.setVisible(true) ;
 		if (chooser.getFile() != null) {
 			String filename = chooser.getDirectory() + chooser.getFile();
-			if (!filename.endsWith(".tsv")) filename += ".tsv";
+			if (!filename.endsWith(".tsv") && !filename.endsWith(".tsv.gz")) filename += ".tsv";
 			File tsv = new File(filename);
 			try{
 				mainFrame.getVariantTable().toTSV(tsv);
+			}catch (CancelException ex){
+				//Export cancelled by the user
 			}catch (IOException ex){
 				Tools.exception(ex);
 				JOptionPane.showMessageDialog(new JFrame(),  Tools.getMessage("I/O error when creating file", ex), "Exporting to TSV",
@@ -845,10 +850,12 @@ public class ToolsPanel extends JPanel {
 			chooser.setVisible(true) ;
 			if (chooser.getFile() != null) {
 				String filename = chooser.getDirectory() + chooser.getFile();
-				if (!filename.endsWith(".vcf")) filename += ".vcf";
+				if (!filename.endsWith(".vcf") && !filename.endsWith(".vcf.gz")) filename += ".vcf";
 				File vcf = new File(filename);
 				try{
 					mainFrame.getVariantTable().toVCF(vcf);
+				}catch (CancelException ex){
+					//Export cancelled by the user
 				}catch (IOException ex){
 					Tools.exception(ex);
 					JOptionPane.showMessageDialog(new JFrame(),  Tools.getMessage("I/O error when creating file", ex), "Exporting to VCF",
@@ -870,23 +877,9 @@ public class ToolsPanel extends JPanel {
 				String filename = chooser.getDirectory() + chooser.getFile();
 				if (filename.endsWith(".vcf")) filename = filename.substring(0, filename.length()-4);
 				try{
-					Set<String> samples = mainFrame.getVariantTable().getDistinctValues(Field.sample);
-					if (samples.isEmpty()) {
-						try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, 
-								"SELECT "+Field.sample.getQuerySelectName(Highlander.getCurrentAnalysis(), false)+" "
-										+ "FROM "+Highlander.getCurrentAnalysis().getFromSampleAnnotations()
-										+ Highlander.getCurrentAnalysis().getJoinProjects()
-										+" WHERE "+Field.variant_sample_id.getQueryWhereName(Highlander.getCurrentAnalysis(), false)+" in ("+HighlanderDatabase.makeSqlList(mainFrame.getVariantTable().getAllVariantsIds(), Integer.class)+")"
-								)) {
-							while (res.next()) {
-								samples.add(res.getString(Field.sample.getName()));
-							}
-						}
-					}
-					for (String sample : samples) {
-						File vcf = new File(filename + "_" + sample + ".vcf");
-						mainFrame.getVariantTable().toVCF(vcf, sample);						
-					}
+					mainFrame.getVariantTable().toVCFPerSample(filename);
+				}catch (CancelException ex){
+					//Export cancelled by the user
 				}catch (IOException ex){
 					Tools.exception(ex);
 					JOptionPane.showMessageDialog(new JFrame(),  Tools.getMessage("I/O error when creating file", ex), "Exporting to VCF",
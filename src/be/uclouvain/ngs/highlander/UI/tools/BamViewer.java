@@ -41,26 +41,22 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.URL;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -94,11 +90,7 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
-import org.broad.igv.DirectoryManager;
-import org.broad.igv.exceptions.DataLoadException;
 //import org.broad.igv.ui.IGVAccess;
-import org.broad.igv.ui.util.MessageUtils;
-import org.broad.igv.util.HttpUtils;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Resources;
@@ -116,12 +108,11 @@ import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.Interval;
 import be.uclouvain.ngs.highlander.datatype.Reference;
 import be.uclouvain.ngs.highlander.datatype.Variant;
-import be.uclouvain.ngs.highlander.tools.ViewBam;
+import be.uclouvain.ngs.highlander.tools.BamIndexCache;
+import be.uclouvain.ngs.highlander.tools.ParallelPileup;
+import be.uclouvain.ngs.highlander.tools.ReadPileup;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecordIterator;
-import net.sf.samtools.seekablestream.SeekableBufferedStream;
-import net.sf.samtools.seekablestream.SeekableFTPStream;
-import net.sf.samtools.SAMFileReader.ValidationStringency;
 
 public class BamViewer extends JFrame {
 
@@ -131,8 +122,6 @@ public class BamViewer extends JFrame {
 	public final static int T = 3;
 	public final static int N = 4;
 
-	public static final long oneDay = 24 * 60 * 60 * 1000;
-
 	private Reference reference;
 	private Map<AnalysisFull, Set<String>> bams;
 	private Set<Interval> positions;
@@ -144,7 +133,6 @@ public class BamViewer extends JFrame {
 	private Map<Interval, JTable> tables = new TreeMap<Interval, JTable>();
 	private Map<Interval, TableRowSorter<BamViewerTableModel>> sorters = new TreeMap<Interval, TableRowSorter<BamViewerTableModel>>();
 
-	static Hashtable<String, File> indexFileCache = new Hashtable<String, File>();
 	static private WaitingPanel waitingPanel;
 
 	public BamViewer(Reference reference, Map<AnalysisFull, Set<String>> selectedBAM, Set<Interval> positions){
@@ -532,60 +520,45 @@ public class BamViewer extends JFrame {
 		allHeaders = new TreeMap<>();
 		allData = new TreeMap<>();
 		Map<Interval,Map<Analysis,Map<String,Map<String,Integer>>>> intervals = new TreeMap<Interval,Map<Analysis,Map<String,Map<String,Integer>>>>();
-		String NREADS="#reads";
-		int count = 0;
+		String NREADS=ParallelPileup.NREADS;
+		//BAM files are read in parallel, each one keeping its reader for all positions
+		Map<String, ParallelPileup.BamSource> sources = new TreeMap<String, ParallelPileup.BamSource>();
+		Map<String, AnalysisFull> sourceAnalyses = new HashMap<String, AnalysisFull>();
+		Map<String, String> sourceSamples = new HashMap<String, String>();
 		for (AnalysisFull analysis : bams.keySet()){
 			for (String sample : bams.get(analysis)){
-				waitingPanel.setProgressValue(++count);
-				try{
+				String key = analysis + "|" + sample;
+				sourceAnalyses.put(key, analysis);
+				sourceSamples.put(key, sample);
+				sources.put(key, () -> {
 					URL url = new URL(analysis.getBamURL(sample));
-					if (Tools.exists(url.toString())){
-						SAMFileReader samfr = (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
-						samfr.setValidationStringency(ValidationStringency.SILENT);
-						for (Interval pos : positions){
-							if (!intervals.containsKey(pos)){
-								intervals.put(pos, new TreeMap<Analysis, Map<String,Map<String,Integer>>>());
-							}
-							Map<Analysis, Map<String,Map<String,Integer>>> analyses = intervals.get(pos);
-							if (!analyses.containsKey(analysis)){
-								analyses.put(analysis, new TreeMap<String,Map<String,Integer>>());
-							}
-							Map<String,Map<String,Integer>> samples = analyses.get(analysis); 
-							if (!samples.containsKey(sample)){
-								Map<String, Integer> patterns = new HashMap<String, Integer>();
-								if(pos.getSize() == 1){
-									patterns.put("A", 0);
-									patterns.put("C", 0);
-									patterns.put("G", 0);
-									patterns.put("T", 0);
-								}
-								samples.put(sample, patterns);
-							}
-							Map<String,Integer> patterns = samples.get(sample);								
-							SAMRecordIterator it =  samfr.query(pos.getChromosome(samfr.getFileHeader()), pos.getStart(), pos.getEnd(), false);
-							int total = 0;
-							while(it.hasNext()){									
-								//Check if the interval falls completely inside the read, drop it if not									
-								Optional<String> optionalPattern = ViewBam.getPattern(it.next(), pos.getStart(), pos.getEnd());
-								if (optionalPattern.isPresent()){
-									String pattern = optionalPattern.get();
-									if (!patterns.containsKey(pattern)){
-										patterns.put(pattern, 0);
-									}
-									patterns.put(pattern, patterns.get(pattern)+1);
-									total++;
-								}
-							}
-							it.close();
-							patterns.put(NREADS, total);
-						}
-						samfr.close();
+					return (Tools.exists(url.toString())) ? BamIndexCache.open(url) : null;
+				});
+			}
+		}
+		AtomicInteger count = new AtomicInteger();
+		ParallelPileup pileup = new ParallelPileup(ParallelPileup.DEFAULT_THREADS);
+		Map<String, Map<Interval, Map<String,Integer>>> counts = pileup.count(sources, positions, (key) -> waitingPanel.setProgressValue(count.incrementAndGet()));
+		if (!pileup.getFailures().isEmpty()) {
+			StringBuilder failed = new StringBuilder();
+			for (String key : pileup.getFailures().keySet()) {
+				failed.append(sourceSamples.get(key) + " (" + sourceAnalyses.get(key) + "): " + pileup.getFailures().get(key).getMessage() + "\n");
+			}
+			JOptionPane.showMessageDialog(new JFrame(),  "Cannot read BAM files of samples:\n"+failed+"Those samples have been removed from the tables.", "BamViewer",
+					JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCross,64));
+		}
+		for (Interval pos : positions){
+			Map<Analysis, Map<String,Map<String,Integer>>> analyses = new TreeMap<Analysis, Map<String,Map<String,Integer>>>();
+			for (String key : counts.keySet()){
+				if (counts.get(key).containsKey(pos)){
+					AnalysisFull analysis = sourceAnalyses.get(key);
+					if (!analyses.containsKey(analysis)){
+						analyses.put(analysis, new TreeMap<String,Map<String,Integer>>());
 					}
-				}catch(Exception ex){
-					System.err.println("BamViewer: problem with sample " + sample + " in analysis " + analysis);
-					ex.printStackTrace();
+					analyses.get(analysis).put(sourceSamples.get(key), counts.get(key).get(pos));
 				}
 			}
+			intervals.put(pos, analyses);
 		}
 		waitingPanel.setProgressDone();
 
@@ -828,120 +801,27 @@ public class BamViewer extends JFrame {
 	}
 
 	static public int getReadCount(AnalysisFull analysis, String sample, Interval pos) {
-		String NREADS="#reads";
-		Map<String, Integer> patterns = new HashMap<String, Integer>();
-		if(pos.getSize() == 1){
-			patterns.put("A", 0);
-			patterns.put("C", 0);
-			patterns.put("G", 0);
-			patterns.put("T", 0);
-		}
-		patterns.put(NREADS, 0);
+		int total = 0;
 		try{
 			URL url = new URL(analysis.getBamURL(sample));
 			if (Tools.exists(url.toString())){
-				SAMFileReader samfr = (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
-				samfr.setValidationStringency(ValidationStringency.SILENT);
+				SAMFileReader samfr = BamIndexCache.open(url);
 				SAMRecordIterator it =  samfr.query(pos.getChromosome(samfr.getFileHeader()), pos.getStart(), pos.getEnd(), false);
-				int total = 0;
+				ReadPileup pileup = new ReadPileup();
 				while(it.hasNext()){									
 					//Check if the interval falls completely inside the read, drop it if not									
-					Optional<String> optionalPattern = ViewBam.getPattern(it.next(), pos.getStart(), pos.getEnd());
-					if (optionalPattern.isPresent()){
-						String pattern = optionalPattern.get();
-						if (!patterns.containsKey(pattern)){
-							patterns.put(pattern, 0);
-						}
-						patterns.put(pattern, patterns.get(pattern)+1);
+					if (pileup.extract(it.next(), pos.getStart(), pos.getEnd())){
 						total++;
 					}
 				}
 				it.close();
-				patterns.put(NREADS, total);
 				samfr.close();
 			}
 		}catch(Exception ex){
 			System.err.println("BamViewer: problem with sample " + sample + " in analysis " + analysis);
 			ex.printStackTrace();
 		}
-		return patterns.get(NREADS);
-	}
-
-	static File getIndexFile(URL url, String indexPath) throws IOException {
-
-		String urlString = url.toString();
-		File indexFile = getTmpIndexFile(urlString);
-
-		// Crude staleness check -- if more than a day old discard
-		long age = System.currentTimeMillis() - indexFile.lastModified();
-		if (age > oneDay) {
-			indexFile.delete();
-		}
-
-		if (!indexFile.exists() || indexFile.length() < 1) {
-			loadIndexFile(urlString, indexPath, indexFile);
-			indexFile.deleteOnExit();
-		}
-
-		return indexFile;
-
-	}
-
-	private static File getTmpIndexFile(String bamURL) throws IOException {
-		File indexFile = indexFileCache.get(bamURL);
-		if (indexFile == null) {
-			indexFile = File.createTempFile("index_", ".bai", DirectoryManager.getCacheDirectory());
-			indexFile.deleteOnExit();
-			indexFileCache.put(bamURL, indexFile);
-		}
-		return indexFile;
-	}
-
-	private static void loadIndexFile(String path, String indexPath, File indexFile) throws IOException {
-		InputStream is = null;
-		OutputStream os = null;
-
-		try {
-			String idx = (indexPath != null && indexPath.length() > 0) ? indexPath : path + ".bai";
-			URL indexURL = new URL(idx);
-			os = new FileOutputStream(indexFile);
-			try {
-				is = HttpUtils.getInstance().openConnectionStream(indexURL);
-			} catch (FileNotFoundException e) {
-				// Try other index convention
-				String baseName = path.substring(0, path.length() - 4);
-				indexURL = new URL(baseName + ".bai");
-
-				try {
-					is = org.broad.igv.util.HttpUtils.getInstance().openConnectionStream(indexURL);
-				} catch (FileNotFoundException e1) {
-					MessageUtils.showMessage("Index file not found for file: " + path);
-					throw new DataLoadException("Index file not found for file: " + path, path);
-				}
-			}
-			byte[] buf = new byte[512000];
-			int bytesRead;
-			while ((bytesRead = is.read(buf)) != -1) {
-				os.write(buf, 0, bytesRead);
-			}
-
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					e.printStackTrace(); 
-				}
-			}
-			if (os != null) {
-				try {
-					os.close();
-				} catch (IOException e) {
-					e.printStackTrace(); 
-				}
-			}
-
-		}
+		return total;
 	}
 
 	public void bamCheck(){
@@ -1210,8 +1090,7 @@ public class BamViewer extends JFrame {
 
 	public static AlignmentPanel getAlignmentPanel(URL url, Interval interval, Variant highlightedVariant, boolean showSoftClippedBases, boolean squished, boolean frameShift, ColorBy colorBy, boolean drawReference, int width, JProgressBar progress) throws Exception {
 		if (Tools.exists(url.toString())){
-			SAMFileReader samfr = (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
-			samfr.setValidationStringency(ValidationStringency.SILENT);
+			SAMFileReader samfr = BamIndexCache.open(url);
 			progress.setIndeterminate(true);
 			progress.setString("Retrieving reads in interval");
 			progress.setStringPainted(true);
@@ -131,6 +131,7 @@ import be.uclouvain.ngs.highlander.database.VariantResults;
 import be.uclouvain.ngs.highlander.database.Field.Annotation;
 import be.uclouvain.ngs.highlander.database.Field.JSon;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.Priority;
 import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.Gene;
 import be.uclouvain.ngs.highlander.datatype.Variant;
@@ -204,11 +205,11 @@ public class BurdenTest extends JFrame {
 		this.addComponentListener(new ComponentListener() {
 			@Override
 			public void componentShown(ComponentEvent arg0) {
-				new Thread(new Runnable(){
-					public void run(){
-						fillTables();				
-					}
-				}, "BurdenTest.fillTables").start();
+				//Queries of the burden test can be long, they must not delay the details of the selected variant
+				Highlander.getDB().getScheduler().submit("BurdenTest.fillTables", Priority.BACKGROUND, () -> {
+					fillTables();
+					return null;
+				});
 			}
 			@Override
 			public void componentResized(ComponentEvent arg0) {
@@ -404,31 +405,31 @@ public class BurdenTest extends JFrame {
 				else if (variantResults.headers[i].getName().equalsIgnoreCase("biotype")) i_biotype = i;
 				else if (variantResults.headers[i].getName().equalsIgnoreCase("zygosity")) i_zygosity = i;
 			}
-			for (int i=0 ; i < variantResults.data.length ; i++){
-				String geneSymbol = variantResults.data[i][i_gene_symbol] != null ? variantResults.data[i][i_gene_symbol].toString() : null;
+			for (int i=0 ; i < variantResults.getRowCount() ; i++){
+				String geneSymbol = variantResults.getValue(i, i_gene_symbol) != null ? variantResults.getValue(i, i_gene_symbol).toString() : null;
 				try{
-					Integer.parseInt(variantResults.data[i][i_chr].toString());
+					Integer.parseInt(variantResults.getValue(i, i_chr).toString());
 				}catch(NumberFormatException nex){
 					geneSymbol = null;
 				}
 				if (geneSymbol != null && geneSymbol.length() > 0){
 					if (!genes.containsKey(geneSymbol)){
-						genes.put(geneSymbol, new Gene(analysis.getReference(), variantResults.data[i][i_chr].toString(), geneSymbol, 
-								(variantResults.data[i][i_gene_ensembl] != null ? variantResults.data[i][i_gene_ensembl].toString() : null), 
-								(variantResults.data[i][i_transcript_ensembl] != null ? variantResults.data[i][i_transcript_ensembl].toString() : null), 
-								(variantResults.data[i][i_transcript_refseq_mrna] != null ? variantResults.data[i][i_transcript_refseq_mrna].toString() : null),
-								(variantResults.data[i][i_biotype] != null ? variantResults.data[i][i_biotype].toString() : "?")
+						genes.put(geneSymbol, new Gene(analysis.getReference(), variantResults.getValue(i, i_chr).toString(), geneSymbol, 
+								(variantResults.getValue(i, i_gene_ensembl) != null ? variantResults.getValue(i, i_gene_ensembl).toString() : null), 
+								(variantResults.getValue(i, i_transcript_ensembl) != null ? variantResults.getValue(i, i_transcript_ensembl).toString() : null), 
+								(variantResults.getValue(i, i_transcript_refseq_mrna) != null ? variantResults.getValue(i, i_transcript_refseq_mrna).toString() : null),
+								(variantResults.getValue(i, i_biotype) != null ? variantResults.getValue(i, i_biotype).toString() : "?")
 								));
 						variantPosAndIds.put(geneSymbol, new TreeMap<Integer, Map<Zygosity,Set<Integer>>>());
 					}
-					int pos = Integer.parseInt(variantResults.data[i][i_pos].toString());
+					int pos = Integer.parseInt(variantResults.getValue(i, i_pos).toString());
 					if (!variantPosAndIds.get(geneSymbol).containsKey(pos)){
 						variantPosAndIds.get(geneSymbol).put(pos, new EnumMap<Zygosity,Set<Integer>>(Zygosity.class));
 						for (Zygosity zygosity : Zygosity.values()){
 							variantPosAndIds.get(geneSymbol).get(pos).put(zygosity, new HashSet<Integer>());
 						}
 					}
-					variantPosAndIds.get(geneSymbol).get(pos).get(Zygosity.valueOf(variantResults.data[i][i_zygosity].toString())).add(Integer.parseInt(variantResults.data[i][i_id].toString()));
+					variantPosAndIds.get(geneSymbol).get(pos).get(Zygosity.valueOf(variantResults.getValue(i, i_zygosity).toString())).add(Integer.parseInt(variantResults.getValue(i, i_id).toString()));
 				}
 			}
 			waitingPanel.setProgressString("Retreiving number of sample involved in your query",true);
@@ -698,15 +699,15 @@ public class BurdenTest extends JFrame {
 		VariantResults variantResults =	pseudoFilter.retreiveData(pseudoHeaders, pseudoFilter.getAllSamples(), "Highlander info " + geneSymbol);
 		Map<Integer,List<Integer>> posSorting = new TreeMap<Integer, List<Integer>>();
 		row = 0;
-		while (row < variantResults.data.length){
-			int pos = Integer.parseInt(variantResults.data[row][1].toString());
+		while (row < variantResults.getRowCount()){
+			int pos = Integer.parseInt(variantResults.getValue(row, 1).toString());
 			if (!posSorting.containsKey(pos)){
 				posSorting.put(pos, new ArrayList<Integer>());
 			}
 			posSorting.get(pos).add(row);
 			row++;
 		}
-		Object[][] highlanderData = new Object[variantResults.data.length][headers.length];
+		Object[][] highlanderData = new Object[variantResults.getRowCount()][headers.length];
 		row = 0;
 		for (List<Integer> posList : posSorting.values()){
 			for (int r : posList){
@@ -714,7 +715,7 @@ public class BurdenTest extends JFrame {
 				highlanderData[row][1] = 0;
 				highlanderData[row][2] = hlTotal;					
 				for (int col = 3 ; col < headers.length ; col++){
-					highlanderData[row][col] = variantResults.data[r][col-3];
+					highlanderData[row][col] = variantResults.getValue(r, col-3);
 				}
 				Variant var = new Variant(highlanderData[row][3].toString(),Integer.parseInt(highlanderData[row][4].toString()),highlanderData[row][5].toString(),highlanderData[row][6].toString());
 				if (!hlVariants.get(geneSymbol).containsKey(var)){
@@ -101,6 +101,8 @@ import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.CancellationToken;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.Priority;
 
 import java.util.Arrays;
 import java.awt.Insets;
@@ -159,6 +161,7 @@ public class CoverageInfo extends JFrame {
 
 	private boolean hasTable = false;
 	private List<String> targets = new ArrayList<String>();
+	private final CancellationToken cancellationToken = new CancellationToken();
 	private List<String> samples = new ArrayList<String>();
 	private Map<String,Map<String,Map<Integer,Double[]>>> results = new TreeMap<>(new Tools.NaturalOrderComparator(true));
 	
@@ -501,20 +504,19 @@ public class CoverageInfo extends JFrame {
 		JButton btnNewButton = new JButton("Get coverage info", Resources.getScaledIcon(Resources.iCoverage, 24));
 		btnNewButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				new Thread(new Runnable() {
-					@Override
-					public void run() {
-						if (textAreaTargets.getText().length() == 0){
-							JOptionPane.showMessageDialog(CoverageInfo.this, "You must give at least one gene !", "Cannot get coverage info", JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCoverage, 64));
-							return;
-						}
-						if (textAreaSamples.getText().length() == 0){
-							JOptionPane.showMessageDialog(CoverageInfo.this, "You must give at least one sample !", "Cannot get coverage info", JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCoverage, 64));
-							return;
-						}
-						for (Grouping grouping : Grouping.values())	fetchData(grouping);
-					}
-				}, "CoverageInfo.getCoverageInfo").start();
+				if (textAreaTargets.getText().length() == 0){
+					JOptionPane.showMessageDialog(CoverageInfo.this, "You must give at least one gene !", "Cannot get coverage info", JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCoverage, 64));
+					return;
+				}
+				if (textAreaSamples.getText().length() == 0){
+					JOptionPane.showMessageDialog(CoverageInfo.this, "You must give at least one sample !", "Cannot get coverage info", JOptionPane.ERROR_MESSAGE, Resources.getScaledIcon(Resources.iCoverage, 64));
+					return;
+				}
+				//Coverage queries can be long, they must not delay the details of the selected variant
+				Highlander.getDB().getScheduler().submit("CoverageInfo.getCoverageInfo", Priority.BACKGROUND, cancellationToken, () -> {
+					for (Grouping grouping : Grouping.values())	fetchData(grouping);
+					return null;
+				});
 			}
 		});
 		GridBagConstraints gbc_btnNewButton = new GridBagConstraints();
@@ -708,6 +710,12 @@ public class CoverageInfo extends JFrame {
 
 	}
 
+	@Override
+	public void dispose(){
+		cancellationToken.cancel();
+		super.dispose();
+	}
+
 	private void fetchData(Grouping grouping){
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
@@ -82,6 +82,7 @@ import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect.VariantType;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 import be.uclouvain.ngs.highlander.datatype.filter.ComboFilter;
 import be.uclouvain.ngs.highlander.datatype.filter.CustomFilter;
 import be.uclouvain.ngs.highlander.datatype.filter.VariantsCommonToSamples;
@@ -387,7 +388,7 @@ public class CtdnaEstimation extends JFrame {
 
 				VariantsCommonToSamples filter = new VariantsCommonToSamples(null, VCSCriteria, prefilter);
 
-				Map<Integer, String> results = filter.getResultIds(null);
+				Map<Integer, Long> results = filter.getResultIds(null);
 
 				Map<Integer, Integer> genomicIdToPasmaId = new HashMap<>();
 				Map<Integer, Integer> plasmaIdToGenomicId = new HashMap<>();
@@ -408,7 +409,7 @@ public class CtdnaEstimation extends JFrame {
 							}
 						}
 						if (idPlasma == -1) {
-							System.err.println(idGenomic + " - " + results.get(idGenomic) + " was not found in tumor !!! Problem with filter ...");
+							System.err.println(idGenomic + " - " + VariantKey.getLabel(results.get(idGenomic)) + " was not found in tumor !!! Problem with filter ...");
 						}else {
 							genomicIdToPasmaId.put(idGenomic,	idPlasma);
 							plasmaIdToGenomicId.put(idPlasma, idGenomic);
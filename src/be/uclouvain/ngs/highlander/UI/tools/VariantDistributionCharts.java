@@ -351,7 +351,7 @@ public class VariantDistributionCharts extends JFrame {
 				if (variantResults.headers[i].getName().equalsIgnoreCase(field.getName())) i_field = i;
 			}
 
-			Set<String> variants = new HashSet<>();
+			Set<Long> variants = new HashSet<>();
 
 			if (field.hasTag(Tag.FORMAT_PERCENT_2) || field.hasTag(Tag.FORMAT_PERCENT_0)) {
 				data = new LinkedHashMap<>();
@@ -379,10 +379,10 @@ public class VariantDistributionCharts extends JFrame {
 				}
 				aggregate = new LinkedHashMap<>(data);
 
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key = "#NA";
-					if (variantResults.data[k][i_field] != null) {
-						double val = (double)variantResults.data[k][i_field];
+					if (variantResults.getValue(k, i_field) != null) {
+						double val = (double)variantResults.getValue(k, i_field);
 						for (int i=0 ; i < bins.length ; i++) {
 							if (val <= bins[i]) {
 								double left = (i > 0) ? bins[i-1] : +min;
@@ -436,10 +436,10 @@ public class VariantDistributionCharts extends JFrame {
 				}
 				aggregate = new LinkedHashMap<>(data);
 
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key = "#NA";
-					if (variantResults.data[k][i_field] != null) {
-						int val = (int)variantResults.data[k][i_field];
+					if (variantResults.getValue(k, i_field) != null) {
+						int val = (int)variantResults.getValue(k, i_field);
 						for (int i=bins.length-1 ; i >= 0 ; i--) {
 							if (val >= bins[i]) {
 								key = (bins[i] < 100) ? bins[i]+"" : bins[i]+"+";
@@ -484,12 +484,12 @@ public class VariantDistributionCharts extends JFrame {
 				data.put("X", 0);
 				data.put("Y", 0);
 				aggregate = new LinkedHashMap<>(data);
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key;
-					if (variantResults.data[k][i_field] == null) {
+					if (variantResults.getValue(k, i_field) == null) {
 						key = "#NA";
 					}else {
-						key = variantResults.data[k][i_field].toString();
+						key = variantResults.getValue(k, i_field).toString();
 					}
 					if (!data.containsKey(key)) {
 						data.put(key, 0);
@@ -533,10 +533,10 @@ public class VariantDistributionCharts extends JFrame {
 					data.put(((i > 0) ? "]"+Tools.doubleToString(bins[i-1], 2, true) : "["+Tools.doubleToString(min, 2, true)) + ";" + Tools.doubleToString(bins[i], 2, true)+"]", 0);
 				}
 				aggregate = new LinkedHashMap<>(data);
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key = "#NA";
-					if (variantResults.data[k][i_field] != null) {
-						double val = (double)variantResults.data[k][i_field];
+					if (variantResults.getValue(k, i_field) != null) {
+						double val = (double)variantResults.getValue(k, i_field);
 						for (int i=0 ; i < bins.length ; i++) {
 							if (val <= bins[i]) {
 								key = ((i > 0) ? "]"+Tools.doubleToString(bins[i-1], 2, true) : "["+Tools.doubleToString(min, 2, true)) + ";" + Tools.doubleToString(bins[i], 2, true)+"]";
@@ -586,10 +586,10 @@ public class VariantDistributionCharts extends JFrame {
 					data.put(((i > 0) ? "]"+bins[i-1] : "["+min) + ";" + bins[i]+"]", 0);
 				}
 				aggregate = new LinkedHashMap<>(data);
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key = "#NA";
-					if (variantResults.data[k][i_field] != null) {
-						int val = (int)variantResults.data[k][i_field];
+					if (variantResults.getValue(k, i_field) != null) {
+						int val = (int)variantResults.getValue(k, i_field);
 						for (int i=0 ; i < bins.length ; i++) {
 							if (val <= bins[i]) {
 								key = ((i > 0) ? "]"+bins[i-1] : "["+min) + ";" + bins[i]+"]";
@@ -639,10 +639,10 @@ public class VariantDistributionCharts extends JFrame {
 					data.put(((i > 0) ? "]"+bins[i-1] : "["+min) + ";" + bins[i]+"]", 0);
 				}
 				aggregate = new LinkedHashMap<>(data);
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key = "#NA";
-					if (variantResults.data[k][i_field] != null) {
-						long val = (long)variantResults.data[k][i_field];
+					if (variantResults.getValue(k, i_field) != null) {
+						long val = (long)variantResults.getValue(k, i_field);
 						for (int i=0 ; i < bins.length ; i++) {
 							if (val <= bins[i]) {
 								key = ((i > 0) ? "]"+bins[i-1] : "["+min) + ";" + bins[i]+"]";
@@ -663,12 +663,12 @@ public class VariantDistributionCharts extends JFrame {
 			}else {
 				data = new TreeMap<>();
 				aggregate = new TreeMap<>();
-				for (int k=0 ; k < variantResults.data.length ; k++){
+				for (int k=0 ; k < variantResults.getRowCount() ; k++){
 					String key;
-					if (variantResults.data[k][i_field] == null) {
+					if (variantResults.getValue(k, i_field) == null) {
 						key = "#NA";
 					}else {
-						key = variantResults.data[k][i_field].toString();
+						key = variantResults.getValue(k, i_field).toString();
 					}
 					if (!data.containsKey(key)) {
 						data.put(key, 0);
@@ -0,0 +1,472 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.administration;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Parameters;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.Analysis;
+
+/**
+ * Incremental update of the [analysis]_allele_frequencies and [analysis]_allele_frequencies_per_pathology tables,
+ * when samples are imported, overwritten or deleted, instead of rebuilding them with DbBuilder.computeAlleleFrequencies().
+ *
+ * The variants of each modified sample are collected with addSample() (before deletion, or after importation).
+ * update() then recomputes those variants only, from all samples of the analysis having them,
+ * with the same rules as computeAlleleFrequencies() (variants counted once per individual, whatever the number of samples and genes).
+ * Their rows are replaced in the tables, and AN/AF of all other rows are updated with one statement if the number of individuals changed.
+ *
+ * Tables that are empty are left untouched, they must be built once with DbBuilder tool allelefreq, which uses buildShards() and importShards().
+ */
+public class AlleleFrequencyUpdater {
+
+	private static final int MAX_KEYS_PER_QUERY = 1000;
+
+	private static final int LOCAL = 0;
+	private static final int GERMLINE = 1;
+	private static final int SOMATIC = 2;
+
+	private static class Counts {
+		final int[] het = new int[3];
+		final int[] hom = new int[3];
+		final BitSet[] pathologies = new BitSet[] {new BitSet(), new BitSet(), new BitSet()};
+	}
+
+	private final HighlanderDatabase DB;
+	private final Analysis analysis;
+	/** chr -> pos|length|reference|alternative */
+	private final Map<String, Set<String>> variants = new TreeMap<>();
+	private int numVariants = 0;
+
+	public AlleleFrequencyUpdater(Analysis analysis) {
+		this.DB = Highlander.getDB();
+		this.analysis = analysis;
+	}
+
+	/**
+	 * Collect the variants of a sample, which allele frequencies will be recomputed by update().
+	 * Must be called while the variants of the sample are in the database: before deleting a sample, after importing it.
+	 */
+	public void addSample(int projectId) throws Exception {
+		try (Results res = DB.select(Schema.HIGHLANDER,
+				"SELECT DISTINCT chr, pos, length, reference, alternative FROM "+analysis.getFromSampleAnnotations()+"WHERE `project_id` = " + projectId, true)) {
+			while (res.next()) {
+				String chr = res.getString("chr");
+				if (!variants.containsKey(chr)) variants.put(chr, new HashSet<>());
+				if (variants.get(chr).add(res.getInt("pos") + "|" + res.getInt("length") + "|" + res.getString("reference") + "|" + res.getString("alternative"))) {
+					numVariants++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recompute the allele frequencies of all variants collected by addSample(), and AN/AF of all variants if needed.
+	 * The caller should set the database in hard update mode.
+	 */
+	public void update(Parameters parameters) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		DateFormat df2 = new SimpleDateFormat("yyyy_MM_dd.HH_mm_ss");
+		String table = analysis + "_allele_frequencies";
+		String tablePerPathology = analysis + "_allele_frequencies_per_pathology";
+		boolean global = !isEmpty(table);
+		boolean perPathology = !isEmpty(tablePerPathology);
+		if (!global && !perPathology) {
+			System.out.println("Allele frequencies of " + analysis + " have never been computed, use tool allelefreq to build them");
+			return;
+		}
+		System.out.println(df.format(System.currentTimeMillis()) + " - Updating allele frequencies of " + numVariants + " variants in " + analysis);
+		Map<Integer, int[]> an = getAlleleNumbers();
+		int[] anTotal = new int[3];
+		for (int[] anPathology : an.values()) {
+			for (int i=0 ; i < 3 ; i++) anTotal[i] += anPathology[i];
+		}
+		File insertFile = DbBuilder.createTempInsertionFile("allele_frequencies."+df2.format(System.currentTimeMillis())+".sql");
+		File insertFilePerPathology = DbBuilder.createTempInsertionFile("allele_frequencies_per_pathology."+df2.format(System.currentTimeMillis())+".sql");
+		Map<String, List<String>> sorted = new TreeMap<>();
+		for (String chr : variants.keySet()) {
+			sorted.put(chr, sortByPosition(variants.get(chr)));
+		}
+		//New rows are computed first, existing rows are only deleted just before loading them, so a failure while counting leaves the tables untouched
+		try (FileWriter fw = new FileWriter(insertFile); FileWriter fwp = new FileWriter(insertFilePerPathology)){
+			for (String chr : sorted.keySet()) {
+				List<String> list = sorted.get(chr);
+				for (int i=0 ; i < list.size() ; i += MAX_KEYS_PER_QUERY) {
+					String where = getWhereClause(chr, list.subList(i, Math.min(list.size(), i+MAX_KEYS_PER_QUERY)));
+					Map<String, Counts> counts = new HashMap<>();
+					Map<String, Counts> countsPerPathology = new HashMap<>();
+					count(where, counts, countsPerPathology);
+					if (global) {
+						for (String uid : counts.keySet()) {
+							fw.write(getRow(uid, counts.get(uid), anTotal, true));
+						}
+					}
+					if (perPathology) {
+						for (String uid : countsPerPathology.keySet()) {
+							int pathology = Integer.parseInt(uid.substring(uid.lastIndexOf("|")+1));
+							fwp.write(getRow(uid, countsPerPathology.get(uid), an.getOrDefault(pathology, new int[3]), false));
+						}
+					}
+				}
+			}
+		}
+		for (String chr : sorted.keySet()) {
+			List<String> list = sorted.get(chr);
+			for (int i=0 ; i < list.size() ; i += MAX_KEYS_PER_QUERY) {
+				String where = getWhereClause(chr, list.subList(i, Math.min(list.size(), i+MAX_KEYS_PER_QUERY)));
+				if (global) DB.update(Schema.HIGHLANDER, "DELETE FROM `"+table+"` WHERE " + where);
+				if (perPathology) DB.update(Schema.HIGHLANDER, "DELETE FROM `"+tablePerPathology+"` WHERE " + where);
+			}
+		}
+		if (global) {
+			DB.insertFile(Schema.HIGHLANDER, table, getColumns(true), insertFile, true, parameters);
+			//AN of all variants change when an individual is added or removed
+			DB.update(Schema.HIGHLANDER, "UPDATE `"+table+"` SET " + getAlleleNumberUpdate(anTotal, null));
+		}
+		if (perPathology) {
+			DB.insertFile(Schema.HIGHLANDER, tablePerPathology, getColumns(false), insertFilePerPathology, true, parameters);
+			for (int pathology : an.keySet()) {
+				DB.update(Schema.HIGHLANDER, "UPDATE `"+tablePerPathology+"` SET " + getAlleleNumberUpdate(an.get(pathology), "pathology_id = "+pathology));
+			}
+		}
+		insertFile.delete();
+		insertFilePerPathology.delete();
+		variants.clear();
+		numVariants = 0;
+		System.out.println(df.format(System.currentTimeMillis()) + " - Allele frequencies updated");
+	}
+
+	/**
+	 * Compute the allele frequencies of all variants of the analysis, for a full rebuild of one of the tables.
+	 * 
+	 * Each range of positions (see DbBuilder.getPositionShards()) is an independent shard, processed in parallel with its own streaming query sorted by position,
+	 * and written to its own insertion file. All rows of a position being consecutive, counts are written and cleared at each new position,
+	 * so memory used doesn't depend on the number of variants or samples in the analysis.
+	 * 
+	 * @param perPathology true to compute counts per pathology ([analysis]_allele_frequencies_per_pathology), false for [analysis]_allele_frequencies
+	 * @param nthreads number of shards processed at the same time (each one uses a database connection)
+	 * @return the insertion files of all shards, to give to importShards()
+	 */
+	public List<File> buildShards(boolean perPathology, int nthreads) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		DateFormat df2 = new SimpleDateFormat("yyyy_MM_dd.HH_mm_ss");
+		Map<Integer, int[]> an = getAlleleNumbers();
+		int[] anTotal = new int[3];
+		for (int[] anPathology : an.values()) {
+			for (int i=0 ; i < 3 ; i++) anTotal[i] += anPathology[i];
+		}
+		List<String> conditions = DbBuilder.getPositionShards(Schema.HIGHLANDER, analysis.getTableSampleAnnotations(), nthreads);
+		long max = 1;
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT COUNT(*) FROM "+analysis.getFromSampleAnnotations())) {
+			if (res.next()){
+				max = Math.max(1, res.getLong(1));
+			}
+		}
+		System.out.println(df.format(System.currentTimeMillis()) + " - Processing " + Tools.longToString(max) + " sample variants of " + analysis + " in " + conditions.size() + " shards");
+		final long total = max;
+		AtomicLong processed = new AtomicLong();
+		String timestamp = df2.format(System.currentTimeMillis());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nthreads));
+		List<File> files = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i=0 ; i < conditions.size() ; i++) {
+			String condition = conditions.get(i);
+			File file = DbBuilder.createTempInsertionFile("allele_frequencies"+(perPathology?"_per_pathology":"")+"."+timestamp+".shard_"+i+".sql");
+			files.add(file);
+			futures.add(executor.submit(() -> {
+				buildShard(condition, file, perPathology, an, anTotal, processed, total);
+				return null;
+			}));
+		}
+		executor.shutdown();
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}catch (Exception ex) {
+			executor.shutdownNow();
+			for (File file : files) {
+				file.delete();
+			}
+			throw ex;
+		}
+		System.out.println(df.format(System.currentTimeMillis()) + " - All shards of " + analysis + " computed");
+		return files;
+	}
+
+	private void buildShard(String condition, File file, boolean perPathology, Map<Integer, int[]> an, int[] anTotal, AtomicLong processed, long total) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		Map<String, Counts> counts = new HashMap<>();
+		Set<String> seen = new HashSet<>();
+		String chr = null;
+		int currentPos = -1;
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+				Results res = DB.select(Schema.HIGHLANDER, getCountQuery(condition) + " ORDER BY pos, chr", true)) {
+			while (res.next()){
+				int pos = res.getInt("pos");
+				String resChr = res.getString("chr");
+				if (pos != currentPos || !resChr.equals(chr)) {
+					write(bw, counts, perPathology, an, anTotal);
+					seen.clear();
+					currentPos = pos;
+					chr = resChr;
+				}
+				String uid = chr + "|" + pos + "|" + res.getString("length") + "|" + res.getString("reference") + "|" + res.getString("alternative");
+				if (perPathology) {
+					add(res, uid, null, counts, seen);
+				}else {
+					add(res, uid, counts, null, seen);
+				}
+				long count = processed.incrementAndGet();
+				if (count%1_000_000 == 0){
+					System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.longToString(count) + " variants processed ("+Tools.doubleToPercent(((double)count/(double)total), 2)+") - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb()), 0, false) + " Mb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024)), 0, false)) + " Mb of RAM used");
+				}
+			}
+			write(bw, counts, perPathology, an, anTotal);
+		}
+	}
+
+	private static void write(BufferedWriter bw, Map<String, Counts> counts, boolean perPathology, Map<Integer, int[]> an, int[] anTotal) throws Exception {
+		for (String uid : counts.keySet()) {
+			if (perPathology) {
+				int pathology = Integer.parseInt(uid.substring(uid.lastIndexOf("|")+1));
+				bw.write(getRow(uid, counts.get(uid), an.getOrDefault(pathology, new int[3]), false));
+			}else {
+				bw.write(getRow(uid, counts.get(uid), anTotal, true));
+			}
+		}
+		counts.clear();
+	}
+
+	/**
+	 * Replace the whole content of a table by the shards computed with buildShards(), and delete the insertion files.
+	 * The caller should set the database in hard update mode.
+	 */
+	public void importShards(boolean perPathology, List<File> files, Parameters parameters) throws Exception {
+		String table = analysis + "_allele_frequencies" + (perPathology ? "_per_pathology" : "");
+		DB.update(Schema.HIGHLANDER, "DELETE FROM "+table);
+		for (File file : files) {
+			if (file.length() > 0) {
+				DB.insertFile(Schema.HIGHLANDER, table, getColumns(!perPathology), file, true, parameters);
+			}
+		}
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	private boolean isEmpty(String table) throws Exception {
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT id FROM `"+table+"` LIMIT 1")) {
+			return !res.next();
+		}catch (Exception ex) {
+			//Table doesn't exist
+			return true;
+		}
+	}
+
+	/**
+	 * @return pathology id -> number of alleles (2 x number of individuals) for local, germline and somatic samples
+	 */
+	private Map<Integer, int[]> getAlleleNumbers() throws Exception {
+		Map<Integer, int[]> an = new HashMap<>();
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT pathology_id FROM pathologies")) {
+			while (res.next()){
+				an.put(res.getInt(1), new int[3]);
+			}
+		}
+		String[] conditions = new String[] {"", " AND sample_type = 'Germline'", " AND sample_type = 'Somatic'"};
+		for (int t : new int[] {LOCAL, GERMLINE, SOMATIC}) {
+			try (Results res = DB.select(Schema.HIGHLANDER,
+					"SELECT individual, MIN(pathology_id) as pathology_id "
+							+ "FROM projects JOIN projects_analyses USING (project_id) JOIN pathologies USING (pathology_id) "
+							+ "WHERE analysis = '"+analysis+"'"+conditions[t]+" GROUP BY individual")) {
+				while (res.next()){
+					int pathology = res.getInt("pathology_id");
+					an.putIfAbsent(pathology, new int[3]);
+					an.get(pathology)[t] += 2;
+				}
+			}
+		}
+		return an;
+	}
+
+	/**
+	 * @return keys (pos|length|reference|alternative) sorted by position, so each chunk of getWhereClause() covers a small range of positions
+	 */
+	private static List<String> sortByPosition(Set<String> keys) {
+		List<String> list = new ArrayList<>(keys);
+		list.sort(new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int cmp = Integer.compare(Integer.parseInt(a.substring(0, a.indexOf('|'))), Integer.parseInt(b.substring(0, b.indexOf('|'))));
+				return (cmp != 0) ? cmp : a.compareTo(b);
+			}
+		});
+		return list;
+	}
+
+	private String getWhereClause(String chr, List<String> keys) {
+		StringBuilder sb = new StringBuilder();
+		int minPos = Integer.MAX_VALUE;
+		int maxPos = Integer.MIN_VALUE;
+		for (String key : keys) {
+			String[] parts = key.split("\\|", -1);
+			int pos = Integer.parseInt(parts[0]);
+			minPos = Math.min(minPos, pos);
+			maxPos = Math.max(maxPos, pos);
+			if (sb.length() > 0) sb.append(",");
+			sb.append("("+pos+","+parts[1]+",'"+DB.format(Schema.HIGHLANDER, parts[2])+"','"+DB.format(Schema.HIGHLANDER, parts[3])+"')");
+		}
+		return "`chr` = '"+DB.format(Schema.HIGHLANDER, chr)+"' AND `pos` BETWEEN "+minPos+" AND "+maxPos+" AND (`pos`, `length`, `reference`, `alternative`) IN (" + sb.toString() + ")";
+	}
+
+	/**
+	 * Count het/hom individuals and pathologies of the variants, as in DbBuilder.computeAlleleFrequencies()
+	 */
+	private void count(String where, Map<String, Counts> counts, Map<String, Counts> countsPerPathology) throws Exception {
+		Set<String> seen = new HashSet<>();
+		try (Results res = DB.select(Schema.HIGHLANDER, getCountQuery(where))) {
+			while (res.next()){
+				String uid = res.getString("chr") + "|" + res.getInt("pos") + "|" + res.getString("length") + "|" + res.getString("reference") + "|" + res.getString("alternative");
+				add(res, uid, counts, countsPerPathology, seen);
+			}
+		}
+	}
+
+	private String getCountQuery(String where) {
+		return "SELECT chr, pos, length, reference, alternative, "
+				+ "pathology_id, (projects.sample_type = 'Germline') as st, (zygosity = 'Homozygous') as zy, individual "
+				+ "FROM "+analysis.getFromSampleAnnotations()
+				+ analysis.getJoinProjects()
+				+ analysis.getJoinPathologies()
+				+ "WHERE " + where;
+	}
+
+	/**
+	 * Add the current row to the counts of its variant
+	 * @param counts global counts, or null
+	 * @param countsPerPathology counts per pathology (uid|pathology_id), or null
+	 * @param seen variants already counted in each individual
+	 */
+	private static void add(Results res, String uid, Map<String, Counts> counts, Map<String, Counts> countsPerPathology, Set<String> seen) throws Exception {
+		int pathology = res.getInt("pathology_id");
+		String individual = res.getString("individual");
+		boolean hom = res.getBoolean("zy");
+		int type = res.getBoolean("st") ? GERMLINE : SOMATIC;
+		//A variant is counted once per individual, whatever the number of samples or genes
+		for (int t : new int[] {LOCAL, type}) {
+			if (counts != null && seen.add(t + "|" + individual + "|" + uid)) {
+				add(counts, uid, t, hom, pathology);
+			}
+			if (countsPerPathology != null && seen.add(t + "|" + individual + "|" + uid + "|" + pathology)) {
+				add(countsPerPathology, uid + "|" + pathology, t, hom, pathology);
+			}
+		}
+	}
+
+	private static void add(Map<String, Counts> map, String uid, int type, boolean hom, int pathology) {
+		if (!map.containsKey(uid)) map.put(uid, new Counts());
+		Counts counts = map.get(uid);
+		if (hom) counts.hom[type]++;
+		else counts.het[type]++;
+		counts.pathologies[type].set(pathology);
+	}
+
+	/**
+	 * @return a line of the insertion file, with the same columns as getColumns()
+	 */
+	private static String getRow(String uid, Counts counts, int[] an, boolean withPathologies) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(uid.replace("|", "\t")+"\t");
+		for (int t : new int[] {LOCAL, GERMLINE, SOMATIC}) {
+			int ac = counts.het[t] + 2*counts.hom[t];
+			sb.append(((an[t] > 0) ? (double)ac/(double)an[t] : (double)0)+"\t");	//af
+			sb.append(ac+"\t");	//ac
+			sb.append(an[t]+"\t");	//an
+			sb.append(counts.het[t]+"\t");	//het
+			sb.append(counts.hom[t]+"\t");	//hom
+			if (withPathologies) sb.append(counts.pathologies[t].cardinality()+"\t");	//pathologies
+		}
+		sb.append("\n");
+		return sb.toString();
+	}
+
+	private static String getColumns(boolean withPathologies) {
+		StringBuilder columns = new StringBuilder("chr, pos, length, reference, alternative");
+		if (!withPathologies) columns.append(", pathology_id");
+		for (String type : new String[] {"local", "germline", "somatic"}) {
+			columns.append(", "+type+"_af, "+type+"_ac, "+type+"_an, "+type+"_het, "+type+"_hom");
+			if (withPathologies) columns.append(", "+type+"_pathologies");
+		}
+		return columns.toString();
+	}
+
+	/**
+	 * @param condition additional condition on the rows to update, or null
+	 * @return SET and WHERE clauses updating AN and AF of rows having a different AN
+	 */
+	private static String getAlleleNumberUpdate(int[] an, String condition) {
+		StringBuilder set = new StringBuilder();
+		StringBuilder where = new StringBuilder();
+		String[] types = new String[] {"local", "germline", "somatic"};
+		for (int t=0 ; t < types.length ; t++) {
+			if (t > 0) {
+				set.append(", ");
+				where.append(" OR ");
+			}
+			set.append(types[t]+"_an = "+an[t]+", "+types[t]+"_af = "+((an[t] > 0) ? types[t]+"_ac / "+an[t] : "0"));
+			where.append(types[t]+"_an <> "+an[t]);
+		}
+		return set.toString() + " WHERE " + ((condition != null) ? condition + " AND (" + where.toString() + ")" : where.toString());
+	}
+
+}
@@ -70,6 +70,7 @@ import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.database.DBUtils;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.LocalAnnotationStore;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.SqlGenerator;
 import be.uclouvain.ngs.highlander.database.DBUtils.VariantKind;
@@ -81,6 +82,8 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.AnnotatedVariant;
+import be.uclouvain.ngs.highlander.datatype.AnnotationBatch;
+import be.uclouvain.ngs.highlander.datatype.AnnotationPipeline;
 import be.uclouvain.ngs.highlander.datatype.ExternalLink;
 import be.uclouvain.ngs.highlander.datatype.Gene;
 import be.uclouvain.ngs.highlander.datatype.Interval;
@@ -113,6 +116,10 @@ public class DbBuilder {
 		repository("r", "directory", "path to the bam repository. Each analysis should have it's own subdirectory named exactly as the analysis (default is /data/highlander/bam/)"), 
 		bool("b", "boolean", "set the tool value to 0 or 1"), 
 		verbose("v", null, "tool shows all warnings"),
+		threads("n", "number", "number of thread to use for paralellization"), 
+		skipknown("k", null, "don't annotate variants already present in the database (only sample specific annotations are imported)"),
+		allelefreq("f", null, "update the allele frequencies of the variants of the sample (and of the replaced sample)"),
+		possiblevalues("u", null, "add the new values of the variants of the sample to the possible values used for autocompletion"),
 		config("c", "filename", "give config file to use as parameter"), 
 		;
 		private String shortArg;
@@ -152,7 +159,7 @@ public class DbBuilder {
 				new String[] {null, },
 				true),
 		variants("Import all variant from a VCF file in an analysis table.",
-				new ToolArgument[] {ToolArgument.project, ToolArgument.sample, ToolArgument.analysis, ToolArgument.vcf, ToolArgument.alamut, ToolArgument.bool, ToolArgument.verbose, },
+				new ToolArgument[] {ToolArgument.project, ToolArgument.sample, ToolArgument.analysis, ToolArgument.vcf, ToolArgument.alamut, ToolArgument.bool, ToolArgument.verbose, ToolArgument.threads, ToolArgument.skipknown, ToolArgument.allelefreq, ToolArgument.possiblevalues, },
 				new String[]{
 						"the project name",
 						"the sample name",
@@ -161,12 +168,16 @@ public class DbBuilder {
 						"an Alamut annotation file",
 						"1 (delete existing variants, default) or 0 (keep existing variants) to manage variants already existing for this combination of project/sample/analysis",
 						"show all warning for annotations (when SnpEff, Ensembl or dbNSFP don't find a transcript or position)",
+						"a number of threads to paralellize the annotation (default 1)",
+						"only compute static annotations (Ensembl, dbNSFP, gnomAD, ...) of variants not already in the database, existing static and gene annotations are kept",
+						"update [analysis]_allele_frequencies tables for the variants of this sample, instead of rebuilding them with tool allelefreq (tables must have been built once)",
+						"add new values of this sample to [analysis]_possible_values, instead of rebuilding it with tool possiblevalues",
 				},
-				new boolean[] {true, true, true, true, false, false, false, },
-				new String[] {null, null, null, null, null, "1", "0", },
+				new boolean[] {true, true, true, true, false, false, false, false, false, false, false, },
+				new String[] {null, null, null, null, null, "1", "0", "1", "0", "0", "0", },
 				true),
 		annotsv("Import all structural variant from an AnnotSV tab-separated file in an analysis table.",
-				new ToolArgument[] {ToolArgument.project, ToolArgument.sample, ToolArgument.analysis, ToolArgument.annotsv, ToolArgument.bool, ToolArgument.verbose, },
+				new ToolArgument[] {ToolArgument.project, ToolArgument.sample, ToolArgument.analysis, ToolArgument.annotsv, ToolArgument.bool, ToolArgument.verbose, ToolArgument.allelefreq, ToolArgument.possiblevalues, },
 				new String[]{
 						"the project name",
 						"the sample name",
@@ -174,9 +185,11 @@ public class DbBuilder {
 						"the path of the AnnotSV file",
 						"1 (delete existing variants, default) or 0 (keep existing variants) to manage variants already existing for this combination of project/sample/analysis",
 						"show all warning for annotations (when SnpEff, Ensembl or dbNSFP don't find a transcript or position)",
+						"update [analysis]_allele_frequencies tables for the variants of this sample, instead of rebuilding them with tool allelefreq (tables must have been built once)",
+						"add new values of this sample to [analysis]_possible_values, instead of rebuilding it with tool possiblevalues",
 		},
-				new boolean[] {true, true, true, true, false, false, },
-				new String[] {null, null, null, null, "1", "0", },
+				new boolean[] {true, true, true, true, false, false, false, false, },
+				new String[] {null, null, null, null, "1", "0", "0", "0", },
 				true),
 		coverage("Populate the [analysis]_coverage table in the Highlander schema.",
 				new ToolArgument[] {ToolArgument.target, ToolArgument.mosdepthThreshold, ToolArgument.mosdepthRegion, ToolArgument.analysis, ToolArgument.project, ToolArgument.sample, },
@@ -192,21 +205,23 @@ public class DbBuilder {
 				new String[] {"exons", null, null, null, null, null, },
 				true),
 		possiblevalues("Populate [analysis]_possible_values table in the Highlander database.",
-				new ToolArgument[] {ToolArgument.analysis, },
+				new ToolArgument[] {ToolArgument.analysis, ToolArgument.threads, },
 				new String[]{
 						"the Highlander analysis (e.g. exomes_hg38)",
+						"number of chromosomes read in parallel",
 				},
-				new boolean[] {true, },
-				new String[] {null, },
+				new boolean[] {true, false, },
+				new String[] {null, "1", },
 				true),
 		allelefreq("Update the [analysis]_allele_frequencies table(s) in the Highlander database.",
-				new ToolArgument[] {ToolArgument.analysis, ToolArgument.bool, },
+				new ToolArgument[] {ToolArgument.analysis, ToolArgument.bool, ToolArgument.threads, },
 				new String[]{
 						"the Highlander analysis (e.g. exomes_hg38)",
 						"0 ([analysis]_allele_frequencies updated, default) or 1 ([analysis]_allele_frequencies_pathologies updated)",
+						"number of chromosomes processed in parallel",
 				},
-				new boolean[] {true, false, },
-				new String[] {null, "0", },
+				new boolean[] {true, false, false, },
+				new String[] {null, "0", "1", },
 				true),
 		fastqc("Populate FastQC columns depending on one sample of the projects table in the Highlander schema.",
 				new ToolArgument[] {ToolArgument.project, ToolArgument.sample, ToolArgument.input, },
@@ -342,6 +357,17 @@ public class DbBuilder {
 				new boolean[] {true, true, },
 				new String[] {null, null, },
 				true),
+		annotstore("Copy the position-based tables of an annotation database (gnomAD, GoNL, dbNSFP) in the local annotation store directory (set in the configuration file). "
+				+ "When available, annotation of variants (tools variants, dbUpdater) reads those copies instead of querying the database server. "
+				+ "Must be done again each time the annotation database is updated.",
+				new ToolArgument[] {ToolArgument.input, ToolArgument.genome, },
+				new String[]{
+						"the annotation database: GNOMAD_WES, GNOMAD_WGS, GONL or DBNSFP",
+						"the reference genome",
+				},
+				new boolean[] {true, true, },
+				new String[] {null, null, },
+				true),
 		warnusers("Send an email to all users having samples recently (re)imported in the given analyses.",
 				new ToolArgument[] {ToolArgument.analysis, },
 				new String[]{
@@ -581,11 +607,19 @@ public class DbBuilder {
 
 	public Parameters parameters;
 	public HighlanderDatabase DB;
+	private int nthreads = 1;
+	private boolean incrementalAlleleFrequencies = false;
+	private boolean incrementalPossibleValues = false;
 
 	public DbBuilder(String configFile) throws Exception {
+		this(configFile, 1);
+	}
+
+	public DbBuilder(String configFile, int nthreads) throws Exception {
 		parameters = (configFile == null) ? new Parameters(false) : new Parameters(false, new File(configFile));
-		Highlander.initialize(parameters,20);
+		Highlander.initialize(parameters, 20+(2*nthreads));
 		DB = Highlander.getDB();
+		this.nthreads = nthreads;
 	}
 
 	public DbBuilder() throws Exception {
@@ -1573,18 +1607,6 @@ public class DbBuilder {
 			}
 			if (target == CoverageTarget.exons) {
 				String nullStr = HighlanderDatabase.getNullString(DB.getDataSource(Schema.HIGHLANDER).getDBMS());
-				DateFormat df2 = new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss");
-				File insertFile = createTempInsertionFile(sample+"_"+analysis+"_coverage_"+df2.format(System.currentTimeMillis())+".sql");
-				try (FileWriter fw = new FileWriter(insertFile)){
-					for (Object[] values : coverage.values()) {
-						for (int i=0 ; i < values.length ; i++) {
-							if (values[i] != null) fw.write(values[i].toString());
-							else fw.write(nullStr);
-							if (i < values.length-1) fw.write("\t");
-							else fw.write("\n");
-						}
-					}
-				}
 				String columns = "`region_id`, `project_id`, `mean_depth`, ";
 				for (int i=0 ; i < neededCov.length ; i++) {
 					columns += "`"+neededCov[i]+"`";
@@ -1593,8 +1615,17 @@ public class DbBuilder {
 				try{
 					setHardUpdate(true);
 					DB.update(Schema.HIGHLANDER, "DELETE FROM " + analysis.getFromCoverage() + "WHERE project_id = " + project_id);
-					Highlander.getDB().insertFile(Schema.HIGHLANDER, analysis.getTableCoverage(), columns, insertFile, true, Highlander.getParameters());
-					insertFile.delete();
+					//Rows are streamed from the coverage map, without temporary insertion file
+					DB.insertStream(Schema.HIGHLANDER, analysis.getTableCoverage(), columns, (fw) -> {
+						for (Object[] values : coverage.values()) {
+							for (int i=0 ; i < values.length ; i++) {
+								if (values[i] != null) fw.write(values[i].toString());
+								else fw.write(nullStr);
+								if (i < values.length-1) fw.write("\t");
+								else fw.write("\n");
+							}
+						}
+					}, true);
 				}finally{
 					setHardUpdate(false);
 				}
@@ -1721,6 +1752,13 @@ public class DbBuilder {
 	}
 
 	public void importSample(String project, String sample, String vcf, List<AnalysisFull> analyses, String alamutFile, boolean overwrite, boolean verbose) throws Exception {
+		importSample(project, sample, vcf, analyses, alamutFile, overwrite, verbose, false);
+	}
+
+	/**
+	 * @param skipKnown if true, variants already present in the static annotations table are not annotated again (only sample and custom annotations are imported for them)
+	 */
+	public void importSample(String project, String sample, String vcf, List<AnalysisFull> analyses, String alamutFile, boolean overwrite, boolean verbose, boolean skipKnown) throws Exception {
 		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
 		DateFormat df2 = new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss");
 		int project_id = DBUtils.getProjectId(project, sample);
@@ -1734,6 +1772,8 @@ public class DbBuilder {
 				}
 			}
 			if (otherProjects.isEmpty() || overwrite){
+				AlleleFrequencyUpdater alleleFrequencies = (incrementalAlleleFrequencies) ? new AlleleFrequencyUpdater(analysis) : null;
+				PossibleValuesBuilder possibleValues = (incrementalPossibleValues) ? new PossibleValuesBuilder(analysis) : null;
 				try{
 					setHardUpdate(true);
 					for (int other_project_id : otherProjects.keySet()){
@@ -1744,6 +1784,7 @@ public class DbBuilder {
 						System.out.println("User annotations are not deleted, but will only be visible again if you reimported an existing sample with same run label");
 						System.out.println("If it's a resequencing of an existing sample (i.e. another run), user annotations are lost");
 						System.out.println("-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+");
+						if (alleleFrequencies != null) alleleFrequencies.addSample(other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromSampleAnnotations()+"WHERE `project_id` = "+other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromCustomAnnotations()+"WHERE `project_id` = "+other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM projects_analyses WHERE project_id = " + other_project_id + " AND analysis = '"+analysis+"'");
@@ -1758,11 +1799,9 @@ public class DbBuilder {
 				}
 
 				System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Parsing and annotating VCF file");
-				int counter = 0;
 				File input = new File(vcf);
 				String run_path = input.getParentFile().getCanonicalPath();
 
-				Set<String> genes = new HashSet<>();
 				File insertFileSample = createTempInsertionFile(project+"_"+analysis+"_"+sample+"_sample_"+df2.format(System.currentTimeMillis())+".sql");
 				File insertFileStatic = createTempInsertionFile(project+"_"+analysis+"_"+sample+"_static_"+df2.format(System.currentTimeMillis())+".sql");
 				File insertFileGene = createTempInsertionFile(project+"_"+analysis+"_"+sample+"_gene_"+df2.format(System.currentTimeMillis())+".sql");
@@ -1778,37 +1817,23 @@ public class DbBuilder {
 							String line;
 							int lineCount = 0;
 							String[] header = null;
-							while ((line = br.readLine()) != null){
-								lineCount++;
-								if (line.startsWith("#") && !line.startsWith("##")){
-									header = line.split("\t");
-								}
-								if (!line.startsWith("#")){
-									try{
-										if (header == null) throw new Exception("VCF header columns were not found, need a line starting with ONE # followed by all headers");
-										for (AnnotatedVariant annotatedVariant : new AnnotatedVariant(analysis).setAllAnnotations(header, line.split("\t"), project_id, alamut, !verbose)){
-											if (annotatedVariant.exist()){
-												counter++;
-												writerSample.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableSampleAnnotations()));											
-												writerStatic.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableStaticAnnotations()));											
-												if (annotatedVariant.affectsGene() && !genes.contains(annotatedVariant.getValue(Field.gene_symbol).toString())) {
-													genes.add(annotatedVariant.getValue(Field.gene_symbol).toString());
-													writerGene.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableGeneAnnotations()));											
-												}
-												writerCustom.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableCustomAnnotations()));											
-												if (counter % 5000 == 0) System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - " + counter + " variants annotated ..."); 												
-											}else {
-												writerNotImported.write(line + "\n");
-											}
-										}
-									}catch (Exception ex){
-										writerNotImported.write(line + "\n");
-										System.err.println("WARNING -- Problem with line " + lineCount + " of " + vcf);
-										System.err.println(line);
-										Tools.exception(ex);
+							//Variants are annotated by batch of consecutive lines (by nthreads batches at the same time), and written in the order of the VCF
+							InsertionFilesWriter insertionWriter = new InsertionFilesWriter(analysis, sample, vcf, writerSample, writerStatic, writerGene, writerCustom, writerNotImported, possibleValues);
+							AnnotationBatch batch = new AnnotationBatch(analysis, project_id, alamut, !verbose, AnnotationBatch.DEFAULT_SIZE);
+							batch.setSkipKnownVariants(skipKnown);
+							try (AnnotationPipeline pipeline = new AnnotationPipeline(batch, nthreads, insertionWriter)){
+								while ((line = br.readLine()) != null){
+									lineCount++;
+									if (line.startsWith("#") && !line.startsWith("##")){
+										header = line.split("\t");
+									}
+									if (!line.startsWith("#")){
+										pipeline.add(lineCount, line, header);
 									}
 								}
+								pipeline.finish();
 							}
+							if (skipKnown) System.out.println(sample + " - " + insertionWriter.known + " variants already present in the database, static annotations not computed");
 						}
 					}
 				}
@@ -1839,7 +1864,27 @@ public class DbBuilder {
 				System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Computing Het/Hom ratio and variant count");
 				updateAnalysisMetrics(project_id, analysis);
 
-				//Allele frequencies must be updated at once using computeAlleleFrequencies method
+				//Otherwise allele frequencies must be updated at once using computeAlleleFrequencies method
+				if (alleleFrequencies != null) {
+					System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Updating allele frequencies");
+					try {
+						setHardUpdate(true);
+						alleleFrequencies.addSample(project_id);
+						alleleFrequencies.update(parameters);
+					}finally {
+						setHardUpdate(false);
+					}
+				}
+
+				if (possibleValues != null) {
+					System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Updating possible values");
+					try {
+						setHardUpdate(true);
+						possibleValues.update(parameters);
+					}finally {
+						setHardUpdate(false);
+					}
+				}
 
 				System.out.println(sample + " - Importation done");
 			}else{
@@ -1867,6 +1912,8 @@ public class DbBuilder {
 				}
 			}
 			if (otherProjects.isEmpty() || overwrite){
+				AlleleFrequencyUpdater alleleFrequencies = (incrementalAlleleFrequencies) ? new AlleleFrequencyUpdater(analysis) : null;
+				PossibleValuesBuilder possibleValues = (incrementalPossibleValues) ? new PossibleValuesBuilder(analysis) : null;
 				try {
 					setHardUpdate(true);
 					for (int other_project_id : otherProjects.keySet()){
@@ -1877,6 +1924,7 @@ public class DbBuilder {
 						System.out.println("User annotations are not deleted, but will only be visible again if you reimported an existing sample with same run label");
 						System.out.println("If it's a resequencing of an existing sample (i.e. another run), user annotations are lost");
 						System.out.println("-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+");
+						if (alleleFrequencies != null) alleleFrequencies.addSample(other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromSampleAnnotations()+"WHERE `project_id` = "+other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromCustomAnnotations()+"WHERE `project_id` = "+other_project_id);
 						DB.update(Schema.HIGHLANDER, "DELETE FROM projects_analyses WHERE project_id = " + other_project_id + " AND analysis = '"+analysis+"'");
@@ -1957,6 +2005,7 @@ public class DbBuilder {
 												writerGene.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableGeneAnnotations()));											
 											}
 											writerCustom.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableCustomAnnotations()));											
+											if (possibleValues != null) possibleValues.addVariant(annotatedVariant);
 											if (counter % 5000 == 0) System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - " + counter + " variants annotated ..."); 												
 										}
 									}catch (Exception ex){
@@ -1996,7 +2045,27 @@ public class DbBuilder {
 				System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Computing Het/Hom ratio and variant count");
 				updateAnalysisMetrics(project_id, analysis);
 
-				//Allele frequencies must be updated at once using computeAlleleFrequencies method
+				//Otherwise allele frequencies must be updated at once using computeAlleleFrequencies method
+				if (alleleFrequencies != null) {
+					System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Updating allele frequencies");
+					try {
+						setHardUpdate(true);
+						alleleFrequencies.addSample(project_id);
+						alleleFrequencies.update(parameters);
+					}finally {
+						setHardUpdate(false);
+					}
+				}
+
+				if (possibleValues != null) {
+					System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - Updating possible values");
+					try {
+						setHardUpdate(true);
+						possibleValues.update(parameters);
+					}finally {
+						setHardUpdate(false);
+					}
+				}
 
 				System.out.println(sample + " - Importation done");
 			}else{
@@ -2396,281 +2465,28 @@ public class DbBuilder {
 	 * Withtout that, the map grows too much (12Gb RAM needed for 100K variants and 2K individuals)
 	 * Query itself is longer (+/- 10 minutes for 100K variants) but processing is faster, so in the end memory imprint is good (~4Gb for 100K variants) and time OK (+/- 15 min) 
 	 * 
+	 * October 2026: the table is split in ranges of positions processed as independent shards (see AlleleFrequencyUpdater.buildShards()), in parallel using the threads argument.
+	 * Sorting by pos and chr allows to write and clear counts after each pos, so memory stays flat whatever the size of the analysis.
+	 * 
+	 * When samples are imported with the allelefreq argument (or deleted from the project manager), AlleleFrequencyUpdater updates the tables incrementally,
+	 * so this method is only needed to build the tables the first time, or to check their consistency.
+	 * 
 	 * @param analyses A list of Highlander analyses for which the allele frequencies must be computed
 	 * @param perPathology true to separate counts per pathology (table [analysis]_allele_frequencies_per_pathology is rebuild)
 	 */
 	public void computeAlleleFrequencies(List<? extends Analysis> analyses, boolean perPathology) throws Exception {
 		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
-		DateFormat df2 = new SimpleDateFormat("yyyy_MM_dd.HH_mm_ss");
 		for (Analysis analysis : analyses){
 			System.out.println(df.format(System.currentTimeMillis()) + " - Computing allele frequencies for " + analysis);
-			final int AS = 1_000_000; 
-			Map<String, Integer> indexes = new HashMap<>();
-			int listSizes = 0;
-			int local_an = 0;
-			int[] local_an_per_pathology;
-			Map<String, Set<String>> local_non_uniques = new HashMap<>();
-			List<int[]> local_ac_het = new ArrayList<>();
-			List<int[]> local_ac_hom = new ArrayList<>();
-			List<boolean[][]> local_pathologies = new ArrayList<>();
-			int germline_an = 0;
-			int[] germline_an_per_pathology;
-			Map<String, Set<String>> germline_non_uniques = new HashMap<>();
-			List<int[]> germline_ac_het = new ArrayList<>();
-			List<int[]> germline_ac_hom = new ArrayList<>();
-			List<boolean[][]> germline_pathologies = new ArrayList<>();
-			int somatic_an = 0;
-			int[] somatic_an_per_pathology;
-			Map<String, Set<String>> somatic_non_uniques = new HashMap<>();
-			List<int[]> somatic_ac_het = new ArrayList<>();
-			List<int[]> somatic_ac_hom = new ArrayList<>();
-			List<boolean[][]> somatic_pathologies = new ArrayList<>();
-			int i=0;
-			System.out.println(df.format(System.currentTimeMillis()) + " - Fetch pathologies");
-			int maxid = 0;
-			try (Results res = DB.select(Schema.HIGHLANDER, "SELECT MAX(pathology_id) FROM pathologies")) {
-				if (res.next()){
-					maxid = res.getInt(1);
-				}
-			}
-			maxid++;
-			local_an_per_pathology = new int[maxid];
-			germline_an_per_pathology = new int[maxid];
-			somatic_an_per_pathology = new int[maxid];
-			System.out.println(df.format(System.currentTimeMillis()) + " - Fetch individuals");
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT individual, count(*) as ct, MIN(pathology_id) as pathology_id "
-							+ "FROM projects JOIN projects_analyses USING (project_id) JOIN pathologies USING (pathology_id) "
-							+ "WHERE analysis = '"+analysis+"' GROUP BY individual")) {
-				while (res.next()){
-					local_an++;
-					local_an_per_pathology[res.getInt("pathology_id")]++;
-				}
-			}
-			local_an *= 2;
-			for (int k=0 ; k < local_an_per_pathology.length ; k++) {
-				local_an_per_pathology[k] *= 2;
-			}
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT individual, count(*) as ct, MIN(pathology_id) as pathology_id "
-							+ "FROM projects JOIN projects_analyses USING (project_id) JOIN pathologies USING (pathology_id) "
-							+ "WHERE analysis = '"+analysis+"' AND sample_type = 'Germline' GROUP BY individual")) {
-				while (res.next()){
-					germline_an++;
-					germline_an_per_pathology[res.getInt("pathology_id")]++;
-				}
-			}
-			germline_an *= 2;
-			for (int k=0 ; k < local_an_per_pathology.length ; k++) {
-				germline_an_per_pathology[k] *= 2;
-			}
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT individual, count(*) as ct, MIN(pathology_id) as pathology_id "
-							+ "FROM projects JOIN projects_analyses USING (project_id) JOIN pathologies USING (pathology_id) "
-							+ "WHERE analysis = '"+analysis+"' AND sample_type = 'Somatic' GROUP BY individual")) {
-				while (res.next()){
-					somatic_an++;
-					somatic_an_per_pathology[res.getInt("pathology_id")]++;
-				}
-			}
-			somatic_an *= 2;
-			for (int k=0 ; k < local_an_per_pathology.length ; k++) {
-				somatic_an_per_pathology[k] *= 2;
-			}
-			System.out.println(df.format(System.currentTimeMillis()) + " - Get total number of variants");
-			long max=1;
-			try (Results res = DB.select(Schema.HIGHLANDER, "SELECT COUNT(*) FROM "+analysis.getFromSampleAnnotations())) {
-				if (res.next()){
-					max = res.getLong(1);
-				}
-			}
-			int index = -1;
-			int hash = -1;
-			int hashIndex = -1;
-			int currentPos = -1;
-			int count=0;
-			System.out.println(df.format(System.currentTimeMillis()) + " - Querying the database");
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT SQL_NO_CACHE chr, pos, length, reference, alternative, "
-							+ "pathology_id, (projects.sample_type = 'Germline') as st, (zygosity = 'Homozygous') as zy, individual "
-							+ "FROM "+analysis.getFromSampleAnnotations()
-							+ analysis.getJoinProjects()
-							+ analysis.getJoinPathologies()
-							//ORDER is slow but mandatory, so xxxx_non_uniques maps can be cleared after each pos, reducing needed memory
-							+ "ORDER BY pos"
-							, true)) {
-				System.out.println(df.format(System.currentTimeMillis()) + " - Building the map");
-				while (res.next()){
-					count++;
-					if (count%AS == 0){
-						System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.longToString(count) + " variants processed ("+Tools.doubleToPercent(((double)count/(double)max), 2)+") - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb()), 0, false) + " Mb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024)), 0, false)) + " Mb of RAM used");
-					}
-					int pos = res.getInt("pos");
-					if (pos != currentPos) {
-						local_non_uniques.clear();
-						germline_non_uniques.clear();
-						somatic_non_uniques.clear();
-						currentPos = pos;
-					}
-					int pathology = res.getInt("pathology_id");
-					String uid = res.getString("chr") + "|" + pos + "|" + res.getString("length") + "|" + res.getString("reference") + "|" + res.getString("alternative");
-					if (perPathology) uid += "|" + pathology;
-					if (indexes.containsKey(uid)){
-						index = indexes.get(uid);
-					}else{
-						index = i++;
-						indexes.put(uid, index);
-						if (i-(listSizes*AS) > 0){
-							listSizes++;
-							local_ac_het.add(new int[AS]);
-							local_ac_hom.add(new int[AS]);
-							local_pathologies.add(new boolean[AS][maxid]);
-							germline_ac_het.add(new int[AS]);
-							germline_ac_hom.add(new int[AS]);
-							germline_pathologies.add(new boolean[AS][maxid]);
-							somatic_ac_het.add(new int[AS]);
-							somatic_ac_hom.add(new int[AS]);
-							somatic_pathologies.add(new boolean[AS][maxid]);
-						}
-					}			
-					String individual = res.getString("individual");
-					hash = index/AS;
-					hashIndex = index%AS;
-					/* local_non_uniques tracks if a variant has been seen in an individual
-					 * so if an individual has multiple samples imported, common variants will be counted once
-					 * but it also permit to avoid having a variant present in multiple genes counted multiple times,
-					 * without having to track anything else 
-					 */
-					if (!local_non_uniques.containsKey(individual)){
-						local_non_uniques.put(individual, new HashSet<>());
-					}
-					if (!local_non_uniques.get(individual).contains(uid)) {
-						local_non_uniques.get(individual).add(uid);
-						local_pathologies.get(hash)[hashIndex][pathology] = true;
-						if (res.getBoolean("zy")){
-							local_ac_hom.get(hash)[hashIndex]++;
-						}else{
-							local_ac_het.get(hash)[hashIndex]++;
-						}
-					}
-					if (res.getBoolean("st")){
-						if (!germline_non_uniques.containsKey(individual)){
-							germline_non_uniques.put(individual, new HashSet<>());
-						}
-						if (!germline_non_uniques.get(individual).contains(uid)) {
-							germline_non_uniques.get(individual).add(uid);
-							germline_pathologies.get(hash)[hashIndex][pathology] = true;
-							if (res.getBoolean("zy")){
-								germline_ac_hom.get(hash)[hashIndex]++;
-							}else{
-								germline_ac_het.get(hash)[hashIndex]++;
-							}
-						}
-					}else{
-						if (!somatic_non_uniques.containsKey(individual)){
-							somatic_non_uniques.put(individual, new HashSet<>());
-						}
-						if (!somatic_non_uniques.get(individual).contains(uid)) {
-							somatic_non_uniques.get(individual).add(uid);
-							somatic_pathologies.get(hash)[hashIndex][pathology] = true;
-							if (res.getBoolean("zy")){
-								somatic_ac_hom.get(hash)[hashIndex]++;
-							}else{
-								somatic_ac_het.get(hash)[hashIndex]++;
-							}
-						}
-					}
-				}
-			}
-
-			System.out.println(df.format(System.currentTimeMillis()) + " - Creating insertion file");
-			File insertFile = createTempInsertionFile("allele_frequencies."+df2.format(System.currentTimeMillis())+".sql");
-			try (FileWriter fw = new FileWriter(insertFile)){				
-				for (String uid : indexes.keySet()){
-					index = indexes.get(uid);
-					hash = index/AS;
-					hashIndex = index%AS;
-					int local_het = local_ac_het.get(hash)[hashIndex];
-					int local_hom = local_ac_hom.get(hash)[hashIndex];
-					int local_pathos = 0;
-					int germline_het = germline_ac_het.get(hash)[hashIndex];
-					int germline_hom = germline_ac_hom.get(hash)[hashIndex];
-					int germline_pathos = 0;
-					int somatic_het = somatic_ac_het.get(hash)[hashIndex];
-					int somatic_hom = somatic_ac_hom.get(hash)[hashIndex];
-					int somatic_pathos = 0;
-					if (!perPathology) {
-						for (boolean b : local_pathologies.get(hash)[hashIndex]) {
-							local_pathos += b ? 1 : 0;
-						}
-						for (boolean b : local_pathologies.get(hash)[hashIndex]) {
-							germline_pathos += b ? 1 : 0;
-						}
-						for (boolean b : local_pathologies.get(hash)[hashIndex]) {
-							somatic_pathos += b ? 1 : 0;
-						}
-					}
-					int local_an_to_use = local_an;
-					int germline_an_to_use = germline_an;
-					int somatic_an_to_use = somatic_an;
-					if (perPathology) {
-						int pathology = Integer.parseInt(uid.substring(uid.lastIndexOf("|")+1));
-						local_an_to_use = local_an_per_pathology[pathology];
-						germline_an_to_use = germline_an_per_pathology[pathology];
-						somatic_an_to_use = somatic_an_per_pathology[pathology];
-					}
-					StringBuilder sb = new StringBuilder();
-					sb.append(uid.replace("|", "\t")+"\t");
-					if (local_an_to_use > 0)
-						sb.append(((double)(local_het+local_hom+local_hom)/(double)local_an_to_use)+"\t");	//local_af
-					else
-						sb.append(((double)0)+"\t");	//local_af
-					sb.append((local_het+local_hom+local_hom)+"\t");	//local_ac
-					sb.append(local_an_to_use+"\t");	//local_an
-					sb.append(local_het+"\t");	//local_het
-					sb.append(local_hom+"\t");	//local_hom
-					if (!perPathology) sb.append(local_pathos+"\t");	//local_pathologies
-					if (germline_an_to_use > 0)
-						sb.append(((double)(germline_het+germline_hom+germline_hom)/(double)germline_an_to_use)+"\t");	//germline_af
-					else
-						sb.append(((double)0)+"\t");	//germline_af
-					sb.append((germline_het+germline_hom+germline_hom)+"\t");	//germline_ac
-					sb.append(germline_an_to_use+"\t");	//germline_an
-					sb.append(germline_het+"\t");	//germline_het
-					sb.append(germline_hom+"\t");	//germline_hom
-					if (!perPathology) sb.append(germline_pathos+"\t");	//germline_pathologies
-					if (somatic_an_to_use > 0)
-						sb.append(((double)(somatic_het+somatic_hom+somatic_hom)/(double)somatic_an_to_use)+"\t");	//somatic_af
-					else
-						sb.append(((double)0)+"\t");	//somatic_af
-					sb.append((somatic_het+somatic_hom+somatic_hom)+"\t");	//somatic_ac
-					sb.append(somatic_an_to_use+"\t");	//somatic_an
-					sb.append(somatic_het+"\t");	//somatic_het
-					sb.append(somatic_hom+"\t");	//somatic_hom
-					if (!perPathology) sb.append(somatic_pathos+"\t");	//somatic_pathologies
-					sb.append("\n");
-					fw.write(sb.toString());
-				}
-			}
+			AlleleFrequencyUpdater updater = new AlleleFrequencyUpdater(analysis);
+			List<File> files = updater.buildShards(perPathology, nthreads);
 			System.out.println(df.format(System.currentTimeMillis()) + " - Importing allele frequencies in the database");
 			try {
 				setHardUpdate(true);
-				String table = analysis+"_allele_frequencies";
-				if (perPathology) table += "_per_pathology";
-				DB.update(Schema.HIGHLANDER, "DELETE FROM "+table);
-				String columns = "chr, pos, length, reference, alternative";
-				if (perPathology) columns += ", pathology_id";
-				columns += ", local_af, local_ac, local_an, local_het, local_hom";
-				if (!perPathology) columns += ", local_pathologies";
-				columns += ", germline_af, germline_ac, germline_an, germline_het, germline_hom";
-				if (!perPathology) columns += ", germline_pathologies";
-				columns += ", somatic_af, somatic_ac, somatic_an, somatic_het, somatic_hom";
-				if (!perPathology) columns += ", somatic_pathologies";
-				DB.insertFile(Schema.HIGHLANDER, table, columns, insertFile, true, parameters);
+				updater.importShards(perPathology, files, parameters);
 			}finally {
 				setHardUpdate(false);
 			}
-			insertFile.delete();
 			System.out.println(df.format(System.currentTimeMillis()) + " - Database successfuly updated");
 		}
 	}
@@ -2691,6 +2507,35 @@ public class DbBuilder {
 		return insertFile;
 	}
 
+	/**
+	 * Split a table containing variants in ranges of positions, to read it in parallel (4 ranges per thread, so threads finishing early take another one).
+	 * `pos` is the leading column of the variant indexes of those tables, so each range is read through the index and no row is read twice,
+	 * unlike a split by chromosome which needs a full table scan per chromosome.
+	 * 
+	 * @return conditions selecting each range of positions
+	 */
+	public static List<String> getPositionShards(Schema schema, String table, int nthreads) throws Exception {
+		List<String> conditions = new ArrayList<>();
+		long min = 0;
+		long max = -1;
+		try (Results res = Highlander.getDB().select(schema, "SELECT MIN(`pos`), MAX(`pos`) FROM `"+table+"`")) {
+			if (res.next() && res.getObject(1) != null){
+				min = res.getLong(1);
+				max = res.getLong(2);
+			}
+		}
+		if (max < min) {
+			//Empty table
+			conditions.add("TRUE");
+			return conditions;
+		}
+		long width = (max - min) / (Math.max(1, nthreads) * 4) + 1;
+		for (long start = min ; start <= max ; start += width) {
+			conditions.add("`pos` BETWEEN " + start + " AND " + Math.min(max, start + width - 1));
+		}
+		return conditions;
+	}
+
 	@SuppressWarnings("unused")
 	private boolean getLock(int timeOutHours) throws Exception {
 		boolean gotIt = false;
@@ -2826,6 +2671,85 @@ public class DbBuilder {
 		}
 	}
 
+	/**
+	 * Write the annotated variants of a sample in the insertion files of importSample.
+	 * Lines that cannot be imported are written in the not imported file.
+	 */
+	private class InsertionFilesWriter implements AnnotationPipeline.BatchWriter {
+		private final DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		private final AnalysisFull analysis;
+		private final String sample;
+		private final String vcf;
+		private final FileWriter writerSample;
+		private final FileWriter writerStatic;
+		private final FileWriter writerGene;
+		private final FileWriter writerCustom;
+		private final FileWriter writerNotImported;
+		private final PossibleValuesBuilder possibleValues;
+		private final Set<String> genes = new HashSet<>();
+		private int counter = 0;
+		private int known = 0;
+
+		public InsertionFilesWriter(AnalysisFull analysis, String sample, String vcf, FileWriter writerSample, FileWriter writerStatic, FileWriter writerGene, FileWriter writerCustom, FileWriter writerNotImported, PossibleValuesBuilder possibleValues) {
+			this.analysis = analysis;
+			this.sample = sample;
+			this.vcf = vcf;
+			this.writerSample = writerSample;
+			this.writerStatic = writerStatic;
+			this.writerGene = writerGene;
+			this.writerCustom = writerCustom;
+			this.writerNotImported = writerNotImported;
+			this.possibleValues = possibleValues;
+		}
+
+		@Override
+		public void write(AnnotationBatch batch) throws Exception {
+			for (int i=0 ; i < batch.size() ; i++){
+				try{
+					for (AnnotatedVariant annotatedVariant : batch.getVariants(i)){
+						if (annotatedVariant.exist()){
+							counter++;
+							writerSample.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableSampleAnnotations()));											
+							if (batch.isKnown(annotatedVariant)) {
+								known++;
+							}else {
+								writerStatic.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableStaticAnnotations()));											
+								if (annotatedVariant.affectsGene() && !genes.contains(annotatedVariant.getValue(Field.gene_symbol).toString())) {
+									genes.add(annotatedVariant.getValue(Field.gene_symbol).toString());
+									writerGene.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableGeneAnnotations()));											
+								}
+							}
+							writerCustom.write(annotatedVariant.getInsertionString(DB.getDataSource(Schema.HIGHLANDER).getDBMS(), analysis.getTableCustomAnnotations()));											
+							if (possibleValues != null) possibleValues.addVariant(annotatedVariant);
+							if (counter % 5000 == 0) System.out.println(sample + " - " + df.format(System.currentTimeMillis()) + " - " + counter + " variants annotated ..."); 												
+						}else {
+							writerNotImported.write(batch.getLine(i) + "\n");
+						}
+					}
+				}catch (Exception ex){
+					writerNotImported.write(batch.getLine(i) + "\n");
+					System.err.println("WARNING -- Problem with line " + batch.getLineNumber(i) + " of " + vcf);
+					System.err.println(batch.getLine(i));
+					Tools.exception(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param incremental true to update allele frequencies of imported and replaced samples (see AlleleFrequencyUpdater) 
+	 */
+	public void setIncrementalAlleleFrequencies(boolean incremental) {
+		this.incrementalAlleleFrequencies = incremental;
+	}
+
+	/**
+	 * @param incremental true to add the new values of imported samples to [analysis]_possible_values (see PossibleValuesBuilder) 
+	 */
+	public void setIncrementalPossibleValues(boolean incremental) {
+		this.incrementalPossibleValues = incremental;
+	}
+
 	public void setHardUpdate(boolean enable) {
 		try{
 			DB.update(Schema.HIGHLANDER, "UPDATE main SET update_hard = "+((enable)?1:0));
@@ -2908,29 +2832,23 @@ public class DbBuilder {
 	public void computePossibleValues(List<? extends AnalysisFull> analyses) throws Exception {
 		for (AnalysisFull analysis : analyses){
 			DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
-			DateFormat df2 = new SimpleDateFormat("yyyy_MM_dd.HH_mm_ss");
-
-			System.out.println(df.format(System.currentTimeMillis()) + " - Counting number of variants for " + analysis);
-			Map<String, Long> numVar = new HashMap<>();
-			for (Field field : Field.getAvailableFields(analysis, false)){
-				numVar.put(field.getTable(analysis), (long)0);
-			}
-			for (String table : numVar.keySet()) {
-				try (Results res = DB.select(Schema.HIGHLANDER, "SELECT COUNT(*) FROM `" + table + "`")) {		
-					if (res.next()){
-						numVar.put(table, res.getLong(1));
-					}
-				}
-			}
 
+			PossibleValuesBuilder builder = new PossibleValuesBuilder(analysis);
+			//Fields read in their table are gathered, so fields of a table are read together (see PossibleValuesBuilder.scanAndWrite())
+			Map<String, List<Field>> tableFields = new LinkedHashMap<>();
 			System.out.println(df.format(System.currentTimeMillis()) + " - Gathering possible values for " + analysis + " tables");
 			try {
 				setHardUpdate(true);
 				DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromPossibleValues());
 
 				for (Field field : Field.getAvailableFields(analysis, false)){
+					//Same classification as the incremental update of imported samples
 					Set<String> values = new TreeSet<String>();
-					if (field.getName().equalsIgnoreCase(Field.gene_symbol.getName())){
+					switch (PossibleValuesBuilder.getSource(analysis, field)) {
+					case TABLE:
+						tableFields.computeIfAbsent(field.getTable(analysis) + "|" + field.getSchema(), k -> new ArrayList<>()).add(field);
+						break;
+					case ENSEMBL:
 						try (Results res = DB.select(analysis.getReference(), Schema.ENSEMBL, 
 								"SELECT display_label "
 										+ "FROM gene "
@@ -2945,9 +2863,11 @@ public class DbBuilder {
 								}
 							}
 						}
-					}else if (field.getName().equalsIgnoreCase(Field.chr.getName())){
+						break;
+					case REFERENCE:
 						values.addAll(analysis.getReference().getChromosomes());
-					}else if (field.getName().toLowerCase().contains("username")){
+						break;
+					case USERS:
 						//Get all username, to avoid having to update the list when a user creates an annotation
 						try (Results res = DB.select(Schema.HIGHLANDER, "SELECT SQL_NO_CACHE DISTINCT(username) FROM users")) {				
 							while (res.next()){
@@ -2956,129 +2876,42 @@ public class DbBuilder {
 								}
 							}
 						}
-					}else if (field.getName().contains("private")){
-						//DO NOTHING - or everyone will see comments from everyone - History also useless
-					}else if (field.getName().toLowerCase().contains("comments") || field.getName().toLowerCase().contains("history")) {
-						/*	DO NOTHING - comments can contain CR (\r) or LF (\n) creating new lines in the imported file. Note that it can be handled with enclosing e.g. with "" and:
-						 * 							 LOAD DATA INFILE '{fileName}' INTO TABLE {importTable} FIELDS TERMINATED BY '\t' OPTIONALLY ENCLOSED BY '"' LINES TERMINATED BY '\n' ( {fieldList} );
-						 * 						   But it doesn't solve the problem for queries that don't support LF in Highlander (and doesn't seem obvious with MySQL)
-						 */
-						//}else if (field.getName().equalsIgnoreCase("public_comments_gene")){
-						// same problem than before
-						/*
-					try (Results res = DB.select(field.getSchema(), "SELECT SQL_NO_CACHE DISTINCT(comments_gene) FROM " + field.getTable(analysis) + " WHERE username IS NULL")) {				
-					while (res.next()){
-						if (res.getObject(1) != null){
-							values.add(res.getObject(1).toString());
-						}
-					}
-					}
-						 */
-					}else if (field.getName().equalsIgnoreCase(Field.evaluation.getName())){
-						values.add("0");
-						values.add("1");
-						values.add("2");
-						values.add("3");
-						values.add("4");
-						values.add("5");
-					}else if (field.getFieldClass() == Double.class || field.getFieldClass() == Integer.class || field.getFieldClass() == Long.class || field.getFieldClass() == Timestamp.class){
-						//DO NOTHING - Not really useful to list all possible numbers ; and take a lot of time and database space
-					}else if (field.getName().equalsIgnoreCase(Field.snpeff_other_transcripts.getName()) ){
-						//DO NOTHING - Not really useful to list all possible combinations of those fields ; and take a lot of time and database space
-					}else if (field.getFieldClass() == Boolean.class){
-						values.add("true");
-						values.add("false");
-					}else if (field.getFieldClass().isEnum()){
-						for (Object val : field.getFieldClass().getEnumConstants()){
-							values.add(val.toString());
-						}
-					}else if (field.getTable(analysis).equals("projects") || 
-							field.getTable(analysis).equals("pathologies") ||
-							field.getTable(analysis).equals("populations") ){
-						try (Results res = DB.select(Schema.HIGHLANDER, 
-								"SELECT SQL_NO_CACHE DISTINCT("+field.getName()+") "
-										+ "FROM " + analysis.getFromProjects()
-										+ analysis.getJoinPathologies()
-										+ analysis.getJoinPopulations()
-										+ "JOIN `projects_analyses` USING (`project_id`) "
-										+ "WHERE analysis = '" + analysis + "'")) {				
-							while (res.next()){
-								if (res.getObject(1) != null){
-									values.add(res.getObject(1).toString());
-								}
-							}
-						}
-					}else{
-						//For optimization reasons, select distinct is not used but all variants are fetched (one by one, using hugeResultSetExpected trick) and put into a Set
-						//As fields with too much values and no usefulness has been removed, Set size should limited to a few millions, and memory consumption should be reasonable --> if not, the solution below can be resurected 
-						try (Results res = DB.select(field.getSchema(), "SELECT SQL_NO_CACHE `"+field.getName()+"` FROM " + field.getTable(analysis), true)) {
-							int count = 0;
-							while (res.next()){
-								if (res.getObject(1) != null){
-									values.add(res.getObject(1).toString());
-								}
-								count++;
-								if (count%(numVar.get(field.getTable(analysis))/10) == 0){
-									System.out.println("Distinct field `" + field.getName() + "` (" + Tools.doubleToPercent(((double)count)/((double)(numVar.get(field.getTable(analysis)))), 0) + ") - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb()), 0, false) + " Mb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024)), 0, false)) + " Mb of RAM used");
-								}
-							}
-						}
-
-						//Alternative : to limit memory consumption, we limit value fetching and writing to batch of 1_000_000 (but necessitate a DISTINCT and ORDER BY, and LIMIT OFFSET seems to re-prefetch everything each time)
-						/*
-					int limit = 1_000_000;
-					try (Results res = DB.select(field.getSchema(), "SELECT SQL_NO_CACHE DISTINCT(`"+field.getName()+"`) FROM " + field.getTable(analysis) + " ORDER BY `"+field.getName()+"` LIMIT " + limit, true)) {
-					int count = 0;
-					while (res.next()){
-						if (res.getObject(1) != null){
-							values.add(res.getObject(1).toString());
-						}
-						count++;
-					}
-					}
-					int total = count;
-					int lastTotal = 0;
-					int retreived = limit;
-					while (total > lastTotal && (total%limit) == 0){
-						//Writing available values in the database before fetching next batch
-						if (!values.isEmpty()){
-							File insertFile = createTempInsertionFile(analysis + "_possible_values_"+field.getName()+"."+df2.format(System.currentTimeMillis())+".sql");
-							try (FileWriter fw = new FileWriter(insertFile)){
-							for (String val : values){
-								fw.write(field.getName()+"\t"+val+"\n");
-							}
-							}
-							DB.insertFile(Schema.HIGHLANDER, analysis+"_possible_values", "field, value", insertFile, parameters);
-							insertFile.delete();
-						}
-						values.clear();						
-						lastTotal = total;
-						try (Results res = DB.select(field.getSchema(), "SELECT SQL_NO_CACHE DISTINCT(`"+field.getName()+"`) FROM " + field.getTable(analysis) + " ORDER BY `"+field.getName()+"` LIMIT " + limit + " OFFSET " + retreived, true)) {	
-						retreived += limit;
-						count = 0;
-						while (res.next()){
-							if (res.getObject(1) != null){
-								values.add(res.getObject(1).toString());
+						break;
+					case FIXED:
+						if (field.getName().equalsIgnoreCase(Field.evaluation.getName())){
+							values.add("0");
+							values.add("1");
+							values.add("2");
+							values.add("3");
+							values.add("4");
+							values.add("5");
+						}else if (field.getFieldClass() == Boolean.class){
+							values.add("true");
+							values.add("false");
+						}else if (field.getFieldClass().isEnum()){
+							for (Object val : field.getFieldClass().getEnumConstants()){
+								values.add(val.toString());
 							}
-							count++;
 						}
-						}
-						total += count;
-					}	
-						 */
+						break;
+					case PROJECTS:
+						values.addAll(PossibleValuesBuilder.getProjectsValues(analysis, field));
+						break;
+					case NONE:
+					default:
+						//DO NOTHING - see PossibleValuesBuilder.getSource()
+						break;
 					}
 
 					if (!values.isEmpty()){
-						File insertFile = createTempInsertionFile(analysis + "_possible_values_"+field.getName()+"."+df2.format(System.currentTimeMillis())+".sql");
-						try (FileWriter fw = new FileWriter(insertFile)){
-							for (String val : values){
-								fw.write(field.getName()+"\t"+val+"\n");
-							}
-						}
-						DB.insertFile(Schema.HIGHLANDER, analysis+"_possible_values", "field, value", insertFile, true, parameters);
-						insertFile.delete();
+						Map<Field, Set<String>> fieldValues = new HashMap<>();
+						fieldValues.put(field, values);
+						builder.write(fieldValues);
 					}
-				}		
+				}
+				for (List<Field> fields : tableFields.values()) {
+					builder.scanAndWrite(fields.get(0).getTable(analysis), fields, nthreads);
+				}
 			}finally {
 				setHardUpdate(false);
 			}
@@ -3366,6 +3199,19 @@ public class DbBuilder {
 		*/
 	}
 
+	/**
+	 * Copy the tables of an annotation database in the local annotation store (see LocalAnnotationStore)
+	 * 
+	 * @param database GNOMAD_WES, GNOMAD_WGS, GONL or DBNSFP
+	 */
+	public void buildAnnotationStore(String database, Reference referenceGenome) throws Exception {
+		Schema schema = Schema.valueOf(database.toUpperCase());
+		if (schema != Schema.GNOMAD_WES && schema != Schema.GNOMAD_WGS && schema != Schema.GONL && schema != Schema.DBNSFP) {
+			throw new Exception("Only GNOMAD_WES, GNOMAD_WGS, GONL and DBNSFP can be copied in the local annotation store");
+		}
+		LocalAnnotationStore.export(referenceGenome, schema);
+	}
+
 	//TODO BURDEN - ExAC  mettre compltement  jour
 	public void buildExac(String vcf, Reference referenceGenome) throws Exception {
 		/*
@@ -3548,7 +3394,17 @@ public class DbBuilder {
 			}
 			if (missingMandatoryArguments.isEmpty()) {
 				if (tool.isDatabaseNeeded()) {
-					DbBuilder dbb = new DbBuilder(arguments.get(ToolArgument.config));
+					int nthreads = 1;
+					if (arguments.containsKey(ToolArgument.threads)) {
+						nthreads = Integer.parseInt(arguments.get(ToolArgument.threads));
+					}
+					DbBuilder dbb = new DbBuilder(arguments.get(ToolArgument.config), nthreads);
+					if (arguments.containsKey(ToolArgument.allelefreq)) {
+						dbb.setIncrementalAlleleFrequencies(arguments.get(ToolArgument.allelefreq).equals("1"));
+					}
+					if (arguments.containsKey(ToolArgument.possiblevalues)) {
+						dbb.setIncrementalPossibleValues(arguments.get(ToolArgument.possiblevalues).equals("1"));
+					}
 					List<AnalysisFull> analyses = new ArrayList<AnalysisFull>();
 					if (arguments.containsKey(ToolArgument.analysis)) {
 						if (!arguments.get(ToolArgument.analysis).equalsIgnoreCase("ALL")){
@@ -3575,6 +3431,9 @@ public class DbBuilder {
 					case exac:
 						dbb.buildExac(arguments.get(ToolArgument.vcf), new Reference(arguments.get(ToolArgument.genome)));
 						break;
+					case annotstore:
+						dbb.buildAnnotationStore(arguments.get(ToolArgument.input), new Reference(arguments.get(ToolArgument.genome)));
+						break;
 					case warnusers:
 						dbb.warnusers(analyses);
 						break;
@@ -3582,7 +3441,7 @@ public class DbBuilder {
 						DbBuilder.addextlinks();
 						break;
 					case variants:
-						dbb.importSample(arguments.get(ToolArgument.project), arguments.get(ToolArgument.sample), arguments.get(ToolArgument.vcf), analyses, arguments.get(ToolArgument.alamut), arguments.get(ToolArgument.bool).equals("1"), arguments.get(ToolArgument.verbose).equals("1"));
+						dbb.importSample(arguments.get(ToolArgument.project), arguments.get(ToolArgument.sample), arguments.get(ToolArgument.vcf), analyses, arguments.get(ToolArgument.alamut), arguments.get(ToolArgument.bool).equals("1"), arguments.get(ToolArgument.verbose).equals("1"), arguments.get(ToolArgument.skipknown).equals("1"));
 						break;
 					case annotsv:
 						dbb.importAnnotSV(arguments.get(ToolArgument.project), arguments.get(ToolArgument.sample), arguments.get(ToolArgument.annotsv), analyses, arguments.get(ToolArgument.bool).equals("1"), arguments.get(ToolArgument.verbose).equals("1"));
@@ -3694,6 +3553,7 @@ public class DbBuilder {
 						break;
 					case allelefreq:
 					case exac:
+					case annotstore:
 					case fastqc:
 					case gatkcoverage:
 					case gatkcovexome:
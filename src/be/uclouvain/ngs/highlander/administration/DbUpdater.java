@@ -45,28 +45,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Parameters;
 import be.uclouvain.ngs.highlander.Tools;
-import be.uclouvain.ngs.highlander.database.DBUtils;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.Field.Annotation;
 import be.uclouvain.ngs.highlander.database.Field.AnnotationType;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.DBMS;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.AnnotatedVariant;
-import be.uclouvain.ngs.highlander.datatype.Gene;
+import be.uclouvain.ngs.highlander.datatype.AnnotationBatch;
 import be.uclouvain.ngs.highlander.datatype.Reference;
-import be.uclouvain.ngs.highlander.datatype.SNPEffect.VariantType;
 
 public class DbUpdater {
 
@@ -260,8 +256,8 @@ public class DbUpdater {
 	public Parameters parameters;
 	public HighlanderDatabase DB;
 
-	public volatile int count = 0;
-	public int total = 0;
+	private static final int STAGING_ROWS_PER_INSERT = 1000;
+	private static final int VARIANTS_PER_CHUNK = 10_000;
 
 	public DbUpdater(String configFile, int nthreads) throws Exception {
 		parameters = (configFile == null) ? new Parameters(false) : new Parameters(false, new File(configFile));
@@ -369,33 +365,17 @@ public class DbUpdater {
 				map.put(analysis, set);
 			}
 		}
-		ExecutorService executor = Executors.newFixedThreadPool(nthreads); 
-		count = 0;
 		setHardUpdate(true);
-		for (AnalysisFull analysis : map.keySet()){
-			List<Integer> ids = new ArrayList<Integer>(); 
-			System.out.println("Analysis " + analysis + " - " + df.format(System.currentTimeMillis()) + " - Retreiving all variants ...");
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT " + Field.variant_static_id.getQuerySelectName(analysis, false) + " FROM " + analysis.getFromStaticAnnotations(), true)) {
-				while (res.next()){
-					ids.add(res.getInt(1));
-					if (ids.size() == 10_000){
-						total += ids.size();
-						executor.execute(new AnnotationUpdater(analysis, ids, map.get(analysis)));
-						ids = new ArrayList<Integer>(); 
-					}
-				}			
-			}
-			if (ids.size() > 0){
-				total += ids.size();
-				executor.execute(new AnnotationUpdater(analysis, ids, map.get(analysis)));
-				ids = new ArrayList<Integer>(); 
+		try {
+			for (AnalysisFull analysis : map.keySet()){
+				System.out.println("Analysis " + analysis + " - " + df.format(System.currentTimeMillis()) + " - Updating variants ...");
+				//Variants are processed by position, so each chunk of variants covers a small genomic range in annotation sources
+				new UpdateJob("annotations", analysis, getJobParameters(map.get(analysis)), nthreads, VARIANTS_PER_CHUNK).run(null, 
+						(ids) -> updateAnnotationsChunk(analysis, ids, map.get(analysis)));
 			}
-			System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.intToString(count) + " / " + Tools.intToString(total) + " variants updated ..." + " - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb() / 1024.0), 1, false) + " Gb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024) / 1024.0), 1, false)) + " Gb");
+		}finally {
+			setHardUpdate(false);
 		}
-		setHardUpdate(false);
-		executor.shutdown();
-		executor.awaitTermination(100, TimeUnit.DAYS);
 	}
 	
 	/**
@@ -434,104 +414,100 @@ public class DbUpdater {
 				map.put(analysis, set);
 			}
 		}
-		ExecutorService executor = Executors.newFixedThreadPool(nthreads); 
-		count = 0;
 		setHardUpdate(true);
-		for (AnalysisFull analysis : map.keySet()){
-			List<Integer> ids = new ArrayList<Integer>(); 
-			System.out.println("Analysis " + analysis + " - " + df.format(System.currentTimeMillis()) + " - Retreiving all variants ...");
-			try (Results res = DB.select(Schema.HIGHLANDER, 
-					"SELECT " + Field.variant_static_id.getQuerySelectName(analysis, false) + " FROM " + analysis.getFromStaticAnnotations() + " WHERE INSTR(snpeff_all_effects, 'SPLICE_SITE_REGION')", true)) {
-					//"SELECT " + Field.variant_static_id.getQuerySelectName(analysis, false) + " FROM " + analysis.getFromStaticAnnotations() + " WHERE INSTR(snpeff_all_effects, 'SPLICE_SITE_REGION') AND pos IN (39988257, 205745889, 88735052, 141679756, 84060461) ", true)) {
-				while (res.next()){
-					ids.add(res.getInt(1));
-					if (ids.size() == 10_000){
-						total += ids.size();
-						executor.execute(new AnnotationUpdater(analysis, ids, map.get(analysis)));
-						ids = new ArrayList<Integer>(); 
-					}
-				}			
-			}
-			if (ids.size() > 0){
-				total += ids.size();
-				executor.execute(new AnnotationUpdater(analysis, ids, map.get(analysis)));
-				ids = new ArrayList<Integer>(); 
+		try {
+			for (AnalysisFull analysis : map.keySet()){
+				System.out.println("Analysis " + analysis + " - " + df.format(System.currentTimeMillis()) + " - Updating variants ...");
+				new UpdateJob("splicesite", analysis, getJobParameters(map.get(analysis)), nthreads, VARIANTS_PER_CHUNK).run("INSTR(snpeff_all_effects, 'SPLICE_SITE_REGION')", 
+						(ids) -> updateAnnotationsChunk(analysis, ids, map.get(analysis)));
 			}
-			System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.intToString(count) + " / " + Tools.intToString(total) + " variants updated ..." + " - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb() / 1024.0), 1, false) + " Gb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024) / 1024.0), 1, false)) + " Gb");
+		}finally {
+			setHardUpdate(false);
 		}
-		setHardUpdate(false);
-		executor.shutdown();
-		executor.awaitTermination(100, TimeUnit.DAYS);
 	}
 
-	private class AnnotationUpdater implements Runnable {
-		private final AnalysisFull analysis;
-		private List<Integer> ids;
-		private final Set<Annotation> annotations;
-
-		public AnnotationUpdater(final AnalysisFull analysis, List<Integer> ids, final Set<Annotation> annotations){
-			this.analysis = analysis;
-			this.ids = ids;
-			this.annotations = annotations;
+	/**
+	 * Annotations updated by a job, so a job is only resumed with the same annotations
+	 */
+	private static String getJobParameters(Set<Annotation> annotations) {
+		Set<String> names = new TreeSet<>();
+		for (Annotation annotation : annotations) {
+			names.add(annotation.toString());
 		}
+		return String.join("+", names);
+	}
 
-		public void run(){
-			try{
-				DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
-				try (Connection con = DB.getConnection(null, Schema.HIGHLANDER)){
-					try (Statement statement = con.createStatement()){
-						for (int i=0 ; i < ids.size() ; i++){
-							AnnotatedVariant annotatedVariant = new AnnotatedVariant(analysis);
-							annotatedVariant.fetchStaticAndGeneAnnotations(ids.get(i));
-							for(Annotation annotation : annotations){
-								switch(annotation){
-								case DBNSFP:
-									if ((VariantType)annotatedVariant.getValue(Field.variant_type) == VariantType.SV) {
-										annotatedVariant.setDBNSFP(false, false, true, true);
-									}else {
-										annotatedVariant.setDBNSFP(true, true, true, true);										
-									}
-									break;
-								case ENSEMBL:
-									Gene gene = new Gene(analysis.getReference(), annotatedVariant.getValue(Field.chr).toString(), annotatedVariant.getValue(Field.gene_symbol).toString(), null, null, null, null);
-									gene.setEnsemblGene(DBUtils.getEnsemblGene(analysis.getReference(), annotatedVariant.getValue(Field.gene_symbol).toString()));
-									gene.setEnsemblTranscript(DBUtils.getEnsemblCanonicalTranscript(analysis.getReference(), gene.getEnsemblGene()));
-									gene.setRefSeqTranscript(DBUtils.getAccessionRefSeqMRna(analysis.getReference(), gene.getEnsemblTranscript()));
-									gene.setBiotype(DBUtils.getBiotype(analysis.getReference(), gene.getEnsemblTranscript()));
-									annotatedVariant.setEnsembl(gene, true);
-									break;
-								case CONSENSUS:
-									annotatedVariant.setConsensusPrediction(new Gene(analysis.getReference(), annotatedVariant.getValue(Field.chr).toString(), annotatedVariant.getValue(Field.gene_symbol).toString(), 
-											((annotatedVariant.getValue(Field.gene_ensembl) != null) ? annotatedVariant.getValue(Field.gene_ensembl).toString() : null), 
-											((annotatedVariant.getValue(Field.transcript_ensembl) != null) ? annotatedVariant.getValue(Field.transcript_ensembl).toString() : null), 
-											((annotatedVariant.getValue(Field.transcript_refseq_mrna) != null) ? annotatedVariant.getValue(Field.transcript_refseq_mrna).toString() : null), 
-											((annotatedVariant.getValue(Field.biotype) != null) ? annotatedVariant.getValue(Field.biotype).toString() : null)
-											));
-									break;
-								default:
-									annotatedVariant.setAnnotation(annotation);
-									break;
-								}
-								if (annotation == Annotation.DBNSFP) {
-									annotatedVariant.setConsensusPrediction(new Gene(analysis.getReference(), annotatedVariant.getValue(Field.chr).toString(), annotatedVariant.getValue(Field.gene_symbol).toString(), 
-											((annotatedVariant.getValue(Field.gene_ensembl) != null) ? annotatedVariant.getValue(Field.gene_ensembl).toString() : null), 
-											((annotatedVariant.getValue(Field.transcript_ensembl) != null) ? annotatedVariant.getValue(Field.transcript_ensembl).toString() : null), 
-											((annotatedVariant.getValue(Field.transcript_refseq_mrna) != null) ? annotatedVariant.getValue(Field.transcript_refseq_mrna).toString() : null), 
-											((annotatedVariant.getValue(Field.biotype) != null) ? annotatedVariant.getValue(Field.biotype).toString() : null)
-											));
-								}
-							}
-							statement.addBatch(annotatedVariant.getAnnotationsUpdateStatement(annotations));
+	/**
+	 * Variants of the chunk are fetched with one query and annotated together (see AnnotationBatch.reannotate()).
+	 * With MySQL, new values are inserted in a temporary staging table, then applied with one UPDATE ... JOIN.
+	 * With HSQLDB (no multi-table UPDATE), each variant and gene is updated by its own statement, executed in a batch.
+	 * Exceptions, including failed lookups of an annotation source, are thrown to UpdateJob, which retries the chunk.
+	 */
+	private void updateAnnotationsChunk(AnalysisFull analysis, List<Integer> ids, Set<Annotation> annotations) throws Exception {
+		List<AnnotatedVariant> variants = AnnotatedVariant.fetchStaticAndGeneAnnotations(analysis, ids);
+		AnnotationBatch batch = new AnnotationBatch(analysis, (String)null, null, true, variants.size());
+		batch.reannotate(variants, annotations, true);
+		List<Field> fields = AnnotatedVariant.getAnnotationsFields(analysis, annotations);
+		if (!fields.isEmpty() && !variants.isEmpty() && DB.getDBMS(Schema.HIGHLANDER) == DBMS.hsqldb) {
+			updateAnnotationsChunkWithoutJoin(analysis, variants, fields);
+		}else if (!fields.isEmpty() && !variants.isEmpty()) {
+			String staging = "`annotations_update`";
+			StringBuilder columns = new StringBuilder("`variant_static_id`");
+			StringBuilder select = new StringBuilder(Field.variant_static_id.getQueryWhereName(analysis, false));
+			StringBuilder set = new StringBuilder();
+			for (Field field : fields) {
+				columns.append(", `"+field.getName()+"`");
+				select.append(", `"+field.getTable(analysis)+"`.`"+field.getName()+"`");
+				if (set.length() > 0) set.append(", ");
+				set.append("`"+field.getTable(analysis)+"`.`"+field.getName()+"` = "+staging+".`"+field.getName()+"`");
+			}
+			//Temporary table is only visible from this connection
+			try (Connection con = DB.getConnection(null, Schema.HIGHLANDER)){
+				try (Statement statement = con.createStatement()){
+					statement.executeUpdate("DROP TEMPORARY TABLE IF EXISTS "+staging);
+					statement.executeUpdate("CREATE TEMPORARY TABLE "+staging+" (PRIMARY KEY (`variant_static_id`)) "
+							+ "SELECT "+select.toString()+" FROM "+analysis.getFromStaticAnnotations()+analysis.getJoinGeneAnnotations()+"LIMIT 0");
+					for (int i=0 ; i < variants.size() ; i += STAGING_ROWS_PER_INSERT) {
+						StringBuilder insert = new StringBuilder("INSERT IGNORE INTO "+staging+" ("+columns.toString()+") VALUES ");
+						for (int j=i ; j < Math.min(variants.size(), i+STAGING_ROWS_PER_INSERT) ; j++) {
+							if (j > i) insert.append(", ");
+							insert.append(variants.get(j).getAnnotationsUpdateValues(fields));
 						}
-						statement.executeBatch();
-						count += ids.size();
-						System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.intToString(count) + " / " + Tools.intToString(total) + " variants updated ..." + " - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb() / 1024.0), 1, false) + " Gb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024) / 1024.0), 1, false)) + " Gb");
-					}catch(Exception ex){
-						ex.printStackTrace();
+						statement.executeUpdate(insert.toString());
+					}
+					statement.executeUpdate("UPDATE "+analysis.getFromStaticAnnotations()+analysis.getJoinGeneAnnotations()
+					+ "JOIN "+staging+" ON "+staging+".`variant_static_id` = "+Field.variant_static_id.getQueryWhereName(analysis, false)+" "
+					+ "SET "+set.toString());
+					statement.executeUpdate("DROP TEMPORARY TABLE "+staging);
+				}
+			}
+		}
+	}
+
+	private void updateAnnotationsChunkWithoutJoin(AnalysisFull analysis, List<AnnotatedVariant> variants, List<Field> fields) throws Exception {
+		List<Field> staticFields = new ArrayList<>();
+		List<Field> geneFields = new ArrayList<>();
+		for (Field field : fields) {
+			if (field.getTable(analysis).equals(analysis.getTableGeneAnnotations())) {
+				geneFields.add(field);
+			}else {
+				staticFields.add(field);
+			}
+		}
+		//Gene annotations are shared by all variants of the gene, updated once
+		Set<String> genes = new HashSet<>();
+		try (Connection con = DB.getConnection(null, Schema.HIGHLANDER)){
+			try (Statement statement = con.createStatement()){
+				for (AnnotatedVariant variant : variants) {
+					if (!staticFields.isEmpty()) {
+						statement.addBatch(DB.formatQuery(Schema.HIGHLANDER, variant.getAnnotationsUpdateStatement(analysis.getTableStaticAnnotations(), Field.variant_static_id, staticFields)));
+					}
+					Object gene = variant.getValue(Field.gene_symbol);
+					if (!geneFields.isEmpty() && gene != null && gene.toString().length() > 0 && genes.add(gene.toString())) {
+						statement.addBatch(DB.formatQuery(Schema.HIGHLANDER, variant.getAnnotationsUpdateStatement(analysis.getTableGeneAnnotations(), Field.gene_symbol, geneFields)));
 					}
 				}
-			}catch(Exception ex){
-				ex.printStackTrace();
+				statement.executeBatch();
 			}
 		}
 	}
@@ -0,0 +1,298 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.administration;
+
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Parameters;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
+import be.uclouvain.ngs.highlander.datatype.AnnotatedVariant;
+
+/**
+ * Gather the values of the fields listed in [analysis]_possible_values (used for autocompletion) that must be read from the variant tables.
+ *
+ * scanAndWrite() is used by DbBuilder.computePossibleValues() to read the fields of a table together, by passes of FIELDS_PER_PASS fields,
+ * instead of one full table scan per field. Tables containing variants are read by ranges of positions, in parallel (see DbBuilder.getPositionShards()).
+ * For optimization reasons, SELECT DISTINCT is not used but all rows are fetched (using hugeResultSetExpected) and put into sets.
+ * As fields with too much values and no usefulness are excluded (see getSource()), sets should be limited to a few millions values,
+ * and only the sets of the fields of the current pass are in memory.
+ * Empty strings are not possible values, as importation stores them as NULL (see AnnotatedVariant.getInsertionString()).
+ *
+ * During importation of a sample, values of the imported variants are collected with addVariant(),
+ * and update() only inserts the values that are not already in [analysis]_possible_values.
+ */
+public class PossibleValuesBuilder {
+
+	/**
+	 * Maximum number of fields read in one pass of a table, values of all fields of a pass are kept in memory until written
+	 */
+	public static final int FIELDS_PER_PASS = 8;
+
+	private final HighlanderDatabase DB;
+	private final AnalysisFull analysis;
+	private final Map<Field, Set<String>> newValues = new LinkedHashMap<>();
+
+	public PossibleValuesBuilder(AnalysisFull analysis) {
+		this.DB = Highlander.getDB();
+		this.analysis = analysis;
+	}
+
+	/**
+	 * Origin of the possible values of a field, as used by DbBuilder.computePossibleValues()
+	 */
+	public enum Source {
+		/** Ensembl genes of the reference */
+		ENSEMBL,
+		/** chromosomes of the reference */
+		REFERENCE,
+		/** all Highlander users */
+		USERS,
+		/** values known in advance (booleans, enums, evaluation) */
+		FIXED,
+		/** projects, pathologies and populations tables */
+		PROJECTS,
+		/** table containing the field */
+		TABLE,
+		/** not listed (numbers, comments, ...) */
+		NONE,
+	}
+
+	public static Source getSource(AnalysisFull analysis, Field field) {
+		String name = field.getName().toLowerCase();
+		Class<?> fieldClass = field.getFieldClass();
+		if (name.equalsIgnoreCase(Field.gene_symbol.getName())) return Source.ENSEMBL;
+		if (name.equalsIgnoreCase(Field.chr.getName())) return Source.REFERENCE;
+		if (name.contains("username")) return Source.USERS;
+		//Private fields would show comments from everyone - History also useless
+		if (name.contains("private")) return Source.NONE;
+		//Comments can contain CR (\r) or LF (\n) creating new lines in the imported file
+		if (name.contains("comments") || name.contains("history")) return Source.NONE;
+		if (name.equalsIgnoreCase(Field.evaluation.getName())) return Source.FIXED;
+		//Not really useful to list all possible numbers ; and take a lot of time and database space
+		if (fieldClass == Double.class || fieldClass == Integer.class || fieldClass == Long.class || fieldClass == Timestamp.class) return Source.NONE;
+		//Not really useful to list all possible combinations of those fields ; and take a lot of time and database space
+		if (name.equalsIgnoreCase(Field.snpeff_other_transcripts.getName())) return Source.NONE;
+		if (fieldClass == Boolean.class || fieldClass.isEnum()) return Source.FIXED;
+		String table = field.getTable(analysis);
+		if (table.equals("projects") || table.equals("pathologies") || table.equals("populations")) return Source.PROJECTS;
+		return Source.TABLE;
+	}
+
+	/**
+	 * @return values of a field from the projects, pathologies or populations tables, for samples of the analysis
+	 */
+	public static Set<String> getProjectsValues(AnalysisFull analysis, Field field) throws Exception {
+		Set<String> values = new TreeSet<String>();
+		try (Results res = Highlander.getDB().select(Schema.HIGHLANDER,
+				"SELECT SQL_NO_CACHE DISTINCT("+field.getName()+") "
+						+ "FROM " + analysis.getFromProjects()
+						+ analysis.getJoinPathologies()
+						+ analysis.getJoinPopulations()
+						+ "JOIN `projects_analyses` USING (`project_id`) "
+						+ "WHERE analysis = '" + analysis + "'")) {
+			while (res.next()){
+				if (res.getObject(1) != null){
+					values.add(res.getObject(1).toString());
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read all values of the given fields of a table and insert them in [analysis]_possible_values.
+	 * Fields are read by passes of FIELDS_PER_PASS fields, and the values of a pass are written before reading the next one.
+	 *
+	 * @param fields fields of the table, all having the same schema
+	 * @param nthreads number of ranges of positions read at the same time (each one uses a database connection)
+	 */
+	public void scanAndWrite(String table, List<Field> fields, int nthreads) throws Exception {
+		for (int i=0 ; i < fields.size() ; i += FIELDS_PER_PASS) {
+			write(scan(table, fields.subList(i, Math.min(fields.size(), i + FIELDS_PER_PASS)), nthreads));
+		}
+	}
+
+	/**
+	 * Read all values of the given fields of a table, in one pass.
+	 * Tables containing variants are split in ranges of positions, read in parallel through the index starting with `pos`.
+	 *
+	 * @param fields fields of the table, all having the same schema
+	 * @param nthreads number of ranges of positions read at the same time (each one uses a database connection)
+	 * @return field -> sorted values
+	 */
+	public Map<Field, Set<String>> scan(String table, List<Field> fields, int nthreads) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		Map<Field, Set<String>> values = new LinkedHashMap<>();
+		for (Field field : fields) {
+			values.put(field, new TreeSet<String>());
+		}
+		if (fields.isEmpty()) return values;
+		List<String> conditions = new ArrayList<>();
+		if (table.equals(analysis.getTableSampleAnnotations()) || table.equals(analysis.getTableStaticAnnotations()) || table.equals(analysis.getTableCustomAnnotations())) {
+			conditions.addAll(DbBuilder.getPositionShards(fields.get(0).getSchema(), table, nthreads));
+		}
+		if (conditions.isEmpty()) conditions.add("TRUE");
+		StringBuilder select = new StringBuilder();
+		for (Field field : fields) {
+			if (select.length() > 0) select.append(", ");
+			select.append("`"+field.getName()+"`");
+		}
+		System.out.println(df.format(System.currentTimeMillis()) + " - Distinct values of " + fields.size() + " fields of `" + table + "` (" + conditions.size() + " shards)");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nthreads));
+		List<Future<?>> futures = new ArrayList<>();
+		for (String condition : conditions) {
+			futures.add(executor.submit(() -> {
+				List<Set<String>> shard = new ArrayList<>();
+				for (int i=0 ; i < fields.size() ; i++) {
+					shard.add(new HashSet<String>());
+				}
+				try (Results res = DB.select(fields.get(0).getSchema(), "SELECT SQL_NO_CACHE " + select.toString() + " FROM `" + table + "` WHERE " + condition, true)) {
+					while (res.next()){
+						for (int i=0 ; i < fields.size() ; i++) {
+							Object value = res.getObject(i+1);
+							if (isPossibleValue(value)){
+								shard.get(i).add(value.toString());
+							}
+						}
+					}
+				}
+				synchronized (values) {
+					for (int i=0 ; i < fields.size() ; i++) {
+						values.get(fields.get(i)).addAll(shard.get(i));
+					}
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}catch (Exception ex) {
+			executor.shutdownNow();
+			throw ex;
+		}
+		return values;
+	}
+
+	/**
+	 * Insert values in [analysis]_possible_values, streamed directly to the database
+	 */
+	public void write(Map<Field, Set<String>> values) throws Exception {
+		DB.insertStream(Schema.HIGHLANDER, analysis.getTablePossibleValues(), "field, value", (writer) -> {
+			for (Field field : values.keySet()) {
+				for (String val : values.get(field)){
+					writer.write(field.getName()+"\t"+val+"\n");
+				}
+			}
+		}, true);
+	}
+
+	/**
+	 * Collect the values of an imported variant, for fields of the variant tables.
+	 */
+	public void addVariant(AnnotatedVariant variant) {
+		if (newValues.isEmpty()) {
+			Set<String> tables = new HashSet<>();
+			tables.add(analysis.getTableSampleAnnotations());
+			tables.add(analysis.getTableStaticAnnotations());
+			tables.add(analysis.getTableGeneAnnotations());
+			tables.add(analysis.getTableCustomAnnotations());
+			for (Field field : Field.getAvailableFields(analysis, false)){
+				if (tables.contains(field.getTable(analysis)) && getSource(analysis, field) == Source.TABLE) {
+					newValues.put(field, new HashSet<String>());
+				}
+			}
+		}
+		for (Field field : newValues.keySet()) {
+			Object value = variant.getValue(field);
+			if (isPossibleValue(value)) {
+				newValues.get(field).add(value.toString());
+			}
+		}
+	}
+
+	/**
+	 * Same rule for scan() and addVariant(): NULL and empty strings are not listed
+	 */
+	private static boolean isPossibleValue(Object value) {
+		return value != null && value.toString().length() > 0;
+	}
+
+	/**
+	 * Insert in [analysis]_possible_values the values collected by addVariant() and the values of the projects tables, which are not already present.
+	 * The caller should set the database in hard update mode.
+	 */
+	public void update(Parameters parameters) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		Map<Field, Set<String>> values = new LinkedHashMap<>(newValues);
+		for (Field field : Field.getAvailableFields(analysis, false)){
+			if (getSource(analysis, field) == Source.PROJECTS) {
+				values.put(field, getProjectsValues(analysis, field));
+			}
+		}
+		int count = 0;
+		for (Field field : values.keySet()) {
+			Set<String> set = new TreeSet<>(values.get(field));
+			if (set.isEmpty()) continue;
+			try (Results res = DB.select(Schema.HIGHLANDER, "SELECT `value` FROM "+analysis.getFromPossibleValues()+"WHERE `field` = '"+field.getName()+"'", true)) {
+				while (res.next() && !set.isEmpty()){
+					set.remove(res.getString(1));
+				}
+			}
+			values.put(field, set);
+			count += set.size();
+		}
+		if (count > 0) {
+			write(values);
+		}
+		newValues.clear();
+		System.out.println(df.format(System.currentTimeMillis()) + " - " + count + " new possible values added to " + analysis);
+	}
+
+}
@@ -80,6 +80,7 @@ import be.uclouvain.ngs.highlander.Resources;
 import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.UI.dialog.AskUsersDialog;
 import be.uclouvain.ngs.highlander.UI.misc.WrapLayout;
+import be.uclouvain.ngs.highlander.administration.AlleleFrequencyUpdater;
 import be.uclouvain.ngs.highlander.administration.DbBuilder;
 import be.uclouvain.ngs.highlander.administration.DbBuilder.CoverageTarget;
 import be.uclouvain.ngs.highlander.administration.UI.AdministrationTableModel;
@@ -1248,6 +1249,7 @@ public class ProjectsPanel extends ManagerPanel {
 		if (res == JOptionPane.CANCEL_OPTION){
 			return;
 		}else if (res == JOptionPane.YES_OPTION){
+			Map<String, AlleleFrequencyUpdater> alleleFrequencies = askAlleleFrequenciesUpdate() ? new LinkedHashMap<String, AlleleFrequencyUpdater>() : null;
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					waitingPanel.setVisible(true);
@@ -1260,7 +1262,7 @@ public class ProjectsPanel extends ManagerPanel {
 				try{
 					if (projectsTable.getValueAt(row, projectTableModel.getColumn("analyses")) != null) {
 						for (String analysis : projectsTable.getValueAt(row, projectTableModel.getColumn("analyses")).toString().split(",")){
-							deleteSample(new Analysis(analysis), id, sample);
+							deleteSample(new Analysis(analysis), id, sample, alleleFrequencies);
 						}
 					}
 					ProjectManager.toConsole("-----------------------------------------------------");
@@ -1271,6 +1273,7 @@ public class ProjectsPanel extends ManagerPanel {
 					ProjectManager.toConsole(ex);
 				}
 			}
+			updateAlleleFrequencies(alleleFrequencies);
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					waitingPanel.setVisible(false);
@@ -2302,6 +2305,7 @@ public class ProjectsPanel extends ManagerPanel {
 		if (res == JOptionPane.CANCEL_OPTION){
 			return;
 		}else if (res == JOptionPane.YES_OPTION){
+			Map<String, AlleleFrequencyUpdater> alleleFrequencies = askAlleleFrequenciesUpdate() ? new LinkedHashMap<String, AlleleFrequencyUpdater>() : null;
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					waitingPanel.setVisible(true);
@@ -2312,11 +2316,12 @@ public class ProjectsPanel extends ManagerPanel {
 				String sample = projectsTable.getValueAt(row, projectTableModel.getColumn("sample")).toString();
 				String id = projectsTable.getValueAt(row, projectTableModel.getColumn("project_id")).toString();
 				try{
-					deleteSample(new Analysis(analysis), id, sample);
+					deleteSample(new Analysis(analysis), id, sample, alleleFrequencies);
 				}catch(Exception ex){
 					ProjectManager.toConsole(ex);
 				}
 			}
+			updateAlleleFrequencies(alleleFrequencies);
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
 					waitingPanel.setVisible(false);
@@ -2333,9 +2338,44 @@ public class ProjectsPanel extends ManagerPanel {
 		});		
 	}
 
-	private void deleteSample(Analysis analysis, String projectId, String sample) throws Exception {
+	/**
+	 * Allele frequencies are updated once for all deleted samples, and can be skipped on big analyses (they must then be rebuilt with DbBuilder tool allelefreq).
+	 */
+	private boolean askAlleleFrequenciesUpdate(){
+		int res = JOptionPane.showConfirmDialog(new JFrame(), "Do you want to update the allele frequencies of the analyses after deletion ?\nIf not, they must be rebuilt later with DbBuilder tool 'allelefreq'.", "Delete sample from Highlander", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE, Resources.getScaledIcon(Resources.iDbRemove,64));
+		return res == JOptionPane.YES_OPTION;
+	}
+
+	/**
+	 * Update the allele frequencies of the analyses from which samples have been deleted.
+	 * A failure is only reported, the samples stay deleted.
+	 * 
+	 * @param alleleFrequencies analysis -> updater, or null if the update has been skipped
+	 */
+	private void updateAlleleFrequencies(Map<String, AlleleFrequencyUpdater> alleleFrequencies){
+		if (alleleFrequencies == null) return;
+		for (String analysis : alleleFrequencies.keySet()){
+			ProjectManager.toConsole("-----------------------------------------------------");
+			ProjectManager.toConsole("Updating allele frequencies of analysis " + analysis);
+			try{
+				alleleFrequencies.get(analysis).update(ProjectManager.getParameters());
+			}catch(Exception ex){
+				ProjectManager.toConsole(ex);
+				ProjectManager.toConsole("*** Allele frequencies of analysis " + analysis + " must be rebuilt with DbBuilder tool 'allelefreq' ***");
+			}
+		}
+	}
+
+	/**
+	 * @param alleleFrequencies analysis -> updater collecting the variants of deleted samples, or null to skip allele frequencies
+	 */
+	private void deleteSample(Analysis analysis, String projectId, String sample, Map<String, AlleleFrequencyUpdater> alleleFrequencies) throws Exception {
 		ProjectManager.toConsole("-----------------------------------------------------");
 		ProjectManager.toConsole("Deleting sample " + sample + " (internal id " + projectId + ") from analysis " + analysis);
+		if (alleleFrequencies != null){
+			if (!alleleFrequencies.containsKey(analysis.toString())) alleleFrequencies.put(analysis.toString(), new AlleleFrequencyUpdater(analysis));
+			alleleFrequencies.get(analysis.toString()).addSample(Integer.parseInt(projectId));
+		}
 		DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromCoverage()+"WHERE `"+Field.project_id.getName()+"` = "+projectId);
 		DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromCustomAnnotations()+"WHERE `"+Field.project_id+"` = "+projectId);
 		DB.update(Schema.HIGHLANDER, "DELETE FROM "+analysis.getFromSampleAnnotations()+"WHERE `"+Field.project_id+"` = "+projectId);
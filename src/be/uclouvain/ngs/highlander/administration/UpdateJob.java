@@ -0,0 +1,329 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.administration;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
+
+/**
+ * Update of the variants of an analysis by chunks, used by DbUpdater, which can be resumed after an interruption.
+ *
+ * Variants are read in the order of the unique key of the static annotations table (pos, chr, alternative, reference, length, gene_symbol),
+ * one chunk at a time: each chunk is read with its own query starting after the last variant of the previous chunk (keyset pagination),
+ * which walks the index without sorting the table. The cursor is closed before the chunk is submitted (MyISAM updates wait for the table read locks),
+ * and only the chunks being processed are in memory, whatever the size of the analysis.
+ * Each chunk is processed by a pool of threads, with at most 2 chunks per thread waiting.
+ * A chunk that fails is retried before aborting the job.
+ * Each time all chunks up to a given one are done, its last variant is saved in `updater_checkpoints`.
+ * Running again the same job (same tool, analysis and parameters) skips the variants up to this one.
+ * The checkpoint is removed when the job completes.
+ */
+public class UpdateJob {
+
+	public interface ChunkProcessor {
+		void process(List<Integer> variantStaticIds) throws Exception;
+	}
+
+	private static final String TABLE = "`updater_checkpoints`";
+	/**
+	 * Unique key of the static annotations table, giving the order of the variants
+	 */
+	private static final String[] KEY = new String[] {"pos", "chr", "alternative", "reference", "length", "gene_symbol"};
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final HighlanderDatabase DB;
+	private final String job;
+	private final AnalysisFull analysis;
+	private final String parameters;
+	private final int nthreads;
+	private final int chunkSize;
+
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private long total;
+	private long start;
+	private volatile Exception failure = null;
+
+	private long firstPendingChunk = 0;
+	private long checkpointDone = 0;
+	private final Map<Long, Chunk> finishedChunks = new TreeMap<>();
+
+	private static class Chunk {
+		final long index;
+		final int[] ids;
+		final String lastChr;
+		final int lastPos;
+		final int lastId;
+
+		Chunk(long index, int[] ids, String lastChr, int lastPos){
+			this.index = index;
+			this.ids = ids;
+			this.lastChr = lastChr;
+			this.lastPos = lastPos;
+			this.lastId = ids[ids.length-1];
+		}
+
+		List<Integer> getIds(){
+			List<Integer> list = new ArrayList<>(ids.length);
+			for (int id : ids){
+				list.add(id);
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * @param job name of the DbUpdater tool
+	 * @param analysis analysis to update
+	 * @param parameters parameters of the tool that must match to resume the job (e.g. updated annotations)
+	 * @param nthreads number of chunks processed at the same time
+	 * @param chunkSize number of variants per chunk
+	 */
+	public UpdateJob(String job, AnalysisFull analysis, String parameters, int nthreads, int chunkSize) {
+		this.DB = Highlander.getDB();
+		this.job = job;
+		this.analysis = analysis;
+		this.parameters = parameters;
+		this.nthreads = Math.max(1, nthreads);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Process all variants of the static annotations table matching the given condition.
+	 * Returns when all chunks are done, or throws the exception of the first chunk that failed MAX_ATTEMPTS times.
+	 *
+	 * @param where SQL condition on the static annotations table, or null for all variants
+	 */
+	public void run(String where, ChunkProcessor processor) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		createCheckpointTable();
+		String condition = (where != null) ? where : "TRUE";
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT `chr`, `pos`, `variant_static_id`, `done` FROM "+TABLE+" "
+				+ "WHERE `job` = '"+DB.format(Schema.HIGHLANDER, job)+"' AND `analysis` = '"+analysis+"' AND `parameters` = '"+DB.format(Schema.HIGHLANDER, parameters)+"'")) {
+			if (res.next()) {
+				String chr = DB.format(Schema.HIGHLANDER, res.getString(1));
+				int pos = res.getInt(2);
+				int id = res.getInt(3);
+				done.set(res.getLong(4));
+				Object[] last = getKey(id);
+				if (last != null) {
+					condition = "("+condition+") AND " + getKeysetCondition(last);
+				}else {
+					//Last variant of the checkpoint has been removed, variants of its position are done again
+					condition = "("+condition+") AND (`pos` > "+pos+" OR (`pos` = "+pos+" AND `chr` >= '"+chr+"'))";
+				}
+				System.out.println(df.format(System.currentTimeMillis()) + " - Resuming " + job + " of " + analysis + " after variant " + res.getInt(3) + " (chr"+res.getString(1)+":"+pos+"), "+Tools.longToString(done.get())+" variants already updated");
+			}
+		}
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT COUNT(*) FROM " + analysis.getFromStaticAnnotations() + "WHERE " + condition)) {
+			total = done.get() + (res.next() ? res.getLong(1) : 0);
+		}
+		checkpointDone = done.get();
+		System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.longToString(total - done.get()) + " variants to update in " + analysis);
+		ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+		Semaphore slots = new Semaphore(2 * nthreads);
+		start = System.currentTimeMillis();
+		try {
+			String order = "`" + String.join("`, `", KEY) + "`";
+			Object[] last = null;
+			for (long index=0 ; failure == null ; index++){
+				int[] ids = new int[chunkSize];
+				int size = 0;
+				Object[] key = new Object[KEY.length];
+				try (Results res = DB.select(Schema.HIGHLANDER,
+						"SELECT " + Field.variant_static_id.getQuerySelectName(analysis, false) + ", " + order + " FROM " + analysis.getFromStaticAnnotations()
+						+ "WHERE (" + condition + ")" + ((last != null) ? " AND " + getKeysetCondition(last) : "") + " ORDER BY " + order + " LIMIT " + chunkSize)) {
+					while (res.next()){
+						ids[size++] = res.getInt(1);
+						for (int k=0 ; k < KEY.length ; k++){
+							key[k] = res.getObject(k+2);
+						}
+					}
+				}
+				if (size == 0) break;
+				last = key;
+				submit(executor, slots, new Chunk(index, (size < chunkSize) ? Arrays.copyOf(ids, size) : ids, last[1].toString(), Integer.parseInt(last[0].toString())), processor);
+				if (size < chunkSize) break;
+			}
+		}finally {
+			executor.shutdown();
+			executor.awaitTermination(100, TimeUnit.DAYS);
+		}
+		if (failure != null) {
+			System.out.println(df.format(System.currentTimeMillis()) + " - " + job + " of " + analysis + " aborted, run the same tool again to resume it");
+			throw failure;
+		}
+		DB.update(Schema.HIGHLANDER, "DELETE FROM "+TABLE+" "
+				+ "WHERE `job` = '"+DB.format(Schema.HIGHLANDER, job)+"' AND `analysis` = '"+analysis+"' AND `parameters` = '"+DB.format(Schema.HIGHLANDER, parameters)+"'");
+	}
+
+	/**
+	 * @return values of KEY of a variant, or null if it doesn't exist anymore
+	 */
+	private Object[] getKey(int variantStaticId) throws Exception {
+		try (Results res = DB.select(Schema.HIGHLANDER, "SELECT `" + String.join("`, `", KEY) + "` FROM " + analysis.getFromStaticAnnotations() + "WHERE `variant_static_id` = " + variantStaticId)) {
+			if (res.next()) {
+				Object[] key = new Object[KEY.length];
+				for (int k=0 ; k < KEY.length ; k++){
+					key[k] = res.getObject(k+1);
+				}
+				return key;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Condition selecting the variants strictly after the given one in the order of KEY, 
+	 * written as (pos > x) OR (pos = x AND (chr > y OR (chr = y AND ...))) so the database can use the index range on pos.
+	 */
+	private String getKeysetCondition(Object[] key) {
+		String condition = null;
+		for (int k=KEY.length-1 ; k >= 0 ; k--){
+			String value = (key[k] instanceof Number) ? key[k].toString() : "'" + DB.format(Schema.HIGHLANDER, key[k].toString()) + "'";
+			String greater = "`" + KEY[k] + "` > " + value;
+			condition = (condition == null) ? greater : "(" + greater + " OR (`" + KEY[k] + "` = " + value + " AND " + condition + "))";
+		}
+		return condition;
+	}
+
+	private void submit(ExecutorService executor, Semaphore slots, Chunk chunk, ChunkProcessor processor) throws InterruptedException {
+		slots.acquire();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					boolean success = false;
+					for (int attempt=1 ; !success && failure == null ; attempt++) {
+						try {
+							processor.process(chunk.getIds());
+							success = true;
+						}catch (Exception ex) {
+							if (attempt < MAX_ATTEMPTS) {
+								System.err.println("Chunk of " + chunk.ids.length + " variants ending at chr" + chunk.lastChr + ":" + chunk.lastPos + " failed (attempt " + attempt + "/" + MAX_ATTEMPTS + "): " + ex.getMessage());
+								Thread.sleep(attempt * 10_000L);
+							}else {
+								Tools.exception(ex);
+								failure = ex;
+							}
+						}
+					}
+					if (success) {
+						chunkDone(chunk);
+					}
+				}catch (Exception ex) {
+					Tools.exception(ex);
+					failure = ex;
+				}finally {
+					slots.release();
+				}
+			}
+		});
+	}
+
+	private void chunkDone(Chunk chunk) throws Exception {
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd - HH_mm_ss");
+		long count = done.addAndGet(chunk.ids.length);
+		long session = processed.addAndGet(chunk.ids.length);
+		synchronized (finishedChunks) {
+			finishedChunks.put(chunk.index, chunk);
+			Chunk checkpoint = null;
+			while (finishedChunks.containsKey(firstPendingChunk)) {
+				checkpoint = finishedChunks.remove(firstPendingChunk++);
+				checkpointDone += checkpoint.ids.length;
+			}
+			if (checkpoint != null) {
+				//No REPLACE INTO, not supported by HSQLDB
+				DB.update(Schema.HIGHLANDER, "DELETE FROM "+TABLE+" "
+						+ "WHERE `job` = '"+DB.format(Schema.HIGHLANDER, job)+"' AND `analysis` = '"+analysis+"' AND `parameters` = '"+DB.format(Schema.HIGHLANDER, parameters)+"'");
+				DB.update(Schema.HIGHLANDER, "INSERT INTO "+TABLE+" (`job`, `analysis`, `parameters`, `chr`, `pos`, `variant_static_id`, `done`) VALUES ("
+						+ "'"+DB.format(Schema.HIGHLANDER, job)+"', '"+analysis+"', '"+DB.format(Schema.HIGHLANDER, parameters)+"', "
+						+ "'"+DB.format(Schema.HIGHLANDER, checkpoint.lastChr)+"', "+checkpoint.lastPos+", "+checkpoint.lastId+", "+checkpointDone+")");
+			}
+		}
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		double throughput = session / seconds;
+		long eta = (throughput > 0) ? (long)((total - count) / throughput) : 0;
+		System.out.println(df.format(System.currentTimeMillis()) + " - " + Tools.longToString(count) + " / " + Tools.longToString(total) + " variants updated"
+				+ " - " + Tools.doubleToString(throughput, 0, false) + " variants/s - ETA " + String.format("%d:%02d:%02d", eta / 3600, (eta % 3600) / 60, eta % 60)
+				+ " - " + Tools.doubleToString(((double)Tools.getUsedMemoryInMb() / 1024.0), 1, false) + " Gb / "+ (Tools.doubleToString(((double)(Runtime.getRuntime().maxMemory() / 1024 /1024) / 1024.0), 1, false)) + " Gb");
+	}
+
+	private void createCheckpointTable() throws Exception {
+		switch(DB.getDBMS(Schema.HIGHLANDER)){
+		case hsqldb:
+			DB.update(Schema.HIGHLANDER, "CREATE TABLE IF NOT EXISTS "+TABLE+" ("
+					+ "`job` VARCHAR(50) NOT NULL, "
+					+ "`analysis` VARCHAR(255) NOT NULL, "
+					+ "`parameters` VARCHAR(255) NOT NULL, "
+					+ "`chr` VARCHAR(255) NOT NULL, "
+					+ "`pos` INT NOT NULL, "
+					+ "`variant_static_id` INT NOT NULL, "
+					+ "`done` BIGINT NOT NULL, "
+					+ "`last_update` TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, "
+					+ "PRIMARY KEY (`job`,`analysis`,`parameters`)"
+					+ ")");
+			break;
+		case mysql:
+		default:
+			DB.update(Schema.HIGHLANDER, "CREATE TABLE IF NOT EXISTS "+TABLE+" ("
+					+ "`job` VARCHAR(50) NOT NULL, "
+					+ "`analysis` VARCHAR(255) NOT NULL, "
+					+ "`parameters` VARCHAR(255) NOT NULL, "
+					+ "`chr` VARCHAR(255) NOT NULL COMMENT 'Last variant of the contiguous chunks done', "
+					+ "`pos` INT(10) UNSIGNED NOT NULL, "
+					+ "`variant_static_id` INT(10) UNSIGNED NOT NULL, "
+					+ "`done` BIGINT UNSIGNED NOT NULL COMMENT 'Number of variants updated up to the checkpoint', "
+					+ "`last_update` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, "
+					+ "PRIMARY KEY (`job`,`analysis`,`parameters`)"
+					+ ") ENGINE=MyISAM DEFAULT CHARSET=latin1");
+			break;
+		}
+	}
+
+}
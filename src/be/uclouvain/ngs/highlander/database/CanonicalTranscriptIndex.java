@@ -0,0 +1,334 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.Gene;
+import be.uclouvain.ngs.highlander.datatype.Reference;
+import be.uclouvain.ngs.highlander.datatype.Variant;
+
+/**
+ * Canonical transcripts of all Ensembl genes of a reference, kept in memory to find the genes of a variant without querying Ensembl.
+ * Gives the same genes as DBUtils.getGenesWithCanonicalTranscriptIntersect(Reference, Variant), including their RefSeq mRNA accession.
+ *
+ * The index is built once per reference with 2 queries (transcripts and RefSeq accessions), and can be used by multiple threads.
+ * Each chromosome is an array of transcripts sorted by start, with the maximum end of all preceding transcripts,
+ * so only the transcripts that can contain the variant are looked at.
+ * If an annotation cache directory is set in the parameters, the index is saved there and read back by the next runs,
+ * the file name containing the Ensembl schema so a new index is built when Ensembl is updated.
+ */
+public class CanonicalTranscriptIndex {
+
+	private static final int MAGIC = 0x48434954;
+	private static final int VERSION = 1;
+
+	private static final Map<String, CanonicalTranscriptIndex> indexes = new ConcurrentHashMap<>();
+
+	private static class Transcript {
+		String geneSymbol;
+		String ensemblGene;
+		String ensemblTranscript;
+		String refSeqTranscript;
+		String biotype;
+		int biotypePriority;
+		int start;
+		int end;
+	}
+
+	private static class Chromosome {
+		final Transcript[] transcripts;
+		final int[] starts;
+		final int[] maxEnds;
+
+		Chromosome(List<Transcript> list) {
+			transcripts = list.toArray(new Transcript[0]);
+			Arrays.sort(transcripts, new Comparator<Transcript>() {
+				@Override
+				public int compare(Transcript o1, Transcript o2) {
+					return Integer.compare(o1.start, o2.start);
+				}
+			});
+			starts = new int[transcripts.length];
+			maxEnds = new int[transcripts.length];
+			int max = Integer.MIN_VALUE;
+			for (int i=0 ; i < transcripts.length ; i++) {
+				Transcript t = transcripts[i];
+				t.biotypePriority = new Gene(null, null, t.geneSymbol, t.ensemblGene, t.ensemblTranscript, null, t.biotype).getBiotypePriority();
+				starts[i] = t.start;
+				max = Math.max(max, t.end);
+				maxEnds[i] = max;
+			}
+		}
+	}
+
+	private final Reference reference;
+	private final Map<String, Chromosome> chromosomes = new HashMap<>();
+
+	private CanonicalTranscriptIndex(Reference reference) {
+		this.reference = reference;
+	}
+
+	/**
+	 * @return the index of the given reference, built (or read from the cache directory) at first call
+	 */
+	public static CanonicalTranscriptIndex get(Reference reference) throws Exception {
+		CanonicalTranscriptIndex index = indexes.get(reference.getName());
+		if (index == null) {
+			synchronized (indexes) {
+				index = indexes.get(reference.getName());
+				if (index == null) {
+					index = load(reference);
+					indexes.put(reference.getName(), index);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Drop all indexes from memory (cached files are kept)
+	 */
+	public static void clear() {
+		indexes.clear();
+	}
+
+	/**
+	 * Return each gene for which the canonical transcript intersects the given variant.
+	 * If 2 genes have the same gene symbol, only the one with the highest biotype priority is kept.
+	 *
+	 * @return a new set of genes, that can be modified by the caller
+	 */
+	public Set<Gene> getGenesWithCanonicalTranscriptIntersect(Variant variant) {
+		Map<String, Transcript> bySymbol = new HashMap<>();
+		Chromosome chromosome = chromosomes.get(variant.getChromosome());
+		if (chromosome != null) {
+			int start = variant.getPosition();
+			int end = variant.getPosition()+variant.getAffectedReferenceLength();
+			int i = lastStartingBefore(chromosome.starts, start);
+			for ( ; i >= 0 && chromosome.maxEnds[i] >= end ; i--) {
+				Transcript transcript = chromosome.transcripts[i];
+				if (transcript.end >= end) {
+					Transcript alreadyThere = bySymbol.get(transcript.geneSymbol);
+					if (alreadyThere == null || transcript.biotypePriority < alreadyThere.biotypePriority) {
+						bySymbol.put(transcript.geneSymbol, transcript);
+					}
+				}
+			}
+		}
+		Set<Gene> genes = new HashSet<>();
+		for (Transcript transcript : bySymbol.values()) {
+			genes.add(new Gene(reference, variant.getChromosome(), transcript.geneSymbol, transcript.ensemblGene, transcript.ensemblTranscript, transcript.refSeqTranscript, transcript.biotype));
+		}
+		return genes;
+	}
+
+	/**
+	 * @return index of the last element lower or equal to value in the sorted array, -1 if all elements are greater
+	 */
+	private static int lastStartingBefore(int[] starts, int value) {
+		int low = 0;
+		int high = starts.length - 1;
+		int result = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= value) {
+				result = mid;
+				low = mid + 1;
+			}else {
+				high = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	private static CanonicalTranscriptIndex load(Reference reference) throws Exception {
+		File cache = getCacheFile(reference);
+		if (cache != null && cache.exists()) {
+			try {
+				return read(reference, cache);
+			}catch (Exception ex) {
+				System.err.println("Cannot read canonical transcripts index " + cache + ", it will be rebuilt");
+				Tools.exception(ex);
+			}
+		}
+		long t = System.currentTimeMillis();
+		Map<String, List<Transcript>> transcripts = new HashMap<>();
+		Map<String, Transcript> byId = new HashMap<>();
+		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL,
+				"SELECT R.`name` as chr, X.display_label as gene_symbol, G.stable_id as ensembl_gene, T.stable_id as ensembl_transcript, T.biotype as biotype, "
+						+ "G.seq_region_start as gene_start, G.seq_region_end as gene_end, T.seq_region_start as transcript_start, T.seq_region_end as transcript_end "
+						+ "FROM gene as G "
+						+ "LEFT JOIN xref as X ON (G.display_xref_id = X.xref_id) "
+						+ "JOIN seq_region as R USING (seq_region_id) "
+						+ "JOIN coord_system as C USING (coord_system_id) "
+						+ "JOIN transcript as T ON G.canonical_transcript_id = T.transcript_id "
+						+ "WHERE C.rank = 1")){
+			while (res.next()) {
+				Transcript transcript = new Transcript();
+				transcript.ensemblGene = res.getString("ensembl_gene");
+				transcript.geneSymbol = res.getString("gene_symbol");
+				if (transcript.geneSymbol == null) transcript.geneSymbol = transcript.ensemblGene; //same as Gene constructor
+				transcript.ensemblTranscript = res.getString("ensembl_transcript");
+				transcript.biotype = res.getString("biotype");
+				//A variant must be inside the gene and the canonical transcript
+				transcript.start = Math.max(res.getInt("gene_start"), res.getInt("transcript_start"));
+				transcript.end = Math.min(res.getInt("gene_end"), res.getInt("transcript_end"));
+				String chr = res.getString("chr");
+				if (!transcripts.containsKey(chr)) transcripts.put(chr, new ArrayList<>());
+				transcripts.get(chr).add(transcript);
+				byId.put(transcript.ensemblTranscript, transcript);
+			}
+		}
+		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL,
+				"SELECT T.stable_id, xref.display_label "
+						+ "FROM gene as G "
+						+ "JOIN transcript as T ON G.canonical_transcript_id = T.transcript_id "
+						+ "JOIN object_xref ON (T.transcript_id = ensembl_id) "
+						+ "JOIN xref USING (xref_id) "
+						+ "LEFT JOIN external_db ed USING (external_db_id) "
+						+ "WHERE db_name = 'RefSeq_mRNA' "
+						+ "AND ensembl_object_type = 'Transcript'")){
+			while (res.next()){
+				Transcript transcript = byId.get(res.getString(1));
+				if (transcript != null && transcript.refSeqTranscript == null) {
+					transcript.refSeqTranscript = res.getString(2);
+				}
+			}
+		}
+		CanonicalTranscriptIndex index = new CanonicalTranscriptIndex(reference);
+		for (String chr : transcripts.keySet()) {
+			index.chromosomes.put(chr, new Chromosome(transcripts.get(chr)));
+		}
+		System.out.println("Canonical transcripts of " + reference + " indexed in " + Tools.doubleToString(((double)(System.currentTimeMillis() - t) / 1000.0), 0, false) + " seconds (" + byId.size() + " genes)");
+		if (cache != null) {
+			try {
+				index.write(cache);
+			}catch (Exception ex) {
+				System.err.println("Cannot save canonical transcripts index to " + cache);
+				Tools.exception(ex);
+			}
+		}
+		return index;
+	}
+
+	private static File getCacheFile(Reference reference) throws Exception {
+		String dir = Highlander.getParameters().getAnnotationCacheDirectory();
+		if (dir == null || dir.length() == 0) return null;
+		return new File(dir, "canonical_transcripts_" + reference.getSchemaName(Schema.ENSEMBL) + ".bin.gz");
+	}
+
+	private void write(File file) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(chromosomes.size());
+			for (String chr : chromosomes.keySet()) {
+				Transcript[] transcripts = chromosomes.get(chr).transcripts;
+				writeString(out, chr);
+				out.writeInt(transcripts.length);
+				for (Transcript transcript : transcripts) {
+					writeString(out, transcript.geneSymbol);
+					writeString(out, transcript.ensemblGene);
+					writeString(out, transcript.ensemblTranscript);
+					writeString(out, transcript.refSeqTranscript);
+					writeString(out, transcript.biotype);
+					out.writeInt(transcript.start);
+					out.writeInt(transcript.end);
+				}
+			}
+		}
+		//Other processes may read the cache at the same time, so it's replaced only when complete
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static CanonicalTranscriptIndex read(Reference reference, File file) throws IOException {
+		CanonicalTranscriptIndex index = new CanonicalTranscriptIndex(reference);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))){
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a canonical transcripts index of this version");
+			}
+			int numChromosomes = in.readInt();
+			for (int c=0 ; c < numChromosomes ; c++) {
+				String chr = readString(in);
+				int size = in.readInt();
+				List<Transcript> transcripts = new ArrayList<>(size);
+				for (int i=0 ; i < size ; i++) {
+					Transcript transcript = new Transcript();
+					transcript.geneSymbol = readString(in);
+					transcript.ensemblGene = readString(in);
+					transcript.ensemblTranscript = readString(in);
+					transcript.refSeqTranscript = readString(in);
+					transcript.biotype = readString(in);
+					transcript.start = in.readInt();
+					transcript.end = in.readInt();
+					transcripts.add(transcript);
+				}
+				index.chromosomes.put(chr, new Chromosome(transcripts));
+			}
+		}
+		return index;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
@@ -42,6 +42,7 @@ import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -201,6 +202,80 @@ public class DBUtils {
 		return accession;
 	}
 
+	/**
+	 * Same as getAccessionRefSeqMRna() for multiple transcripts, with one query
+	 * @return Ensembl transcript -> RefSeq mRNA accession (transcripts without accession are absent)
+	 */
+	public static Map<String,String> getAccessionsRefSeqMRna(Reference reference, Set<String> ensemblTranscripts) throws Exception {
+		Map<String,String> accessions = new HashMap<>();
+		if (ensemblTranscripts.isEmpty()) return accessions;
+		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL, 
+				"SELECT transcript.stable_id, xref.display_label "
+						+ "FROM transcript "
+						+ "JOIN object_xref ON (transcript_id = ensembl_id) "
+						+ "JOIN xref USING (xref_id) "
+						+ "LEFT JOIN external_db ed USING (external_db_id) "
+						+ "WHERE db_name = 'RefSeq_mRNA' "
+						+ "AND ensembl_object_type = 'Transcript' "
+						+ "AND transcript.stable_id IN ("+HighlanderDatabase.makeSqlList(ensemblTranscripts, String.class)+")")){
+			while (res.next()){
+				accessions.putIfAbsent(res.getString(1), res.getString(2));
+			}
+		}
+		return accessions;
+	}
+
+	/**
+	 * Same as getAccessionRefSeqProt() for multiple transcripts, with one query
+	 * @return Ensembl transcript -> RefSeq protein accession (transcripts without accession are absent)
+	 */
+	public static Map<String,String> getAccessionsRefSeqProt(Reference reference, Set<String> ensemblTranscripts) throws Exception {
+		Map<String,String> accessions = new HashMap<>();
+		if (ensemblTranscripts.isEmpty()) return accessions;
+		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL, 
+				"SELECT transcript.stable_id, xref.display_label "
+						+ "FROM transcript "
+						+ "JOIN translation USING (transcript_id) "
+						+ "JOIN object_xref ON (translation_id = ensembl_id) "
+						+ "JOIN xref USING (xref_id) "
+						+ "LEFT JOIN external_db ed USING (external_db_id) "
+						+ "WHERE db_name = 'RefSeq_peptide' "
+						+ "AND ensembl_object_type = 'Translation' "
+						+ "AND transcript.stable_id IN ("+HighlanderDatabase.makeSqlList(ensemblTranscripts, String.class)+")")){
+			while (res.next()){
+				String accession = accessions.get(res.getString(1));
+				if (accession == null || res.getString(2).length() > accession.length()) {
+					accessions.put(res.getString(1), res.getString(2));
+				}
+			}
+		}
+		return accessions;
+	}
+
+	/**
+	 * Same as getAccessionUniprot() for multiple transcripts, with one query
+	 * @return Ensembl transcript -> Uniprot accession (transcripts without accession are absent)
+	 */
+	public static Map<String,String> getAccessionsUniprot(Reference reference, Set<String> ensemblTranscripts) throws Exception {
+		Map<String,String> accessions = new HashMap<>();
+		if (ensemblTranscripts.isEmpty()) return accessions;
+		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL, 
+				"SELECT transcript.stable_id, xref.dbprimary_acc "
+						+ "FROM transcript "
+						+ "JOIN translation USING (transcript_id) "
+						+ "JOIN object_xref ON (translation_id = ensembl_id) "
+						+ "JOIN xref USING (xref_id) "
+						+ "LEFT JOIN external_db ed USING (external_db_id) "
+						+ "WHERE db_name = 'Uniprot/SWISSPROT' "
+						+ "AND ensembl_object_type = 'Translation' "
+						+ "AND transcript.stable_id IN ("+HighlanderDatabase.makeSqlList(ensemblTranscripts, String.class)+")")){
+			while (res.next()){
+				accessions.putIfAbsent(res.getString(1), res.getString(2));
+			}
+		}
+		return accessions;
+	}
+
 	public static String getGeneSymbol(Reference reference, String ensemblGene) throws Exception {
 		String geneSymbol = null;
 		try (Results res = Highlander.getDB().select(reference, Schema.ENSEMBL, 
@@ -289,6 +364,7 @@ public class DBUtils {
 	/**
 	 * Return each gene for which the canonical transcript intersects the given variant.
 	 * If 2 genes have the same gene symbol (but obviously different ensembl ids), only the most useful is kept (e.g. protein_coding kept vs nonsense_mediated_decay).
+	 * For many variants, CanonicalTranscriptIndex gives the same result without querying the database.
 	 * 
 	 * @param reference
 	 * @param variant
@@ -50,6 +50,7 @@ import be.uclouvain.ngs.highlander.administration.users.User;
 import be.uclouvain.ngs.highlander.administration.users.User.Settings;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.AnalysisAnnotationPlan;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect.Effect;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect.Impact;
@@ -662,6 +663,7 @@ public class Field implements Serializable, Comparable<Field> {
 				else if (fieldname.equalsIgnoreCase("history") && history == null) history = f;
 			}
 		}
+		AnalysisAnnotationPlan.clear();
 	}
 
 	public static void setUserCustomWidths(HighlanderDatabase DB, User user) throws Exception {
@@ -29,13 +29,26 @@
 
 package be.uclouvain.ngs.highlander.database;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -45,10 +58,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Parameters;
 import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.CancellationToken;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.Priority;
 import be.uclouvain.ngs.highlander.datatype.Reference;
 
 /**
@@ -65,7 +83,29 @@ public class HighlanderDatabase {
 	private final HighlanderDataSource dataSourceMain;
 	private final Map<String, Reference> references = new HashMap<>();
 
-	private final Map<Statement,String> runningSelects = new LinkedHashMap<>();
+	//Filters can be evaluated by multiple threads (see FilterExecutor)
+	private final Map<Statement,String> runningSelects = Collections.synchronizedMap(new LinkedHashMap<>());
+
+	//Number of modifications made to the database by this client (used to invalidate cached filter results, see FilterCache)
+	private final AtomicLong localModifications = new AtomicLong();
+
+	private final int maxPoolSize;
+	private QueryScheduler scheduler = null;
+	private final QueryStatistics statistics;
+
+	public interface ResultsReader<T> {
+		public T read(Results res) throws Exception;
+	}
+
+	/**
+	 * Write rows in the same format as insertion files given to insertFile(): columns separated by tabs, one row by line.
+	 */
+	public interface RowsWriter {
+		public void write(Writer writer) throws Exception;
+	}
+
+	private static final int STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final int HSQLDB_BATCH_SIZE = 1000;
 
 	public HighlanderDatabase(Parameters parameters) {
 		this(parameters, 5);
@@ -73,6 +113,8 @@ public class HighlanderDatabase {
 
 	public HighlanderDatabase(Parameters parameters, int maxPoolSize) {
 		this.parameters = parameters;
+		this.maxPoolSize = maxPoolSize;
+		statistics = new QueryStatistics(this, (parameters != null) ? parameters.getFilteringExplainThreshold() : 0);
 		dataSourceMain = new HighlanderDataSource(parameters, maxPoolSize);
 		Set<String> availableReferenceNames = new HashSet<>();
 		try (Results res = select(Schema.HIGHLANDER, "SELECT DISTINCT(reference) FROM `references`")) {
@@ -155,9 +197,29 @@ public class HighlanderDatabase {
 				update(Schema.HIGHLANDER, "SHUTDOWN");
 			} catch (Exception ignored) {}
 		}
+		if (scheduler != null) scheduler.shutdown();
 		dataSourceMain.close();
 	}
 
+	/**
+	 * Scheduler for queries made by the user interface (details, tools, branches of the main filter evaluated by FilterExecutor, ...).
+	 * It has less workers than the connection pool, so some connections are always left for the thread of the main filter and threads not using the scheduler.
+	 */
+	public synchronized QueryScheduler getScheduler() {
+		if (scheduler == null) {
+			int filteringThreads = (parameters != null) ? parameters.getFilteringThreads() : 1;
+			scheduler = new QueryScheduler(maxPoolSize - filteringThreads);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Timings of all queries executed by this client.
+	 */
+	public QueryStatistics getQueryStatistics() {
+		return statistics;
+	}
+
 	public Results select(Schema schema, String query) throws Exception {
 		return select(null, schema, query, false);
 	}
@@ -173,20 +235,114 @@ public class HighlanderDatabase {
 	public Results select(Reference reference, Schema schema, String query, boolean hugeResultSetExpected) throws Exception {
 		//System.out.println(query); 
 		String sqlStatement = formatQuery(schema, query);
+		QueryStatistics.Measure measure = statistics.start(reference, schema, sqlStatement, true, true);
+		try {
+			Connection con = getConnection(reference, schema);
+			measure.connected();
+			Results res = new Results(this, con, true, schema, sqlStatement, hugeResultSetExpected);
+			res.setMeasure(measure);
+			startStatement(res.getStatement(), sqlStatement);
+			res.executeStatement();
+			endStatement(res.getStatement());
+			return res;
+		} catch (com.mysql.jdbc.exceptions.MySQLStatementCancelledException ex){
+			measure.finish();
+			throw ex;
+		} catch (Exception ex) {
+			measure.finish();
+			Tools.print("SQL statement throwing exception : " + sqlStatement);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Select using a given connection, that will stay open when the Results are closed.
+	 * Useful to query temporary tables, only visible from the connection that created them.
+	 */
+	public Results selectWithConnection(Connection con, Schema schema, String query, boolean hugeResultSetExpected) throws Exception {
+		String sqlStatement = formatQuery(schema, query);
+		//Temporary tables are only visible from this connection, so the query cannot be explained from another one
+		QueryStatistics.Measure measure = statistics.start(null, schema, sqlStatement, true, false);
+		measure.connected();
 		try {
-			Results res = new Results(this, reference, schema, sqlStatement, hugeResultSetExpected);
-			runningSelects.put(res.getStatement(), sqlStatement);
+			Results res = new Results(this, con, false, schema, sqlStatement, hugeResultSetExpected);
+			res.setMeasure(measure);
+			startStatement(res.getStatement(), sqlStatement);
 			res.executeStatement();
-			runningSelects.remove(res.getStatement());
+			endStatement(res.getStatement());
 			return res;
 		} catch (com.mysql.jdbc.exceptions.MySQLStatementCancelledException ex){
+			measure.finish();
 			throw ex;
 		} catch (Exception ex) {
+			measure.finish();
 			Tools.print("SQL statement throwing exception : " + sqlStatement);
 			throw ex;
 		}
 	}
 
+	/**
+	 * Update using a given connection, that will stay open.
+	 * The statement can be cancelled with cancelActiveSelects(), as it can be part of a selection (e.g. filling a temporary table).
+	 */
+	public int updateWithConnection(Connection con, Schema schema, String query) throws Exception {
+		String sqlStatement = formatQuery(schema, query);
+		QueryStatistics.Measure measure = statistics.start(null, schema, sqlStatement, false, false);
+		measure.connected();
+		try (Statement stm = con.createStatement()){
+			startStatement(stm, sqlStatement);
+			try {
+				int rows = stm.executeUpdate(sqlStatement, Statement.NO_GENERATED_KEYS);
+				measure.executed();
+				measure.addRows(rows);
+				measure.addBytes(sqlStatement.length());
+				return rows;
+			} catch (com.mysql.jdbc.exceptions.MySQLStatementCancelledException ex){
+				throw ex;
+			} catch (SQLException ex) {
+				Tools.print("SQL statement throwing exception : " + sqlStatement);
+				throw ex;
+			} finally {
+				endStatement(stm);
+			}
+		} finally {
+			measure.finish();
+		}
+	}
+
+	/**
+	 * Run a select in the scheduler, the reader is executed in the same task and the results are closed afterwards.
+	 */
+	public <T> CompletableFuture<T> selectAsync(Priority priority, Schema schema, String query, boolean hugeResultSetExpected, ResultsReader<T> reader) {
+		return getScheduler().submit(query, priority, () -> {
+			try (Results res = select(schema, query, hugeResultSetExpected)){
+				return reader.read(res);
+			}
+		});
+	}
+
+	/**
+	 * Statements executed by a scheduler task are cancelled with the token of the task,
+	 * the others with cancelActiveSelects().
+	 */
+	private void startStatement(Statement stm, String sqlStatement) {
+		CancellationToken token = QueryScheduler.getCurrentToken();
+		if (token != null) {
+			token.register(stm);
+		}else {
+			runningSelects.put(stm, sqlStatement);
+		}
+	}
+
+	private void endStatement(Statement stm) {
+		CancellationToken token = QueryScheduler.getCurrentToken();
+		if (token != null) {
+			token.unregister(stm);
+		}else {
+			runningSelects.remove(stm);
+		}
+	}
+
 	/**
 	 * Cancel all 'select' queries still executing.
 	 * As describe in Statement.cancel(), must be used from another thread, 
@@ -198,11 +354,13 @@ public class HighlanderDatabase {
 	 * @throws Exception
 	 */
 	public void cancelActiveSelects() throws Exception {
-		for (Iterator<Statement> it = runningSelects.keySet().iterator() ; it.hasNext() ;){
-			Statement stmt = it.next();
-			if(stmt != null && !stmt.isClosed()) {
-				stmt.cancel();
-				it.remove();
+		synchronized (runningSelects) {
+			for (Iterator<Statement> it = runningSelects.keySet().iterator() ; it.hasNext() ;){
+				Statement stmt = it.next();
+				if(stmt != null && !stmt.isClosed()) {
+					stmt.cancel();
+					it.remove();
+				}
 			}
 		}
 		//Kill the query if it's still present in the process list
@@ -224,8 +382,14 @@ public class HighlanderDatabase {
 		}
 	}
 
+	public long getLocalModificationCount() {
+		return localModifications.get();
+	}
+
 	public Set<String> getRunningSelects() {
-		return new HashSet<>(runningSelects.values());
+		synchronized (runningSelects) {
+			return new HashSet<>(runningSelects.values());
+		}
 	}
 	
 	public void update(Schema schema, String query) throws Exception {
@@ -233,17 +397,32 @@ public class HighlanderDatabase {
 	}
 
 	public void update(Reference reference, Schema schema, String query) throws Exception {
+		update(reference, schema, query, null);
+	}
+
+	/**
+	 * @param sentFile file sent with the query (LOAD DATA LOCAL INFILE), only used for statistics
+	 */
+	private void update(Reference reference, Schema schema, String query, File sentFile) throws Exception {
 		//System.out.println(query);
 		String sqlStatement = formatQuery(schema, query);
+		localModifications.incrementAndGet();
+		QueryStatistics.Measure measure = statistics.start(reference, schema, sqlStatement, false, false);
 		try (Connection con = getConnection(reference, schema)){
+			measure.connected();
 			try (Statement stm = con.createStatement()){
 				try {
-					stm.executeUpdate(sqlStatement, Statement.NO_GENERATED_KEYS);
+					int rows = stm.executeUpdate(sqlStatement, Statement.NO_GENERATED_KEYS);
+					measure.executed();
+					measure.addRows(rows);
+					measure.addBytes((sentFile != null) ? sentFile.length() : sqlStatement.length());
 				} catch (SQLException ex) {
 					Tools.print("SQL statement throwing exception : " + sqlStatement);
 					throw ex;
 				}
 			}
+		} finally {
+			measure.finish();
 		}
 	}
 
@@ -262,10 +441,16 @@ public class HighlanderDatabase {
 	public int insertAndGetAutoId(Reference reference, Schema schema, String query) throws Exception {
 		//System.out.println(query);
 		String sqlStatement = formatQuery(schema, query);
+		localModifications.incrementAndGet();
+		QueryStatistics.Measure measure = statistics.start(reference, schema, sqlStatement, false, false);
 		try (Connection con = getConnection(reference, schema)){
+			measure.connected();
 			try (Statement stm = con.createStatement()){
 				try {
 					int r =  stm.executeUpdate(sqlStatement, Statement.RETURN_GENERATED_KEYS);
+					measure.executed();
+					measure.addRows(r);
+					measure.addBytes(sqlStatement.length());
 					if (r != 0) {
 						int id = -1;
 						try (ResultSet res = stm.getGeneratedKeys()){
@@ -281,6 +466,8 @@ public class HighlanderDatabase {
 					throw ex;
 				}
 			}
+		} finally {
+			measure.finish();
 		}
 	}
 
@@ -436,55 +623,64 @@ public class HighlanderDatabase {
 	}
 
 	public void insertFile(Reference reference, Schema schema, String table, String columns, File insertFile, boolean replaceExisting, Parameters parameters) throws Exception {
+		localModifications.incrementAndGet();
 		switch(getDBMS(schema)){
 		case mysql:
 			String replace = (replaceExisting) ? "REPLACE" : "IGNORE";
 			String url = parameters.getUrlForSqlImportFiles()+"/"+insertFile.getName();
 			if(Tools.exists(url)){
-				update(reference, schema, "LOAD DATA LOCAL INFILE '"+url+"' "+replace+" INTO TABLE " + table+" ("+columns+");");				
+				update(reference, schema, "LOAD DATA LOCAL INFILE '"+url+"' "+replace+" INTO TABLE " + table+" ("+columns+");", insertFile);				
 			}else{
-				update(reference, schema, "LOAD DATA LOCAL INFILE '"+insertFile.getCanonicalPath().replace('\\', '/')+"' "+replace+" INTO TABLE " + table+" ("+columns+");");
+				update(reference, schema, "LOAD DATA LOCAL INFILE '"+insertFile.getCanonicalPath().replace('\\', '/')+"' "+replace+" INTO TABLE " + table+" ("+columns+");", insertFile);
 			}
 			break;
 		case hsqldb:
 			//Do not *format* statement for hsqldb, already done here, so don't use update() but directly create statements here
 			if (columns == null || columns.length() == 0) throw new Exception("You MUST give the list of columns represented in the insertFile");
-			//Create temporary table
-			try (Connection con = getConnection(reference, schema)){
-				try (Statement stm = con.createStatement()){
-					stm.executeUpdate("DROP TABLE IF EXISTS temp_"+table);
+			QueryStatistics.Measure measure = statistics.start(reference, schema, "INSERT INTO "+table+" ("+columns+") FROM TEXT TABLE", false, false);
+			measure.connected();
+			measure.addBytes(insertFile.length());
+			try {
+				//Create temporary table
+				try (Connection con = getConnection(reference, schema)){
+					try (Statement stm = con.createStatement()){
+						stm.executeUpdate("DROP TABLE IF EXISTS temp_"+table);
+					}
 				}
-			}
-			StringBuilder statement = new StringBuilder();
-			statement.append("CREATE TEXT TABLE temp_"+table+"(");
-			for (String column : columns.split(",")){
-				statement.append(column.trim()+" LONGVARCHAR,");
-			}
-			statement.deleteCharAt(statement.length()-1);
-			statement.append(")");
-			try (Connection con = getConnection(reference, schema)){
-				try (Statement stm = con.createStatement()){
-					stm.executeUpdate(statement.toString());
+				StringBuilder statement = new StringBuilder();
+				statement.append("CREATE TEXT TABLE temp_"+table+"(");
+				for (String column : columns.split(",")){
+					statement.append(column.trim()+" LONGVARCHAR,");
 				}
-			}
-			//Using the csv as a temporary text table
-			try (Connection con = getConnection(reference, schema)){
-				try (Statement stm = con.createStatement()){
-					stm.executeUpdate("SET TABLE temp_"+table+" SOURCE \""+insertFile.getAbsolutePath()+";ignore_first=false;fs=\\t\"");
+				statement.deleteCharAt(statement.length()-1);
+				statement.append(")");
+				try (Connection con = getConnection(reference, schema)){
+					try (Statement stm = con.createStatement()){
+						stm.executeUpdate(statement.toString());
+					}
 				}
-			}
-			//Importing the data from the temporary table to the main table
-			try (Connection con = getConnection(reference, schema)){
-				try (Statement stm = con.createStatement()){
-					String insert = (replaceExisting) ? "REPLACE " : "INSERT IGNORE INTO ";
-					stm.executeUpdate(insert+table+" ("+columns+") SELECT "+columns+" FROM temp_"+table+" ON DUPLICATE KEY UPDATE");
+				//Using the csv as a temporary text table
+				try (Connection con = getConnection(reference, schema)){
+					try (Statement stm = con.createStatement()){
+						stm.executeUpdate("SET TABLE temp_"+table+" SOURCE \""+insertFile.getAbsolutePath()+";ignore_first=false;fs=\\t\"");
+					}
 				}
-			}
-			//Deleting the temporary table
-			try (Connection con = getConnection(reference, schema)){
-				try (Statement stm = con.createStatement()){
-					stm.executeUpdate("DROP TABLE temp_"+table);
+				//Importing the data from the temporary table to the main table
+				try (Connection con = getConnection(reference, schema)){
+					try (Statement stm = con.createStatement()){
+						String insert = (replaceExisting) ? "REPLACE " : "INSERT IGNORE INTO ";
+						measure.addRows(stm.executeUpdate(insert+table+" ("+columns+") SELECT "+columns+" FROM temp_"+table+" ON DUPLICATE KEY UPDATE"));
+					}
+				}
+				//Deleting the temporary table
+				try (Connection con = getConnection(reference, schema)){
+					try (Statement stm = con.createStatement()){
+						stm.executeUpdate("DROP TABLE temp_"+table);
+					}
 				}
+				measure.executed();
+			} finally {
+				measure.finish();
 			}
 			break;
 		default:
@@ -492,6 +688,150 @@ public class HighlanderDatabase {
 		}
 	}
 
+	public void insertStream(Schema schema, String table, String columns, RowsWriter rows, boolean replaceExisting) throws Exception {
+		insertStream(null, schema, table, columns, rows, replaceExisting);
+	}
+
+	/**
+	 * Same as insertFile(), without temporary file: rows are written by the RowsWriter in another thread, 
+	 * and sent to the database while they are produced.
+	 * With MySQL, rows are streamed to a LOAD DATA LOCAL INFILE statement (using Connector/J setLocalInfileInputStream).
+	 * With HSQLDB, rows are inserted by batches with a prepared statement.
+	 * If the RowsWriter throws an exception, the statement is interrupted and the exception is thrown.
+	 */
+	public void insertStream(Reference reference, Schema schema, String table, String columns, RowsWriter rows, boolean replaceExisting) throws Exception {
+		if (columns == null || columns.length() == 0) throw new Exception("You MUST give the list of columns written by the RowsWriter");
+		localModifications.incrementAndGet();
+		AtomicReference<Exception> producerError = new AtomicReference<>();
+		PipedOutputStream out = new PipedOutputStream();
+		ProducedInputStream in = new ProducedInputStream(new PipedInputStream(out, STREAM_BUFFER_SIZE), producerError);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()));
+				try {
+					rows.write(writer);
+				}catch (Exception ex) {
+					producerError.set(ex);
+				}finally {
+					try {
+						writer.close();
+					}catch (IOException ignored) {
+						//Consumer has already closed the stream
+					}
+				}
+			}
+		}, "HighlanderDatabase.insertStream."+table);
+		producer.start();
+		try {
+			switch(getDBMS(schema)){
+			case mysql:
+				String replace = (replaceExisting) ? "REPLACE" : "IGNORE";
+				String query = "LOAD DATA LOCAL INFILE 'stream' "+replace+" INTO TABLE " + table+" ("+columns+");";
+				QueryStatistics.Measure measure = statistics.start(reference, schema, query, false, false);
+				try (Connection con = getConnection(reference, schema)){
+					measure.connected();
+					try (Statement stm = con.createStatement()){
+						//Connector/J reads the rows from the stream instead of the file named in the statement
+						stm.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(in);
+						try {
+							measure.addRows(stm.executeUpdate(query));
+							measure.executed();
+							measure.addBytes(in.getBytesRead());
+						} catch (SQLException ex) {
+							Tools.print("SQL statement throwing exception : " + query);
+							throw ex;
+						}
+					}
+				} finally {
+					measure.finish();
+				}
+				break;
+			case hsqldb:
+				String[] columnNames = columns.split(",");
+				StringBuilder statement = new StringBuilder();
+				statement.append(((replaceExisting) ? "REPLACE INTO " : "INSERT IGNORE INTO ")+table+" ("+columns+") VALUES (");
+				for (int i=0 ; i < columnNames.length ; i++) {
+					statement.append((i > 0) ? ",?" : "?");
+				}
+				statement.append(")");
+				QueryStatistics.Measure hsqlMeasure = statistics.start(reference, schema, statement.toString(), false, false);
+				try (Connection con = getConnection(reference, schema)){
+					hsqlMeasure.connected();
+					try (PreparedStatement pstm = con.prepareStatement(statement.toString());
+							BufferedReader br = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))){
+						String nullStr = getNullString(DBMS.hsqldb);
+						String line;
+						int batch = 0;
+						while ((line = br.readLine()) != null) {
+							String[] values = line.split("\t", -1);
+							for (int i=0 ; i < columnNames.length ; i++) {
+								if (i < values.length && !values[i].equals(nullStr)) pstm.setString(i+1, values[i]);
+								else pstm.setNull(i+1, java.sql.Types.VARCHAR);
+							}
+							pstm.addBatch();
+							if (++batch == HSQLDB_BATCH_SIZE) {
+								for (int r : pstm.executeBatch()) hsqlMeasure.addRows(Math.max(0, r));
+								batch = 0;
+							}
+						}
+						if (batch > 0) {
+							for (int r : pstm.executeBatch()) hsqlMeasure.addRows(Math.max(0, r));
+						}
+						hsqlMeasure.executed();
+						hsqlMeasure.addBytes(in.getBytesRead());
+					}
+				} finally {
+					hsqlMeasure.finish();
+				}
+				break;
+			default:
+				throw new Exception("Importation is not supported with DBMS '"+getDBMS(schema)+"'");
+			}
+		}finally {
+			//Unblock the producer if the statement failed before reading all rows
+			in.close();
+			producer.join();
+		}
+		if (producerError.get() != null) throw producerError.get();
+	}
+
+	/**
+	 * Stream given to the database by insertStream(), which fails instead of ending normally if the RowsWriter has thrown an exception.
+	 */
+	private static class ProducedInputStream extends FilterInputStream {
+		private final AtomicReference<Exception> producerError;
+		private long bytesRead = 0;
+
+		ProducedInputStream(InputStream in, AtomicReference<Exception> producerError) {
+			super(in);
+			this.producerError = producerError;
+		}
+
+		private int check(int read) throws IOException {
+			if (read == -1 && producerError.get() != null) throw new IOException("Rows production failed", producerError.get());
+			if (read > 0) bytesRead += read;
+			return read;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) check(-1);
+			else bytesRead++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return check(super.read(b, off, len));
+		}
+
+		long getBytesRead() {
+			return bytesRead;
+		}
+	}
+
 	/**
 	 * Return all elements of given Set in sql format : 'elem1','elem2','elem3'...
 	 * @param h a Set of elements
@@ -541,16 +881,18 @@ public class HighlanderDatabase {
 		if (hasSchema(reference, schema)){
 			try {
 				String schemaName = getSchemaName(reference, schema);
-				if (!availableTables.containsKey(schemaName)) {
-					List<String> tables = new ArrayList<String>();
-					try (Results res = select(reference, schema, formatQuery(schema, "SHOW TABLES"), false)) {
-						while (res.next()){
-							tables.add(res.getString(1));
+				synchronized (availableTables) {
+					if (!availableTables.containsKey(schemaName)) {
+						List<String> tables = new ArrayList<String>();
+						try (Results res = select(reference, schema, formatQuery(schema, "SHOW TABLES"), false)) {
+							while (res.next()){
+								tables.add(res.getString(1));
+							}
 						}
+						availableTables.put(schemaName, tables);
 					}
-					availableTables.put(schemaName, tables);
+					return new ArrayList<String>(availableTables.get(schemaName));
 				}
-				return new ArrayList<String>(availableTables.get(schemaName));
 			}catch(Exception ex) {
 				Tools.exception(ex);
 			}
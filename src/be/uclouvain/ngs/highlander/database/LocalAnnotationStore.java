@@ -0,0 +1,472 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.Reference;
+
+/**
+ * Local copy of the position-based tables of an annotation database (gnomAD, GoNL, dbNSFP),
+ * to annotate variants without querying the database server.
+ *
+ * The copy is made by export() (DbBuilder tool 'annotstore') in the annotation store directory given in the parameters,
+ * in a subdirectory named as the database schema, so a new export is needed when the schema is updated.
+ * Each table is a file of rows sorted by position, grouped in compressed blocks, followed by the position range and offset of each block.
+ * Files are memory-mapped and the last decompressed blocks are kept in memory, so consecutive variants mostly read blocks already decompressed.
+ * Tables that are not position-based (like dbNSFP genes) are not exported and are still queried in the database.
+ */
+public class LocalAnnotationStore {
+
+	private static final int MAGIC = 0x484C4153;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".hls";
+	/** Rows are added to a block until its uncompressed size reaches this limit */
+	private static final int BLOCK_SIZE = 256*1024;
+	/** Number of decompressed blocks kept in memory by each store (all tables together) */
+	private static final int CACHED_BLOCKS = 64;
+	/** Files are mapped by segments, a MappedByteBuffer cannot exceed 2 Gb */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private static final Map<String, LocalAnnotationStore> stores = new ConcurrentHashMap<>();
+
+	private static class Block {
+		final int[] positions;
+		final String[][] values;
+
+		Block(int[] positions, String[][] values) {
+			this.positions = positions;
+			this.values = values;
+		}
+	}
+
+	private class Table {
+		final String name;
+		final String positionColumn;
+		final String[] columns;
+		final int[] firstPositions;
+		final int[] lastPositions;
+		final long[] offsets;
+		final int[] lengths;
+		final MappedByteBuffer[] segments;
+
+		Table(String name, File file) throws IOException {
+			this.name = name;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+				FileChannel channel = raf.getChannel();
+				//The channel is closed with the file, but mapped buffers stay valid
+				long size = channel.size();
+				segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+				ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size-12, 12);
+				long indexOffset = footer.getLong();
+				if (footer.getInt() != MAGIC) throw new IOException(file + " is not a local annotation table");
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, 1024*1024));
+				if (header.getInt() != MAGIC || header.getInt() != VERSION) throw new IOException(file + " is not a local annotation table of this version");
+				positionColumn = readString(header);
+				columns = new String[header.getInt()];
+				for (int i=0 ; i < columns.length ; i++) {
+					columns[i] = readString(header);
+				}
+				ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size-12-indexOffset);
+				int numBlocks = index.getInt();
+				firstPositions = new int[numBlocks];
+				lastPositions = new int[numBlocks];
+				offsets = new long[numBlocks];
+				lengths = new int[numBlocks];
+				for (int i=0 ; i < numBlocks ; i++) {
+					firstPositions[i] = index.getInt();
+					lastPositions[i] = index.getInt();
+					offsets[i] = index.getLong();
+					lengths[i] = index.getInt();
+				}
+				for (int i=0 ; i < segments.length ; i++) {
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, i*SEGMENT_SIZE, Math.min(SEGMENT_SIZE, size - i*SEGMENT_SIZE));
+				}
+			}
+		}
+
+		Block getBlock(int i) throws IOException {
+			String key = name + "\t" + i;
+			synchronized (cache) {
+				Block block = cache.get(key);
+				if (block != null) return block;
+			}
+			byte[] compressed = new byte[lengths[i]];
+			int segment = (int)(offsets[i] / SEGMENT_SIZE);
+			int start = (int)(offsets[i] % SEGMENT_SIZE);
+			ByteBuffer buffer = segments[segment].duplicate();
+			if (start + compressed.length <= buffer.limit()) {
+				buffer.position(start);
+				buffer.get(compressed);
+			}else {
+				//Block on 2 segments
+				buffer.position(start);
+				int firstPart = buffer.remaining();
+				buffer.get(compressed, 0, firstPart);
+				ByteBuffer next = segments[segment+1].duplicate();
+				next.get(compressed, firstPart, compressed.length - firstPart);
+			}
+			Block block = decode(compressed);
+			synchronized (cache) {
+				cache.put(key, block);
+			}
+			return block;
+		}
+
+		private Block decode(byte[] compressed) throws IOException {
+			ByteBuffer data;
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(BLOCK_SIZE*2);
+				byte[] buf = new byte[64*1024];
+				while (!inflater.finished()) {
+					int n = inflater.inflate(buf);
+					if (n == 0 && inflater.needsInput()) throw new IOException("Truncated block in local annotation table " + name);
+					out.write(buf, 0, n);
+				}
+				data = ByteBuffer.wrap(out.toByteArray());
+			}catch (DataFormatException ex) {
+				throw new IOException("Corrupted block in local annotation table " + name, ex);
+			}finally {
+				inflater.end();
+			}
+			int numRows = data.getInt();
+			int[] positions = new int[numRows];
+			String[][] values = new String[numRows][columns.length];
+			for (int r=0 ; r < numRows ; r++) {
+				positions[r] = data.getInt();
+				for (int c=0 ; c < columns.length ; c++) {
+					values[r][c] = readString(data);
+				}
+			}
+			return new Block(positions, values);
+		}
+
+		List<Map<String,String>> getRows(int pos, Set<String> selectedColumns) throws IOException {
+			List<Map<String,String>> rows = new ArrayList<>();
+			//First block that can contain the position
+			int low = 0;
+			int high = lastPositions.length - 1;
+			int first = lastPositions.length;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (lastPositions[mid] >= pos) {
+					first = mid;
+					high = mid - 1;
+				}else {
+					low = mid + 1;
+				}
+			}
+			for (int i=first ; i < firstPositions.length && firstPositions[i] <= pos ; i++) {
+				Block block = getBlock(i);
+				for (int r=0 ; r < block.positions.length ; r++) {
+					if (block.positions[r] == pos) {
+						Map<String,String> row = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+						for (int c=0 ; c < columns.length ; c++) {
+							if (selectedColumns == null || selectedColumns.contains(columns[c])) {
+								row.put(columns[c], block.values[r][c]);
+							}
+						}
+						rows.add(row);
+					}else if (block.positions[r] > pos) {
+						break;
+					}
+				}
+			}
+			return rows;
+		}
+	}
+
+	private final File directory;
+	private final Map<String, Table> tables = new ConcurrentHashMap<>();
+	private final Map<String, Block> cache = new LinkedHashMap<String, Block>(CACHED_BLOCKS, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Block> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
+
+	private LocalAnnotationStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the local store of the given annotation database, or null if no annotation store directory is set in the parameters
+	 */
+	public static LocalAnnotationStore get(Reference reference, Schema schema) throws Exception {
+		File directory = getDirectory(reference, schema);
+		if (directory == null) return null;
+		return stores.computeIfAbsent(directory.getAbsolutePath(), path -> new LocalAnnotationStore(directory));
+	}
+
+	/**
+	 * Close all stores, must be called when the annotation databases are updated
+	 */
+	public static void clear() {
+		stores.clear();
+	}
+
+	private static File getDirectory(Reference reference, Schema schema) throws Exception {
+		String dir = Highlander.getParameters().getAnnotationStoreDirectory();
+		if (dir == null || dir.length() == 0 || !reference.hasSchema(schema)) return null;
+		return new File(dir, reference.getSchemaName(schema));
+	}
+
+	/**
+	 * @return true if the table has been exported in this store
+	 */
+	public boolean hasTable(String table) {
+		if (tables.containsKey(table)) return true;
+		return new File(directory, table + EXTENSION).exists();
+	}
+
+	/**
+	 * @return name of the column giving the position of each row of the table (e.g. pos, or hg19_pos for dbNSFP on GRCh37)
+	 */
+	public String getPositionColumn(String table) throws IOException {
+		return getTable(table).positionColumn;
+	}
+
+	/**
+	 * Get all rows of a table at the given position.
+	 *
+	 * @param columns columns to keep in the rows (case insensitive), or null for all columns
+	 * @return column name -> value as String (column names are case insensitive, like AnnotatedVariant.readRow()), one map by row
+	 */
+	public List<Map<String,String>> getRows(String table, int pos, Set<String> columns) throws IOException {
+		return getTable(table).getRows(pos, columns);
+	}
+
+	private Table getTable(String table) throws IOException {
+		Table t = tables.get(table);
+		if (t == null) {
+			synchronized (tables) {
+				t = tables.get(table);
+				if (t == null) {
+					t = new Table(table, new File(directory, table + EXTENSION));
+					tables.put(table, t);
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Export all position-based tables of an annotation database in the annotation store directory.
+	 * Existing files are replaced only when their new version is complete, so the store can be used during the export.
+	 *
+	 * @param schema GNOMAD_WES, GNOMAD_WGS, GONL or DBNSFP
+	 */
+	public static void export(Reference reference, Schema schema) throws Exception {
+		File directory = getDirectory(reference, schema);
+		if (directory == null) {
+			throw new Exception("No annotation store directory set in the parameters, or " + schema + " is not available for " + reference);
+		}
+		directory.mkdirs();
+		String positionColumn = "pos";
+		if (schema == Schema.DBNSFP) {
+			if (reference.getGenomeVersion() == 37) {
+				positionColumn = "hg19_pos";
+			}else if (reference.getGenomeVersion() == 36){
+				positionColumn = "hg18_pos";
+			}
+		}
+		for (String table : Highlander.getDB().getAvailableTables(reference, schema)) {
+			if (!Highlander.getDB().getAvailableColumns(reference, schema, table).contains(positionColumn)) {
+				System.out.println("Table " + table + " has no " + positionColumn + " column, skipped");
+				continue;
+			}
+			long t = System.currentTimeMillis();
+			System.out.println("Exporting " + reference.getSchemaName(schema) + "." + table);
+			File file = new File(directory, table + EXTENSION);
+			File tmp = new File(directory, table + EXTENSION + ".tmp");
+			long rows = 0;
+			//Positions of other assemblies in dbNSFP are strings, with '.' when the position doesn't exist in that assembly
+			String query = (positionColumn.equals("pos")) 
+					? "SELECT * FROM `"+table+"` ORDER BY `pos`"
+					: "SELECT * FROM `"+table+"` WHERE `"+positionColumn+"` REGEXP '^[0-9]+$' ORDER BY CAST(`"+positionColumn+"` AS UNSIGNED)";
+			try (Results res = Highlander.getDB().select(reference, schema, query, true)) {
+				ResultSetMetaData meta = res.getMetaData();
+				String[] columns = new String[meta.getColumnCount()];
+				for (int i=0 ; i < columns.length ; i++) {
+					columns[i] = meta.getColumnLabel(i+1);
+				}
+				try (Writer writer = new Writer(tmp, positionColumn, columns)){
+					String[] values = new String[columns.length];
+					while (res.next()) {
+						for (int i=0 ; i < columns.length ; i++) {
+							values[i] = res.getString(i+1);
+						}
+						writer.add(Integer.parseInt(res.getString(positionColumn)), values);
+						rows++;
+					}
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println(Tools.doubleToString(rows, 0, false) + " rows exported in " + Tools.doubleToString(((double)(System.currentTimeMillis() - t) / 1000.0), 0, false) + " seconds");
+		}
+		clear();
+	}
+
+	/**
+	 * Write rows, sorted by position, in a local annotation table file
+	 */
+	private static class Writer implements AutoCloseable {
+		private final DataOutputStream out;
+		private final String[] columns;
+		private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE*2);
+		private final DataOutputStream block = new DataOutputStream(blockBytes);
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final byte[] buffer = new byte[64*1024];
+		private final List<long[]> index = new ArrayList<>(); // first position, last position, offset, length
+		private long offset;
+		private int blockRows = 0;
+		private int firstPosition;
+		private int lastPosition = Integer.MIN_VALUE;
+
+		Writer(File file, String positionColumn, String[] columns) throws IOException {
+			this.columns = columns;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, positionColumn);
+			out.writeInt(columns.length);
+			for (String column : columns) {
+				writeString(out, column);
+			}
+			offset = out.size();
+		}
+
+		void add(int pos, String[] values) throws IOException {
+			if (pos < lastPosition) throw new IOException("Rows must be sorted by position (" + pos + " after " + lastPosition + ")");
+			if (blockRows == 0) firstPosition = pos;
+			lastPosition = pos;
+			block.writeInt(pos);
+			for (int i=0 ; i < columns.length ; i++) {
+				writeString(block, values[i]);
+			}
+			blockRows++;
+			if (blockBytes.size() >= BLOCK_SIZE) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (blockRows == 0) return;
+			block.flush();
+			byte[] raw = blockBytes.toByteArray();
+			//Number of rows at the start of the block
+			raw = ByteBuffer.allocate(4 + raw.length).putInt(blockRows).put(raw).array();
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			long length = 0;
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+				length += n;
+			}
+			index.add(new long[] {firstPosition, lastPosition, offset, length});
+			offset += length;
+			blockBytes.reset();
+			blockRows = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+				long indexOffset = offset;
+				out.writeInt(index.size());
+				for (long[] entry : index) {
+					out.writeInt((int)entry[0]);
+					out.writeInt((int)entry[1]);
+					out.writeLong(entry[2]);
+					out.writeInt((int)entry[3]);
+				}
+				out.writeLong(indexOffset);
+				out.writeInt(MAGIC);
+			}finally {
+				deflater.end();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Strings are written as their length in bytes (-1 for null) followed by their UTF-8 bytes, values of dbNSFP can exceed the 64 Kb limit of writeUTF()
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		}else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,284 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.lang.reflect.Method;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
+
+/**
+ * Executes database work submitted by the user interface (details of a variant, tools, ...),
+ * instead of each component starting its own thread and competing for the connection pool.
+ *
+ * - A fixed number of workers, lower than the connection pool size, so the pool always keeps connections for the main query.
+ * - INTERACTIVE tasks are started before NORMAL ones, and NORMAL before BACKGROUND ones.
+ *   BACKGROUND tasks never use all workers, so a long tool cannot block the details of a variant.
+ * - Tasks can share a CancellationToken: cancelling it removes waiting tasks and cancels the running statements.
+ *
+ * Workers are virtual threads when the JVM supports them.
+ * A task must not wait for another task of the scheduler, it could wait forever if all workers are busy.
+ */
+public class QueryScheduler {
+
+	public enum Priority {INTERACTIVE, NORMAL, BACKGROUND}
+
+	/**
+	 * Shared by tasks that can be cancelled together, e.g. all details boxes of a selected variant.
+	 * Statements executed by those tasks through HighlanderDatabase are registered, so they can be cancelled too.
+	 */
+	public static class CancellationToken {
+		private volatile boolean cancelled = false;
+		private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+
+		public boolean isCancelled(){
+			return cancelled;
+		}
+
+		public void throwIfCancelled() throws CancelException {
+			if (cancelled) throw new CancelException();
+		}
+
+		public void cancel(){
+			cancelled = true;
+			for (Statement stm : statements){
+				try{
+					if (!stm.isClosed()) stm.cancel();
+				}catch(Exception ex){
+					Tools.exception(ex);
+				}
+			}
+			statements.clear();
+		}
+
+		void register(Statement stm){
+			statements.add(stm);
+			if (cancelled) cancel();
+		}
+
+		void unregister(Statement stm){
+			statements.remove(stm);
+		}
+	}
+
+	private class Task<T> implements Runnable {
+		final String name;
+		final Priority priority;
+		final CancellationToken token;
+		final Callable<T> callable;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Task(String name, Priority priority, CancellationToken token, Callable<T> callable){
+			this.name = name;
+			this.priority = priority;
+			this.token = token;
+			this.callable = callable;
+		}
+
+		@Override
+		public void run(){
+			if (future.isDone()) return;
+			if (token.isCancelled()){
+				future.cancel(false);
+				return;
+			}
+			CancellationToken previous = currentToken.get();
+			currentToken.set(token);
+			try{
+				future.complete(callable.call());
+			}catch(Throwable ex){
+				if (!(ex instanceof CancelException) && !token.isCancelled()) Tools.print("Query task '" + name + "' failed: " + ex.getMessage());
+				future.completeExceptionally(ex);
+			}finally{
+				currentToken.set(previous);
+			}
+		}
+	}
+
+	private static final ThreadLocal<CancellationToken> currentToken = new ThreadLocal<CancellationToken>();
+
+	private final Map<Priority, Deque<Task<?>>> queues = new EnumMap<Priority, Deque<Task<?>>>(Priority.class);
+	private final int workers;
+	private final int maxBackgroundWorkers;
+	private int runningBackground = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * @param workers maximum number of tasks executed at the same time
+	 */
+	public QueryScheduler(int workers){
+		this.workers = Math.max(1, workers);
+		maxBackgroundWorkers = Math.max(1, this.workers - 1);
+		for (Priority priority : Priority.values()){
+			queues.put(priority, new ArrayDeque<Task<?>>());
+		}
+		ThreadFactory factory = getThreadFactory();
+		for (int i=0 ; i < this.workers ; i++){
+			Thread thread = factory.newThread(this::work);
+			thread.setName("QueryScheduler-"+(i+1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Use virtual threads if available (Java 21+), platform threads otherwise.
+	 * The factory is looked up on the public interface Thread.Builder, the class of the builder itself is not accessible.
+	 */
+	private static ThreadFactory getThreadFactory(){
+		try{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}catch(Exception ex){
+			return runnable -> new Thread(runnable);
+		}
+	}
+
+	/**
+	 * Token of the task executed by the current thread, null if the thread is not a worker of a scheduler.
+	 */
+	public static CancellationToken getCurrentToken(){
+		return currentToken.get();
+	}
+
+	public <T> CompletableFuture<T> submit(String name, Priority priority, Callable<T> callable){
+		return submit(name, priority, new CancellationToken(), callable);
+	}
+
+	/**
+	 * Queue a task.
+	 * Cancelling the returned future also cancels the token.
+	 *
+	 * @param name used in error messages
+	 * @param token can be shared with other tasks
+	 */
+	public <T> CompletableFuture<T> submit(String name, Priority priority, CancellationToken token, Callable<T> callable){
+		Task<T> task = new Task<T>(name, priority, token, callable);
+		task.future.whenComplete((result, ex) -> {
+			if (task.future.isCancelled()) token.cancel();
+		});
+		if (getCurrentToken() != null){
+			//Submitted from a worker: execute it directly, waiting for a free worker could never end
+			task.run();
+			return task.future;
+		}
+		synchronized (this) {
+			if (shutdown){
+				task.future.completeExceptionally(new IllegalStateException("Query scheduler has been shut down"));
+				return task.future;
+			}
+			queues.get(priority).add(task);
+			notifyAll();
+		}
+		return task.future;
+	}
+
+	/**
+	 * Cancel all tasks, waiting or running.
+	 */
+	public synchronized void cancelAll(){
+		for (Deque<Task<?>> queue : queues.values()){
+			for (Task<?> task : queue){
+				task.future.cancel(false);
+			}
+			queue.clear();
+		}
+	}
+
+	public synchronized void shutdown(){
+		shutdown = true;
+		cancelAll();
+		notifyAll();
+	}
+
+	/**
+	 * @return number of tasks waiting for a worker
+	 */
+	public synchronized int getWaitingCount(){
+		int count = 0;
+		for (Deque<Task<?>> queue : queues.values()){
+			count += queue.size();
+		}
+		return count;
+	}
+
+	private synchronized Task<?> next() throws InterruptedException {
+		while (true){
+			if (shutdown) return null;
+			for (Priority priority : Priority.values()){
+				if (priority == Priority.BACKGROUND && runningBackground >= maxBackgroundWorkers) continue;
+				Deque<Task<?>> queue = queues.get(priority);
+				for (Iterator<Task<?>> it = queue.iterator() ; it.hasNext() ; ){
+					Task<?> task = it.next();
+					it.remove();
+					if (task.future.isDone()) continue;
+					if (priority == Priority.BACKGROUND) runningBackground++;
+					return task;
+				}
+			}
+			wait();
+		}
+	}
+
+	private void work(){
+		while (true){
+			Task<?> task;
+			try{
+				task = next();
+			}catch(InterruptedException ex){
+				return;
+			}
+			if (task == null) return;
+			try{
+				task.run();
+			}finally{
+				if (task.priority == Priority.BACKGROUND){
+					synchronized (this) {
+						runningBackground--;
+						notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+}
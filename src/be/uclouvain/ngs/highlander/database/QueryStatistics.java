@@ -0,0 +1,499 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.DBMS;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.Reference;
+
+/**
+ * Timings of the queries executed through HighlanderDatabase (select, update, insertFile).
+ *
+ * Each query is measured (time waiting for a connection from the pool, execution, total time until the results are closed, rows and bytes read),
+ * and grouped with the queries of the same template (the query with literal values replaced by '?').
+ * For each template, the last durations are kept to compute percentiles and a histogram.
+ * When a select is slower than a threshold (see Parameters.getFilteringExplainThreshold()), its EXPLAIN is captured in background,
+ * by a single thread outside of the QueryScheduler, so it never takes a worker from the user interface queries.
+ *
+ * Displayed by the QueryStatisticsDialog, and can be exported in JSON.
+ */
+public class QueryStatistics {
+
+	private static final int HISTORY_SIZE = 500;
+	private static final int MAX_TEMPLATES = 1000;
+	private static final int MAX_TEMPLATE_LENGTH = 2000;
+	//Only the beginning of longer queries is templated (e.g. multi-row INSERT), values after it don't change the template
+	private static final int MAX_TEMPLATED_LENGTH = 4000;
+	private static final int MAX_RECORDED_QUERY_LENGTH = 1024;
+	private static final long EXPLAIN_DELAY = 10*60*1000;
+	private static final int MAX_WAITING_EXPLAINS = 10;
+
+	/**
+	 * Upper bounds (in milliseconds) of the histogram buckets, last bucket has no upper bound.
+	 */
+	public static final long[] HISTOGRAM_BOUNDS = new long[]{10, 100, 1000, 10000, 60000};
+	public static final String[] HISTOGRAM_LABELS = new String[]{"<10ms", "<100ms", "<1s", "<10s", "<1min", ">1min"};
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w`.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?(?![\\w`])");
+	private static final Pattern VALUE_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+	/**
+	 * One execution of a query.
+	 */
+	public static class QueryRecord {
+		public final long timestamp;
+		public final Schema schema;
+		public final String template;
+		public final String query;
+		public final boolean select;
+		public final long poolWait;
+		public final long execution;
+		public final long total;
+		public final long rows;
+		public final long bytes;
+		public final boolean failed;
+
+		QueryRecord(Measure measure, long end){
+			timestamp = measure.timestamp;
+			schema = measure.schema;
+			template = getTemplate(measure.query);
+			//The full query is only kept by the Measure until it's explained
+			query = truncate(measure.query);
+			select = measure.select;
+			poolWait = (measure.connected > 0) ? (measure.connected - measure.start) / 1_000_000 : 0;
+			execution = (measure.executed > 0) ? (measure.executed - Math.max(measure.start, measure.connected)) / 1_000_000 : 0;
+			total = (end - measure.start) / 1_000_000;
+			rows = measure.rows;
+			bytes = measure.bytes;
+			failed = (measure.executed == 0);
+		}
+	}
+
+	/**
+	 * All executions of queries with the same template.
+	 */
+	public static class TemplateStatistics {
+		private static final int WINDOW_SIZE = 256;
+
+		public final String template;
+		private long count = 0;
+		private long failures = 0;
+		private long totalTime = 0;
+		private long totalPoolWait = 0;
+		private long maxTime = 0;
+		private long rows = 0;
+		private long bytes = 0;
+		private long lastExplain = 0;
+		private String explain = null;
+		private String explainedQuery = null;
+		private final long[] window = new long[WINDOW_SIZE];
+		private int windowCount = 0;
+		private int windowPos = 0;
+
+		TemplateStatistics(String template){
+			this.template = template;
+		}
+
+		synchronized void add(QueryRecord record){
+			count++;
+			if (record.failed) failures++;
+			totalTime += record.total;
+			totalPoolWait += record.poolWait;
+			maxTime = Math.max(maxTime, record.total);
+			rows += record.rows;
+			bytes += record.bytes;
+			window[windowPos] = record.total;
+			windowPos = (windowPos + 1) % WINDOW_SIZE;
+			if (windowCount < WINDOW_SIZE) windowCount++;
+		}
+
+		synchronized boolean needsExplain(long now){
+			if (now - lastExplain < EXPLAIN_DELAY) return false;
+			lastExplain = now;
+			return true;
+		}
+
+		synchronized void setExplain(String query, String explain){
+			this.explainedQuery = truncate(query);
+			this.explain = explain;
+		}
+
+		public synchronized long getCount(){
+			return count;
+		}
+
+		public synchronized long getFailures(){
+			return failures;
+		}
+
+		public synchronized long getTotalTime(){
+			return totalTime;
+		}
+
+		public synchronized double getMeanTime(){
+			return (count > 0) ? (double)totalTime / count : 0;
+		}
+
+		public synchronized double getMeanPoolWait(){
+			return (count > 0) ? (double)totalPoolWait / count : 0;
+		}
+
+		public synchronized long getMaxTime(){
+			return maxTime;
+		}
+
+		public synchronized long getRows(){
+			return rows;
+		}
+
+		public synchronized long getBytes(){
+			return bytes;
+		}
+
+		/**
+		 * @return EXPLAIN of the last slow execution of this template, or null
+		 */
+		public synchronized String getExplain(){
+			return explain;
+		}
+
+		public synchronized String getExplainedQuery(){
+			return explainedQuery;
+		}
+
+		/**
+		 * Percentile computed on the last executions
+		 * @param p between 0 and 100
+		 */
+		public synchronized long getPercentile(double p){
+			if (windowCount == 0) return 0;
+			long[] sorted = Arrays.copyOf(window, windowCount);
+			Arrays.sort(sorted);
+			int index = (int)Math.ceil(p / 100.0 * windowCount) - 1;
+			return sorted[Math.max(0, Math.min(windowCount-1, index))];
+		}
+
+		/**
+		 * Histogram of the last executions, see HISTOGRAM_BOUNDS
+		 */
+		public synchronized int[] getHistogram(){
+			int[] histogram = new int[HISTOGRAM_BOUNDS.length+1];
+			for (int i=0 ; i < windowCount ; i++){
+				int bucket = 0;
+				while (bucket < HISTOGRAM_BOUNDS.length && window[i] >= HISTOGRAM_BOUNDS[bucket]) bucket++;
+				histogram[bucket]++;
+			}
+			return histogram;
+		}
+	}
+
+	/**
+	 * Measure of a query being executed, created by HighlanderDatabase and finished when the query is done
+	 * (for a select, when the Results are closed).
+	 */
+	public class Measure {
+		private final long timestamp = System.currentTimeMillis();
+		private final long start = System.nanoTime();
+		private final Reference reference;
+		private final Schema schema;
+		private final String query;
+		private final boolean select;
+		private final boolean explainable;
+		private long connected = 0;
+		private long executed = 0;
+		private long rows = 0;
+		private long bytes = 0;
+		private boolean finished = false;
+
+		Measure(Reference reference, Schema schema, String query, boolean select, boolean explainable){
+			this.reference = reference;
+			this.schema = schema;
+			this.query = query;
+			this.select = select;
+			this.explainable = explainable;
+		}
+
+		/**
+		 * A connection has been obtained from the pool
+		 */
+		void connected(){
+			connected = System.nanoTime();
+		}
+
+		/**
+		 * The statement has been executed successfully
+		 */
+		void executed(){
+			executed = System.nanoTime();
+		}
+
+		void addRows(long n){
+			rows += n;
+		}
+
+		void addBytes(long n){
+			bytes += n;
+		}
+
+		/**
+		 * Record the query, if it has not been executed, it's considered as failed.
+		 * Can be called more than once, only the first call is taken into account.
+		 */
+		void finish(){
+			if (finished) return;
+			finished = true;
+			record(this, System.nanoTime());
+		}
+	}
+
+	private final HighlanderDatabase DB;
+	private final Deque<QueryRecord> history = new ArrayDeque<QueryRecord>();
+	private final Map<String, TemplateStatistics> templates = new LinkedHashMap<String, TemplateStatistics>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TemplateStatistics> eldest){
+			return size() > MAX_TEMPLATES;
+		}
+	};
+	private volatile long explainThreshold;
+	//Explains waiting when the queue is full are dropped, they will be tried again after EXPLAIN_DELAY
+	private final ExecutorService explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_WAITING_EXPLAINS), runnable -> {
+		Thread thread = new Thread(runnable, "QueryStatistics-Explain");
+		thread.setDaemon(true);
+		return thread;
+	}, new ThreadPoolExecutor.DiscardPolicy());
+
+	QueryStatistics(HighlanderDatabase DB, long explainThreshold){
+		this.DB = DB;
+		this.explainThreshold = explainThreshold;
+	}
+
+	/**
+	 * @param explainThreshold selects slower than this (in milliseconds) are explained, 0 to never explain
+	 */
+	public void setExplainThreshold(long explainThreshold){
+		this.explainThreshold = explainThreshold;
+	}
+
+	public long getExplainThreshold(){
+		return explainThreshold;
+	}
+
+	/**
+	 * @param explainable false if the query cannot be explained with another connection (e.g. it uses temporary tables)
+	 */
+	Measure start(Reference reference, Schema schema, String query, boolean select, boolean explainable){
+		return new Measure(reference, schema, query, select, explainable);
+	}
+
+	private void record(Measure measure, long end){
+		QueryRecord record = new QueryRecord(measure, end);
+		TemplateStatistics stats;
+		synchronized (this) {
+			history.addFirst(record);
+			while (history.size() > HISTORY_SIZE) history.removeLast();
+			stats = templates.get(record.template);
+			if (stats == null){
+				stats = new TemplateStatistics(record.template);
+				templates.put(record.template, stats);
+			}
+		}
+		stats.add(record);
+		if (measure.select && measure.explainable && !record.failed && explainThreshold > 0
+				&& record.total >= explainThreshold && stats.needsExplain(System.currentTimeMillis())){
+			final TemplateStatistics explained = stats;
+			explainer.execute(() -> explained.setExplain(measure.query, explain(measure.reference, measure.schema, measure.query)));
+		}
+	}
+
+	/**
+	 * Executed directly on a connection, so it's not recorded itself.
+	 */
+	private String explain(Reference reference, Schema schema, String query) {
+		String prefix = (DB.getDBMS(schema) == DBMS.hsqldb) ? "EXPLAIN PLAN FOR " : "EXPLAIN ";
+		StringBuilder sb = new StringBuilder();
+		try (Connection con = DB.getConnection(reference, schema)){
+			try (Statement stm = con.createStatement()){
+				try (ResultSet res = stm.executeQuery(prefix + query)){
+					ResultSetMetaData meta = res.getMetaData();
+					for (int i=1 ; i <= meta.getColumnCount() ; i++){
+						if (i > 1) sb.append("\t");
+						sb.append(meta.getColumnLabel(i));
+					}
+					sb.append("\n");
+					while (res.next()){
+						for (int i=1 ; i <= meta.getColumnCount() ; i++){
+							if (i > 1) sb.append("\t");
+							sb.append(res.getString(i));
+						}
+						sb.append("\n");
+					}
+				}
+			}
+		}catch(Exception ex){
+			sb.append("Cannot explain query: " + ex.getMessage());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Query with literal values replaced by '?' and lists of values by '(...)'.
+	 * Only the first MAX_TEMPLATED_LENGTH characters are considered, so long statements don't cost more on each execution.
+	 */
+	public static String getTemplate(String query){
+		if (query.length() > MAX_TEMPLATED_LENGTH) query = query.substring(0, MAX_TEMPLATED_LENGTH);
+		String template = STRING_LITERAL.matcher(query).replaceAll("?");
+		template = NUMBER_LITERAL.matcher(template).replaceAll("?");
+		template = VALUE_LIST.matcher(template).replaceAll("(...)");
+		template = WHITESPACES.matcher(template).replaceAll(" ").trim();
+		if (template.length() > MAX_TEMPLATE_LENGTH) template = template.substring(0, MAX_TEMPLATE_LENGTH) + "...";
+		return template;
+	}
+
+	private static String truncate(String query){
+		return (query.length() > MAX_RECORDED_QUERY_LENGTH) ? query.substring(0, MAX_RECORDED_QUERY_LENGTH) + "..." : query;
+	}
+
+	/**
+	 * @return last executed queries, most recent first
+	 */
+	public synchronized List<QueryRecord> getHistory(){
+		return new ArrayList<QueryRecord>(history);
+	}
+
+	public synchronized List<TemplateStatistics> getTemplates(){
+		return new ArrayList<TemplateStatistics>(templates.values());
+	}
+
+	public synchronized void clear(){
+		history.clear();
+		templates.clear();
+	}
+
+	public String toJson(){
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"date\": " + json(df.format(System.currentTimeMillis())) + ",\n");
+		sb.append("  \"explainThreshold\": " + explainThreshold + ",\n");
+		sb.append("  \"templates\": [");
+		boolean first = true;
+		for (TemplateStatistics stats : getTemplates()){
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    {");
+			sb.append("\"template\": " + json(stats.template));
+			sb.append(", \"count\": " + stats.getCount());
+			sb.append(", \"failures\": " + stats.getFailures());
+			sb.append(", \"totalTime\": " + stats.getTotalTime());
+			sb.append(", \"meanTime\": " + String.format(Locale.ROOT, "%.1f", stats.getMeanTime()));
+			sb.append(", \"meanPoolWait\": " + String.format(Locale.ROOT, "%.1f", stats.getMeanPoolWait()));
+			sb.append(", \"p50\": " + stats.getPercentile(50));
+			sb.append(", \"p95\": " + stats.getPercentile(95));
+			sb.append(", \"max\": " + stats.getMaxTime());
+			sb.append(", \"rows\": " + stats.getRows());
+			sb.append(", \"bytes\": " + stats.getBytes());
+			sb.append(", \"histogram\": {");
+			int[] histogram = stats.getHistogram();
+			for (int i=0 ; i < histogram.length ; i++){
+				if (i > 0) sb.append(", ");
+				sb.append(json(HISTOGRAM_LABELS[i]) + ": " + histogram[i]);
+			}
+			sb.append("}");
+			if (stats.getExplain() != null){
+				sb.append(", \"explainedQuery\": " + json(stats.getExplainedQuery()));
+				sb.append(", \"explain\": " + json(stats.getExplain()));
+			}
+			sb.append("}");
+		}
+		sb.append("\n  ],\n");
+		sb.append("  \"history\": [");
+		first = true;
+		for (QueryRecord record : getHistory()){
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    {");
+			sb.append("\"date\": " + json(df.format(record.timestamp)));
+			sb.append(", \"schema\": " + json(record.schema.toString()));
+			sb.append(", \"poolWait\": " + record.poolWait);
+			sb.append(", \"execution\": " + record.execution);
+			sb.append(", \"total\": " + record.total);
+			sb.append(", \"rows\": " + record.rows);
+			sb.append(", \"bytes\": " + record.bytes);
+			sb.append(", \"failed\": " + record.failed);
+			sb.append(", \"query\": " + json(record.query));
+			sb.append("}");
+		}
+		sb.append("\n  ]\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static String json(String value){
+		if (value == null) return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0 ; i < value.length() ; i++){
+			char c = value.charAt(i);
+			switch(c){
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+				else sb.append(c);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+
+}
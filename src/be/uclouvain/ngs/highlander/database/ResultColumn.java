@@ -0,0 +1,328 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One column of VariantResults.
+ *
+ * Integer, Long and Double values are stored in primitive arrays (with a bitmap for null values),
+ * and Strings are dictionary-encoded as long as the column has less than 65535 distinct values.
+ * When a value cannot be stored in the column (e.g. a Long in an Integer column, or too many distinct Strings),
+ * set() returns a generic column, that must replace this one.
+ *
+ * get() always returns an object of the same class as the one given to set().
+ */
+abstract class ResultColumn implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public abstract Object get(int row);
+
+	/**
+	 * Store a value in the given row.
+	 * @return this column, or the column that replaced it
+	 */
+	public abstract ResultColumn set(int row, Object value);
+
+	public abstract int capacity();
+
+	public abstract void resize(int capacity);
+
+	/**
+	 * @return an independent copy of this column
+	 */
+	public abstract ResultColumn copy();
+
+	public static ResultColumn create(Class<?> fieldClass, int capacity){
+		if (fieldClass == Integer.class) return new IntColumn(capacity);
+		if (fieldClass == Long.class) return new LongColumn(capacity);
+		if (fieldClass == Double.class) return new DoubleColumn(capacity);
+		if (fieldClass == String.class) return new StringColumn(capacity);
+		return new ObjectColumn(capacity);
+	}
+
+	protected ResultColumn toObjectColumn(int row, Object value){
+		ObjectColumn column = new ObjectColumn(capacity());
+		for (int i=0 ; i < capacity() ; i++){
+			column.values[i] = get(i);
+		}
+		return column.set(row, value);
+	}
+
+	static class ObjectColumn extends ResultColumn {
+		private static final long serialVersionUID = 1L;
+		private Object[] values;
+
+		ObjectColumn(int capacity){
+			values = new Object[capacity];
+		}
+
+		@Override
+		public Object get(int row){
+			return values[row];
+		}
+
+		@Override
+		public ResultColumn set(int row, Object value){
+			values[row] = value;
+			return this;
+		}
+
+		@Override
+		public int capacity(){
+			return values.length;
+		}
+
+		@Override
+		public void resize(int capacity){
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		@Override
+		public ResultColumn copy(){
+			ObjectColumn column = new ObjectColumn(0);
+			column.values = values.clone();
+			return column;
+		}
+	}
+
+	static class IntColumn extends ResultColumn {
+		private static final long serialVersionUID = 1L;
+		private int[] values;
+		private final BitSet present = new BitSet();
+
+		IntColumn(int capacity){
+			values = new int[capacity];
+		}
+
+		@Override
+		public Object get(int row){
+			return present.get(row) ? values[row] : null;
+		}
+
+		@Override
+		public ResultColumn set(int row, Object value){
+			if (value == null){
+				present.clear(row);
+			}else if (value instanceof Integer){
+				values[row] = (Integer)value;
+				present.set(row);
+			}else{
+				return toObjectColumn(row, value);
+			}
+			return this;
+		}
+
+		@Override
+		public int capacity(){
+			return values.length;
+		}
+
+		@Override
+		public void resize(int capacity){
+			values = Arrays.copyOf(values, capacity);
+			if (capacity < present.length()) present.clear(capacity, present.length());
+		}
+
+		@Override
+		public ResultColumn copy(){
+			IntColumn column = new IntColumn(0);
+			column.values = values.clone();
+			column.present.or(present);
+			return column;
+		}
+	}
+
+	static class LongColumn extends ResultColumn {
+		private static final long serialVersionUID = 1L;
+		private long[] values;
+		private final BitSet present = new BitSet();
+
+		LongColumn(int capacity){
+			values = new long[capacity];
+		}
+
+		@Override
+		public Object get(int row){
+			return present.get(row) ? values[row] : null;
+		}
+
+		@Override
+		public ResultColumn set(int row, Object value){
+			if (value == null){
+				present.clear(row);
+			}else if (value instanceof Long){
+				values[row] = (Long)value;
+				present.set(row);
+			}else{
+				return toObjectColumn(row, value);
+			}
+			return this;
+		}
+
+		@Override
+		public int capacity(){
+			return values.length;
+		}
+
+		@Override
+		public void resize(int capacity){
+			values = Arrays.copyOf(values, capacity);
+			if (capacity < present.length()) present.clear(capacity, present.length());
+		}
+
+		@Override
+		public ResultColumn copy(){
+			LongColumn column = new LongColumn(0);
+			column.values = values.clone();
+			column.present.or(present);
+			return column;
+		}
+	}
+
+	static class DoubleColumn extends ResultColumn {
+		private static final long serialVersionUID = 1L;
+		private double[] values;
+		private final BitSet present = new BitSet();
+
+		DoubleColumn(int capacity){
+			values = new double[capacity];
+		}
+
+		@Override
+		public Object get(int row){
+			return present.get(row) ? values[row] : null;
+		}
+
+		@Override
+		public ResultColumn set(int row, Object value){
+			if (value == null){
+				present.clear(row);
+			}else if (value instanceof Double){
+				values[row] = (Double)value;
+				present.set(row);
+			}else{
+				return toObjectColumn(row, value);
+			}
+			return this;
+		}
+
+		@Override
+		public int capacity(){
+			return values.length;
+		}
+
+		@Override
+		public void resize(int capacity){
+			values = Arrays.copyOf(values, capacity);
+			if (capacity < present.length()) present.clear(capacity, present.length());
+		}
+
+		@Override
+		public ResultColumn copy(){
+			DoubleColumn column = new DoubleColumn(0);
+			column.values = values.clone();
+			column.present.or(present);
+			return column;
+		}
+	}
+
+	/**
+	 * Each row holds the index of its value in the dictionary (0 for null).
+	 * Columns like chr, zygosity or snpeff_effect only have a few distinct values, so each String is stored once.
+	 */
+	static class StringColumn extends ResultColumn {
+		private static final long serialVersionUID = 1L;
+		private static final int MAX_DICTIONARY_SIZE = Character.MAX_VALUE;
+		private char[] codes;
+		private final List<String> dictionary = new ArrayList<String>();
+		private final Map<String, Character> dictionaryCodes = new HashMap<String, Character>();
+
+		StringColumn(int capacity){
+			codes = new char[capacity];
+			dictionary.add(null);
+		}
+
+		@Override
+		public Object get(int row){
+			return dictionary.get(codes[row]);
+		}
+
+		@Override
+		public ResultColumn set(int row, Object value){
+			if (value == null){
+				codes[row] = 0;
+			}else if (value instanceof String){
+				Character code = dictionaryCodes.get(value);
+				if (code == null){
+					if (dictionary.size() >= MAX_DICTIONARY_SIZE){
+						return toObjectColumn(row, value);
+					}
+					code = (char)dictionary.size();
+					dictionary.add((String)value);
+					dictionaryCodes.put((String)value, code);
+				}
+				codes[row] = code;
+			}else{
+				return toObjectColumn(row, value);
+			}
+			return this;
+		}
+
+		@Override
+		public int capacity(){
+			return codes.length;
+		}
+
+		@Override
+		public void resize(int capacity){
+			codes = Arrays.copyOf(codes, capacity);
+		}
+
+		@Override
+		public ResultColumn copy(){
+			StringColumn column = new StringColumn(0);
+			column.codes = codes.clone();
+			column.dictionary.clear();
+			column.dictionary.addAll(dictionary);
+			column.dictionaryCodes.putAll(dictionaryCodes);
+			return column;
+		}
+	}
+
+}
@@ -48,11 +48,22 @@ public class Results implements AutoCloseable {
 	private ResultSet res;
 
 	private String sqlStatement;
+	private boolean ownConnection = true;
+	private QueryStatistics.Measure measure = null;
 	
 	public Results(HighlanderDatabase DB, Reference reference, Schema schema, String sqlStatement, boolean hugeResultSetExpected) throws Exception {
+		this(DB, DB.getConnection(reference, schema), true, schema, sqlStatement, hugeResultSetExpected);
+	}
+
+	/**
+	 * Use an already opened connection (e.g. to access its temporary tables).
+	 * The connection is only closed with the Results if ownConnection is true.
+	 */
+	public Results(HighlanderDatabase DB, Connection connection, boolean ownConnection, Schema schema, String sqlStatement, boolean hugeResultSetExpected) throws Exception {
 		this.sqlStatement = sqlStatement;
+		this.ownConnection = ownConnection;
 		try {
-			con = DB.getConnection(reference, schema);
+			con = connection;
 			if (hugeResultSetExpected && DB.getDBMS(schema) == DBMS.mysql){
 				//Necessary to fetch row one by one and avoid storing the whole ResultSet in memory
 				stm = con.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
@@ -66,9 +77,17 @@ public class Results implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Rows and bytes read are added to the measure, which is finished when the results are closed.
+	 */
+	void setMeasure(QueryStatistics.Measure measure) {
+		this.measure = measure;
+	}
+
 	public void executeStatement() throws Exception {
 		try {
 			res = stm.executeQuery(sqlStatement);
+			if (measure != null) measure.executed();
 		}catch (Exception ex) {
 			close();
 			throw ex;
@@ -92,14 +111,36 @@ public class Results implements AutoCloseable {
 		try {
 			if (res != null) res.close();
 			if (stm != null) stm.close();
-			if (con != null) con.close();
+			if (con != null && ownConnection) con.close();
 		}catch(Exception ex) {
 			ex.printStackTrace();
 		}
+		if (measure != null) measure.finish();
 	}
 
 	public boolean next() throws SQLException {
-		return res.next();
+		boolean next = res.next();
+		if (next && measure != null) measure.addRows(1);
+		return next;
+	}
+
+	/**
+	 * Approximate number of bytes read, a String counts for its length and other values for their usual size.
+	 */
+	private void count(int bytes) {
+		if (measure != null) measure.addBytes(bytes);
+	}
+
+	private String count(String value) {
+		if (value != null) count(value.length());
+		return value;
+	}
+
+	private <T> T count(T value) {
+		if (value instanceof String) count(((String)value).length());
+		else if (value instanceof byte[]) count(((byte[])value).length);
+		else if (value != null) count(8);
+		return value;
 	}
 
 	public ResultSetMetaData getMetaData() throws SQLException {
@@ -132,51 +173,67 @@ public class Results implements AutoCloseable {
 	}
 
 	public String getString(int columnIndex) throws SQLException {
-		return res.getString(columnIndex);
+		return count(res.getString(columnIndex));
 	}
 
 	public String getString(String columnLabel) throws SQLException {
-		return res.getString(columnLabel);
+		return count(res.getString(columnLabel));
 	}
 
 	public boolean getBoolean(int columnIndex) throws SQLException {
-		return res.getBoolean(columnIndex);
+		boolean value = res.getBoolean(columnIndex);
+		count(1);
+		return value;
 	}
 
 	public boolean getBoolean(String columnLabel) throws SQLException {
-		return res.getBoolean(columnLabel);
+		boolean value = res.getBoolean(columnLabel);
+		count(1);
+		return value;
 	}
 
 	public Date getDate(int columnIndex) throws SQLException {
-		return res.getDate(columnIndex);
+		return count(res.getDate(columnIndex));
 	}
 
 	public Date getDate(String columnLabel) throws SQLException {
-		return res.getDate(columnLabel);
+		return count(res.getDate(columnLabel));
 	}
 
 	public double getDouble(int columnIndex) throws SQLException {
-		return res.getDouble(columnIndex);
+		double value = res.getDouble(columnIndex);
+		count(8);
+		return value;
 	}
 
 	public double getDouble(String columnLabel) throws SQLException {
-		return res.getDouble(columnLabel);
+		double value = res.getDouble(columnLabel);
+		count(8);
+		return value;
 	}
 
 	public int getInt(int columnIndex) throws SQLException {
-		return res.getInt(columnIndex);
+		int value = res.getInt(columnIndex);
+		count(4);
+		return value;
 	}
 
 	public int getInt(String columnLabel) throws SQLException {
-		return res.getInt(columnLabel);
+		int value = res.getInt(columnLabel);
+		count(4);
+		return value;
 	}
 
 	public long getLong(int columnIndex) throws SQLException {
-		return res.getLong(columnIndex);
+		long value = res.getLong(columnIndex);
+		count(8);
+		return value;
 	}
 	
 	public long getLong(String columnLabel) throws SQLException {
-		return res.getLong(columnLabel);
+		long value = res.getLong(columnLabel);
+		count(8);
+		return value;
 	}
 	
 	public Blob getBlob(int columnIndex) throws SQLException {
@@ -188,19 +245,19 @@ public class Results implements AutoCloseable {
 	}
 
 	public Timestamp getTimestamp(int columnIndex) throws SQLException {
-		return res.getTimestamp(columnIndex);
+		return count(res.getTimestamp(columnIndex));
 	}
 	
 	public Timestamp getTimestamp(String columnLabel) throws SQLException {
-		return res.getTimestamp(columnLabel);
+		return count(res.getTimestamp(columnLabel));
 	}
 	
 	public Object getObject(int columnIndex) throws SQLException {
-		return res.getObject(columnIndex);
+		return count(res.getObject(columnIndex));
 	}
 	
 	public Object getObject(String columnLabel) throws SQLException {
-		return res.getObject(columnLabel);
+		return count(res.getObject(columnLabel));
 	}
 	
 }
@@ -0,0 +1,197 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.DBMS;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.Analysis;
+
+/**
+ * Keeps one connection of the pool open, to create and use MySQL temporary tables.
+ *
+ * Temporary tables are only visible from the connection that created them,
+ * and as pooled connections are never really closed, all tables are dropped in close().
+ *
+ * Note that MySQL doesn't allow to refer to a temporary table more than once in the same query.
+ */
+public class TemporaryTables implements AutoCloseable {
+
+	private static final int INSERT_BATCH_SIZE = 10_000;
+	private static int tableCount = 0;
+
+	private final HighlanderDatabase DB;
+	private final Schema schema;
+	private final Connection con;
+	private final List<String> tables = new ArrayList<String>();
+
+	public TemporaryTables(HighlanderDatabase DB, Schema schema) throws Exception {
+		if (DB.getDBMS(schema) != DBMS.mysql) throw new Exception("Temporary tables are only supported with MySQL");
+		this.DB = DB;
+		this.schema = schema;
+		con = DB.getConnection(null, schema);
+	}
+
+	public static boolean isSupported(HighlanderDatabase DB, Schema schema){
+		return DB.getDBMS(schema) == DBMS.mysql;
+	}
+
+	/**
+	 * Fields of a variant id table, in column order.
+	 * Can be given as headers to Filter.getQuery() to fill the table with INSERT ... SELECT.
+	 */
+	public static List<Field> getVariantIdFields(){
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(Field.variant_sample_id);
+		fields.add(Field.chr);
+		fields.add(Field.pos);
+		fields.add(Field.length);
+		fields.add(Field.reference);
+		fields.add(Field.alternative);
+		fields.add(Field.gene_symbol);
+		return fields;
+	}
+
+	private static synchronized String getNewTableName(String prefix){
+		return prefix + "_" + (++tableCount);
+	}
+
+	/**
+	 * Create a table with the same columns as the variant part of sample_annotations (see getVariantIdFields()).
+	 * variant_sample_id is the primary key, so INSERT IGNORE can be used to make unions.
+	 * @return the table name
+	 */
+	public String createVariantIdTable() throws Exception {
+		String table = getNewTableName("tmp_variant_ids");
+		update("CREATE TEMPORARY TABLE `"+table+"` ("
+				+ "`variant_sample_id` BIGINT(20) UNSIGNED NOT NULL, "
+				+ "`chr` VARCHAR(50) NOT NULL, "
+				+ "`pos` INT NOT NULL, "
+				+ "`length` INT NOT NULL, "
+				+ "`reference` VARCHAR(300) NOT NULL, "
+				+ "`alternative` VARCHAR(500) NOT NULL, "
+				+ "`gene_symbol` VARCHAR(50) NOT NULL DEFAULT '', "
+				+ "PRIMARY KEY (`variant_sample_id`), "
+				+ "INDEX `variant` (`pos`,`chr`,`alternative`(100),`reference`(100),`length`)"
+				+ ") DEFAULT CHARSET=latin1");
+		tables.add(table);
+		return table;
+	}
+
+	/**
+	 * Create a table with unique variants (chr, pos, length, reference, alternative), without sample information.
+	 * @return the table name
+	 */
+	public String createVariantTable() throws Exception {
+		String table = getNewTableName("tmp_variants");
+		update("CREATE TEMPORARY TABLE `"+table+"` ("
+				+ "`chr` VARCHAR(50) NOT NULL, "
+				+ "`pos` INT NOT NULL, "
+				+ "`length` INT NOT NULL, "
+				+ "`reference` VARCHAR(300) NOT NULL, "
+				+ "`alternative` VARCHAR(500) NOT NULL, "
+				+ "INDEX `variant` (`pos`,`chr`,`alternative`(100),`reference`(100),`length`)"
+				+ ") DEFAULT CHARSET=latin1");
+		tables.add(table);
+		return table;
+	}
+
+	/**
+	 * Fill a variant id table (see createVariantIdTable()) with the given variant_sample_id.
+	 * Other columns are taken from sample_annotations.
+	 * Ids are sent using multiple rows INSERTs, so the size of each query stays reasonable.
+	 */
+	public void insertVariantIds(Analysis analysis, String table, Collection<Integer> ids) throws Exception {
+		String idTable = getNewTableName("tmp_ids");
+		update("CREATE TEMPORARY TABLE `"+idTable+"` (`variant_sample_id` BIGINT(20) UNSIGNED NOT NULL, PRIMARY KEY (`variant_sample_id`))");
+		tables.add(idTable);
+		Iterator<Integer> it = ids.iterator();
+		while (it.hasNext()){
+			StringBuilder sb = new StringBuilder();
+			sb.append("INSERT IGNORE INTO `"+idTable+"` VALUES ");
+			int n = 0;
+			while (it.hasNext() && n < INSERT_BATCH_SIZE){
+				sb.append("("+it.next()+"),");
+				n++;
+			}
+			sb.deleteCharAt(sb.length()-1);
+			update(sb.toString());
+		}
+		update("INSERT IGNORE INTO `"+table+"` "
+				+ "SELECT `variant_sample_id`, `chr`, `pos`, `length`, `reference`, `alternative`, `gene_symbol` "
+				+ "FROM "+analysis.getFromSampleAnnotations()
+				+ "JOIN `"+idTable+"` USING (`variant_sample_id`)");
+		drop(idTable);
+	}
+
+	public int count(String table) throws Exception {
+		try (Results res = select("SELECT COUNT(*) FROM `"+table+"`", false)){
+			if (res.next()){
+				return res.getInt(1);
+			}
+		}
+		return 0;
+	}
+
+	public void drop(String table) throws Exception {
+		update("DROP TEMPORARY TABLE IF EXISTS `"+table+"`");
+		tables.remove(table);
+	}
+
+	public int update(String query) throws Exception {
+		return DB.updateWithConnection(con, schema, query);
+	}
+
+	public Results select(String query, boolean hugeResultSetExpected) throws Exception {
+		return DB.selectWithConnection(con, schema, query, hugeResultSetExpected);
+	}
+
+	@Override
+	public void close() {
+		try {
+			for (String table : new ArrayList<String>(tables)){
+				try {
+					drop(table);
+				}catch(Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+			con.close();
+		}catch(Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+}
@@ -29,66 +29,135 @@
 
 package be.uclouvain.ngs.highlander.database;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 import java.util.Set;
 
-public class VariantResults {
+/**
+ * Results of a filter, stored by column (see ResultColumn) to keep large results in a reasonable amount of memory.
+ */
+public class VariantResults implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	public final Field[] headers;
-	public final Object[][] data;
 	public final int[] id;
-	public final String[] variant;
-
-	public VariantResults(List<Field> headers, Map<Integer, Object[]> results, Map<Integer, String> variants) throws Exception {
-		this.headers = headers.toArray(new Field[0]);
-		int nrow = results.size();
-		data = new Object[nrow][headers.size()];
-		id = new int[nrow];
-		variant = new String[nrow];
-		int i=0;
-		for (Entry<Integer, Object[]> e : results.entrySet()){
-			data[i] = e.getValue();
-			id[i] = e.getKey();
-			variant[i] = variants.get(e.getKey());
-			i++;
-		}	
+	public final long[] variant;
+	private final ResultColumn[] columns;
+	//Columns shared with a copy of these results (see copy()), duplicated before their first modification
+	private final boolean[] shared;
+
+	/**
+	 * Empty results, without any column
+	 */
+	public VariantResults(){
+		this(new Field[0], new ResultColumn[0], new int[0], new long[0]);
+	}
+
+	VariantResults(Field[] headers, ResultColumn[] columns, int[] id, long[] variant){
+		this.headers = headers;
+		this.columns = columns;
+		this.id = id;
+		this.variant = variant;
+		this.shared = new boolean[columns.length];
+	}
+
+	/**
+	 * Copy that can be modified independently of these results (e.g. given by a cache).
+	 * Columns are only duplicated when one of the two results modifies them.
+	 */
+	public synchronized VariantResults copy(){
+		VariantResults copy = new VariantResults(headers.clone(), columns.clone(), id.clone(), variant.clone());
+		Arrays.fill(shared, true);
+		Arrays.fill(copy.shared, true);
+		return copy;
+	}
+
+	public int getRowCount(){
+		return id.length;
+	}
+
+	public int getColumnCount(){
+		return headers.length;
+	}
+
+	public Object getValue(int row, int col){
+		return columns[col].get(row);
+	}
+
+	public synchronized void setValue(int row, int col, Object value){
+		if (shared[col]){
+			columns[col] = columns[col].copy();
+			shared[col] = false;
+		}
+		columns[col] = columns[col].set(row, value);
+	}
+
+	/**
+	 * @return a copy of all values of the given row
+	 */
+	public Object[] getRow(int row){
+		Object[] values = new Object[columns.length];
+		for (int col=0 ; col < columns.length ; col++){
+			values[col] = columns[col].get(row);
+		}
+		return values;
 	}
 
 	public String getNumberUniqueVariants(){
-		Set<String> set = new HashSet<String>(Arrays.asList(variant));
+		Set<Long> set = new HashSet<Long>();
+		for (long key : variant) set.add(key);
 		return Tools.doubleToString(set.size(), 0, false);
 	}
 
-	public VariantResults(List<VariantResults> variantResults){
-		headers = variantResults.get(0).headers;
+	public String getVariantLabel(int row){
+		String label = VariantKey.getLabel(variant[row]);
+		if (label == null){
+			//Label of a non-packed variant not used recently, rebuilt from the columns when available
+			Object[] values = new Object[5];
+			Field[] fields = new Field[]{Field.chr, Field.pos, Field.length, Field.reference, Field.alternative};
+			for (int col=0 ; col < headers.length ; col++){
+				for (int i=0 ; i < fields.length ; i++){
+					if (headers[col].equals(fields[i])) values[i] = getValue(row, col);
+				}
+			}
+			if (!Arrays.asList(values).contains(null)){
+				label = values[0] + "-" + values[1] + "-" + values[2] + "-" + values[3] + "-" + values[4];
+			}
+		}
+		return label;
+	}
+
+	public static VariantResults concatenate(List<VariantResults> variantResults){
+		if (variantResults.size() == 1) return variantResults.get(0);
+		Field[] headers = variantResults.get(0).headers;
 		int nrow = 0;
 		for (VariantResults r : variantResults){
 			nrow += r.id.length;
 		}
-		data = new Object[nrow][variantResults.get(0).data[0].length];
-		id = new int[nrow];
-		variant = new String[nrow];
-
+		ResultColumn[] columns = new ResultColumn[headers.length];
+		for (int col=0 ; col < headers.length ; col++){
+			columns[col] = ResultColumn.create(headers[col].getFieldClass(), nrow);
+		}
+		int[] id = new int[nrow];
+		long[] variant = new long[nrow];
 		int offset = 0;
 		for (VariantResults r : variantResults){
 			System.arraycopy(r.id, 0, id, offset, r.id.length);
 			System.arraycopy(r.variant, 0, variant, offset, r.variant.length);
-			for (int i=0 ; i < r.data.length ; i++){
-				System.arraycopy(r.data[i], 0, data[i+offset], 0, r.data[i].length);
+			for (int col=0 ; col < headers.length ; col++){
+				for (int row=0 ; row < r.id.length ; row++){
+					columns[col] = columns[col].set(row+offset, r.getValue(row, col));
+				}
 			}
 			offset += r.id.length;
 		}
-	}
-
-	public static VariantResults concatenate(List<VariantResults> variantResults){
-		if (variantResults.size() == 1) return variantResults.get(0);
-		return new VariantResults(variantResults);
+		return new VariantResults(headers, columns, id, variant);
 	}
 }
@@ -0,0 +1,201 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.database;
+
+import java.sql.ResultSetMetaData;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
+
+/**
+ * Fill VariantResults from a filter query.
+ *
+ * Column indices are resolved once from the ResultSetMetaData, values are written directly in growable columns
+ * (see ResultColumn), and the waiting panel is only updated a few times per second.
+ */
+public class VariantResultsExtractor {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final long PROGRESS_DELAY = 200;
+
+	private final List<Field> headers;
+	private final int[] columns;
+	private final boolean[] zeroAsDefault;
+	private final int colId;
+	private final int colChr;
+	private final int colPos;
+	private final int colLength;
+	private final int colReference;
+	private final int colAlternative;
+
+	private final ResultColumn[] data;
+	private int[] id;
+	private long[] variant;
+	private int size = 0;
+	private int rowsRead = 0;
+
+	public VariantResultsExtractor(Results res, List<Field> headers, int expectedRows) throws Exception {
+		this.headers = headers;
+		ResultSetMetaData meta = res.getMetaData();
+		int capacity = (expectedRows > 0) ? expectedRows : INITIAL_CAPACITY;
+		columns = new int[headers.size()];
+		zeroAsDefault = new boolean[headers.size()];
+		data = new ResultColumn[headers.size()];
+		for (int i=0 ; i < headers.size() ; i++){
+			Field field = headers.get(i);
+			columns[i] = getColumnIndex(meta, field.getName());
+			//when MySQL NULL is replaced by 0 for some fields (like evaluation), the 0 is a string and not an INT, causing type problems in VariantTable (for filtering on those columns)
+			zeroAsDefault[i] = (field.getDefaultValue() != null && field.getDefaultValue().equals("0"));
+			data[i] = ResultColumn.create(zeroAsDefault[i] ? Integer.class : field.getFieldClass(), capacity);
+		}
+		colId = getColumnIndex(meta, Field.variant_sample_id.getName());
+		colChr = getColumnIndex(meta, Field.chr.getName());
+		colPos = getColumnIndex(meta, Field.pos.getName());
+		colLength = getColumnIndex(meta, Field.length.getName());
+		colReference = getColumnIndex(meta, Field.reference.getName());
+		colAlternative = getColumnIndex(meta, Field.alternative.getName());
+		id = new int[capacity];
+		variant = new long[capacity];
+	}
+
+	private static int getColumnIndex(ResultSetMetaData meta, String label) throws Exception {
+		for (int i=1 ; i <= meta.getColumnCount() ; i++){
+			if (meta.getColumnLabel(i).equalsIgnoreCase(label)) return i;
+		}
+		throw new Exception("Column '" + label + "' not found in results");
+	}
+
+	/**
+	 * Extract all rows of the results.
+	 *
+	 * @param res results of a filter query, must contain variant_sample_id, chr, pos, length, reference and alternative
+	 * @param headers fields to keep in VariantResults
+	 * @param expectedRows number of rows if known (progress bar is then determinate), or -1
+	 * @param progressTxt text for the waiting panel
+	 * @return
+	 * @throws Exception
+	 */
+	public static VariantResults extract(Results res, List<Field> headers, int expectedRows, String progressTxt) throws Exception {
+		VariantResultsExtractor extractor = new VariantResultsExtractor(res, headers, expectedRows);
+		extractor.read(res, expectedRows, progressTxt);
+		return extractor.build();
+	}
+
+	/**
+	 * Read all rows of the results.
+	 * @param progressTxt text for the waiting panel, or null when reading in background (no progress and no cancellation)
+	 */
+	public void read(Results res, int expectedRows, String progressTxt) throws Exception {
+		boolean useWaitingPanel = (progressTxt != null);
+		long lastProgress = 0;
+		while (res.next() && !(useWaitingPanel && Highlander.waitingPanel.isCancelled())){
+			addRow(res);
+			if (useWaitingPanel && (size & 0xFF) == 0){
+				long now = System.currentTimeMillis();
+				if (now - lastProgress > PROGRESS_DELAY){
+					lastProgress = now;
+					if (expectedRows == -1){
+						Highlander.waitingPanel.setProgressString(progressTxt + " ("+size+" variants retreived)", true);
+					}else{
+						Highlander.waitingPanel.setProgressValue(size);
+					}
+				}
+			}
+		}
+		if (useWaitingPanel && Highlander.waitingPanel.isCancelled()) {
+			throw new CancelException();
+		}
+	}
+
+	/**
+	 * @return number of rows read, including duplicates removed by build()
+	 */
+	public int getRowsRead(){
+		return rowsRead;
+	}
+
+	private void addRow(Results res) throws Exception {
+		if (size == id.length){
+			int capacity = id.length + (id.length >> 1) + 1;
+			for (ResultColumn column : data){
+				column.resize(capacity);
+			}
+			id = Arrays.copyOf(id, capacity);
+			variant = Arrays.copyOf(variant, capacity);
+		}
+		for (int i=0 ; i < columns.length ; i++){
+			data[i] = data[i].set(size, zeroAsDefault[i] ? res.getInt(columns[i]) : res.getObject(columns[i]));
+		}
+		id[size] = res.getInt(colId);
+		variant[size] = VariantKey.getKey(res.getString(colChr), res.getInt(colPos), res.getInt(colLength), res.getString(colReference), res.getString(colAlternative));
+		size++;
+		rowsRead++;
+	}
+
+	public VariantResults build() throws Exception {
+		if (hasDuplicateIds()){
+			//Same behavior as a LinkedHashMap : first position of an id is kept, with its last values
+			Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+			int n = 0;
+			for (int i=0 ; i < size ; i++){
+				Integer pos = positions.get(id[i]);
+				if (pos == null){
+					positions.put(id[i], n);
+					pos = n++;
+				}
+				for (int j=0 ; j < data.length ; j++){
+					data[j] = data[j].set(pos, data[j].get(i));
+				}
+				id[pos] = id[i];
+				variant[pos] = variant[i];
+			}
+			size = n;
+		}
+		for (ResultColumn column : data){
+			column.resize(size);
+		}
+		return new VariantResults(headers.toArray(new Field[0]), data, Arrays.copyOf(id, size), Arrays.copyOf(variant, size));
+	}
+
+	private boolean hasDuplicateIds(){
+		int[] sorted = Arrays.copyOf(id, size);
+		Arrays.sort(sorted);
+		for (int i=1 ; i < sorted.length ; i++){
+			if (sorted[i] == sorted[i-1]) return true;
+		}
+		return false;
+	}
+
+}
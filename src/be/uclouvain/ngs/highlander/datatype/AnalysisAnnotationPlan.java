@@ -0,0 +1,287 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.Field.Annotation;
+
+/**
+ * Everything AnnotatedVariant needs to know about the fields of an analysis to annotate and insert variants,
+ * computed once per analysis instead of once per variant:
+ * - fields of the analysis, with their default value
+ * - VCF header -> VCF ID -> fields
+ * - annotation database tables (per source and chromosome) -> table column -> field, and the SELECT column list of each table
+ * - dbNSFP tables (per chromosome) -> table column -> field
+ * - Alamut headers
+ * - columns of the insertion files of each table, with the way to format their values
+ *
+ * All maps and lists returned are unmodifiable and can be shared between threads.
+ * Plans must be dropped with clear() when fields are fetched again from the database.
+ */
+public class AnalysisAnnotationPlan {
+
+	private static final Map<String, AnalysisAnnotationPlan> plans = new ConcurrentHashMap<>();
+
+	/**
+	 * How a value is written in an insertion file
+	 */
+	enum Format {GENE_SYMBOL, STRING, BOOLEAN, OTHER}
+
+	/**
+	 * Columns of the insertion file of one table, in the order of getInsertionColumns()
+	 */
+	static class Insertion {
+		final Field[] fields;
+		final Format[] formats;
+		final String columns;
+
+		private Insertion(Field[] fields, Format[] formats, String columns) {
+			this.fields = fields;
+			this.formats = formats;
+			this.columns = columns;
+		}
+	}
+
+	private final Analysis analysis;
+	private final Field[] fields;
+	private final Object[] defaultValues;
+	private final Map<String,Map<String,List<Field>>> vcfParser;
+	private final Field[] alamutFields;
+	private final String[] alamutHeaders;
+	private final Map<String, Map<String, Map<String,Field>>> annotationParsers = new ConcurrentHashMap<>();
+	private final Map<String, Map<String, Map<String,Field>>> dbnsfpParsers = new ConcurrentHashMap<>();
+	private final Map<String, String> selectColumns = new ConcurrentHashMap<>();
+	private final Map<String, Set<String>> dbnsfpColumns = new ConcurrentHashMap<>();
+	private final Map<String, Insertion> insertions = new ConcurrentHashMap<>();
+
+	private AnalysisAnnotationPlan(Analysis analysis) {
+		this.analysis = analysis;
+		List<Field> list = Field.getAvailableFields(analysis, false);
+		fields = list.toArray(new Field[0]);
+		defaultValues = new Object[fields.length];
+		List<Field> alamut = new ArrayList<>();
+		Map<String,Map<String,List<Field>>> vcf = new HashMap<>(); // [VCF header] -> [VCF ID] -> [all fields linked to header->ID]
+		for (int i=0 ; i < fields.length ; i++) {
+			Field field = fields[i];
+			defaultValues[i] = (field.getFieldClass() == Boolean.class) ? false : null;
+			if (field.getAnnotationCode() == Annotation.VCF) {
+				String head = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "NULL";
+				if (!vcf.containsKey(head)) {
+					vcf.put(head, new HashMap<>());
+				}
+				String id = (field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "NULL" ;
+				if (!vcf.get(head).containsKey(id)) {
+					vcf.get(head).put(id, new ArrayList<>());
+				}
+				vcf.get(head).get(id).add(field);
+			}else if (field.getAnnotationCode() == Annotation.ALAMUT) {
+				alamut.add(field);
+			}
+		}
+		for (String head : vcf.keySet()) {
+			for (String id : vcf.get(head).keySet()) {
+				vcf.get(head).put(id, Collections.unmodifiableList(vcf.get(head).get(id)));
+			}
+			vcf.put(head, Collections.unmodifiableMap(vcf.get(head)));
+		}
+		vcfParser = Collections.unmodifiableMap(vcf);
+		alamutFields = alamut.toArray(new Field[0]);
+		alamutHeaders = new String[alamutFields.length];
+		for (int i=0 ; i < alamutFields.length ; i++) {
+			alamutHeaders[i] = (alamutFields[i].getName().equals("dbsnp_maf")) ? "rsMAF" : alamutFields[i].toString().replaceAll("_", "");
+		}
+	}
+
+	public static AnalysisAnnotationPlan get(Analysis analysis) {
+		return plans.computeIfAbsent(analysis.toString(), name -> new AnalysisAnnotationPlan(analysis));
+	}
+
+	/**
+	 * Drop all plans, must be called when the available fields change
+	 */
+	public static void clear() {
+		plans.clear();
+	}
+
+	Field[] getFields() {
+		return fields;
+	}
+
+	Object[] getDefaultValues() {
+		return defaultValues;
+	}
+
+	/**
+	 * @return VCF header -> VCF ID -> all fields linked to header and ID
+	 */
+	Map<String,Map<String,List<Field>>> getVCFParser(){
+		return vcfParser;
+	}
+
+	Field[] getAlamutFields() {
+		return alamutFields;
+	}
+
+	/**
+	 * @return header in the Alamut file of each field of getAlamutFields()
+	 */
+	String[] getAlamutHeaders() {
+		return alamutHeaders;
+	}
+
+	/**
+	 * @return tables of the annotation database (for the given chromosome) -> table column -> field
+	 */
+	Map<String, Map<String,Field>> getAnnotationParser(Annotation annotation, String chr){
+		return annotationParsers.computeIfAbsent(annotation + "\t" + chr, key -> {
+			Map<String, Map<String,Field>> parser = new HashMap<>();
+			for (Field field : fields) {
+				if (field.getAnnotationCode() == annotation) {
+					String table = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "unknown_table";
+					table = table.replace("[chr]", chr);
+					if (!parser.containsKey(table)) {
+						parser.put(table, new HashMap<>());
+					}
+					String column = (field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "unknown_column" ;
+					parser.get(table).put(column, field);
+				}
+			}
+			return unmodifiable(parser);
+		});
+	}
+
+	/**
+	 * @return DBNSFP tables (for the given chromosome) -> table column -> field
+	 */
+	Map<String, Map<String,Field>> getDBNSFPParser(String chr, boolean snv, boolean splicing, boolean gene){
+		return dbnsfpParsers.computeIfAbsent(chr + "\t" + snv + "\t" + splicing + "\t" + gene, key -> {
+			Map<String, Map<String,Field>> parser = new HashMap<>();
+			for (Field field : fields) {
+				if (field.getAnnotationCode() == Annotation.DBNSFP) {
+					String table = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "unknown_table";
+					table = table.replace("[chr]", chr);
+					boolean todo = true;
+					if (table.startsWith("chromosome") && !snv) todo = false;
+					if (table.startsWith("dbscSNV") && !splicing) todo = false;
+					if (table.startsWith("genes") && !gene) todo = false;
+					if (todo){
+						if (!parser.containsKey(table)) {
+							parser.put(table, new HashMap<>());
+						}
+						String column = (field.getAnnotationHeaders() != null && field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "unknown_column" ;
+						parser.get(table).put(column, field);
+					}
+				}
+			}
+			return unmodifiable(parser);
+		});
+	}
+
+	private static Map<String, Map<String,Field>> unmodifiable(Map<String, Map<String,Field>> parser){
+		for (String table : parser.keySet()) {
+			parser.put(table, Collections.unmodifiableMap(parser.get(table)));
+		}
+		return Collections.unmodifiableMap(parser);
+	}
+
+	/**
+	 * @param columns table column -> field of the given table, as given by getAnnotationParser()
+	 * @return list of columns for a SELECT (unknown_column excluded)
+	 */
+	String getSelectColumns(Annotation annotation, String table, Map<String,Field> columns) {
+		return selectColumns.computeIfAbsent(annotation + "\t" + table, key -> {
+			StringBuilder select = new StringBuilder();
+			for (String column : columns.keySet()) {
+				if (!column.equalsIgnoreCase("unknown_column")) {
+					if (select.length() > 0) select.append(", ");
+					select.append("`"+column+"`");
+				}
+			}
+			return select.toString();
+		});
+	}
+
+	/**
+	 * @param columns table column -> field of the given table, as given by getDBNSFPParser()
+	 * @return columns of a DBNSFP table needed by setDBNSFP(), including the ones used to select the right transcript
+	 */
+	Set<String> getDBNSFPColumns(String table, Map<String,Field> columns){
+		return dbnsfpColumns.computeIfAbsent(table, key -> {
+			Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+			for (String column : columns.keySet()) {
+				set.add(column);
+				set.add(column+"_hg19");
+			}
+			set.addAll(Arrays.asList(new String[] {"Ensembl_transcriptid", "VEP_canonical", "MutationTaster_AAE", "aaref", "aapos", "aaalt",
+					"pos", "hg19_pos", "hg18_pos", "alt", "genename", "Ensembl_geneid", "RefSeq_gene", "Ensembl_gene", "Gene_name"}));
+			return Collections.unmodifiableSet(set);
+		});
+	}
+
+	/**
+	 * @return columns of the insertion file of the given table (fields of the table and foreign keys, without generated ids)
+	 */
+	Insertion getInsertion(String table) {
+		return insertions.computeIfAbsent(table.toLowerCase(), key -> {
+			List<Field> list = new ArrayList<>();
+			for (Field f : fields){
+				if ((f.getTable(analysis).equalsIgnoreCase(table) || f.isForeignKey(table))
+						&& !(f.equals(Field.variant_sample_id) || f.equals(Field.variant_static_id) || f.equals(Field.gene_id) || f.equals(Field.variant_custom_id))
+						){
+					list.add(f);
+				}
+			}
+			Field[] insertionFields = list.toArray(new Field[0]);
+			Format[] formats = new Format[insertionFields.length];
+			StringBuilder columns = new StringBuilder();
+			for (int i=0 ; i < insertionFields.length ; i++) {
+				Field f = insertionFields[i];
+				if (f == Field.gene_symbol) formats[i] = Format.GENE_SYMBOL;
+				else if (f.getFieldClass() == String.class) formats[i] = Format.STRING;
+				else if (f.getFieldClass() == Boolean.class) formats[i] = Format.BOOLEAN;
+				else formats[i] = Format.OTHER;
+				if (i > 0) columns.append(", ");
+				columns.append(f.getName());
+			}
+			return new Insertion(insertionFields, formats, columns.toString());
+		});
+	}
+
+}
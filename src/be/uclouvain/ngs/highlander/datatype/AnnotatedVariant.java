@@ -29,6 +29,7 @@
 
 package be.uclouvain.ngs.highlander.datatype;
 
+import java.sql.ResultSetMetaData;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.EnumMap;
@@ -38,14 +39,17 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Parameters;
 import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.administration.AlamutParser;
+import be.uclouvain.ngs.highlander.database.CanonicalTranscriptIndex;
 import be.uclouvain.ngs.highlander.database.DBUtils;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.LocalAnnotationStore;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.Field.Aloft;
 import be.uclouvain.ngs.highlander.database.Field.Annotation;
@@ -77,6 +81,7 @@ public class AnnotatedVariant {
 	
 	protected final HighlanderDatabase DB;
 	protected final AnalysisFull analysis;
+	protected final AnalysisAnnotationPlan plan;
 
 	protected final Map<Field,Object> entries = new LinkedHashMap<Field, Object>();
 	protected boolean exist = true;
@@ -87,12 +92,11 @@ public class AnnotatedVariant {
 	public AnnotatedVariant(AnalysisFull analysis){
 		DB = Highlander.getDB();
 		this.analysis = analysis;
-		for (Field field : Field.getAvailableFields(analysis, false)){
-			if (field.getFieldClass() == Boolean.class){
-				entries.put(field, false);
-			}else{
-				entries.put(field, null);
-			}
+		this.plan = AnalysisAnnotationPlan.get(analysis);
+		Field[] fields = plan.getFields();
+		Object[] defaultValues = plan.getDefaultValues();
+		for (int i=0 ; i < fields.length ; i++){
+			entries.put(fields[i], defaultValues[i]);
 		}
 	}
 
@@ -104,12 +108,9 @@ public class AnnotatedVariant {
 	public AnnotatedVariant(AnnotatedVariant annotatedVariant) {
 		this.DB = annotatedVariant.DB; 
 		this.analysis = annotatedVariant.analysis;
-		for (Field f : annotatedVariant.entries.keySet()) {
-			this.entries.put(f, annotatedVariant.entries.get(f));
-		}
-		for (SNPEffect eff : annotatedVariant.other_transcripts_snpeff) {
-			this.other_transcripts_snpeff.add(eff);
-		}
+		this.plan = annotatedVariant.plan;
+		this.entries.putAll(annotatedVariant.entries);
+		this.other_transcripts_snpeff.addAll(annotatedVariant.other_transcripts_snpeff);
 		this.exist = annotatedVariant.exist;
 		this.altIdx = annotatedVariant.altIdx;
 	}
@@ -267,7 +268,7 @@ public class AnnotatedVariant {
 					(String)va.getValue(Field.reference), 
 					(String)va.getValue(Field.alternative), 
 					(VariantType)va.getValue(Field.variant_type));
-			Set<Gene> genesAtThisPosition = DBUtils.getGenesWithCanonicalTranscriptIntersect(analysis.getReference(), variant);
+			Set<Gene> genesAtThisPosition = CanonicalTranscriptIndex.get(analysis.getReference()).getGenesWithCanonicalTranscriptIntersect(variant);
 			va.entries.put(Field.num_genes, genesAtThisPosition.size());
 			if (genesAtThisPosition.isEmpty()) genesAtThisPosition.add(new Gene(analysis.getReference(), variant.getChromosome(), "", "", "", "", ""));
 			time.put(Annotation.HIGHLANDER, time.get(Annotation.HIGHLANDER)+(System.currentTimeMillis()-t));
@@ -456,21 +457,8 @@ public class AnnotatedVariant {
 	 */
 	public void setVCFLine(String[] header, String[] line, int altIdx, String sample){
 		this.altIdx = altIdx;
-		//Build a parsing map with information from Highlander database
-		Map<String,Map<String,List<Field>>> parser = new HashMap<>(); // [VCF header] -> [VCF ID] -> [all fields linked to header->ID]
-		for (Field field : Field.getAvailableFields(analysis, false)) {
-			if (field.getAnnotationCode() == Annotation.VCF) {
-				String head = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "NULL";
-				if (!parser.containsKey(head)) {
-					parser.put(head, new HashMap<>());
-				}
-				String id = (field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "NULL" ;
-				if (!parser.get(head).containsKey(id)) {
-					parser.get(head).put(id, new ArrayList<>());
-				}
-				parser.get(head).get(id).add(field);
-			}
-		}
+		//Parsing map with information from Highlander database
+		Map<String,Map<String,List<Field>>> parser = plan.getVCFParser(); // [VCF header] -> [VCF ID] -> [all fields linked to header->ID]
 		//Set the sample if necessary
 		if (sample == null) {
 			if (entries.get(Field.sample) != null) {
@@ -945,6 +933,23 @@ public class AnnotatedVariant {
 		}
 	}
 
+	/**
+	 * Set annotations from Ensembl database, with accessions already fetched for all transcripts (see AnnotationBatch)
+	 * 
+	 * @param uniprot Ensembl transcript -> Uniprot accession
+	 * @param refseqProt Ensembl transcript -> RefSeq protein accession
+	 */
+	void setEnsembl(Gene gene, Map<String,String> uniprot, Map<String,String> refseqProt){
+		setValue(Field.gene_ensembl, gene.getEnsemblGene());
+		setValue(Field.gene_symbol, gene.getGeneSymbol());
+		setValue(Field.transcript_ensembl, gene.getEnsemblTranscript());
+		setValue(Field.transcript_refseq_mrna, gene.getRefSeqTranscript());
+		if (DB.hasSchema(analysis.getReference(), Schema.ENSEMBL)){
+			entries.put(Field.transcript_uniprot_id, uniprot.get(gene.getEnsemblTranscript()));
+			entries.put(Field.transcript_refseq_prot, refseqProt.get(gene.getEnsemblTranscript()));
+		}
+	}
+
 	/**
 	 * Set annotations from DBNSFP database version 4.1
 	 * 
@@ -963,25 +968,15 @@ public class AnnotatedVariant {
 				int pos = (entries.get(Field.pos) == null) ? -1 : (int)entries.get(Field.pos);
 				String alternative = (String)entries.get(Field.alternative);
 				VariantType variant_type = (VariantType)entries.get(Field.variant_type);
-				Map<String, Map<String,Field>> parser = new HashMap<>();
-				for (Field field : Field.getAvailableFields(analysis, false)) {
-					if (field.getAnnotationCode() == Annotation.DBNSFP) {						
-						String table = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "unknown_table";
-						table = table.replace("[chr]", chr);
-						boolean todo = true;
-						if (table.startsWith("chromosome") && !snv) todo = false;
-						if (table.startsWith("dbscSNV") && !splicing) todo = false;
-						if (table.startsWith("genes") && !gene) todo = false;
-						if (todo){
-							if (!parser.containsKey(table)) {
-								parser.put(table, new HashMap<>());
-							}
-							String column = (field.getAnnotationHeaders() != null && field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "unknown_column" ;
-							parser.get(table).put(column, field);							
+				Map<String, Map<String,Field>> parser = plan.getDBNSFPParser(chr, snv, splicing, gene);
+				LocalAnnotationStore store = LocalAnnotationStore.get(analysis.getReference(), Schema.DBNSFP);
+				for (String table : parser.keySet()) {
+					if (!table.startsWith("genes") && store != null && store.hasTable(table)) {
+						if (variant_type == VariantType.SNV && DB.getAvailableTables(analysis.getReference(), Schema.DBNSFP).contains(table)){
+							setDBNSFP(table, parser.get(table), findInLocalStore(store, table, this, plan.getDBNSFPColumns(table, parser.get(table))), silent);
 						}
+						continue;
 					}
-				}
-				for (String table : parser.keySet()) {
 					String query = "SELECT * FROM `"+table+"` WHERE ";
 					if (table.startsWith("genes")) {
 						query += "`Gene_name` = '"+gene_symbol+"' OR `Ensembl_gene` = '"+gene_ensembl+"'";
@@ -1001,178 +996,13 @@ public class AnnotatedVariant {
 						query += " AND (INSTR(`RefSeq_gene`, '"+gene_symbol+"') OR INSTR(`Ensembl_gene`, '"+gene_ensembl+"'))";
 					}
 					if ((variant_type == VariantType.SNV || table.startsWith("genes")) && DB.getAvailableTables(analysis.getReference(), Schema.DBNSFP).contains(table)){
-						int transcriptIndex = -1;
-						int MutationTasterIndex = 0;
+						Map<String,String> row = null;
 						try (Results res = DB.select(analysis.getReference(), Schema.DBNSFP, query)) {
 							if (res.next()){
-								if (table.startsWith("chromosome")) {
-									//Find index of canonical transcript (since dbNSFP 4.1, it seems easier, # of Ensembl protein ids and Uniprot ids match # of Ensembl transcripts, and all scores also match that same number 
-									String[] transcriptIds = res.getString("Ensembl_transcriptid").split(";");
-									boolean found = false;
-									//First check if our transcript_ensembl is found in the list of dbNSFP
-									for (int i=0 ; i < transcriptIds.length ; i++) {
-										String transcript = transcriptIds[i];
-										if (transcript.equals(transcript_ensembl)) {
-											transcriptIndex = i;
-											found = true;
-											break;
-										}
-									}
-									if (!found) {
-										if (!silent) System.err.println("Ensembl transcript '"+transcript_ensembl+"' present in VCF was not found in dbNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
-										//dbNSFP probably a version Ensembl different of the one linked to this analysis. Use the canonical given by VEP, it should match
-										for (int i=0 ; i < res.getString("VEP_canonical").split(";").length ; i++) {
-											String canonical = res.getString("VEP_canonical").split(";")[i];
-											if (canonical.equals("YES")) {
-												transcriptIndex = i;
-												found = true;
-												break;
-											}
-										}
-									}
-									if (!found) {
-										if (!silent) System.err.println("No canonical transcript was found in dbNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
-										if (!silent) System.err.println("Using transcript "+transcriptIds[0]+" instead of "+transcript_ensembl+" for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
-										transcriptIndex = 0;
-									}
-								}
-								//Mutation taster is only one that have different transcript number and/or order
-								if (parser.get(table).containsKey("MutationTaster_score") || parser.get(table).containsKey("MutationTaster_AAE")) {
-									if (res.getString("MutationTaster_AAE").contains(";")) {
-										//try to find the one that match amino acid substitution (now always OK, but generally similar score, and anyway the best we can do with what we have)
-										String canonicAAE = res.getString("aaref") + res.getString("aapos").split(";")[transcriptIndex] + res.getString("aaalt");
-										String[] aae = res.getString("MutationTaster_AAE").split(";");
-										for (int i=0 ; i < aae.length ; i++) {
-											if (aae[i].equals(canonicAAE)) {
-												MutationTasterIndex = i;
-												break;
-											}
-										}
-									}
-								}
-								for (String column : parser.get(table).keySet()) {
-									Field field = parser.get(table).get(column);
-									if (entries.get(field) == null &&
-											//Predictions computed when fetching score
-											!field.equals(Field.splicing_ada_pred) &&
-											!field.equals(Field.splicing_rf_pred)
-											) {
-										//Basic field
-										String value = res.getString(column);
-										if (column.equals("CADD_raw") || column.equals("CADD_raw_rankscore") ||	column.equals("CADD_phred")) {
-											//CADD scores for functional prediction of a SNP using the hg19 model.
-											if (analysis.getReference().getGenomeVersion() == 37) {
-												value = res.getString(column+"_hg19");
-											}											
-										}
-										if (value != null) {
-											value = value.trim();
-											if (field.hasMultipleAnnotations()) {
-												if (field.getMultipleAnnotationsField().equalsIgnoreCase("MutationTaster")) {
-													value = value.split(field.getMultipleAnnotationsSeparator())[MutationTasterIndex];
-												}else {
-													value = value.split(field.getMultipleAnnotationsSeparator())[transcriptIndex];
-												}
-											}
-											if (!value.equals(".")) {
-												switch(column) {
-												case "MutationTaster_pred":
-													if (value.equals("A")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
-													else if (value.equals("P")) entries.put(field, ImpactPrediction.TOLERATED); 
-													break;
-												case "FATHMM_pred":
-												case "SIFT_pred":
-												case "SIFT4G_pred":
-												case "M-CAP_pred":
-												case "LIST-S2_pred":
-												case "DEOGEN2_pred":
-												case "ClinPred_pred":
-												case "BayesDel_addAF_pred":
-												case "BayesDel_noAF_pred":
-												case "PrimateAI_pred":
-												case "MetaSVM_pred":
-												case "MetaLR_pred":
-													if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("T")) entries.put(field, ImpactPrediction.TOLERATED); 
-													break;
-												case "fathmm-XF_coding_pred":
-												case "fathmm-MKL_coding_pred":
-												case "PROVEAN_pred":
-													if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
-													break;
-												case "Polyphen2_HDIV_pred":
-												case "Polyphen2_HVAR_pred":
-													if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING);
-													else if (value.equals("P")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("B")) entries.put(field, ImpactPrediction.TOLERATED); 													
-													break;
-												case "MutationAssessor_pred":
-													if (value.equals("H")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("M")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("L")) entries.put(field, ImpactPrediction.TOLERATED); 
-													else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
-													break;
-												case "LRT_pred":
-													if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
-													else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
-													else if (value.equals("U")) entries.put(field, null); 
-													break;
-												case "integrated_confidence_value":
-												case "GM12878_confidence_value":
-												case "H1-hESC_confidence_value":
-												case "HUVEC_confidence_value":
-													if (value.equalsIgnoreCase("0")) entries.put(field, FitCons.HIGHLY_SIGNIFICANT); 
-													else if (value.equalsIgnoreCase("1")) entries.put(field, FitCons.SIGNIFICANT); 
-													else if (value.equalsIgnoreCase("2")) entries.put(field, FitCons.INFORMATIVE); 
-													else if (value.equalsIgnoreCase("3")) entries.put(field, FitCons.OTHER); 
-													break;
-												case "Aloft_pred":
-													if (value.equalsIgnoreCase("DOMINANT")) entries.put(field, Aloft.DOMINANT); 
-													else if (value.equalsIgnoreCase("RECESSIVE")) entries.put(field, Aloft.RECESSIVE); 
-													else if (value.equalsIgnoreCase("TOLERANT")) entries.put(field, Aloft.TOLERANT); 
-													break;
-												case "ada_score":
-													double ada_score = Double.parseDouble(value);
-													entries.put(field, ada_score);
-													entries.put(Field.splicing_ada_pred, (ada_score > 0.6) ? SplicingPrediction.AFFECTING_SPLICING : SplicingPrediction.SPLICING_UNAFFECTED);
-													break;													
-												case "rf_score":
-													double rf_score = Double.parseDouble(value);
-													entries.put(field, rf_score);
-													entries.put(Field.splicing_rf_pred, (rf_score > 0.6) ? SplicingPrediction.AFFECTING_SPLICING : SplicingPrediction.SPLICING_UNAFFECTED);
-													break;
-												case "HIPred":
-												case "is_scSNV_RefSeq":
-												case "is_scSNV_Ensembl":
-												case "ExAC_cnv_flag":
-													//Convert Y/N to boolean
-													entries.put(field, (value.toUpperCase().equals("Y")) ? true : false);
-													break;
-												default:
-													setFieldValue(parser.get(table).get(column), value);
-													break;
-												}
-											}
-										}
-									}
-								}
-							}else {
-								if (!silent) {
-									if (table.startsWith("genes")) {
-										System.err.println("Gene '"+gene_symbol+"' / '"+gene_ensembl+"' does not exists in DBNSFP genes");
-									}else {
-										if (analysis.getReference().getGenomeVersion() == 37) {
-											System.err.println("GRCh37 position " + chr + ":" + pos + " ("+getValue(Field.snpeff_effect)+") does not exists in DBNSFP (or has been deleted in GRCh38), annotation skipped for this position.");
-										}else {
-											System.err.println("Position " + chr + ":" + pos + " (" + getValue(Field.snpeff_effect) + ") does not exists in DBNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"'");
-										}										
-									}
-								}
+								row = readRow(res, plan.getDBNSFPColumns(table, parser.get(table)));
 							}
 						}
+						setDBNSFP(table, parser.get(table), row, silent);
 					}
 				}
 			}catch (Exception ex){
@@ -1181,6 +1011,209 @@ public class AnnotatedVariant {
 		}
 	}
 
+	/**
+	 * Read the current row of a result set, keeping only the given columns (if present in the result set).
+	 * 
+	 * @return column name -> value as String, column names are case insensitive
+	 */
+	static Map<String,String> readRow(Results res, Set<String> columns) throws Exception {
+		Map<String,String> row = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		ResultSetMetaData meta = res.getMetaData();
+		for (int i=1 ; i <= meta.getColumnCount() ; i++) {
+			String column = meta.getColumnLabel(i);
+			if (columns.contains(column)) {
+				row.put(column, res.getString(i));
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Set annotations from one row of a DBNSFP table (see setDBNSFP() above).
+	 * 
+	 * @param table name of the DBNSFP table
+	 * @param columns columns of the table and their corresponding field
+	 * @param row values of the row found for this variant (see readRow()), or null if the variant was not found in the table
+	 * @param silent
+	 */
+	void setDBNSFP(String table, Map<String,Field> columns, Map<String,String> row, boolean silent){
+		String gene_symbol = (String)entries.get(Field.gene_symbol);
+		String gene_ensembl = (String)entries.get(Field.gene_ensembl);
+		String transcript_ensembl = (String)entries.get(Field.transcript_ensembl);
+		String chr = (String)entries.get(Field.chr);
+		int pos = (entries.get(Field.pos) == null) ? -1 : (int)entries.get(Field.pos);
+		int transcriptIndex = -1;
+		int MutationTasterIndex = 0;
+		if (row != null){
+			if (table.startsWith("chromosome")) {
+				//Find index of canonical transcript (since dbNSFP 4.1, it seems easier, # of Ensembl protein ids and Uniprot ids match # of Ensembl transcripts, and all scores also match that same number 
+				String[] transcriptIds = row.get("Ensembl_transcriptid").split(";");
+				boolean found = false;
+				//First check if our transcript_ensembl is found in the list of dbNSFP
+				for (int i=0 ; i < transcriptIds.length ; i++) {
+					String transcript = transcriptIds[i];
+					if (transcript.equals(transcript_ensembl)) {
+						transcriptIndex = i;
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					if (!silent) System.err.println("Ensembl transcript '"+transcript_ensembl+"' present in VCF was not found in dbNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
+					//dbNSFP probably a version Ensembl different of the one linked to this analysis. Use the canonical given by VEP, it should match
+					for (int i=0 ; i < row.get("VEP_canonical").split(";").length ; i++) {
+						String canonical = row.get("VEP_canonical").split(";")[i];
+						if (canonical.equals("YES")) {
+							transcriptIndex = i;
+							found = true;
+							break;
+						}
+					}
+				}
+				if (!found) {
+					if (!silent) System.err.println("No canonical transcript was found in dbNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
+					if (!silent) System.err.println("Using transcript "+transcriptIds[0]+" instead of "+transcript_ensembl+" for gene '"+gene_symbol+"' / '"+gene_ensembl+"' on variant " + chr + ":" + pos);
+					transcriptIndex = 0;
+				}
+			}
+			//Mutation taster is only one that have different transcript number and/or order
+			if (columns.containsKey("MutationTaster_score") || columns.containsKey("MutationTaster_AAE")) {
+				if (row.get("MutationTaster_AAE").contains(";")) {
+					//try to find the one that match amino acid substitution (now always OK, but generally similar score, and anyway the best we can do with what we have)
+					String canonicAAE = row.get("aaref") + row.get("aapos").split(";")[transcriptIndex] + row.get("aaalt");
+					String[] aae = row.get("MutationTaster_AAE").split(";");
+					for (int i=0 ; i < aae.length ; i++) {
+						if (aae[i].equals(canonicAAE)) {
+							MutationTasterIndex = i;
+							break;
+						}
+					}
+				}
+			}
+			for (String column : columns.keySet()) {
+				Field field = columns.get(column);
+				if (entries.get(field) == null &&
+						//Predictions computed when fetching score
+						!field.equals(Field.splicing_ada_pred) &&
+						!field.equals(Field.splicing_rf_pred)
+						) {
+					//Basic field
+					String value = row.get(column);
+					if (column.equals("CADD_raw") || column.equals("CADD_raw_rankscore") ||	column.equals("CADD_phred")) {
+						//CADD scores for functional prediction of a SNP using the hg19 model.
+						if (analysis.getReference().getGenomeVersion() == 37) {
+							value = row.get(column+"_hg19");
+						}											
+					}
+					if (value != null) {
+						value = value.trim();
+						if (field.hasMultipleAnnotations()) {
+							if (field.getMultipleAnnotationsField().equalsIgnoreCase("MutationTaster")) {
+								value = value.split(field.getMultipleAnnotationsSeparator())[MutationTasterIndex];
+							}else {
+								value = value.split(field.getMultipleAnnotationsSeparator())[transcriptIndex];
+							}
+						}
+						if (!value.equals(".")) {
+							switch(column) {
+							case "MutationTaster_pred":
+								if (value.equals("A")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
+								else if (value.equals("P")) entries.put(field, ImpactPrediction.TOLERATED); 
+								break;
+							case "FATHMM_pred":
+							case "SIFT_pred":
+							case "SIFT4G_pred":
+							case "M-CAP_pred":
+							case "LIST-S2_pred":
+							case "DEOGEN2_pred":
+							case "ClinPred_pred":
+							case "BayesDel_addAF_pred":
+							case "BayesDel_noAF_pred":
+							case "PrimateAI_pred":
+							case "MetaSVM_pred":
+							case "MetaLR_pred":
+								if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("T")) entries.put(field, ImpactPrediction.TOLERATED); 
+								break;
+							case "fathmm-XF_coding_pred":
+							case "fathmm-MKL_coding_pred":
+							case "PROVEAN_pred":
+								if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
+								break;
+							case "Polyphen2_HDIV_pred":
+							case "Polyphen2_HVAR_pred":
+								if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING);
+								else if (value.equals("P")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("B")) entries.put(field, ImpactPrediction.TOLERATED); 													
+								break;
+							case "MutationAssessor_pred":
+								if (value.equals("H")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("M")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("L")) entries.put(field, ImpactPrediction.TOLERATED); 
+								else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
+								break;
+							case "LRT_pred":
+								if (value.equals("D")) entries.put(field, ImpactPrediction.DAMAGING); 
+								else if (value.equals("N")) entries.put(field, ImpactPrediction.TOLERATED); 
+								else if (value.equals("U")) entries.put(field, null); 
+								break;
+							case "integrated_confidence_value":
+							case "GM12878_confidence_value":
+							case "H1-hESC_confidence_value":
+							case "HUVEC_confidence_value":
+								if (value.equalsIgnoreCase("0")) entries.put(field, FitCons.HIGHLY_SIGNIFICANT); 
+								else if (value.equalsIgnoreCase("1")) entries.put(field, FitCons.SIGNIFICANT); 
+								else if (value.equalsIgnoreCase("2")) entries.put(field, FitCons.INFORMATIVE); 
+								else if (value.equalsIgnoreCase("3")) entries.put(field, FitCons.OTHER); 
+								break;
+							case "Aloft_pred":
+								if (value.equalsIgnoreCase("DOMINANT")) entries.put(field, Aloft.DOMINANT); 
+								else if (value.equalsIgnoreCase("RECESSIVE")) entries.put(field, Aloft.RECESSIVE); 
+								else if (value.equalsIgnoreCase("TOLERANT")) entries.put(field, Aloft.TOLERANT); 
+								break;
+							case "ada_score":
+								double ada_score = Double.parseDouble(value);
+								entries.put(field, ada_score);
+								entries.put(Field.splicing_ada_pred, (ada_score > 0.6) ? SplicingPrediction.AFFECTING_SPLICING : SplicingPrediction.SPLICING_UNAFFECTED);
+								break;													
+							case "rf_score":
+								double rf_score = Double.parseDouble(value);
+								entries.put(field, rf_score);
+								entries.put(Field.splicing_rf_pred, (rf_score > 0.6) ? SplicingPrediction.AFFECTING_SPLICING : SplicingPrediction.SPLICING_UNAFFECTED);
+								break;
+							case "HIPred":
+							case "is_scSNV_RefSeq":
+							case "is_scSNV_Ensembl":
+							case "ExAC_cnv_flag":
+								//Convert Y/N to boolean
+								entries.put(field, (value.toUpperCase().equals("Y")) ? true : false);
+								break;
+							default:
+								setFieldValue(columns.get(column), value);
+								break;
+							}
+						}
+					}
+				}
+			}
+		}else {
+			if (!silent) {
+				if (table.startsWith("genes")) {
+					System.err.println("Gene '"+gene_symbol+"' / '"+gene_ensembl+"' does not exists in DBNSFP genes");
+				}else {
+					if (analysis.getReference().getGenomeVersion() == 37) {
+						System.err.println("GRCh37 position " + chr + ":" + pos + " ("+getValue(Field.snpeff_effect)+") does not exists in DBNSFP (or has been deleted in GRCh38), annotation skipped for this position.");
+					}else {
+						System.err.println("Position " + chr + ":" + pos + " (" + getValue(Field.snpeff_effect) + ") does not exists in DBNSFP for gene '"+gene_symbol+"' / '"+gene_ensembl+"'");
+					}										
+				}
+		}
+		}
+	}
+
 	/**
 	 * Set annotations from a 'small' annotation database (few columns to fetch, few treatment to process the annotation).
 	 * This method only works for databases that just need the table and column names to fetch, and few or no treatment of the results.
@@ -1193,28 +1226,18 @@ public class AnnotatedVariant {
 			if (DB.hasSchema(analysis.getReference(), schema)){
 				try{
 					String chr = (String)entries.get(Field.chr);
-					Map<String, Map<String,Field>> parser = new HashMap<>();
-					for (Field field : Field.getAvailableFields(analysis, false)) {
-						if (field.getAnnotationCode() == annotation) {
-							String table = (field.getAnnotationHeaders() != null) ? field.getAnnotationHeaders()[0] : "unknown_table";
-							table = table.replace("[chr]", chr);
-							if (!parser.containsKey(table)) {
-								parser.put(table, new HashMap<>());
+					Map<String, Map<String,Field>> parser = plan.getAnnotationParser(annotation, chr);
+					LocalAnnotationStore store = (annotation != Annotation.COSMIC) ? LocalAnnotationStore.get(analysis.getReference(), schema) : null;
+					for (String table : parser.keySet()) {
+						if (store != null && store.hasTable(table)) {
+							if (DB.getAvailableTables(analysis.getReference(), schema).contains(table)){
+								Map<String,String> row = findInLocalStore(store, table, this, null);
+								if (row != null) setAnnotation(parser.get(table), row);
 							}
-							String column = (field.getAnnotationHeaders().length > 1) ? field.getAnnotationHeaders()[1] : "unknown_column" ;
-							parser.get(table).put(column, field);
+							continue;
 						}
-					}
-					for (String table : parser.keySet()) {
 						if (DB.getAvailableTables(analysis.getReference(), schema).contains(table)){
-							StringBuilder select = new StringBuilder();
-							for (String column : parser.get(table).keySet()) {
-								if (!column.equalsIgnoreCase("unknown_column")) {
-									select.append("`"+column+"`, ");
-								}
-							}
-							select.deleteCharAt(select.length()-1);
-							select.deleteCharAt(select.length()-1);
+							String select = plan.getSelectColumns(annotation, table, parser.get(table));
 							String where = "";
 							switch(annotation) {
 							case GONL:
@@ -1237,7 +1260,7 @@ public class AnnotatedVariant {
 								System.err.println("Annotation source " + annotation + " is NOT supported by this method, annotation NOT done.");
 								return;
 							}
-							try (Results res = DB.select(analysis.getReference(), schema, "SELECT "+select.toString()+" FROM `"+table+"` "+ "WHERE " + where)) {
+							try (Results res = DB.select(analysis.getReference(), schema, "SELECT "+select+" FROM `"+table+"` "+ "WHERE " + where)) {
 								if (res.next()){
 									for (String column : parser.get(table).keySet()) {
 										Field field = parser.get(table).get(column);
@@ -1258,6 +1281,63 @@ public class AnnotatedVariant {
 		}
 	}
 
+	/**
+	 * Set annotations from one row of an annotation database table, already fetched (see setAnnotation(Annotation) and AnnotationBatch).
+	 * 
+	 * @param columns table column -> field
+	 * @param row values of the row (see readRow())
+	 */
+	void setAnnotation(Map<String,Field> columns, Map<String,String> row){
+		for (String column : columns.keySet()) {
+			setFieldValue(columns.get(column), row.get(column));
+		}
+	}
+
+	/**
+	 * Find the row of a variant in a table of the local annotation store, with the same criteria as the queries of setAnnotation(Annotation) and setDBNSFP().
+	 * 
+	 * @param columns columns to keep in the row, or null for all columns
+	 * @return the row found (see LocalAnnotationStore.getRows()), or null if the variant is not in the table
+	 */
+	static Map<String,String> findInLocalStore(LocalAnnotationStore store, String table, AnnotatedVariant variant, Set<String> columns) throws Exception {
+		int pos = (variant.getValue(Field.pos) == null) ? -1 : (int)variant.getValue(Field.pos);
+		for (Map<String,String> row : store.getRows(table, pos, columns)) {
+			if (row.containsKey("reference")) {
+				//gnomAD, GoNL
+				if (String.valueOf(variant.getValue(Field.reference)).equalsIgnoreCase(row.get("reference")) 
+						&& String.valueOf(variant.getValue(Field.alternative)).equalsIgnoreCase(row.get("alternative"))) {
+					return row;
+				}
+			}else {
+				//dbNSFP
+				if (String.valueOf(variant.getValue(Field.alternative)).equalsIgnoreCase(row.get("alt")) && isSameDBNSFPGene(table, row, variant)) {
+					return row;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean contains(String value, String searched) {
+		return value != null && value.toLowerCase().contains(String.valueOf(searched).toLowerCase());
+	}
+
+	/**
+	 * @return true if the dbNSFP row concerns the gene of the variant (same criteria as the query in setDBNSFP())
+	 */
+	static boolean isSameDBNSFPGene(String table, Map<String,String> row, AnnotatedVariant variant) {
+		String gene_symbol = (String)variant.getValue(Field.gene_symbol);
+		String gene_ensembl = (String)variant.getValue(Field.gene_ensembl);
+		if (table.startsWith("genes")) {
+			return String.valueOf(gene_symbol).equalsIgnoreCase(row.get("Gene_name")) || String.valueOf(gene_ensembl).equalsIgnoreCase(row.get("Ensembl_gene"));
+		}else if (table.startsWith("chromosome")) {
+			return contains(row.get("genename"), gene_symbol) || contains(row.get("Ensembl_geneid"), gene_ensembl);
+		}else if (table.startsWith("dbscSNV")) {
+			return contains(row.get("RefSeq_gene"), gene_symbol) || contains(row.get("Ensembl_gene"), gene_ensembl);
+		}
+		return true;
+	}
+
 	//TODO mettre le nom des champs dans les settings globaux, au cas o ils changeraient.
 	//TODO tester si field est null avant setFieldValue, au cas ces champs seraient manquant en db, et envoyer un message d'erreur correct (champ doit tre associ  l'analyse)
 	public void setAnnotSVLine(String[] header, String[] line, boolean fullOnlyFields, String sample){
@@ -1320,16 +1400,14 @@ public class AnnotatedVariant {
 	 * @throws Exception
 	 */
 	public void setAlamut(AlamutParser alamut) throws Exception {
-		for (Field field : Field.getAvailableFields(analysis, false)) {
-			if (field.getAnnotationCode() == Annotation.ALAMUT) {
-				String header = field.toString().replaceAll("_", "");
-				if (field.getName().equals("dbsnp_maf")) header = "rsMAF";
-				String alamutString = alamut.extract(header, altIdx);
-				if (alamutString == null || alamutString.length() == 0){
-					entries.put(field, null);
-				}else{
-					setFieldValue(field, alamutString);
-				}
+		Field[] fields = plan.getAlamutFields();
+		String[] headers = plan.getAlamutHeaders();
+		for (int i=0 ; i < fields.length ; i++) {
+			String alamutString = alamut.extract(headers[i], altIdx);
+			if (alamutString == null || alamutString.length() == 0){
+				entries.put(fields[i], null);
+			}else{
+				setFieldValue(fields[i], alamutString);
 			}
 		} 
 	}
@@ -1606,46 +1684,39 @@ public class AnnotatedVariant {
 	
 	public String getInsertionString(DBMS dbms, String table){
 		String nullStr = HighlanderDatabase.getNullString(dbms);
-		StringBuilder sb = new StringBuilder();
-		for (Field f : Field.getAvailableFields(analysis, false)){
-			if ((f.getTable(analysis).equalsIgnoreCase(table) || f.isForeignKey(table))
-					&& !(f.equals(Field.variant_sample_id) || f.equals(Field.variant_static_id) || f.equals(Field.gene_id) || f.equals(Field.variant_custom_id))
-					){				
-				if(f == Field.gene_symbol) {
-					if (entries.get(f) != null)	sb.append(entries.get(f)+"\t");
-					else sb.append("\t");					
-				}else if (f.getFieldClass() == String.class){
-					if (entries.get(f) != null && entries.get(f).toString().length() > 0)	sb.append(HighlanderDatabase.format(dbms, Schema.HIGHLANDER, entries.get(f).toString())+"\t");
-					else sb.append(nullStr+"\t");
-				}else if (f.getFieldClass() == Boolean.class){
-					if (entries.get(f) != null) {
-						if (dbms == DBMS.hsqldb) sb.append(((boolean)entries.get(f)?"true":"false")+"\t");
-						else sb.append(((boolean)entries.get(f)?"1":"0")+"\t");
-					}else {
-						sb.append(nullStr+"\t");
-					}
-				}else{
-					if (entries.get(f) != null)	sb.append(entries.get(f)+"\t");
-					else sb.append(nullStr+"\t");
+		AnalysisAnnotationPlan.Insertion insertion = plan.getInsertion(table);
+		StringBuilder sb = new StringBuilder(insertion.fields.length * 8);
+		for (int i=0 ; i < insertion.fields.length ; i++){
+			Object value = entries.get(insertion.fields[i]);
+			switch (insertion.formats[i]) {
+			case GENE_SYMBOL:
+				if (value != null)	sb.append(value);
+				break;
+			case STRING:
+				if (value != null && value.toString().length() > 0)	sb.append(HighlanderDatabase.format(dbms, Schema.HIGHLANDER, value.toString()));
+				else sb.append(nullStr);
+				break;
+			case BOOLEAN:
+				if (value != null) {
+					if (dbms == DBMS.hsqldb) sb.append((boolean)value?"true":"false");
+					else sb.append((boolean)value?"1":"0");
+				}else {
+					sb.append(nullStr);
 				}
+				break;
+			default:
+				if (value != null)	sb.append(value);
+				else sb.append(nullStr);
+				break;
 			}
+			sb.append('\t');
 		}
-		sb.append("\n");
+		sb.append('\n');
 		return sb.toString();
 	}
 
 	public static String getInsertionColumnsString(Analysis analysis, String table){
-		StringBuilder out  = new StringBuilder();
-		for (Field f : Field.getAvailableFields(analysis, false)){
-			if ((f.getTable(analysis).equalsIgnoreCase(table) || f.isForeignKey(table))
-					&& !(f.equals(Field.variant_sample_id) || f.equals(Field.variant_static_id) || f.equals(Field.gene_id) || f.equals(Field.variant_custom_id))
-					){
-				out.append(f.getName() + ", ");
-			}
-		}
-		out.deleteCharAt(out.length()-1);
-		out.deleteCharAt(out.length()-1);
-		return out.toString();		
+		return AnalysisAnnotationPlan.get(analysis).getInsertion(table).columns;
 	}
 
 	protected String buildSqlInsert(boolean includeNulls, String table){
@@ -1751,19 +1822,7 @@ public class AnnotatedVariant {
 		sb.append("UPDATE " + analysis.getFromStaticAnnotations() + analysis.getJoinGeneAnnotations() + " SET ");
 		for (Field f : Field.getAvailableFields(analysis, false)){
 			if (annotations.contains(f.getAnnotationCode())){
-				if (f.getFieldClass() == String.class){
-					if (entries.get(f) != null && entries.get(f).toString().length() > 0)	sb.append(f.getName()+" = '"+DB.format(Schema.HIGHLANDER, entries.get(f).toString())+"', ");
-					else sb.append(f.getName()+" = NULL, ");
-				}else if (f.getFieldClass() == Boolean.class){
-					if (entries.get(f) != null)	sb.append(f.getName()+" = "+(boolean)entries.get(f)+", ");
-					else sb.append(f.getName()+" = NULL, ");
-				}else if (f.getFieldClass() == Integer.class || f.getFieldClass() == Double.class){
-					if (entries.get(f) != null)	sb.append(f.getName()+" = "+entries.get(f)+", ");
-					else sb.append(f.getName()+" = NULL, ");
-				}else{
-					if (entries.get(f) != null)	sb.append(f.getName()+" = '"+entries.get(f)+"', ");
-					else sb.append(f.getName()+" = NULL, ");
-				}
+				sb.append(f.getName()+" = "+getSqlValue(f)+", ");
 			}
 		}
 		sb.deleteCharAt(sb.length()-1);
@@ -1772,6 +1831,96 @@ public class AnnotatedVariant {
 		return sb.toString();
 	}
 
+	/**
+	 * @return the fields of static and gene annotations tables set by the given annotations, as updated by getAnnotationsUpdateValues()
+	 */
+	public static List<Field> getAnnotationsFields(Analysis analysis, Set<Annotation> annotations) {
+		List<Field> fields = new ArrayList<>();
+		for (Field f : Field.getAvailableFields(analysis, false)){
+			if (annotations.contains(f.getAnnotationCode()) && 
+					(f.getTable(analysis).equals(analysis.getTableStaticAnnotations()) || f.getTable(analysis).equals(analysis.getTableGeneAnnotations()))){
+				fields.add(f);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @param fields fields returned by getAnnotationsFields()
+	 * @return a row of a multi-row INSERT statement: (variant_static_id, values of the fields)
+	 */
+	public String getAnnotationsUpdateValues(List<Field> fields) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("("+(long)entries.get(Field.variant_static_id));
+		for (Field f : fields){
+			sb.append(", "+getSqlValue(f));
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	/**
+	 * @param table static or gene annotations table
+	 * @param key field identifying the row to update in the table (variant_static_id or gene_symbol)
+	 * @param fields fields of the table returned by getAnnotationsFields()
+	 * @return an UPDATE statement of one table, for DBMS without multi-table UPDATE
+	 */
+	public String getAnnotationsUpdateStatement(String table, Field key, List<Field> fields) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("UPDATE `"+table+"` SET ");
+		for (int i=0 ; i < fields.size() ; i++){
+			if (i > 0) sb.append(", ");
+			sb.append("`"+fields.get(i).getName()+"` = "+getSqlValue(fields.get(i)));
+		}
+		sb.append(" WHERE `"+key.getName()+"` = "+((key == Field.variant_static_id) ? ""+(long)entries.get(Field.variant_static_id) : getSqlValue(key)));
+		return sb.toString();
+	}
+
+	private String getSqlValue(Field f) {
+		Object value = entries.get(f);
+		if (value == null) return "NULL";
+		if (f.getFieldClass() == String.class){
+			return (value.toString().length() > 0) ? "'"+DB.format(Schema.HIGHLANDER, value.toString())+"'" : "NULL";
+		}else if (f.getFieldClass() == Boolean.class){
+			return ""+(boolean)value;
+		}else if (f.getFieldClass() == Integer.class || f.getFieldClass() == Double.class){
+			return value.toString();
+		}else{
+			return "'"+value+"'";
+		}
+	}
+
+	/**
+	 * Fetch static and gene annotations of several variants with one query, same as fetchStaticAndGeneAnnotations() for each of them.
+	 * 
+	 * @return variants found, in no particular order (ids that don't exist are ignored)
+	 */
+	public static List<AnnotatedVariant> fetchStaticAndGeneAnnotations(AnalysisFull analysis, List<Integer> variant_static_ids) throws Exception {
+		List<AnnotatedVariant> variants = new ArrayList<>();
+		if (variant_static_ids.isEmpty()) return variants;
+		Set<Field> fields = new HashSet<>();
+		StringBuilder query = new StringBuilder();
+		query.append("SELECT ");
+		for (Field field : Field.getAvailableFields(analysis, false)){
+			if (field.getTable(analysis).equals(analysis.getTableStaticAnnotations()) || field.getTable(analysis).equals(analysis.getTableGeneAnnotations())) {
+				fields.add(field);
+				query.append(field.getQuerySelectName(analysis, false)+", ");
+			}
+		}
+		query.delete(query.length()-2, query.length());
+		query.append(" FROM "+analysis.getFromStaticAnnotations());		
+		query.append(analysis.getJoinGeneAnnotations());		
+		query.append("WHERE "+Field.variant_static_id.getQueryWhereName(analysis, false)+" IN (" + HighlanderDatabase.makeSqlList(variant_static_ids, Integer.class) + ")");
+		try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString(), true)) {
+			while (res.next()){
+				AnnotatedVariant variant = new AnnotatedVariant(analysis);
+				extractFromSqlResultSet(variant, res, fields);
+				variants.add(variant);
+			}
+		}
+		return variants;
+	}
+
 	/**
 	 * Remove this variant from Highlander sample and custom tables (variant stay in static table, as well as user annotations).
 	 * @throws Exception
@@ -0,0 +1,893 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.administration.AlamutParser;
+import be.uclouvain.ngs.highlander.database.CanonicalTranscriptIndex;
+import be.uclouvain.ngs.highlander.database.DBUtils;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.LocalAnnotationStore;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.Field.Annotation;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.datatype.SNPEffect.VariantType;
+
+/**
+ * Annotate consecutive lines of a VCF together, with the same result as AnnotatedVariant.setAllAnnotations() for each line.
+ *
+ * Instead of one query per variant for each annotation source (GoNL, gnomAD, Ensembl, COSMIC, each dbNSFP table),
+ * each source is queried once per chromosome for all variants of the batch: a position range and the list of searched alleles.
+ * The VCF is expected to be sorted by position, so the variants of a batch are close to each other.
+ *
+ * Usage: add() lines until isFull(), annotate(), get results with getVariants() for each line, then clear() and continue.
+ *
+ * With setSkipKnownVariants(), variants already present in the static annotations table are only annotated with
+ * sources needed by the sample and custom annotations tables (see isKnown()).
+ */
+public class AnnotationBatch {
+
+	public static final int DEFAULT_SIZE = 500;
+	/**
+	 * Maximum number of alleles in the IN (...) list of one query
+	 */
+	private static final int MAX_KEYS_PER_QUERY = 1000;
+
+	private static class Allele {
+		final AnnotatedVariant variant;
+		Set<Gene> genes;
+		final Set<Gene> knownGenes = new HashSet<>();
+		final List<Gene> variantGenes = new ArrayList<>();
+		final List<AnnotatedVariant> variantsByGene = new ArrayList<>();
+
+		Allele(AnnotatedVariant variant){
+			this.variant = variant;
+		}
+
+		boolean isKnown(){
+			return knownGenes.size() == genes.size();
+		}
+	}
+
+	private static class Line {
+		final int number;
+		final String text;
+		final String[] header;
+		final List<Allele> alleles = new ArrayList<>();
+		Exception error = null;
+
+		Line(int number, String text, String[] header){
+			this.number = number;
+			this.text = text;
+			this.header = header;
+		}
+	}
+
+	private final HighlanderDatabase DB;
+	private final AnalysisFull analysis;
+	private final AnalysisAnnotationPlan plan;
+	private final Reference reference;
+	private final AnnotatedVariant template;
+	private final String sample;
+	private final AlamutParser alamut;
+	private final boolean silent;
+	private final int size;
+	private final List<Line> lines = new ArrayList<>();
+	private boolean skipKnown = false;
+	private Set<Annotation> sampleSources = EnumSet.noneOf(Annotation.class);
+	private final Set<AnnotatedVariant> known = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * @param projectId the id of the sample in Highlander database
+	 * @param alamut a parser of the alamut file. Can be set to null if not present
+	 * @param size number of VCF lines annotated together
+	 */
+	public AnnotationBatch(AnalysisFull analysis, int projectId, AlamutParser alamut, boolean silent, int size) throws Exception {
+		DB = Highlander.getDB();
+		this.analysis = analysis;
+		this.plan = AnalysisAnnotationPlan.get(analysis);
+		this.reference = analysis.getReference();
+		this.template = new AnnotatedVariant(analysis);
+		template.setProject(projectId);
+		this.sample = (String)template.getValue(Field.sample);
+		this.alamut = alamut;
+		this.silent = silent;
+		this.size = size;
+	}
+
+	/**
+	 * @param sample name of the sample, needed if multiple sample headers are present.
+	 * @param alamut a parser of the alamut file. Can be set to null if not present
+	 * @param size number of VCF lines annotated together
+	 */
+	public AnnotationBatch(AnalysisFull analysis, String sample, AlamutParser alamut, boolean silent, int size) {
+		DB = Highlander.getDB();
+		this.analysis = analysis;
+		this.plan = AnalysisAnnotationPlan.get(analysis);
+		this.reference = analysis.getReference();
+		this.template = new AnnotatedVariant(analysis);
+		this.sample = sample;
+		this.alamut = alamut;
+		this.silent = silent;
+		this.size = size;
+	}
+
+	private AnnotationBatch(AnnotationBatch settings) {
+		DB = settings.DB;
+		this.analysis = settings.analysis;
+		this.plan = settings.plan;
+		this.reference = settings.reference;
+		this.template = settings.template;
+		this.sample = settings.sample;
+		this.alamut = settings.alamut;
+		this.silent = settings.silent;
+		this.size = settings.size;
+		this.skipKnown = settings.skipKnown;
+		this.sampleSources = settings.sampleSources;
+	}
+
+	/**
+	 * Variants already present in the static annotations table (same chr, pos, length, reference, alternative and gene_symbol)
+	 * will only get annotations of sources having fields in the sample or custom annotations tables.
+	 * Their static and gene annotations should not be inserted again, see isKnown().
+	 */
+	public void setSkipKnownVariants(boolean skipKnown) {
+		this.skipKnown = skipKnown;
+		sampleSources = EnumSet.noneOf(Annotation.class);
+		if (skipKnown) {
+			for (Field field : plan.getFields()) {
+				String table = field.getTable(analysis);
+				if (table.equalsIgnoreCase(analysis.getTableSampleAnnotations()) || table.equalsIgnoreCase(analysis.getTableCustomAnnotations())) {
+					sampleSources.add(field.getAnnotationCode());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the variant (as returned by getVariants()) was already present in the static annotations table,
+	 * when setSkipKnownVariants() is enabled
+	 */
+	public boolean isKnown(AnnotatedVariant variant) {
+		return known.contains(variant);
+	}
+
+	private boolean isNeeded(boolean known, Annotation annotation) {
+		return !known || sampleSources.contains(annotation);
+	}
+
+	/**
+	 * @return a new empty batch with the same analysis, sample and settings
+	 */
+	public AnnotationBatch newBatch() {
+		return new AnnotationBatch(this);
+	}
+
+	/**
+	 * @param lineNumber line number in the VCF file, for error messages
+	 * @param line the full VCF line describing the variant
+	 * @param header list of VCF headers, if null the line will be in error
+	 */
+	public void add(int lineNumber, String line, String[] header) {
+		Line l = new Line(lineNumber, line, header);
+		if (header == null) l.error = new Exception("VCF header columns were not found, need a line starting with ONE # followed by all headers");
+		lines.add(l);
+	}
+
+	public int size() {
+		return lines.size();
+	}
+
+	public boolean isFull() {
+		return lines.size() >= size;
+	}
+
+	public String getLine(int index) {
+		return lines.get(index).text;
+	}
+
+	public int getLineNumber(int index) {
+		return lines.get(index).number;
+	}
+
+	/**
+	 * @return all variant parsed from the VCF line (one variant per alternative allele per gene spanning the variant)
+	 * @throws Exception the error that prevented the annotation of this line
+	 */
+	public List<AnnotatedVariant> getVariants(int index) throws Exception {
+		Line line = lines.get(index);
+		if (line.error != null) throw line.error;
+		List<AnnotatedVariant> list = new ArrayList<>();
+		for (Allele allele : line.alleles) {
+			list.addAll(allele.variantsByGene);
+		}
+		return list;
+	}
+
+	public void clear() {
+		lines.clear();
+		known.clear();
+	}
+
+	private static void addTime(Annotation annotation, long start) {
+		synchronized (AnnotatedVariant.time) {
+			AnnotatedVariant.time.put(annotation, AnnotatedVariant.time.get(annotation)+(System.currentTimeMillis()-start));
+		}
+	}
+
+	/**
+	 * Annotate all lines of the batch, in the same order than AnnotatedVariant.setAllAnnotations().
+	 * Errors are kept by line and thrown by getVariants().
+	 */
+	public void annotate() {
+		annotateDatabases();
+		annotateAlamut();
+	}
+
+	/**
+	 * All annotations except Alamut.
+	 * Batches are independent of each other, so this method can be called on several batches at the same time.
+	 */
+	public void annotateDatabases() {
+		long t = System.currentTimeMillis();
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			try {
+				String[] data = line.text.split("\t");
+				int numAlleles = data[4].split(",").length;
+				for (int altIdx=0 ; altIdx < numAlleles ; altIdx++){
+					AnnotatedVariant va = new AnnotatedVariant(template);
+					va.setVCFLine(line.header, data, altIdx, sample);
+					line.alleles.add(new Allele(va));
+				}
+			}catch (Exception ex) {
+				line.error = ex;
+				line.alleles.clear();
+			}
+		}
+		addTime(Annotation.VCF, t);
+		t = System.currentTimeMillis();
+		setGenes();
+		if (skipKnown) setKnownGenes();
+		addTime(Annotation.HIGHLANDER, t);
+		//Annotation that are independant of gene
+		for (Annotation annotation : new Annotation[] {Annotation.GONL, Annotation.GNOMAD_WES, Annotation.GNOMAD_WGS}) {
+			t = System.currentTimeMillis();
+			List<AnnotatedVariant> alleles = new ArrayList<>();
+			for (Line line : lines) {
+				if (line.error != null) continue;
+				for (Allele allele : line.alleles) {
+					if (isNeeded(allele.isKnown(), annotation)) alleles.add(allele.variant);
+				}
+			}
+			try {
+				setAnnotation(annotation, alleles, false);
+			}catch (Exception ex) {
+				setError(ex);
+			}
+			addTime(annotation, t);
+		}
+		//One variant per gene
+		t = System.currentTimeMillis();
+		List<AnnotatedVariant> variants = new ArrayList<>();
+		List<Gene> variantGenes = new ArrayList<>();
+		Set<String> transcripts = new HashSet<>();
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			for (Allele allele : line.alleles) {
+				for (Gene gene : allele.genes) {
+					AnnotatedVariant vg = new AnnotatedVariant(allele.variant);
+					allele.variantGenes.add(gene);
+					allele.variantsByGene.add(vg);
+					if (allele.knownGenes.contains(gene)) known.add(vg);
+					if (vg.exist) {
+						variants.add(vg);
+						variantGenes.add(gene);
+						if (gene.getGeneSymbol().length() > 0 && isNeeded(isKnown(vg), Annotation.ENSEMBL)) transcripts.add(gene.getEnsemblTranscript());
+					}
+				}
+			}
+		}
+		Map<String,String> uniprot = new HashMap<>();
+		Map<String,String> refseqProt = new HashMap<>();
+		if (DB.hasSchema(reference, Schema.ENSEMBL)){
+			try{
+				uniprot = DBUtils.getAccessionsUniprot(reference, transcripts);
+			}catch (Exception ex){
+				Tools.exception(ex);
+				if (!silent) System.err.println("Cannot get transcript_uniprot_id for variants of lines " + lines.get(0).number + " to " + lines.get(lines.size()-1).number);
+			}
+			try{
+				refseqProt = DBUtils.getAccessionsRefSeqProt(reference, transcripts);
+			}catch (Exception ex){
+				Tools.exception(ex);
+				if (!silent) System.err.println("Cannot get transcript_refseq_prot for variants of lines " + lines.get(0).number + " to " + lines.get(lines.size()-1).number);
+			}
+		}
+		List<AnnotatedVariant> variantsInGene = new ArrayList<>();
+		for (int i=0 ; i < variants.size() ; i++) {
+			Gene gene = variantGenes.get(i);
+			if (gene.getGeneSymbol().length() > 0) {
+				//Always set, gene_symbol is part of the sample and custom annotations keys
+				variants.get(i).setEnsembl(gene, uniprot, refseqProt);
+				if (isNeeded(isKnown(variants.get(i)), Annotation.COSMIC)) variantsInGene.add(variants.get(i));
+			}
+		}
+		addTime(Annotation.ENSEMBL, t);
+		t = System.currentTimeMillis();
+		for (int i=0 ; i < variants.size() ; i++) {
+			Gene gene = variantGenes.get(i);
+			if (gene.getGeneSymbol().length() > 0 && isNeeded(isKnown(variants.get(i)), Annotation.COMPUTED)) {
+				variants.get(i).setSNPEffect(gene, silent);
+			}
+		}
+		addTime(Annotation.COMPUTED, t);
+		t = System.currentTimeMillis();
+		try {
+			setAnnotation(Annotation.COSMIC, variantsInGene, false); //Cosmic need hgvs_dna column
+		}catch (Exception ex) {
+			setError(ex);
+		}
+		addTime(Annotation.COSMIC, t);
+		t = System.currentTimeMillis();
+		List<AnnotatedVariant> variantsDBNSFP = new ArrayList<>();
+		for (AnnotatedVariant variant : variants) {
+			if (isNeeded(isKnown(variant), Annotation.DBNSFP)) variantsDBNSFP.add(variant);
+		}
+		try {
+			setDBNSFP(variantsDBNSFP, false);
+		}catch (Exception ex) {
+			setError(ex);
+		}
+		addTime(Annotation.DBNSFP, t);
+		t = System.currentTimeMillis();
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			try {
+				for (Allele allele : line.alleles) {
+					for (int i=0 ; i < allele.variantsByGene.size() ; i++) {
+						AnnotatedVariant vg = allele.variantsByGene.get(i);
+						if (vg.exist && isNeeded(isKnown(vg), Annotation.CONSENSUS)) {
+							vg.setConsensusPrediction(allele.variantGenes.get(i));
+						}
+					}
+				}
+			}catch (Exception ex) {
+				line.error = ex;
+			}
+		}
+		addTime(Annotation.CONSENSUS, t);
+	}
+
+	/**
+	 * Error preventing the annotation of all lines not already in error (lookup errors are only reported during importation, so it should not happen)
+	 */
+	private void setError(Exception ex) {
+		for (Line line : lines) {
+			if (line.error == null) line.error = ex;
+		}
+	}
+
+	/**
+	 * Annotate again variants already in the database (see AnnotatedVariant.fetchStaticAndGeneAnnotations()),
+	 * with the same result as DbUpdater had by updating them one by one, but with one query per source (and per 1000 variants).
+	 * Ensembl gene, canonical transcript, RefSeq and biotype are fetched once per gene.
+	 *
+	 * @param annotations STATIC annotations to update, applied in the iteration order of the set
+	 * @param failOnError true to throw the first error of an annotation source (e.g. DbUpdater, which retries the chunk instead of writing back the old values),
+	 * false to only report it and keep the current values of the variants (as during importation)
+	 */
+	public void reannotate(List<AnnotatedVariant> variants, Set<Annotation> annotations, boolean failOnError) throws Exception {
+		//Variants sorted by position, so chunks of setAnnotation() and setDBNSFP() cover small position ranges
+		List<AnnotatedVariant> sorted = new ArrayList<>(variants);
+		sorted.sort(new Comparator<AnnotatedVariant>() {
+			@Override
+			public int compare(AnnotatedVariant a, AnnotatedVariant b) {
+				int c = String.valueOf(a.getValue(Field.chr)).compareTo(String.valueOf(b.getValue(Field.chr)));
+				if (c != 0) return c;
+				int posA = (a.getValue(Field.pos) == null) ? -1 : (int)a.getValue(Field.pos);
+				int posB = (b.getValue(Field.pos) == null) ? -1 : (int)b.getValue(Field.pos);
+				return Integer.compare(posA, posB);
+			}
+		});
+		for (Annotation annotation : annotations) {
+			long t = System.currentTimeMillis();
+			switch(annotation) {
+			case DBNSFP:
+				setDBNSFP(sorted, failOnError);
+				for (AnnotatedVariant variant : sorted) {
+					variant.setConsensusPrediction(getConsensusGene(variant));
+				}
+				break;
+			case ENSEMBL:
+				setEnsemblGenes(sorted, failOnError);
+				break;
+			case CONSENSUS:
+				for (AnnotatedVariant variant : sorted) {
+					variant.setConsensusPrediction(getConsensusGene(variant));
+				}
+				break;
+			case GONL:
+			case GNOMAD_WES:
+			case GNOMAD_WGS:
+			case COSMIC:
+				setAnnotation(annotation, sorted, failOnError);
+				break;
+			default:
+				for (AnnotatedVariant variant : sorted) {
+					variant.setAnnotation(annotation);
+				}
+				break;
+			}
+			addTime(annotation, t);
+		}
+	}
+
+	private Gene getConsensusGene(AnnotatedVariant variant) {
+		return new Gene(reference, variant.getValue(Field.chr).toString(), variant.getValue(Field.gene_symbol).toString(), 
+				((variant.getValue(Field.gene_ensembl) != null) ? variant.getValue(Field.gene_ensembl).toString() : null), 
+				((variant.getValue(Field.transcript_ensembl) != null) ? variant.getValue(Field.transcript_ensembl).toString() : null), 
+				((variant.getValue(Field.transcript_refseq_mrna) != null) ? variant.getValue(Field.transcript_refseq_mrna).toString() : null), 
+				((variant.getValue(Field.biotype) != null) ? variant.getValue(Field.biotype).toString() : null)
+				);
+	}
+
+	/**
+	 * Ensembl annotations of existing variants, using their gene symbol.
+	 * Variants of the same gene share the same Ensembl lookups, accessions are fetched for all transcripts at once.
+	 * @param failOnError true to throw lookup errors, false to only report them
+	 */
+	private void setEnsemblGenes(List<AnnotatedVariant> variants, boolean failOnError) throws Exception {
+		Map<String, Gene> genes = new HashMap<>();
+		List<Gene> variantGenes = new ArrayList<>();
+		Set<String> transcripts = new HashSet<>();
+		for (AnnotatedVariant variant : variants) {
+			String chr = variant.getValue(Field.chr).toString();
+			String symbol = variant.getValue(Field.gene_symbol).toString();
+			String key = chr + "\t" + symbol;
+			if (!genes.containsKey(key)) {
+				Gene gene = new Gene(reference, chr, symbol, null, null, null, null);
+				try {
+					gene.setEnsemblGene(DBUtils.getEnsemblGene(reference, symbol));
+					gene.setEnsemblTranscript(DBUtils.getEnsemblCanonicalTranscript(reference, gene.getEnsemblGene()));
+					gene.setRefSeqTranscript(DBUtils.getAccessionRefSeqMRna(reference, gene.getEnsemblTranscript()));
+					gene.setBiotype(DBUtils.getBiotype(reference, gene.getEnsemblTranscript()));
+				}catch (Exception ex){
+					if (failOnError) throw ex;
+					Tools.exception(ex);
+					if (!silent) System.err.println("Cannot get Ensembl annotations for gene " + symbol);
+				}
+				genes.put(key, gene);
+				if (gene.getEnsemblTranscript() != null) transcripts.add(gene.getEnsemblTranscript());
+			}
+			variantGenes.add(genes.get(key));
+		}
+		Map<String,String> uniprot = new HashMap<>();
+		Map<String,String> refseqProt = new HashMap<>();
+		if (DB.hasSchema(reference, Schema.ENSEMBL)){
+			try{
+				uniprot = DBUtils.getAccessionsUniprot(reference, transcripts);
+			}catch (Exception ex){
+				if (failOnError) throw ex;
+				Tools.exception(ex);
+				if (!silent) System.err.println("Cannot get transcript_uniprot_id for " + genes.size() + " genes");
+			}
+			try{
+				refseqProt = DBUtils.getAccessionsRefSeqProt(reference, transcripts);
+			}catch (Exception ex){
+				if (failOnError) throw ex;
+				Tools.exception(ex);
+				if (!silent) System.err.println("Cannot get transcript_refseq_prot for " + genes.size() + " genes");
+			}
+		}
+		for (int i=0 ; i < variants.size() ; i++) {
+			variants.get(i).setEnsembl(variantGenes.get(i), uniprot, refseqProt);
+		}
+	}
+
+	/**
+	 * Alamut annotations, line by line because the Alamut parser follows the VCF.
+	 * Must be called after annotateDatabases(), on each batch in the order of the VCF.
+	 */
+	public void annotateAlamut() {
+		if (alamut == null) return;
+		long t = System.currentTimeMillis();
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			try {
+				boolean alamutNext = false;
+				for (Allele allele : line.alleles) {
+					for (int i=0 ; i < allele.variantsByGene.size() ; i++) {
+						AnnotatedVariant vg = allele.variantsByGene.get(i);
+						if (vg.exist && alamut.checkVariantPos(vg.getValue(Field.pos).toString())){
+							if (vg.getValue(Field.gene_symbol) != null){
+								alamut.setGene(vg.getValue(Field.gene_symbol).toString());
+								vg.setAlamut(alamut);
+							}
+						}
+					}
+					if (alamut.checkVariantPos(allele.variant.getValue(Field.pos).toString())){
+						alamutNext = true;
+					}
+				}
+				if (alamutNext && alamut.hasNext()) alamut.nextVariant();
+			}catch (Exception ex) {
+				line.error = ex;
+			}
+		}
+		addTime(Annotation.ALAMUT, t);
+	}
+
+	/**
+	 * Find the genes of each allele, using the in-memory index of canonical transcripts.
+	 * If the index cannot be built, genes are searched allele by allele in Ensembl.
+	 */
+	private void setGenes() {
+		CanonicalTranscriptIndex index = null;
+		try {
+			index = CanonicalTranscriptIndex.get(reference);
+		}catch (Exception ex) {
+			Tools.exception(ex);
+		}
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			for (Allele allele : line.alleles) {
+				try {
+					Variant variant = toVariant(allele.variant);
+					allele.genes = (index != null) ? index.getGenesWithCanonicalTranscriptIntersect(variant) : DBUtils.getGenesWithCanonicalTranscriptIntersect(reference, variant);
+				}catch (Exception ex) {
+					line.error = ex;
+					break;
+				}
+			}
+		}
+		for (Line line : lines) {
+			if (line.error != null) {
+				line.alleles.clear();
+			}else {
+				for (Allele allele : line.alleles) {
+					allele.variant.entries.put(Field.num_genes, allele.genes.size());
+					if (allele.genes.isEmpty()) allele.genes.add(new Gene(reference, (String)allele.variant.getValue(Field.chr), "", "", "", "", ""));
+				}
+			}
+		}
+	}
+
+	private static String getStaticKey(AnnotatedVariant variant, String geneSymbol) {
+		return variant.getValue(Field.chr) + "\t" + variant.getValue(Field.pos) + "\t" + variant.getValue(Field.length)
+		+ "\t" + variant.getValue(Field.reference) + "\t" + variant.getValue(Field.alternative) + "\t" + geneSymbol;
+	}
+
+	/**
+	 * Find which allele/gene combinations are already in the static annotations table, with one query per chromosome.
+	 * If the query fails, all variants are considered new.
+	 */
+	private void setKnownGenes() {
+		Map<String, List<Allele>> byChromosome = new LinkedHashMap<>();
+		for (Line line : lines) {
+			if (line.error != null) continue;
+			for (Allele allele : line.alleles) {
+				String chr = (String)allele.variant.getValue(Field.chr);
+				if (!byChromosome.containsKey(chr)) byChromosome.put(chr, new ArrayList<>());
+				byChromosome.get(chr).add(allele);
+			}
+		}
+		for (String chr : byChromosome.keySet()) {
+			int minPos = Integer.MAX_VALUE;
+			int maxPos = Integer.MIN_VALUE;
+			for (Allele allele : byChromosome.get(chr)) {
+				int pos = (allele.variant.getValue(Field.pos) == null) ? -1 : (int)allele.variant.getValue(Field.pos);
+				minPos = Math.min(minPos, pos);
+				maxPos = Math.max(maxPos, pos);
+			}
+			Set<String> keys = new HashSet<>();
+			try (Results res = DB.select(Schema.HIGHLANDER, "SELECT `chr`, `pos`, `length`, `reference`, `alternative`, `gene_symbol` "
+					+ "FROM " + analysis.getFromStaticAnnotations()
+					+ "WHERE `chr` = '" + DB.format(Schema.HIGHLANDER, chr) + "' AND `pos` BETWEEN " + minPos + " AND " + maxPos)) {
+				while (res.next()) {
+					String geneSymbol = res.getString("gene_symbol");
+					keys.add(res.getString("chr") + "\t" + res.getInt("pos") + "\t" + res.getInt("length")
+					+ "\t" + res.getString("reference") + "\t" + res.getString("alternative") + "\t" + ((geneSymbol != null) ? geneSymbol : ""));
+				}
+			}catch (Exception ex) {
+				Tools.exception(ex);
+				continue;
+			}
+			for (Allele allele : byChromosome.get(chr)) {
+				for (Gene gene : allele.genes) {
+					if (keys.contains(getStaticKey(allele.variant, gene.getGeneSymbol()))) allele.knownGenes.add(gene);
+				}
+			}
+		}
+	}
+
+	private static Variant toVariant(AnnotatedVariant va) {
+		return new Variant(
+				(String)va.getValue(Field.chr),
+				(int)va.getValue(Field.pos),
+				(int)va.getValue(Field.length),
+				(String)va.getValue(Field.reference),
+				(String)va.getValue(Field.alternative),
+				(VariantType)va.getValue(Field.variant_type));
+	}
+
+	private static Map<String, List<AnnotatedVariant>> groupByChromosome(List<AnnotatedVariant> variants){
+		Map<String, List<AnnotatedVariant>> byChromosome = new LinkedHashMap<>();
+		for (AnnotatedVariant variant : variants) {
+			String chr = (String)variant.getValue(Field.chr);
+			if (!byChromosome.containsKey(chr)) byChromosome.put(chr, new ArrayList<>());
+			byChromosome.get(chr).add(variant);
+		}
+		return byChromosome;
+	}
+
+	private static <T> List<List<T>> split(List<T> list){
+		List<List<T>> chunks = new ArrayList<>();
+		for (int i=0 ; i < list.size() ; i += MAX_KEYS_PER_QUERY) {
+			chunks.add(list.subList(i, Math.min(list.size(), i+MAX_KEYS_PER_QUERY)));
+		}
+		return chunks;
+	}
+
+	private String getKey(Annotation annotation, AnnotatedVariant variant) {
+		if (annotation == Annotation.COSMIC) {
+			int start = (variant.getValue(Field.pos) == null) ? -1 : (int)variant.getValue(Field.pos);
+			int length = (variant.getValue(Field.length) == null) ? -1 : (int)variant.getValue(Field.length);
+			int stop = start + length - 1;
+			return variant.getValue(Field.hgvs_dna) + "\t" + variant.getValue(Field.chr)+":"+start+"-"+stop;
+		}else {
+			return variant.getValue(Field.pos) + "\t" + variant.getValue(Field.reference) + "\t" + variant.getValue(Field.alternative);
+		}
+	}
+
+	/**
+	 * Same as AnnotatedVariant.setAnnotation() for all given variants, with one query per table (and per 1000 variants).
+	 *
+	 * @param annotation GNOMAD_WES, GNOMAD_WGS, GONL, COSMIC
+	 * @param failOnError true to throw lookup errors, false to only report them
+	 */
+	private void setAnnotation(Annotation annotation, List<AnnotatedVariant> variants, boolean failOnError) throws Exception {
+		if (!annotation.hasDatabaseSchema() || variants.isEmpty()) return;
+		Schema schema = annotation.getDatabaseSchema();
+		if (!DB.hasSchema(reference, schema)) return;
+		try {
+			LocalAnnotationStore store = (annotation != Annotation.COSMIC) ? LocalAnnotationStore.get(reference, schema) : null;
+			Map<String, List<AnnotatedVariant>> byChromosome = groupByChromosome(variants);
+			for (String chr : byChromosome.keySet()) {
+				Map<String, Map<String,Field>> parser = plan.getAnnotationParser(annotation, chr);
+				for (String table : parser.keySet()) {
+					if (!DB.getAvailableTables(reference, schema).contains(table)) continue;
+					if (store != null && store.hasTable(table)) {
+						for (AnnotatedVariant variant : byChromosome.get(chr)) {
+							Map<String,String> row = AnnotatedVariant.findInLocalStore(store, table, variant, null);
+							if (row != null) {
+								variant.setAnnotation(parser.get(table), row);
+							}
+						}
+						continue;
+					}
+					Set<String> columns = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+					StringBuilder select = new StringBuilder();
+					for (String column : parser.get(table).keySet()) {
+						if (!column.equalsIgnoreCase("unknown_column")) {
+							select.append("`"+column+"`, ");
+							columns.add(column);
+						}
+					}
+					String[] keyColumns = (annotation == Annotation.COSMIC) ? new String[] {"mutation_cds", "mutation_genome_position"} : new String[] {"pos", "reference", "alternative"};
+					for (String column : keyColumns) {
+						select.append("`"+column+"`, ");
+						columns.add(column);
+					}
+					select.delete(select.length()-2, select.length());
+					for (List<AnnotatedVariant> chunk : split(byChromosome.get(chr))) {
+						Set<String> keys = new LinkedHashSet<>();
+						int minPos = Integer.MAX_VALUE;
+						int maxPos = Integer.MIN_VALUE;
+						for (AnnotatedVariant variant : chunk) {
+							switch(annotation) {
+							case GONL:
+							case GNOMAD_WES:
+							case GNOMAD_WGS:
+								int pos = (variant.getValue(Field.pos) == null) ? -1 : (int)variant.getValue(Field.pos);
+								minPos = Math.min(minPos, pos);
+								maxPos = Math.max(maxPos, pos);
+								keys.add("("+pos+",'"+DB.format(schema, (String)variant.getValue(Field.reference))+"','"+DB.format(schema, (String)variant.getValue(Field.alternative))+"')");
+								break;
+							case COSMIC:
+								if (variant.getValue(Field.hgvs_dna) != null) {
+									keys.add("'"+getKey(annotation, variant).split("\t")[1]+"'");
+								}
+								break;
+							default:
+								System.err.println("Annotation source " + annotation + " is NOT supported by this method, annotation NOT done.");
+								return;
+							}
+						}
+						if (keys.isEmpty()) continue;
+						String where;
+						if (annotation == Annotation.COSMIC) {
+							where = "`mutation_genome_position` IN (" + String.join(",", keys) + ")";
+						}else {
+							where = "`pos` BETWEEN " + minPos + " AND " + maxPos + " AND (`pos`, `reference`, `alternative`) IN (" + String.join(",", keys) + ")";
+						}
+						Map<String, Map<String,String>> rows = new HashMap<>();
+						try (Results res = DB.select(reference, schema, "SELECT "+select.toString()+" FROM `"+table+"` "+ "WHERE " + where)) {
+							while (res.next()){
+								Map<String,String> row = AnnotatedVariant.readRow(res, columns);
+								String key = (annotation == Annotation.COSMIC)
+										? row.get("mutation_cds") + "\t" + row.get("mutation_genome_position")
+										: row.get("pos") + "\t" + row.get("reference") + "\t" + row.get("alternative");
+								rows.putIfAbsent(key, row);
+							}
+						}
+						for (AnnotatedVariant variant : chunk) {
+							Map<String,String> row = rows.get(getKey(annotation, variant));
+							if (row != null) {
+								variant.setAnnotation(parser.get(table), row);
+							}
+						}
+					}
+				}
+			}
+		}catch (Exception ex){
+			if (failOnError) throw ex;
+			Tools.exception(ex);
+		}
+	}
+
+	/**
+	 * Same as AnnotatedVariant.setDBNSFP(true, true, true, silent) for all given variants, with one query per table (and per 1000 variants).
+	 * @param failOnError true to throw lookup errors, false to only report them
+	 */
+	private void setDBNSFP(List<AnnotatedVariant> variants, boolean failOnError) throws Exception {
+		if (!DB.hasSchema(reference, Schema.DBNSFP) || variants.isEmpty()) return;
+		try {
+			String posColumn;
+			if (reference.getGenomeVersion() == 37) {
+				posColumn = "hg19_pos";
+			}else if (reference.getGenomeVersion() == 36){
+				posColumn = "hg18_pos";
+			}else {
+				posColumn = "pos";
+			}
+			LocalAnnotationStore store = LocalAnnotationStore.get(reference, Schema.DBNSFP);
+			Map<String, List<AnnotatedVariant>> byChromosome = groupByChromosome(variants);
+			for (String chr : byChromosome.keySet()) {
+				Map<String, Map<String,Field>> parser = plan.getDBNSFPParser(chr, true, true, true);
+				for (String table : parser.keySet()) {
+					if (!DB.getAvailableTables(reference, Schema.DBNSFP).contains(table)) continue;
+					boolean genes = table.startsWith("genes");
+					List<AnnotatedVariant> todo = new ArrayList<>();
+					for (AnnotatedVariant variant : byChromosome.get(chr)) {
+						if (genes || variant.getValue(Field.variant_type) == VariantType.SNV) todo.add(variant);
+					}
+					Set<String> columns = plan.getDBNSFPColumns(table, parser.get(table));
+					if (!genes && store != null && store.hasTable(table)) {
+						for (AnnotatedVariant variant : todo) {
+							try {
+								variant.setDBNSFP(table, parser.get(table), AnnotatedVariant.findInLocalStore(store, table, variant, columns), silent);
+							}catch (Exception ex){
+								if (failOnError) throw ex;
+								Tools.exception(ex);
+							}
+						}
+						continue;
+					}
+					for (List<AnnotatedVariant> chunk : split(todo)) {
+						String where;
+						if (genes) {
+							Set<String> symbols = new TreeSet<>();
+							Set<String> ensembl = new TreeSet<>();
+							for (AnnotatedVariant variant : chunk) {
+								symbols.add(DB.format(Schema.DBNSFP, String.valueOf(variant.getValue(Field.gene_symbol))));
+								ensembl.add(DB.format(Schema.DBNSFP, String.valueOf(variant.getValue(Field.gene_ensembl))));
+							}
+							where = "`Gene_name` IN ("+HighlanderDatabase.makeSqlList(symbols, String.class)+") OR `Ensembl_gene` IN ("+HighlanderDatabase.makeSqlList(ensembl, String.class)+")";
+						}else {
+							Set<String> keys = new LinkedHashSet<>();
+							int minPos = Integer.MAX_VALUE;
+							int maxPos = Integer.MIN_VALUE;
+							for (AnnotatedVariant variant : chunk) {
+								int pos = (variant.getValue(Field.pos) == null) ? -1 : (int)variant.getValue(Field.pos);
+								minPos = Math.min(minPos, pos);
+								maxPos = Math.max(maxPos, pos);
+								String alternative = DB.format(Schema.DBNSFP, (String)variant.getValue(Field.alternative));
+								keys.add(posColumn.equals("pos") ? "("+pos+",'"+alternative+"')" : "('"+pos+"','"+alternative+"')");
+							}
+							where = "(`"+posColumn+"`, `alt`) IN (" + String.join(",", keys) + ")";
+							if (posColumn.equals("pos")) where = "`pos` BETWEEN " + minPos + " AND " + maxPos + " AND " + where;
+						}
+						//Rows by position and alternative, or by gene
+						Map<String, List<Map<String,String>>> rows = new HashMap<>();
+						try (Results res = DB.select(reference, Schema.DBNSFP, "SELECT * FROM `"+table+"` WHERE " + where)) {
+							while (res.next()){
+								Map<String,String> row = AnnotatedVariant.readRow(res, columns);
+								List<String> keys = new ArrayList<>();
+								if (genes) {
+									keys.add("symbol\t" + String.valueOf(row.get("Gene_name")).toLowerCase());
+									keys.add("ensembl\t" + String.valueOf(row.get("Ensembl_gene")).toLowerCase());
+								}else {
+									keys.add(row.get(posColumn) + "\t" + row.get("alt"));
+								}
+								for (String key : keys) {
+									if (!rows.containsKey(key)) rows.put(key, new ArrayList<>());
+									rows.get(key).add(row);
+								}
+							}
+						}
+						for (AnnotatedVariant variant : chunk) {
+							List<Map<String,String>> candidates = new ArrayList<>();
+							if (genes) {
+								candidates.addAll(rows.getOrDefault("symbol\t" + String.valueOf(variant.getValue(Field.gene_symbol)).toLowerCase(), new ArrayList<>()));
+								candidates.addAll(rows.getOrDefault("ensembl\t" + String.valueOf(variant.getValue(Field.gene_ensembl)).toLowerCase(), new ArrayList<>()));
+							}else {
+								candidates.addAll(rows.getOrDefault(variant.getValue(Field.pos) + "\t" + variant.getValue(Field.alternative), new ArrayList<>()));
+							}
+							Map<String,String> found = null;
+							for (Map<String,String> row : candidates) {
+								if (AnnotatedVariant.isSameDBNSFPGene(table, row, variant)) {
+									found = row;
+									break;
+								}
+							}
+							try {
+								variant.setDBNSFP(table, parser.get(table), found, silent);
+							}catch (Exception ex){
+								if (failOnError) throw ex;
+								Tools.exception(ex);
+							}
+						}
+					}
+				}
+			}
+		}catch (Exception ex){
+			if (failOnError) throw ex;
+			Tools.exception(ex);
+		}
+	}
+
+}
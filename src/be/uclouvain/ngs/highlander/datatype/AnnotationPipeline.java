@@ -0,0 +1,181 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotate the lines of a VCF with several threads:
+ * - the caller reads the VCF and add() each line, lines are grouped in AnnotationBatch
+ * - each full batch is annotated by one of the worker threads (each query takes its own connection from the pool)
+ * - a writer thread gets the annotated batches in the order of the VCF, adds Alamut annotations and gives them to the BatchWriter
+ *
+ * The number of batches waiting to be written is bounded, so add() blocks when the writer or the workers are too slow.
+ * With one thread, batches are annotated and written by the caller, without any other thread.
+ *
+ * finish() must be called after the last line, close() alone (e.g. when the VCF cannot be read) cancels the batches not written yet.
+ */
+public class AnnotationPipeline implements AutoCloseable {
+
+	public interface BatchWriter {
+		/**
+		 * Called for each batch, in the order of the VCF, always from the same thread.
+		 */
+		public void write(AnnotationBatch batch) throws Exception;
+	}
+
+	private final int nthreads;
+	private final BatchWriter writer;
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<AnnotationBatch>> queue;
+	private final Thread writerThread;
+	private volatile Exception writerException = null;
+	private volatile boolean aborted = false;
+	private AnnotationBatch current;
+
+	/**
+	 * @param batch an empty batch, giving the analysis, sample and batch size
+	 * @param nthreads number of threads annotating batches
+	 * @param writer receives the annotated batches
+	 */
+	public AnnotationPipeline(AnnotationBatch batch, int nthreads, BatchWriter writer) {
+		this.nthreads = Math.max(1, nthreads);
+		this.writer = writer;
+		this.current = batch;
+		if (this.nthreads > 1) {
+			workers = Executors.newFixedThreadPool(this.nthreads);
+			queue = new ArrayBlockingQueue<>(2*this.nthreads);
+			writerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "Annotation writer");
+			writerThread.start();
+		}else {
+			workers = null;
+			queue = null;
+			writerThread = null;
+		}
+	}
+
+	/**
+	 * @param lineNumber line number in the VCF file, for error messages
+	 * @param line the full VCF line describing the variant
+	 * @param header list of VCF headers, if null the line will be in error
+	 * @throws Exception if the writer failed
+	 */
+	public void add(int lineNumber, String line, String[] header) throws Exception {
+		current.add(lineNumber, line, header);
+		if (current.isFull()) {
+			submit();
+		}
+	}
+
+	private void submit() throws Exception {
+		final AnnotationBatch batch = current;
+		current = batch.newBatch();
+		if (workers == null) {
+			batch.annotate();
+			writer.write(batch);
+		}else {
+			if (writerException != null) throw writerException;
+			Future<AnnotationBatch> future = workers.submit(() -> {
+				batch.annotateDatabases();
+				return batch;
+			});
+			while (!queue.offer(future, 1, TimeUnit.SECONDS)) {
+				if (writerException != null) {
+					future.cancel(true);
+					throw writerException;
+				}
+			}
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Future<AnnotationBatch> future = queue.take();
+				AnnotationBatch batch = future.get();
+				if (batch == null || aborted) break;
+				batch.annotateAlamut();
+				writer.write(batch);
+			}
+		}catch (Exception ex) {
+			writerException = ex;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Annotate and write the last lines, and wait for all batches to be written.
+	 * @throws Exception if the annotation or the writer failed
+	 */
+	public void finish() throws Exception {
+		if (current.size() > 0 && writerException == null) {
+			submit();
+		}
+		if (workers != null) {
+			//A null batch tells the writer that all batches have been submitted
+			Future<AnnotationBatch> end = workers.submit(() -> (AnnotationBatch)null);
+			while (writerThread.isAlive() && !queue.offer(end, 1, TimeUnit.SECONDS));
+			writerThread.join();
+			if (writerException != null) throw writerException;
+		}
+	}
+
+	/**
+	 * Stop the threads. Batches that have not been written by finish() are cancelled, and never given to the writer.
+	 */
+	@Override
+	public void close() {
+		if (workers == null) return;
+		aborted = true;
+		Future<AnnotationBatch> pending;
+		while ((pending = queue.poll()) != null) {
+			pending.cancel(true);
+		}
+		writerThread.interrupt();
+		workers.shutdownNow();
+		try {
+			writerThread.join();
+			workers.awaitTermination(100, TimeUnit.DAYS);
+		}catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.Results;
+
+/**
+ * Compact 64-bit identifier of a unique variant (chr, pos, length, reference, alternative).
+ *
+ * Most variants (SNV and short indels on standard chromosomes) are packed exactly in the long:
+ *
+ * bit 63     : 0 (packed key)
+ * bit 62     : 'chr' prefix present in the chromosome name
+ * bits 57-61 : chromosome (1-22, X=23, Y=24, M=25, MT=26)
+ * bits 29-56 : position
+ * bits 20-28 : length
+ * bits 18-19 : alternative length - 1
+ * bits 16-17 : reference length - 1
+ * bits 0-15  : reference bases followed by alternative bases, 2 bits per base (ACGT)
+ *
+ * Variants that cannot be packed (long indels, SV, non-standard contigs, ...) receive a 63-bit hash of their label,
+ * with bit 63 set to 1. The key of a variant only depends on the variant, so it never changes during the session.
+ * Hashes are checked for collisions against the MAX_FALLBACK_LABELS most recently used labels: when 2 variants share
+ * the same hash, the second one receives another hash (computed with a different seed) which is kept for the whole session.
+ * Labels of non-packed keys are only kept for the most recently used variants, getLabel() returns null for the others.
+ *
+ * The human readable label (chr-pos-length-reference-alternative) is only built when needed with getLabel().
+ */
+public final class VariantKey {
+
+	private static final long FALLBACK = 1L << 63;
+	private static final int MAX_POS = (1 << 28) - 1;
+	private static final int MAX_LENGTH = (1 << 9) - 1;
+	private static final int MAX_BASES = 8;
+	private static final int MAX_ALLELE_LENGTH = 4;
+	private static final String BASES = "ACGT";
+
+	private static final int MAX_FALLBACK_LABELS = 500_000;
+
+	//Most recently used labels of non-packed keys, used by getLabel() and to detect collisions
+	private static final Map<Long, String> fallbackLabels = new LinkedHashMap<Long, String>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > MAX_FALLBACK_LABELS;
+		}
+	};
+	//Variants which hash collided with another variant, and the key they received instead (never evicted)
+	private static final Map<String, Long> collisions = new HashMap<String, Long>();
+
+	private VariantKey(){
+	}
+
+	public static long getKey(Results res) throws SQLException {
+		return getKey(res.getString(Field.chr.getName()),
+				res.getInt(Field.pos.getName()),
+				res.getInt(Field.length.getName()),
+				res.getString(Field.reference.getName()),
+				res.getString(Field.alternative.getName()));
+	}
+
+	public static long getKey(String chr, int pos, int length, String reference, String alternative){
+		long key = pack(chr, pos, length, reference, alternative);
+		if (key != -1) return key;
+		return getFallbackKey(chr + "-" + pos + "-" + length + "-" + reference + "-" + alternative);
+	}
+
+	public static String getLabel(long key){
+		if (isPacked(key)){
+			return getChromosome(key) + "-" + getPosition(key) + "-" + getLength(key) + "-" + getReference(key) + "-" + getAlternative(key);
+		}else{
+			synchronized (fallbackLabels) {
+				return fallbackLabels.get(key);
+			}
+		}
+	}
+
+	public static boolean isPacked(long key){
+		return (key & FALLBACK) == 0;
+	}
+
+	/**
+	 * Chromosome of a packed key, or null if the key comes from the dictionary
+	 */
+	public static String getChromosome(long key){
+		if (!isPacked(key)) return null;
+		int code = (int)((key >>> 57) & 0x1F);
+		String chr;
+		switch (code) {
+		case 23: chr = "X"; break;
+		case 24: chr = "Y"; break;
+		case 25: chr = "M"; break;
+		case 26: chr = "MT"; break;
+		default: chr = ""+code; break;
+		}
+		return (((key >>> 62) & 1) == 1) ? "chr" + chr : chr;
+	}
+
+	/**
+	 * Position of a packed key, or -1 if the key comes from the dictionary
+	 */
+	public static int getPosition(long key){
+		if (!isPacked(key)) return -1;
+		return (int)((key >>> 29) & MAX_POS);
+	}
+
+	private static int getLength(long key){
+		return (int)((key >>> 20) & MAX_LENGTH);
+	}
+
+	private static String getReference(long key){
+		int refLen = (int)((key >>> 16) & 0x3) + 1;
+		return decodeBases(key, 0, refLen);
+	}
+
+	private static String getAlternative(long key){
+		int refLen = (int)((key >>> 16) & 0x3) + 1;
+		int altLen = (int)((key >>> 18) & 0x3) + 1;
+		return decodeBases(key, refLen, altLen);
+	}
+
+	private static String decodeBases(long key, int offset, int len){
+		char[] bases = new char[len];
+		for (int i=0 ; i < len ; i++){
+			bases[i] = BASES.charAt((int)((key >>> (2*(offset+i))) & 0x3));
+		}
+		return new String(bases);
+	}
+
+	private static int getChromosomeCode(String chr){
+		switch (chr) {
+		case "X": return 23;
+		case "Y": return 24;
+		case "M": return 25;
+		case "MT": return 26;
+		default:
+			if (chr.length() == 0 || chr.length() > 2 || chr.charAt(0) == '0') return -1;
+			int code = 0;
+			for (int i=0 ; i < chr.length() ; i++){
+				char c = chr.charAt(i);
+				if (c < '0' || c > '9') return -1;
+				code = code*10 + (c-'0');
+			}
+			return (code >= 1 && code <= 22) ? code : -1;
+		}
+	}
+
+	/**
+	 * Exact packing of the variant in a long, or -1 if the variant doesn't fit
+	 */
+	private static long pack(String chr, int pos, int length, String reference, String alternative){
+		if (chr == null || reference == null || alternative == null) return -1;
+		if (pos < 0 || pos > MAX_POS || length < 0 || length > MAX_LENGTH) return -1;
+		int refLen = reference.length();
+		int altLen = alternative.length();
+		if (refLen == 0 || altLen == 0 || refLen > MAX_ALLELE_LENGTH || altLen > MAX_ALLELE_LENGTH || refLen + altLen > MAX_BASES) return -1;
+		long prefix = 0;
+		if (chr.startsWith("chr")) {
+			prefix = 1;
+			chr = chr.substring(3);
+		}
+		int code = getChromosomeCode(chr);
+		if (code == -1) return -1;
+		long bases = 0;
+		for (int i=0 ; i < refLen + altLen ; i++){
+			char c = (i < refLen) ? reference.charAt(i) : alternative.charAt(i-refLen);
+			int b = BASES.indexOf(c);
+			if (b == -1) return -1;
+			bases |= ((long)b) << (2*i);
+		}
+		return (prefix << 62)
+				| (((long)code) << 57)
+				| (((long)pos) << 29)
+				| (((long)length) << 20)
+				| (((long)(altLen-1)) << 18)
+				| (((long)(refLen-1)) << 16)
+				| bases;
+	}
+
+	private static long getFallbackKey(String label){
+		synchronized (fallbackLabels) {
+			Long key = collisions.get(label);
+			if (key != null) {
+				fallbackLabels.put(key, label);
+				return key;
+			}
+			int seed = 0;
+			long hash = hash(label, seed);
+			String known = fallbackLabels.get(hash);
+			while (known != null && !known.equals(label)){
+				hash = hash(label, ++seed);
+				known = fallbackLabels.get(hash);
+			}
+			if (seed > 0) collisions.put(label, hash);
+			fallbackLabels.put(hash, label);
+			return hash;
+		}
+	}
+
+	/**
+	 * 63-bit hash of a label (FNV-1a followed by the MurmurHash3 finalizer), with bit 63 set to 1
+	 */
+	private static long hash(String label, int seed){
+		long h = 0xcbf29ce484222325L ^ seed;
+		for (int i=0 ; i < label.length() ; i++){
+			h ^= label.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return FALLBACK | (h & ~FALLBACK);
+	}
+
+}
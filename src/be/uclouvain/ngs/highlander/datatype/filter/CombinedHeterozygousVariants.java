@@ -47,6 +47,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class CombinedHeterozygousVariants extends MagicFilter {
 
@@ -232,7 +233,7 @@ public class CombinedHeterozygousVariants extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		Highlander.waitingPanel.start(true);
 		Analysis analysis = Highlander.getCurrentAnalysis();
@@ -245,12 +246,12 @@ public class CombinedHeterozygousVariants extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/4]", true);
-		Map<String, Map<String, Map<String, Integer>>> map = new HashMap<String, Map<String,Map<String,Integer>>>();
+		Map<String, Map<String, Map<Long, Integer>>> map = new HashMap<String, Map<String,Map<Long,Integer>>>();
 		StringBuilder query = new StringBuilder();
 		query.append(
 				"SELECT "
@@ -283,13 +284,13 @@ public class CombinedHeterozygousVariants extends MagicFilter {
 				String gene = res.getString(Field.gene_symbol.getName());
 				String sample = res.getString(Field.sample.getName()).toUpperCase();
 				int id = res.getInt(Field.variant_sample_id.getName());
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				if (!map.containsKey(gene)){
-					map.put(gene, new HashMap<String, Map<String,Integer>>());
+					map.put(gene, new HashMap<String, Map<Long,Integer>>());
 				}
-				Map<String, Map<String,Integer>> geneMap = map.get(gene);
+				Map<String, Map<Long,Integer>> geneMap = map.get(gene);
 				if (!geneMap.containsKey(sample)){
-					geneMap.put(sample, new HashMap<String, Integer>());
+					geneMap.put(sample, new HashMap<Long, Integer>());
 				}
 				geneMap.get(sample).put(uniqueVariant, id);
 			}
@@ -298,29 +299,29 @@ public class CombinedHeterozygousVariants extends MagicFilter {
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [4/4]", false);
 		Highlander.waitingPanel.setProgressMaximum(map.size());
 		progress = 0;
-		Map<Integer,String> ids = new HashMap<Integer, String>();
-		for (Map<String, Map<String,Integer>> geneMap : map.values()){
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
+		for (Map<String, Map<Long,Integer>> geneMap : map.values()){
 			Highlander.waitingPanel.setProgressValue(progress++);
 			if (geneMap.size() == 3){
-				Map<String, Integer> childMap = geneMap.get(child.toUpperCase());
-				Map<String, Integer> fatherMap = geneMap.get(father.toUpperCase());
-				Map<String, Integer> motherMap = geneMap.get(mother.toUpperCase());
+				Map<Long, Integer> childMap = geneMap.get(child.toUpperCase());
+				Map<Long, Integer> fatherMap = geneMap.get(father.toUpperCase());
+				Map<Long, Integer> motherMap = geneMap.get(mother.toUpperCase());
 				//Intersection of father/mother with the child (remove variants not found in the child)
-				Set<String> fatherIntersectChild = new HashSet<String>(fatherMap.keySet());
+				Set<Long> fatherIntersectChild = new HashSet<Long>(fatherMap.keySet());
 				fatherIntersectChild.retainAll(childMap.keySet());
 				fatherMap.keySet().retainAll(childMap.keySet());
-				Set<String> motherIntersectChild = new HashSet<String>(motherMap.keySet());
+				Set<Long> motherIntersectChild = new HashSet<Long>(motherMap.keySet());
 				motherIntersectChild.retainAll(childMap.keySet());
 				motherMap.keySet().retainAll(childMap.keySet());
 				//Complement of father/mother intersections (remove variants found in the other parent)
 				fatherMap.keySet().removeAll(motherIntersectChild);
 				motherMap.keySet().removeAll(fatherIntersectChild);
 				if (fatherMap.size() > 0 && motherMap.size() > 0){
-					for (String key : fatherMap.keySet()){
+					for (long key : fatherMap.keySet()){
 						ids.put(fatherMap.get(key), key);
 						ids.put(childMap.get(key), key);
 					}
-					for (String key : motherMap.keySet()){
+					for (long key : motherMap.keySet()){
 						ids.put(motherMap.get(key), key);
 						ids.put(childMap.get(key), key);
 					}
@@ -42,9 +42,9 @@ import java.awt.event.MouseListener;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -70,8 +70,11 @@ import be.uclouvain.ngs.highlander.administration.users.User.UserData;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.TemporaryTables;
 import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
 
 public class ComboFilter extends Filter {
 
@@ -87,6 +90,10 @@ public class ComboFilter extends Filter {
 
 	private int nVariants = -1;
 
+	//When set, results are computed by the database in temporary tables instead of being combined by Highlander
+	private TemporaryTables temporaryTables = null;
+	private String resultTable = null;
+
 	public ComboFilter(FilteringPanel filteringPanel, Filter filter){
 		this.filteringPanel = filteringPanel;
 		isSimple = true;
@@ -929,41 +936,191 @@ public class ComboFilter extends Filter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
-		Map<Integer,String> ids;
+		Map<Integer,Long> ids = FilterCache.getResultIds(this, autoSamples);
+		if (ids != null){
+			nVariants = ids.size();
+			return ids;
+		}
 		if (isSimple){
 			ids = filter.getResultIds(autoSamples);
 		}else{
-			ids = new HashMap<Integer, String>();
+			ids = new HashMap<Integer, Long>();
+			List<Map<Integer,Long>> list = evaluateBranches(comboList, getAllSamples());
 			if (logicop == LogicalOperator.OR){
 				Highlander.waitingPanel.setProgressString("Combo filters union", true);
-				for (ComboFilter combo : comboList){
-					ids.putAll(combo.getResultIds(getAllSamples()));
+				for (Map<Integer,Long> map : list){
+					ids.putAll(map);
 				}
 			}else if (logicop == LogicalOperator.AND){
 				Highlander.waitingPanel.setProgressString("Combo filters intersection", true);
-				List<Map<Integer,String>> list = new ArrayList<Map<Integer,String>>();
-				for (ComboFilter combo : comboList){
-					list.add(combo.getResultIds(getAllSamples()));
-				}
-				Set<String> intersection = new HashSet<String>(list.get(0).values());
+				Set<Long> intersection = new HashSet<Long>(list.get(0).values());
 				for (int i=1 ; i < list.size() ; i++){
 					intersection.retainAll(list.get(i).values());
 				}
-				for (Map<Integer,String> map : list){
-					for (int id : map.keySet()){
-						if (intersection.contains(map.get(id))){
-							ids.put(id, map.get(id));
+				for (Map<Integer,Long> map : list){
+					for (Entry<Integer,Long> e : map.entrySet()){
+						if (intersection.contains(e.getValue())){
+							ids.put(e.getKey(), e.getValue());
 						}
 					}
 				}
 			}
 		}
+		FilterCache.putResultIds(this, autoSamples, ids);
 		nVariants = ids.size();
 		return ids;
 	}
 
+	/**
+	 * AND/OR combinations can be computed by the database, using temporary tables.
+	 * So the ids of each sub-filter don't need to be sent back and forth between Highlander and the database.
+	 * Only possible with MySQL, and can be disabled in settings.xml (filtering/combo = client).
+	 */
+	private boolean useTemporaryTables(){
+		return Highlander.getParameters().isFilteringServerSideCombo() && TemporaryTables.isSupported(Highlander.getDB(), Schema.HIGHLANDER);
+	}
+
+	protected synchronized VariantResults retreiveDataFromDatabase(List<Field> headers, Set<String> autoSamples, String progressTxt) throws Exception{
+		if (!useTemporaryTables()) return super.retreiveDataFromDatabase(headers, autoSamples, progressTxt);
+		try (TemporaryTables tmp = new TemporaryTables(Highlander.getDB(), Schema.HIGHLANDER)){
+			temporaryTables = tmp;
+			return super.retreiveDataFromDatabase(headers, autoSamples, progressTxt);
+		}finally{
+			temporaryTables = null;
+			resultTable = null;
+		}
+	}
+
+	public synchronized int retreiveCount(Set<String> autoSamples) throws Exception{
+		if (!useTemporaryTables()) return super.retreiveCount(autoSamples);
+		try (TemporaryTables tmp = new TemporaryTables(Highlander.getDB(), Schema.HIGHLANDER)){
+			temporaryTables = tmp;
+			return super.retreiveCount(autoSamples);
+		}finally{
+			temporaryTables = null;
+			resultTable = null;
+		}
+	}
+
+	/**
+	 * With temporary tables, the results are computed once in a table, kept until the pager is closed. 
+	 * Without, the result ids are computed once and kept by the pager (see getPagerOfResultIds()).
+	 */
+	public FilterPager getPager(List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize) throws Exception {
+		if (!useTemporaryTables()) return getPagerOfResultIds(headers, autoSamples, sorting, pageSize);
+		TemporaryTables tmp = new TemporaryTables(Highlander.getDB(), Schema.HIGHLANDER);
+		try{
+			String table = fillTemporaryTable(tmp, getAllSamples());
+			return new FilterPager(this, headers, autoSamples, sorting, pageSize, tmp, table, tmp.count(table));
+		}catch(Exception ex){
+			tmp.close();
+			throw ex;
+		}
+	}
+
+	protected synchronized VariantResults retreivePage(FilterPager pager, int afterId, int offset, String progressTxt) throws Exception {
+		if (pager.getTemporaryTables() == null) return super.retreivePage(pager, afterId, offset, progressTxt);
+		try{
+			temporaryTables = pager.getTemporaryTables();
+			resultTable = pager.getResultTable();
+			nVariants = pager.getTotalCount();
+			return super.retreivePage(pager, afterId, offset, progressTxt);
+		}finally{
+			temporaryTables = null;
+			resultTable = null;
+		}
+	}
+
+	protected Results select(String query, boolean hugeResultSetExpected) throws Exception {
+		if (temporaryTables != null) return temporaryTables.select(query, hugeResultSetExpected);
+		return super.select(query, hugeResultSetExpected);
+	}
+
+	/**
+	 * Compute the results of this filter in a temporary table, without retreiving them.
+	 * Same logic as getResultIds(), but using INSERT ... SELECT and JOINs.
+	 * Note that MySQL doesn't allow to refer to the same temporary table twice in a query, so intersection is made in 2 steps.
+	 * 
+	 * @return the name of the temporary table containing the results (see TemporaryTables.createVariantIdTable())
+	 */
+	private String fillTemporaryTable(TemporaryTables tmp, Set<String> autoSamples) throws Exception {
+		String table;
+		if (isSimple){
+			if (filter.getFilterType() == FilterType.COMBO){
+				return ((ComboFilter)filter).fillTemporaryTable(tmp, autoSamples);
+			}
+			table = tmp.createVariantIdTable();
+			if (filter.getFilterType() == FilterType.CUSTOM){
+				tmp.update("INSERT IGNORE INTO `"+table+"` " + filter.getQuery(TemporaryTables.getVariantIdFields(), autoSamples));
+			}else{
+				//Magic filters are computed by Highlander, only resulting ids are sent
+				tmp.insertVariantIds(Highlander.getCurrentAnalysis(), table, filter.getResultIds(autoSamples).keySet());
+			}
+		}else{
+			//Magic filters are computed by Highlander, so they can be evaluated concurrently before filling the tables
+			List<ComboFilter> magicFilters = new ArrayList<ComboFilter>();
+			for (ComboFilter combo : comboList){
+				if (combo.isSimple && combo.filter.getFilterType() != FilterType.CUSTOM && combo.filter.getFilterType() != FilterType.COMBO){
+					magicFilters.add(combo);
+				}
+			}
+			List<Map<Integer,Long>> magicIds = evaluateBranches(magicFilters, getAllSamples());
+			List<String> subTables = new ArrayList<String>();
+			for (ComboFilter combo : comboList){
+				int magic = magicFilters.indexOf(combo);
+				if (magic != -1){
+					String subTable = tmp.createVariantIdTable();
+					tmp.insertVariantIds(Highlander.getCurrentAnalysis(), subTable, magicIds.get(magic).keySet());
+					subTables.add(subTable);
+				}else{
+					subTables.add(combo.fillTemporaryTable(tmp, getAllSamples()));
+				}
+				if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+			}
+			if (logicop == LogicalOperator.OR){
+				Highlander.waitingPanel.setProgressString("Combo filters union", true);
+				table = subTables.get(0);
+				for (int i=1 ; i < subTables.size() ; i++){
+					tmp.update("INSERT IGNORE INTO `"+table+"` SELECT * FROM `"+subTables.get(i)+"`");
+					tmp.drop(subTables.get(i));
+				}
+			}else{
+				Highlander.waitingPanel.setProgressString("Combo filters intersection", true);
+				//Variants found in all sub-filters
+				String variants = tmp.createVariantTable();
+				tmp.update("INSERT INTO `"+variants+"` SELECT DISTINCT `chr`, `pos`, `length`, `reference`, `alternative` FROM `"+subTables.get(0)+"`");
+				for (int i=1 ; i < subTables.size() ; i++){
+					tmp.update("DELETE v FROM `"+variants+"` as v LEFT JOIN `"+subTables.get(i)+"` as t USING (`pos`,`chr`,`alternative`,`reference`,`length`) WHERE t.`variant_sample_id` IS NULL");
+				}
+				//All sample entries of those variants
+				table = tmp.createVariantIdTable();
+				for (String subTable : subTables){
+					tmp.update("INSERT IGNORE INTO `"+table+"` SELECT t.* FROM `"+subTable+"` as t JOIN `"+variants+"` USING (`pos`,`chr`,`alternative`,`reference`,`length`)");
+					tmp.drop(subTable);
+				}
+				tmp.drop(variants);
+			}
+		}
+		if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+		return table;
+	}
+
+	/**
+	 * Evaluate sub-filters concurrently (see FilterExecutor)
+	 * @return results of each sub-filter, in the same order
+	 */
+	private static List<Map<Integer,Long>> evaluateBranches(List<ComboFilter> combos, Set<String> autoSamples) throws Exception {
+		List<String> names = new ArrayList<String>();
+		List<FilterExecutor.Branch<Map<Integer,Long>>> branches = new ArrayList<FilterExecutor.Branch<Map<Integer,Long>>>();
+		for (ComboFilter combo : combos){
+			names.add(combo.toString());
+			branches.add(() -> combo.getResultIds(autoSamples));
+		}
+		return FilterExecutor.evaluate(names, branches);
+	}
+
 	protected List<Field> getQueryWhereFields() throws Exception {
 		List<Field> list = new ArrayList<Field>();
 		list.add(Field.variant_sample_id);
@@ -971,41 +1128,20 @@ public class ComboFilter extends Filter {
 	}
 
 	protected String getQueryWhereClause(boolean includeTableWithJoinON) throws Exception {		
-		Map<Integer,String> resultIds = getResultIds(getAllSamples());
+		if (temporaryTables != null){
+			Field id = Field.variant_sample_id;
+			if (resultTable == null){
+				nVariants = -1;
+				resultTable = fillTemporaryTable(temporaryTables, getAllSamples());
+				nVariants = temporaryTables.count(resultTable);
+			}
+			if (nVariants == 0) return (id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IS NULL");
+			return (id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IN (SELECT `variant_sample_id` FROM `"+resultTable+"`)");
+		}
+		if (getPageWhereClause() != null) return getPageWhereClause();
+		Map<Integer,Long> resultIds = getResultIds(getAllSamples());
 		Field id = Field.variant_sample_id;
 		if (resultIds.isEmpty()) return (id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IS NULL");
 		return (id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IN ("+HighlanderDatabase.makeSqlList(resultIds.keySet(), Integer.class)+")");
 	}
-
-	protected VariantResults extractResults(Results res, List<Field> headers, String progressTxt, boolean indeterminateProgress) throws Exception {		
-		Map<Integer, Object[]> dataMap = new LinkedHashMap<Integer, Object[]>();
-		Map<Integer, String> variants = new LinkedHashMap<Integer, String>();
-		int resCount=0;
-		while (res.next() && !Highlander.waitingPanel.isCancelled()){
-			if (indeterminateProgress){
-				Highlander.waitingPanel.setProgressString(progressTxt + " ("+(resCount++)+" variants retreived)", true);
-			}else{
-				Highlander.waitingPanel.setProgressValue(resCount++);
-			}
-			Object[] rowData = new Object[headers.size()];
-			int col=0;
-			for (Field field : headers){
-				//when MySQL NULL is replaced by 0 for some fields (like evaluation), the 0 is a string and not an INT, causing type problems in VariantTable (for filtering on those columns)
-				rowData[col] = (field.getDefaultValue() != null && field.getDefaultValue().equals("0")) ? res.getInt(field.getName()) : res.getObject(field.getName()); 
-				col++;
-			}
-			int id = res.getInt("variant_sample_id");
-			String variant = 	res.getString("chr") + "-" +
-					res.getString("pos") + "-" +
-					res.getString("length") + "-" +
-					res.getString("reference") + "-" + 
-					res.getString("alternative");
-			dataMap.put(id, rowData);
-			variants.put(id, variant);
-		}
-		if (Highlander.waitingPanel.isCancelled()) {
-			throw new CancelException();
-		}
-		return new VariantResults(headers, dataMap, variants);
-	}
 }
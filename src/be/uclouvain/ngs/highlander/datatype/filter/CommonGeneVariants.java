@@ -48,6 +48,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class CommonGeneVariants extends MagicFilter {
 
@@ -287,11 +288,11 @@ public class CommonGeneVariants extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		if (samples.isEmpty()) {
 			nVariants = 0;
-			return new HashMap<Integer, String>();
+			return new HashMap<Integer, Long>();
 		}
 
 		Highlander.waitingPanel.start(true);
@@ -305,12 +306,12 @@ public class CommonGeneVariants extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/4]", true);
-		Map<String, Map<String,Map<Integer,String>>> map = new HashMap<String, Map<String,Map<Integer,String>>>();
+		Map<String, Map<String,Map<Integer,Long>>> map = new HashMap<String, Map<String,Map<Integer,Long>>>();
 		StringBuilder query = new StringBuilder();
 		query.append(
 				"SELECT "
@@ -343,13 +344,13 @@ public class CommonGeneVariants extends MagicFilter {
 				String gene = res.getString(Field.gene_symbol.getName());
 				String sample = res.getString(Field.sample.getName()).toUpperCase();
 				int id = res.getInt(Field.variant_sample_id.getName());
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				if (!map.containsKey(gene)){
-					map.put(gene, new HashMap<String, Map<Integer,String>>());
+					map.put(gene, new HashMap<String, Map<Integer,Long>>());
 				}
-				Map<String, Map<Integer,String>> genemap = map.get(gene);
+				Map<String, Map<Integer,Long>> genemap = map.get(gene);
 				if (!genemap.containsKey(sample)){
-					genemap.put(sample, new HashMap<Integer,String>());
+					genemap.put(sample, new HashMap<Integer,Long>());
 				}
 				genemap.get(sample).put(id, uniqueVariant);
 			}
@@ -358,44 +359,44 @@ public class CommonGeneVariants extends MagicFilter {
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [4/4]", false);
 		Highlander.waitingPanel.setProgressMaximum(map.size());
 		progress = 0;
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		if (minCommon == -1) minCommon = samples.size();
-		for (Map<String, Map<Integer,String>> genemap : map.values()){
+		for (Map<String, Map<Integer,Long>> genemap : map.values()){
 			Highlander.waitingPanel.setProgressValue(progress++);				
 			if (genemap.size() >= minCommon){
 				switch(numVariantsThreshold){
 				case AT_LEAST:
 					int minSize = Integer.MAX_VALUE;
-					for (Map<Integer,String> list : genemap.values()){
+					for (Map<Integer,Long> list : genemap.values()){
 						if (list.size() < minSize) minSize = list.size();
 					}
 					if (minSize >= minMaxVariants){
-						for (Map<Integer,String> list : genemap.values()){
+						for (Map<Integer,Long> list : genemap.values()){
 							ids.putAll(list);
 						}
 					}
 					break;
 				case AT_MOST:
 					int maxSize = 0;
-					for (Map<Integer,String> list : genemap.values()){
+					for (Map<Integer,Long> list : genemap.values()){
 						if (list.size() > maxSize) maxSize = list.size();
 					}
 					if (maxSize <= minMaxVariants){
-						for (Map<Integer,String> list : genemap.values()){
+						for (Map<Integer,Long> list : genemap.values()){
 							ids.putAll(list);
 						}
 					}					
 					break;
 				case EXACTLY:
 					int listSize = genemap.values().iterator().next().size();
-					for (Map<Integer,String> list : genemap.values()){
+					for (Map<Integer,Long> list : genemap.values()){
 						if (list.size() != listSize) {
 							listSize = -1;
 							break;
 						}
 					}
 					if (listSize == minMaxVariants){
-						for (Map<Integer,String> list : genemap.values()){
+						for (Map<Integer,Long> list : genemap.values()){
 							ids.putAll(list);
 						}
 					}
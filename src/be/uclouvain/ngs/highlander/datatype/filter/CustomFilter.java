@@ -43,7 +43,6 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -58,7 +57,6 @@ import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Resources;
 import be.uclouvain.ngs.highlander.Tools;
 import be.uclouvain.ngs.highlander.UI.dialog.CreateCustomFilter;
-import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
 import be.uclouvain.ngs.highlander.UI.toolbar.FilteringPanel;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
@@ -887,7 +885,7 @@ public class CustomFilter extends Filter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		List<Field> headers = new ArrayList<Field>();
 		headers.add(Field.variant_sample_id);
@@ -898,7 +896,7 @@ public class CustomFilter extends Filter {
 		headers.add(Field.alternative);
 		headers.add(Field.gene_symbol);
 		VariantResults variantResults = retreiveData(headers, autoSamples, "Custom filter");
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		for (int i=0 ; i < variantResults.id.length ; i++){
 			ids.put(variantResults.id[i], variantResults.variant[i]);
 		}
@@ -1052,37 +1050,4 @@ public class CustomFilter extends Filter {
 		return query;		
 	}
 
-	protected VariantResults extractResults(Results res, List<Field> headers, String progressTxt, boolean indeterminateProgress) throws Exception {
-		Map<Integer, Object[]> dataMap = new LinkedHashMap<Integer, Object[]>();
-		Map<Integer, String> variants = new LinkedHashMap<Integer, String>();
-		int resCount=0;		
-		while (res.next() && !Highlander.waitingPanel.isCancelled()){
-			if (indeterminateProgress){
-				Highlander.waitingPanel.setProgressString(progressTxt + " ("+(resCount++)+" variants retreived)", true);
-			}else{
-				Highlander.waitingPanel.setProgressValue(resCount++);
-			}
-			Object[] rowData = new Object[headers.size()];
-			int col=0;
-			for (Field field : headers){
-				//when MySQL NULL is replaced by 0 for some fields (like evaluation), the 0 is a string and not an INT, causing type problems in VariantTable (for filtering on those columns)
-				rowData[col] = (field.getDefaultValue() != null && field.getDefaultValue().equals("0")) ? res.getInt(field.getName()) : res.getObject(field.getName()); 
-				col++;
-			}
-			int id = res.getInt("variant_sample_id");
-			String variant = 	res.getString("chr") + "-" +
-					res.getString("pos") + "-" +
-					res.getString("length") + "-" +
-					res.getString("reference") + "-" + 
-					res.getString("alternative");
-			dataMap.put(id, rowData);
-			variants.put(id, variant);
-		}
-		res.close();
-		if (Highlander.waitingPanel.isCancelled()) {
-			throw new CancelException();
-		}
-		return new VariantResults(headers, dataMap, variants);
-	}
-
 }
@@ -35,6 +35,7 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.swing.JPanel;
+import javax.swing.SortOrder;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Tools;
@@ -43,8 +44,10 @@ import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.database.VariantResultsExtractor;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
 
 public abstract class Filter extends JPanel {
 
@@ -150,6 +153,7 @@ public abstract class Filter extends JPanel {
 
 	protected Filter parentFilter = null;
 	protected FilteringPanel filteringPanel;
+	private String pageWhereClause = null;
 
 	public Filter(){
 		super();
@@ -253,17 +257,34 @@ public abstract class Filter extends JPanel {
 
 	public abstract void delete();
 
-	public abstract Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception;
+	public abstract Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception;
 
 	protected abstract List<Field> getQueryWhereFields() throws Exception;
 
 	protected abstract String getQueryWhereClause(boolean includeTableWithJoinON) throws Exception;
 
-	protected abstract VariantResults extractResults(Results res, List<Field> headers, String progressTxt, boolean indeterminateProgress) throws Exception ;
-
 	protected abstract int getNumberOfVariants();
 
+	/**
+	 * Execute the filter query.
+	 * Can be overridden by filters that need to use a specific connection (e.g. with temporary tables).
+	 */
+	protected Results select(String query, boolean hugeResultSetExpected) throws Exception {
+		return Highlander.getDB().select(Schema.HIGHLANDER, query, hugeResultSetExpected);
+	}
+
 	public VariantResults retreiveData(List<Field> headers, Set<String> autoSamples, String progressTxt) throws Exception{
+		VariantResults variantResults = FilterCache.getData(this, headers, autoSamples);
+		if (variantResults != null){
+			Tools.print("Filter results retreived from cache ("+variantResults.id.length+" variants)");
+			return variantResults;
+		}
+		variantResults = retreiveDataFromDatabase(headers, autoSamples, progressTxt);
+		FilterCache.putData(this, headers, autoSamples, variantResults);
+		return variantResults;
+	}
+
+	protected VariantResults retreiveDataFromDatabase(List<Field> headers, Set<String> autoSamples, String progressTxt) throws Exception{
 		Highlander.waitingPanel.start(true);
 
 		String query = getQuery(headers, autoSamples); 
@@ -271,31 +292,82 @@ public abstract class Filter extends JPanel {
 		Tools.print("Submitting query to the database (filter): ");
 		System.out.println(query.toString());
 		Highlander.waitingPanel.setProgressString(progressTxt + " (submission)", true);
-		long timeQueryStart = System.currentTimeMillis();
 		VariantResults variantResults = null;
-		try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString(), true)) {				
-			long timeRetreiveStart = System.currentTimeMillis();
+		//Timings are recorded by the database (see QueryStatistics)
+		try (Results res = select(query.toString(), true)) {				
 			int nrow = getNumberOfVariants();
-			if (nrow == -1) nrow = res.getResultSetSize();
 			if (nrow != -1){
 				Highlander.waitingPanel.setProgressMaximum(nrow);
 				Highlander.waitingPanel.setProgressString(progressTxt + " (retreiving "+nrow+" variants)", false);
 			}else{
 				Highlander.waitingPanel.setProgressString(progressTxt + " (retreiving variants)", true);
 			}
-			variantResults = extractResults(res, headers, progressTxt, (nrow == -1));
+			variantResults = VariantResultsExtractor.extract(res, headers, nrow, progressTxt);
 
 			Highlander.waitingPanel.setProgressDone();
-			try{
-				showProfilingData(timeQueryStart, timeRetreiveStart);
-			}catch(Exception ex){
-				Tools.exception(ex);
-			}
 			Highlander.waitingPanel.stop();
 		}
 		return variantResults;
 	}
 
+	/**
+	 * Prepare the retrieval of the results page by page, so the first variants can be displayed before the whole query is done.
+	 * The pager must be closed when it's not used anymore.
+	 * 
+	 * @param sorting if not empty, results are sorted by the database
+	 * @param pageSize number of variants in each page
+	 */
+	public FilterPager getPager(List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize) throws Exception {
+		return new FilterPager(this, headers, autoSamples, sorting, pageSize, null, null, -1);
+	}
+
+	/**
+	 * Pager for filters computed by Highlander: result ids are resolved once here, and not by getQueryWhereClause() for each page.
+	 * Pages retreived in background then never evaluate the filter nor use the waiting panel.
+	 */
+	protected FilterPager getPagerOfResultIds(List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize) throws Exception {
+		return new FilterPager(this, headers, autoSamples, sorting, pageSize, getResultIds(getAllSamples()).keySet());
+	}
+
+	/**
+	 * Condition given by the pager during retreivePage(), for filters using getPagerOfResultIds(), null otherwise
+	 */
+	protected String getPageWhereClause(){
+		return pageWhereClause;
+	}
+
+	/**
+	 * Retreive one page of the results (see FilterPager.nextPage()).
+	 * @param progressTxt text for the waiting panel, or null if the page is retreived in background
+	 */
+	protected VariantResults retreivePage(FilterPager pager, int afterId, int offset, String progressTxt) throws Exception {
+		String query;
+		if (pager.hasResultIds()){
+			synchronized (this) {
+				pageWhereClause = pager.getResultIdsWhereClause(afterId);
+				try{
+					query = getQuery(pager.getHeaders(), pager.getAutoSamples(), afterId, pager.getSorting(), pager.getPageSize(), offset);
+				}finally{
+					pageWhereClause = null;
+				}
+			}
+		}else{
+			query = getQuery(pager.getHeaders(), pager.getAutoSamples(), afterId, pager.getSorting(), pager.getPageSize(), offset);
+		}
+		if (progressTxt != null) {
+			//Pages retreived in background are not logged, they would fill the console while scrolling
+			Tools.print("Submitting query to the database (filter page): ");
+			System.out.println(query);
+			Highlander.waitingPanel.setProgressString(progressTxt + " (submission)", true);
+		}
+		try (Results res = select(query, true)) {
+			VariantResultsExtractor extractor = new VariantResultsExtractor(res, pager.getHeaders(), pager.getPageSize());
+			extractor.read(res, -1, progressTxt);
+			pager.setRowsRead(extractor.getRowsRead());
+			return extractor.build();
+		}
+	}
+
 	public int retreiveCount(Set<String> autoSamples) throws Exception{
 		Highlander.waitingPanel.start(true);
 
@@ -406,7 +478,7 @@ public abstract class Filter extends JPanel {
 		System.out.println(query.toString());
 		Highlander.waitingPanel.setProgressString("Executing query", true);
 		int count = 0;
-		try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString())) {
+		try (Results res = select(query.toString(), false)) {
 			if (res.next()){
 				count = res.getInt(1);
 			}
@@ -417,7 +489,23 @@ public abstract class Filter extends JPanel {
 	}
 
 	public String getQuery(List<Field> headers, Set<String> autoSamples) throws Exception {
+		return getQuery(headers, autoSamples, -1, null, 0, 0);
+	}
+
+	/**
+	 * Query returning one page of the results (see FilterPager).
+	 * 
+	 * Without sorting, pages are ordered by variant_sample_id and the next page starts after the last id of the previous one (keyset pagination).
+	 * With sorting, the database sorts all results and pages are selected using an offset.
+	 * 
+	 * @param afterId only variants with a higher variant_sample_id are returned (when not sorted), -1 for the first page 
+	 * @param sorting fields used to sort the results, can be null
+	 * @param limit maximum number of rows, 0 for no limit
+	 * @param offset number of rows to skip (when sorted)
+	 */
+	protected String getQuery(List<Field> headers, Set<String> autoSamples, int afterId, List<SortingCriterion> sorting, int limit, int offset) throws Exception {
 		Analysis analysis = Highlander.getCurrentAnalysis();
+		boolean sorted = (sorting != null && !sorting.isEmpty());
 
 		boolean includeStatic = false; 
 		boolean includeCustom = false; 
@@ -440,6 +528,11 @@ public abstract class Filter extends JPanel {
 		Set<Field> headersAndWhereClause = new LinkedHashSet<Field>();
 		headersAndWhereClause.addAll(headers);
 		headersAndWhereClause.addAll(getQueryWhereFields());
+		if (sorted){
+			for (SortingCriterion criterion : sorting){
+				headersAndWhereClause.add(criterion.getField());
+			}
+		}
 		for (Field field : headersAndWhereClause){
 			if (field.getTable(analysis).equalsIgnoreCase(analysis.getTableStaticAnnotations())){
 				includeStatic = true;
@@ -534,43 +627,29 @@ public abstract class Filter extends JPanel {
 		if (includeUserSamplesPrivate) query.append(analysis.getJoinUserAnnotationsSamplesPrivate());		
 		if (includeUserSamplesPublic) query.append(analysis.getJoinUserAnnotationsSamplesPublic());		
 
+		String idName = Field.variant_sample_id.getQueryWhereName(analysis, includeTableWithJoinON);
+		if (!sorted && afterId >= 0){
+			whereClause = (whereClause.length() > 0) ? "("+whereClause+") AND "+idName+" > "+afterId : idName+" > "+afterId;
+		}
+
 		if (whereClause.length() > 0){
 			query.append("WHERE ");
 			query.append(whereClause);
 		}
 
-		return query.toString();
-	}
-
-	protected void showProfilingData(long timeQuery, long timeRetreive) throws Exception {
-		System.out.println("Query execution: " + ((timeRetreive - timeQuery)/1000) + " sec");
-		System.out.println("Populating table: " + ((System.currentTimeMillis() - timeRetreive)/1000) + " sec");
-		/* 
-		 * Profiling using MySQL
-		 * Works until MySQL 5.5, should look in performance_schema since 5.6
-		 * Some part don't work accurately with Impala (will look profile on mysql, not Impala)
-		 * So let's just count time between request and results
-		 * 
-		ResultSet profiling = Highlander.getDB().select(Schema.HIGHLANDER, "SHOW PROFILES");
-		if(profiling.last()){
-			int last = profiling.getInt(1);
-			Highlander.getDB().closeResultSet(profiling);				
-			double dur = 0.0, fetch = 0.0;
-			profiling = Highlander.getDB().select(Schema.HIGHLANDER, "SHOW PROFILE FOR QUERY " + last);
-			while(profiling.next()){
-				if (profiling.getString(1).equals("Sending data")){
-					fetch = profiling.getDouble(2);
-				}else{
-					dur += profiling.getDouble(2);
+		if (limit > 0){
+			query.append(" ORDER BY ");
+			if (sorted){
+				for (SortingCriterion criterion : sorting){
+					query.append(criterion.getField().getQueryWhereName(analysis, includeTableWithJoinON));
+					query.append((criterion.getSortOrder() == SortOrder.DESCENDING) ? " DESC, " : " ASC, ");
 				}
 			}
-			System.out.println("Query execution: " + Tools.doubleToString(dur, 2, false) + " sec");
-			System.out.println("Fetching results: " + Tools.doubleToString(fetch, 2, false) + " sec");
-			System.out.println("Populating table: " + ((System.currentTimeMillis() - time)/1000) + " sec");
-		}else{
-			System.out.println("No profiling data available");
+			query.append(idName);
+			query.append(" LIMIT "+limit);
+			if (sorted && offset > 0) query.append(" OFFSET "+offset);
 		}
-		Highlander.getDB().closeResultSet(profiling);
-		 */
+
+		return query.toString();
 	}
 }
@@ -0,0 +1,293 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Parameters;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.DBMS;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.datatype.Analysis;
+
+/**
+ * Cache of filter results (retreiveData() and getResultIds()), so rerunning the same filter doesn't query the database again.
+ *
+ * Results are identified by the filter save string, the analysis, the headers and the auto-samples.
+ * They are only valid for a given state of the database (see getDatabaseStamp()), and are all dropped when it changes,
+ * e.g. when new samples are imported or when the user modifies an annotation.
+ *
+ * Memory usage is bounded by a number of cells (rows x columns, settings.xml filtering/cache).
+ * Least recently used results are removed first, or moved to a local directory if one is set (filtering/cachedir).
+ */
+public class FilterCache {
+
+	//Stamp of the database is checked at most every STAMP_DELAY ms (modifications made by this client are always detected)
+	private static final long STAMP_DELAY = 30_000;
+	private static final int DISK_FACTOR = 10;
+
+	private static class Entry {
+		final Object value;
+		final long cells;
+
+		Entry(Object value, long cells){
+			this.value = value;
+			this.cells = cells;
+		}
+	}
+
+	private static final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static final LinkedHashMap<String, File> disk = new LinkedHashMap<String, File>(16, 0.75f, true);
+	private static final Map<String, Long> diskCells = new HashMap<String, Long>();
+	private static long memoryCells = 0;
+	private static long totalDiskCells = 0;
+	private static String stamp = null;
+	private static long stampTime = 0;
+	private static long stampModifications = -1;
+	private static int hits = 0;
+	private static int misses = 0;
+
+	private FilterCache(){
+	}
+
+	public static VariantResults getData(Filter filter, List<Field> headers, Set<String> autoSamples) {
+		String key = getKey("data", filter, headers, autoSamples);
+		if (key == null) return null;
+		VariantResults results = (VariantResults)get(key);
+		//Callers can modify the results (e.g. edition of a value in the table)
+		return (results != null) ? results.copy() : null;
+	}
+
+	public static void putData(Filter filter, List<Field> headers, Set<String> autoSamples, VariantResults results) {
+		if (results == null) return;
+		String key = getKey("data", filter, headers, autoSamples);
+		if (key == null) return;
+		put(key, results.copy(), (long)results.id.length * (results.headers.length + 2));
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Map<Integer,Long> getResultIds(Filter filter, Set<String> autoSamples) {
+		String key = getKey("ids", filter, null, autoSamples);
+		if (key == null) return null;
+		Map<Integer,Long> ids = (Map<Integer,Long>)get(key);
+		//Callers can modify the map
+		return (ids != null) ? new HashMap<Integer, Long>(ids) : null;
+	}
+
+	public static void putResultIds(Filter filter, Set<String> autoSamples, Map<Integer,Long> ids) {
+		if (ids == null) return;
+		String key = getKey("ids", filter, null, autoSamples);
+		if (key == null) return;
+		put(key, new HashMap<Integer, Long>(ids), 2L * ids.size());
+	}
+
+	public static synchronized void clear() {
+		memory.clear();
+		memoryCells = 0;
+		for (File file : disk.values()){
+			file.delete();
+		}
+		disk.clear();
+		diskCells.clear();
+		totalDiskCells = 0;
+	}
+
+	private static long getMaxCells(){
+		Parameters parameters = Highlander.getParameters();
+		return (parameters != null) ? parameters.getFilteringCacheSize() : 0;
+	}
+
+	private static String getKey(String type, Filter filter, List<Field> headers, Set<String> autoSamples){
+		if (getMaxCells() <= 0) return null;
+		String saveString = filter.getSaveString();
+		//Filters that cannot be saved (like lists of variants) cannot be identified
+		if (saveString == null || saveString.contains(Filter.FilterType.LIST_OF_VARIANTS + "$") || saveString.contains("$null")) return null;
+		Analysis analysis = Highlander.getCurrentAnalysis();
+		StringBuilder sb = new StringBuilder();
+		sb.append(type + "|" + analysis + "|" + filter.getFilterType() + "$" + saveString + "|");
+		if (headers != null){
+			for (Field field : headers){
+				sb.append(field.getName() + ",");
+			}
+		}
+		sb.append("|");
+		if (autoSamples != null){
+			sb.append(new TreeSet<String>(autoSamples));
+		}
+		if (!checkStamp(analysis)) return null;
+		return sb.toString();
+	}
+
+	/**
+	 * Compare the current state of the database to the one of the cached results, and clear the cache if it changed.
+	 * @return false if results shouldn't be cached (e.g. if the database is being updated)
+	 */
+	private static synchronized boolean checkStamp(Analysis analysis){
+		long modifications = Highlander.getDB().getLocalModificationCount();
+		if (System.currentTimeMillis() - stampTime < STAMP_DELAY && modifications == stampModifications && stamp != null && stamp.startsWith(analysis + "|")) return true;
+		String current;
+		try{
+			current = getDatabaseStamp(analysis);
+		}catch(Exception ex){
+			Tools.exception(ex);
+			current = null;
+		}
+		stampTime = System.currentTimeMillis();
+		stampModifications = modifications;
+		if (current == null || !current.equals(stamp)){
+			if (!memory.isEmpty() || !disk.isEmpty()){
+				System.out.println("Database has changed, clearing filter results cache");
+			}
+			clear();
+			stamp = current;
+		}
+		return stamp != null;
+	}
+
+	/**
+	 * Returns a string summarizing the state of the database, for the given analysis.
+	 * Uses the last update time of its tables (and the ones shared by all analyses), and the modifications made by this client.
+	 * @return null if the database is being updated
+	 */
+	private static String getDatabaseStamp(Analysis analysis) throws Exception {
+		HighlanderDatabase DB = Highlander.getDB();
+		StringBuilder sb = new StringBuilder();
+		sb.append(analysis + "|" + DB.getLocalModificationCount());
+		if (DB.getDBMS(Schema.HIGHLANDER) == DBMS.mysql){
+			try (Results res = DB.select(Schema.HIGHLANDER, "SELECT update_soft, update_hard FROM main", false)) {
+				if (res.next()){
+					if (res.getBoolean("update_soft") || res.getBoolean("update_hard")) return null;
+				}
+			}
+			try (Results res = DB.select(Schema.HIGHLANDER,
+					"SELECT MAX(UPDATE_TIME), COUNT(*) FROM information_schema.TABLES "
+							+ "WHERE TABLE_SCHEMA = '"+DB.getSchemaName(null, Schema.HIGHLANDER)+"' "
+							+ "AND (TABLE_NAME LIKE '"+analysis+"\\_%' OR TABLE_NAME IN ('projects','projects_analyses','pathologies','populations','users_data'))", false)) {
+				if (res.next()){
+					sb.append("|" + res.getString(1) + "|" + res.getInt(2));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static synchronized Object get(String key){
+		Entry entry = memory.get(key);
+		if (entry != null){
+			hits++;
+			return entry.value;
+		}
+		File file = disk.remove(key);
+		if (file != null){
+			long cells = diskCells.remove(key);
+			totalDiskCells -= cells;
+			try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))){
+				Object value = ois.readObject();
+				file.delete();
+				hits++;
+				putInMemory(key, value, cells);
+				return value;
+			}catch(Exception ex){
+				Tools.exception(ex);
+				file.delete();
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	private static synchronized void put(String key, Object value, long cells){
+		if (cells > getMaxCells()) return;
+		if (memory.containsKey(key)) return;
+		putInMemory(key, value, cells);
+		System.out.println("Filter results cached (" + memory.size() + " in memory, " + disk.size() + " on disk, " + hits + " hits / " + misses + " misses)");
+	}
+
+	private static void putInMemory(String key, Object value, long cells){
+		memory.put(key, new Entry(value, cells));
+		memoryCells += cells;
+		long maxCells = getMaxCells();
+		for (Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator() ; it.hasNext() && memoryCells > maxCells ; ){
+			Map.Entry<String, Entry> eldest = it.next();
+			if (eldest.getKey().equals(key)) continue;
+			it.remove();
+			memoryCells -= eldest.getValue().cells;
+			spill(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	/**
+	 * Move results removed from memory to the local directory, if one is set
+	 */
+	private static void spill(String key, Entry entry){
+		Parameters parameters = Highlander.getParameters();
+		if (parameters == null || parameters.getFilteringCacheDirectory() == null) return;
+		try{
+			File dir = new File(parameters.getFilteringCacheDirectory());
+			if (!dir.exists()) dir.mkdirs();
+			File file = File.createTempFile("filter_cache_", ".bin", dir);
+			file.deleteOnExit();
+			try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+				oos.writeObject(entry.value);
+			}
+			disk.put(key, file);
+			diskCells.put(key, entry.cells);
+			totalDiskCells += entry.cells;
+			long maxCells = getMaxCells() * DISK_FACTOR;
+			for (Iterator<Map.Entry<String, File>> it = disk.entrySet().iterator() ; it.hasNext() && totalDiskCells > maxCells ; ){
+				Map.Entry<String, File> eldest = it.next();
+				it.remove();
+				totalDiskCells -= diskCells.remove(eldest.getKey());
+				eldest.getValue().delete();
+			}
+		}catch(Exception ex){
+			Tools.exception(ex);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
+import be.uclouvain.ngs.highlander.database.QueryScheduler;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.CancellationToken;
+import be.uclouvain.ngs.highlander.database.QueryScheduler.Priority;
+
+/**
+ * Evaluates independent branches of a filter (e.g. sub-filters of a ComboFilter) at the same time,
+ * as INTERACTIVE tasks of the QueryScheduler, each one using its own connection from the pool.
+ *
+ * The maximum number of branches submitted at the same time is set in settings.xml (filtering/threads).
+ *
+ * Branches evaluated inside another branch (or from any task of the scheduler) are executed sequentially in the same thread,
+ * so a branch never waits for a worker or a connection hold by its parent.
+ *
+ * The waiting panel is started once for all concurrent branches, calls made by the branches are ignored (see WaitingPanel.setHelperThread()).
+ */
+public class FilterExecutor {
+
+	public interface Branch<T> {
+		public T evaluate() throws Exception;
+	}
+
+	private static final long CANCEL_CHECK_INTERVAL = 200;
+
+	/**
+	 * Evaluate all branches, concurrently if possible.
+	 *
+	 * If a branch fails, the other ones are cancelled and the exception is thrown.
+	 * If the user cancels the query, waiting branches are removed, running queries are cancelled and a CancelException is thrown,
+	 * without waiting for the running branches to finish.
+	 *
+	 * @param names branch names, used to log their execution time
+	 * @param branches
+	 * @return the results of each branch, in the same order as branches
+	 * @throws Exception
+	 */
+	public static <T> List<T> evaluate(List<String> names, List<Branch<T>> branches) throws Exception {
+		int threads = Highlander.getParameters().getFilteringThreads();
+		List<T> results = new ArrayList<T>();
+		if (threads < 2 || branches.size() < 2 || QueryScheduler.getCurrentToken() != null){
+			for (int i=0 ; i < branches.size() ; i++){
+				results.add(timeBranch(names.get(i), branches.get(i)));
+				if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+			}
+			return results;
+		}
+		long start = System.currentTimeMillis();
+		QueryScheduler scheduler = Highlander.getDB().getScheduler();
+		//Shared by all branches, cancelling it cancels the statements of all running branches
+		CancellationToken token = new CancellationToken();
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		//start() resets the cancellation
+		if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+		Highlander.waitingPanel.start(true);
+		try{
+			Highlander.waitingPanel.setProgressString("Evaluating " + branches.size() + " filters", true);
+			for (int i=0 ; i < branches.size() ; i++){
+				//At most 'threads' branches are submitted at the same time
+				if (i >= threads) waitFor(futures.get(i-threads));
+				final String name = names.get(i);
+				final Branch<T> branch = branches.get(i);
+				futures.add(scheduler.submit("Filter branch " + name, Priority.INTERACTIVE, token, () -> {
+					WaitingPanel.setHelperThread(true);
+					try{
+						return timeBranch(name, branch);
+					}finally{
+						WaitingPanel.setHelperThread(false);
+					}
+				}));
+			}
+			for (Future<T> future : futures){
+				results.add(waitFor(future));
+			}
+		}catch(Exception ex){
+			token.cancel();
+			for (Future<T> future : futures){
+				future.cancel(true);
+			}
+			if (Highlander.waitingPanel.isCancelled() || ex instanceof CancellationException){
+				throw new CancelException();
+			}
+			throw ex;
+		}finally{
+			Highlander.waitingPanel.stop();
+		}
+		System.out.println(branches.size() + " filter branches evaluated with " + threads + " threads in " + (System.currentTimeMillis() - start) + " ms");
+		return results;
+	}
+
+	/**
+	 * Wait for the result of a branch, checking regularly if the user cancelled the query
+	 */
+	private static <T> T waitFor(Future<T> future) throws Exception {
+		while (true){
+			if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+			try{
+				return future.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException ex){
+				//Still running
+			}catch(ExecutionException ex){
+				if (ex.getCause() instanceof Exception) throw (Exception)ex.getCause();
+				throw ex;
+			}
+		}
+	}
+
+	private static <T> T timeBranch(String name, Branch<T> branch) throws Exception {
+		long start = System.currentTimeMillis();
+		T result = branch.evaluate();
+		Tools.print("Filter branch evaluated in " + (System.currentTimeMillis() - start) + " ms : " + name);
+		return result;
+	}
+
+}
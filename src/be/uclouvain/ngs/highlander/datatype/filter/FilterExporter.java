@@ -0,0 +1,328 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.swing.JLabel;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
+
+/**
+ * Export the results of a filter to a file, without keeping them in memory.
+ *
+ * Results are retreived from the database page by page (see FilterPager) and each page is written before the next one is retreived,
+ * so exporting millions of variants needs the same memory as exporting a few thousands.
+ * Files ending with .gz are compressed with gzip, or with bgzip and indexed with tabix for VCF files.
+ */
+public class FilterExporter {
+
+	public static final int PAGE_SIZE = 20_000;
+	public static final int BUFFER_SIZE = 1 << 20;
+	private static final int XLSX_MAX_ROWS = 1_048_575;
+
+	private interface PageWriter {
+		public void write(VariantResults page, int[] columns) throws Exception;
+	}
+
+	private final Filter filter;
+	private final List<Field> columns;
+	private final Set<String> autoSamples;
+	private final List<SortingCriterion> sorting;
+
+	/**
+	 * @param columns fields to export, in this order
+	 * @param sorting can be null, results are then exported ordered by variant_sample_id
+	 */
+	public FilterExporter(Filter filter, List<Field> columns, Set<String> autoSamples, List<SortingCriterion> sorting){
+		this.filter = filter;
+		this.columns = new ArrayList<Field>(columns);
+		this.autoSamples = autoSamples;
+		this.sorting = sorting;
+	}
+
+	/**
+	 * Open a buffered writer, compressed with gzip if the file name ends with .gz
+	 */
+	public static Writer openWriter(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE);
+		if (file.getName().toLowerCase().endsWith(".gz")){
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Retreive all results page by page and give each page to the writer.
+	 * @return number of exported variants
+	 */
+	private int export(List<Field> headers, List<SortingCriterion> pageSorting, String progressTxt, PageWriter writer) throws Exception {
+		int exported = 0;
+		Highlander.waitingPanel.setProgressString(progressTxt, true);
+		try (FilterPager pager = filter.getPager(headers, autoSamples, pageSorting, PAGE_SIZE)){
+			VariantResults page;
+			while ((page = pager.nextPage(null)) != null){
+				if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+				int[] indexes = new int[headers.size()];
+				List<Field> pageHeaders = Arrays.asList(page.headers);
+				for (int c=0 ; c < indexes.length ; c++){
+					indexes[c] = pageHeaders.indexOf(headers.get(c));
+				}
+				writer.write(page, indexes);
+				exported += page.getRowCount();
+				int total = pager.getTotalCount();
+				if (total > 0){
+					Highlander.waitingPanel.setProgressString(progressTxt + " ("+Tools.doubleToString(exported, 0, false)+" / "+Tools.doubleToString(total, 0, false)+" variants)", false);
+					Highlander.waitingPanel.setProgressMaximum(total);
+					Highlander.waitingPanel.setProgressValue(exported);
+				}else{
+					Highlander.waitingPanel.setProgressString(progressTxt + " ("+Tools.doubleToString(exported, 0, false)+" variants)", true);
+				}
+			}
+		}
+		return exported;
+	}
+
+	private static Object getValue(VariantResults page, int row, int column){
+		return (column < 0) ? null : page.getValue(row, column);
+	}
+
+	public void toTSV(File file) throws Exception {
+		Highlander.waitingPanel.start(true);
+		try (Writer fw = openWriter(file)){
+			for (int c = 0 ; c < columns.size() ; c++){
+				fw.write(columns.get(c).getName());
+				fw.write((c < columns.size()-1) ? '\t' : '\n');
+			}
+			export(columns, sorting, "Exporting variants", new PageWriter() {
+				@Override
+				public void write(VariantResults page, int[] indexes) throws Exception {
+					for (int i=0 ; i < page.getRowCount() ; i++){
+						for (int c = 0 ; c < indexes.length ; c++){
+							Object value = getValue(page, i, indexes[c]);
+							if (value != null) fw.write(value.toString());
+							fw.write((c < indexes.length-1) ? '\t' : '\n');
+						}
+					}
+				}
+			});
+			Highlander.waitingPanel.setProgressDone();
+		}catch(Exception ex){
+			Highlander.waitingPanel.forceStop();
+			throw ex;
+		}
+		Highlander.waitingPanel.stop();
+	}
+
+	public void toXlsx(File file) throws Exception {
+		Highlander.waitingPanel.start(true);
+		SXSSFWorkbook wb = new SXSSFWorkbook(100);
+		wb.setCompressTempFiles(true);
+		try{
+			DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+			String sheetName = Highlander.getCurrentAnalysis() + " " + df.format(System.currentTimeMillis());
+			CellStyle headerStyle = wb.createCellStyle();
+			headerStyle.setWrapText(true);
+			CellStyle dateStyle = wb.createCellStyle();
+			dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd hh:mm:ss"));
+			CellStyle[] styles = new CellStyle[columns.size()];
+			Map<Integer, CellStyle> alignmentStyles = new HashMap<Integer, CellStyle>();
+			for (int c = 0 ; c < columns.size() ; c++){
+				int alignment = columns.get(c).getAlignment();
+				if (!alignmentStyles.containsKey(alignment)){
+					CellStyle cs = wb.createCellStyle();
+					if (alignment == JLabel.CENTER){
+						cs.setAlignment(CellStyle.ALIGN_CENTER);
+					}else if (alignment == JLabel.RIGHT){
+						cs.setAlignment(CellStyle.ALIGN_RIGHT);
+					}else{
+						cs.setAlignment(CellStyle.ALIGN_LEFT);
+					}
+					alignmentStyles.put(alignment, cs);
+				}
+				styles[c] = alignmentStyles.get(alignment);
+			}
+			final Sheet[] sheet = new Sheet[]{createSheet(wb, sheetName, headerStyle)};
+			final int[] r = new int[]{1, 1};
+			export(columns, sorting, "Exporting variants", new PageWriter() {
+				@Override
+				public void write(VariantResults page, int[] indexes) throws Exception {
+					for (int i=0 ; i < page.getRowCount() ; i++){
+						if (r[0] > XLSX_MAX_ROWS){
+							//Excel limit reached, continue in a new sheet
+							sheet[0] = createSheet(wb, sheetName + " (" + (++r[1]) + ")", headerStyle);
+							r[0] = 1;
+						}
+						Row row = sheet[0].createRow(r[0]++);
+						for (int c = 0 ; c < indexes.length ; c++){
+							Object value = getValue(page, i, indexes[c]);
+							if (value == null) continue;
+							Cell cell = row.createCell(c);
+							if (value instanceof Timestamp){
+								cell.setCellValue((Timestamp)value);
+								cell.setCellStyle(dateStyle);
+								continue;
+							}else if (value instanceof Number){
+								cell.setCellValue(((Number)value).doubleValue());
+							}else if (value instanceof Boolean){
+								cell.setCellValue((Boolean)value);
+							}else{
+								cell.setCellValue(value.toString());
+							}
+							cell.setCellStyle(styles[c]);
+						}
+					}
+				}
+			});
+
+			Sheet sheetFilt = wb.createSheet("Filters details");
+			int rf = 0;
+			Row row = sheetFilt.createRow(rf++);
+			row.createCell(0).setCellValue(filter.toString());
+			rf++;
+			row = sheetFilt.createRow(rf++);
+			row.createCell(0).setCellValue("Analysis");
+			row.createCell(1).setCellValue(""+Highlander.getCurrentAnalysis());
+			rf++;
+			row = sheetFilt.createRow(rf++);
+			row.createCell(0).setCellValue("Generated with Highlander version " + Highlander.version + " by " + Highlander.getLoggedUser() + " ("+df.format(System.currentTimeMillis())+")");
+
+			Highlander.waitingPanel.setProgressString("Writing file ...",true);
+			try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE)){
+				wb.write(fileOut);
+			}
+			Highlander.waitingPanel.setProgressDone();
+		}catch(Exception ex){
+			Highlander.waitingPanel.forceStop();
+			throw ex;
+		}finally{
+			//Delete the temporary files of the streamed sheets
+			wb.dispose();
+		}
+		Highlander.waitingPanel.stop();
+	}
+
+	private Sheet createSheet(SXSSFWorkbook wb, String name, CellStyle headerStyle){
+		Sheet sheet = wb.createSheet(name);
+		sheet.createFreezePane(0, 1);
+		Row row = sheet.createRow(0);
+		row.setHeightInPoints(50);
+		for (int c = 0 ; c < columns.size() ; c++){
+			Cell cell = row.createCell(c);
+			cell.setCellValue(columns.get(c).getName());
+			cell.setCellStyle(headerStyle);
+			sheet.setColumnWidth(c, Math.min(columns.get(c).getSize()*32, 250*128));
+		}
+		sheet.setAutoFilter(new CellRangeAddress(0, 0, 0, columns.size()-1));
+		return sheet;
+	}
+
+	public void toVCF(File file) throws Exception {
+		toVCF(file, null);
+	}
+
+	/**
+	 * Export the results to a VCF file, with the same content as VariantsTable.toVCF() (see VCFBuilder).
+	 *
+	 * @param sampleFilter if not null, only this sample is exported
+	 */
+	public void toVCF(File file, String sampleFilter) throws Exception {
+		writeVCF(file, null, sampleFilter);
+	}
+
+	/**
+	 * Export the results to one VCF file per sample, named prefix_sample.vcf, with the same content as toVCF(file, sample) for each sample.
+	 * Results are retreived only once for all samples.
+	 */
+	public void toVCFPerSample(String prefix) throws Exception {
+		writeVCF(null, prefix, null);
+	}
+
+	/**
+	 * @param file multi-sample VCF, or null if prefix is given
+	 * @param prefix prefix of the VCF of each sample, or null if file is given
+	 * @param sampleFilter if not null, only this sample is exported
+	 */
+	private void writeVCF(File file, String prefix, String sampleFilter) throws Exception {
+		Highlander.waitingPanel.start(true);
+		try (VCFBuilder vcf = new VCFBuilder(columns, sampleFilter)){
+			export(vcf.getFields(), null, "Retreiving variants", new PageWriter() {
+				@Override
+				public void write(VariantResults page, int[] indexes) throws Exception {
+					Object[] values = new Object[indexes.length];
+					for (int i=0 ; i < page.getRowCount() ; i++){
+						for (int c = 0 ; c < indexes.length ; c++){
+							values[c] = getValue(page, i, indexes[c]);
+						}
+						vcf.add(page.id[i], values);
+					}
+				}
+			});
+			if (prefix == null) vcf.write(file);
+			else vcf.writePerSample(prefix);
+			Highlander.waitingPanel.setProgressDone();
+		}catch(Exception ex){
+			Highlander.waitingPanel.forceStop();
+			throw ex;
+		}
+		Highlander.waitingPanel.stop();
+	}
+
+}
@@ -0,0 +1,218 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
+import be.uclouvain.ngs.highlander.database.TemporaryTables;
+import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
+
+/**
+ * Retreives the results of a filter page by page (see Filter.getPager()).
+ *
+ * Without sorting, each page starts after the last variant_sample_id of the previous one,
+ * so the database can use the primary key and only reads the rows of the page.
+ * With sorting, the database sorts the results and pages are retreived with an offset.
+ *
+ * Some filters need to keep a temporary table during the whole retrieval (see ComboFilter),
+ * it is dropped when the last page has been retreived or when the pager is closed.
+ *
+ * Filters computed by Highlander (see MagicFilter, and ComboFilter without temporary tables) resolve their result ids once when the pager is created.
+ * Without sorting, each page only sends the ids of the page to the database, with sorting the list of all ids is built once.
+ */
+public class FilterPager implements AutoCloseable {
+
+	private final Filter filter;
+	private final List<Field> headers;
+	private final Set<String> autoSamples;
+	private final List<SortingCriterion> sorting;
+	private final int pageSize;
+	private final TemporaryTables temporaryTables;
+	private final String resultTable;
+	private final int[] resultIds;
+	private String allIdsWhereClause = null;
+	private int totalCount;
+	private int lastId = -1;
+	private int offset = 0;
+	private int rowsRead = 0;
+	private int retreived = 0;
+	private boolean complete = false;
+	private boolean closed = false;
+
+	FilterPager(Filter filter, List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize, TemporaryTables temporaryTables, String resultTable, int totalCount){
+		this.filter = filter;
+		this.headers = new ArrayList<Field>(headers);
+		this.autoSamples = autoSamples;
+		this.sorting = (sorting != null) ? new ArrayList<SortingCriterion>(sorting) : new ArrayList<SortingCriterion>();
+		this.pageSize = pageSize;
+		this.temporaryTables = temporaryTables;
+		this.resultTable = resultTable;
+		this.resultIds = null;
+		this.totalCount = totalCount;
+	}
+
+	/**
+	 * Pager of results already known by their ids
+	 */
+	FilterPager(Filter filter, List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize, Collection<Integer> resultIds){
+		this.filter = filter;
+		this.headers = new ArrayList<Field>(headers);
+		this.autoSamples = autoSamples;
+		this.sorting = (sorting != null) ? new ArrayList<SortingCriterion>(sorting) : new ArrayList<SortingCriterion>();
+		this.pageSize = pageSize;
+		this.temporaryTables = null;
+		this.resultTable = null;
+		this.resultIds = new int[resultIds.size()];
+		int i = 0;
+		for (int id : resultIds){
+			this.resultIds[i++] = id;
+		}
+		Arrays.sort(this.resultIds);
+		this.totalCount = this.resultIds.length;
+	}
+
+	/**
+	 * Retreive the next page of results.
+	 * @param progressTxt text for the waiting panel, or null if the page is retreived in background
+	 * @return the next page, or null if all results have already been retreived
+	 */
+	public synchronized VariantResults nextPage(String progressTxt) throws Exception {
+		if (complete || closed) return null;
+		rowsRead = 0;
+		VariantResults page = filter.retreivePage(this, lastId, offset, progressTxt);
+		offset += rowsRead;
+		retreived += page.getRowCount();
+		if (page.getRowCount() > 0) lastId = page.id[page.getRowCount()-1];
+		if (totalCount == -1 && filter.getNumberOfVariants() >= 0) totalCount = filter.getNumberOfVariants();
+		if (rowsRead < pageSize){
+			complete = true;
+			close();
+		}
+		return page;
+	}
+
+	public boolean isComplete(){
+		return complete;
+	}
+
+	public boolean isSorted(){
+		return !sorting.isEmpty();
+	}
+
+	/**
+	 * @return number of variants already retreived
+	 */
+	public int getRetreivedCount(){
+		return retreived;
+	}
+
+	/**
+	 * @return total number of variants if known, -1 otherwise
+	 */
+	public int getTotalCount(){
+		return complete ? retreived : totalCount;
+	}
+
+	public Filter getFilter(){
+		return filter;
+	}
+
+	public List<Field> getHeaders(){
+		return headers;
+	}
+
+	public Set<String> getAutoSamples(){
+		return autoSamples;
+	}
+
+	public List<SortingCriterion> getSorting(){
+		return sorting;
+	}
+
+	public int getPageSize(){
+		return pageSize;
+	}
+
+	TemporaryTables getTemporaryTables(){
+		return temporaryTables;
+	}
+
+	String getResultTable(){
+		return resultTable;
+	}
+
+	boolean hasResultIds(){
+		return resultIds != null;
+	}
+
+	/**
+	 * Condition selecting the results ids of the next page (without sorting) or all results ids (with sorting).
+	 * @param afterId last id of the previous page, -1 for the first page
+	 */
+	String getResultIdsWhereClause(int afterId){
+		String id = Field.variant_sample_id.getQueryWhereName(Highlander.getCurrentAnalysis(), false);
+		if (resultIds.length == 0) return id + " IS NULL";
+		if (isSorted()){
+			if (allIdsWhereClause == null){
+				List<Integer> list = new ArrayList<Integer>(resultIds.length);
+				for (int i : resultIds) list.add(i);
+				allIdsWhereClause = id + " IN (" + HighlanderDatabase.makeSqlList(list, Integer.class) + ")";
+			}
+			return allIdsWhereClause;
+		}
+		int from = Arrays.binarySearch(resultIds, afterId);
+		from = (from >= 0) ? from + 1 : -from - 1;
+		int to = Math.min(resultIds.length, from + pageSize);
+		if (from >= to) return id + " IS NULL";
+		List<Integer> list = new ArrayList<Integer>(to - from);
+		for (int i=from ; i < to ; i++) list.add(resultIds[i]);
+		return id + " IN (" + HighlanderDatabase.makeSqlList(list, Integer.class) + ")";
+	}
+
+	void setRowsRead(int rowsRead){
+		this.rowsRead = rowsRead;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		if (temporaryTables != null) temporaryTables.close();
+	}
+
+}
@@ -50,6 +50,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
 import be.uclouvain.ngs.highlander.datatype.Interval;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class Intervals extends MagicFilter {
 
@@ -274,11 +275,11 @@ public class Intervals extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		if (samples.isEmpty()) {
 			nVariants = 0;
-			return new HashMap<Integer, String>();
+			return new HashMap<Integer, Long>();
 		}
 
 		Highlander.waitingPanel.start(true);
@@ -292,12 +293,12 @@ public class Intervals extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/3]", true);
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		StringBuilder query = new StringBuilder();
 		query.append(
 				"SELECT "
@@ -332,7 +333,7 @@ public class Intervals extends MagicFilter {
 			int progress = 0;
 			while (res.next()){
 				Highlander.waitingPanel.setProgressValue(progress++);
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				int id = res.getInt(Field.variant_sample_id.getName());
 				ids.put(id, uniqueVariant);
 			}
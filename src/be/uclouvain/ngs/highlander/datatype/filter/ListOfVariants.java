@@ -44,6 +44,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class ListOfVariants extends MagicFilter {
 
@@ -115,8 +116,8 @@ public class ListOfVariants extends MagicFilter {
 		return ids.size();
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {	
-		Map<Integer,String> results = new HashMap<Integer, String>();
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {	
+		Map<Integer,Long> results = new HashMap<Integer, Long>();
 		if (!ids.isEmpty()){
 			try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, 
 					"SELECT variant_sample_id, chr, pos, length, reference, alternative "
@@ -125,7 +126,7 @@ public class ListOfVariants extends MagicFilter {
 					, true)) {
 				while (res.next()){
 					int id = res.getInt("variant_sample_id");
-					String variant = res.getString("chr") + "-" + res.getInt("pos") + "-" + + res.getInt("length") + "-" + res.getString("reference") + "-" + res.getString("alternative");
+					long variant = VariantKey.getKey(res);
 					results.put(id, variant);
 				}
 			}
@@ -35,7 +35,6 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,12 +43,10 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import be.uclouvain.ngs.highlander.Highlander;
-import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
 import be.uclouvain.ngs.highlander.UI.toolbar.FilteringPanel;
 import be.uclouvain.ngs.highlander.database.Field;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
-import be.uclouvain.ngs.highlander.database.Results;
-import be.uclouvain.ngs.highlander.database.VariantResults;
+import be.uclouvain.ngs.highlander.datatype.SortingCriterion;
 
 public abstract class MagicFilter extends Filter {
 
@@ -176,42 +173,15 @@ public abstract class MagicFilter extends Filter {
 		return list;
 	}
 
+	public FilterPager getPager(List<Field> headers, Set<String> autoSamples, List<SortingCriterion> sorting, int pageSize) throws Exception {
+		return getPagerOfResultIds(headers, autoSamples, sorting, pageSize);
+	}
+
 	protected String getQueryWhereClause(boolean includeTableWithJoinON) throws Exception {		
-		Map<Integer,String> resultIds = getResultIds(getAllSamples());
+		if (getPageWhereClause() != null) return getPageWhereClause();
+		Map<Integer,Long> resultIds = getResultIds(getAllSamples());
 		if (resultIds.isEmpty()) return (Field.variant_sample_id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IS NULL");
 		return (Field.variant_sample_id.getQueryWhereName(Highlander.getCurrentAnalysis(), false) + " IN ("+HighlanderDatabase.makeSqlList(resultIds.keySet(), Integer.class)+")");
 	}
 
-	protected VariantResults extractResults(Results res, List<Field> headers, String progressTxt, boolean indeterminateProgress) throws Exception {		
-		Map<Integer, Object[]> dataMap = new LinkedHashMap<Integer, Object[]>();
-		Map<Integer, String> variants = new LinkedHashMap<Integer, String>();
-		int resCount=0;
-		while (res.next() && !Highlander.waitingPanel.isCancelled()){
-			if (indeterminateProgress){
-				Highlander.waitingPanel.setProgressString(progressTxt + " ("+(resCount++)+" variants retreived)", true);
-			}else{
-				Highlander.waitingPanel.setProgressValue(resCount++);
-			}
-			Object[] rowData = new Object[headers.size()];
-			int col=0;
-			for (Field field : headers){
-				//when MySQL NULL is replaced by 0 for some fields (like evaluation), the 0 is a string and not an INT, causing type problems in VariantTable (for filtering on those columns)
-				rowData[col] = (field.getDefaultValue() != null && field.getDefaultValue().equals("0")) ? res.getInt(field.getName()) : res.getObject(field.getName()); 
-				col++;
-			}
-			int id = res.getInt("variant_sample_id");
-			String variant = 	res.getString("chr") + "-" +
-					res.getString("pos") + "-" +
-					res.getString("length") + "-" + 
-					res.getString("reference") + "-" + 
-					res.getString("alternative");
-			dataMap.put(id, rowData);
-			variants.put(id, variant);
-		}
-		if (Highlander.waitingPanel.isCancelled()) {
-			throw new CancelException();
-		}
-		return new VariantResults(headers, dataMap, variants);
-	}
-
 }
@@ -49,6 +49,7 @@ import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect.VariantType;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class MultipleNucleotidesPolymorphisms extends MagicFilter {
 
@@ -213,11 +214,11 @@ public class MultipleNucleotidesPolymorphisms extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		if (samples.isEmpty()) {
 			nVariants = 0;
-			return new HashMap<Integer, String>();
+			return new HashMap<Integer, Long>();
 		}
 
 		Highlander.waitingPanel.start(true);
@@ -231,13 +232,13 @@ public class MultipleNucleotidesPolymorphisms extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/4]", true);
 		Map<String, Map<String, Map<Integer,Integer>>> map = new HashMap<String, Map<String,Map<Integer,Integer>>>();
-		Map<Integer, String> idVariants = new HashMap<Integer, String>();
+		Map<Integer, Long> idVariants = new HashMap<Integer, Long>();
 
 		StringBuilder query = new StringBuilder();
 		query.append(
@@ -269,7 +270,7 @@ public class MultipleNucleotidesPolymorphisms extends MagicFilter {
 			while (res.next()){
 				Highlander.waitingPanel.setProgressValue(progress++);
 				int id = res.getInt(Field.variant_sample_id.getName());
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				String sample = res.getString(Field.sample.getName()).toUpperCase();
 				String chr = res.getString(Field.chr.getName());
 				int pos = res.getInt(Field.pos.getName());
@@ -288,7 +289,7 @@ public class MultipleNucleotidesPolymorphisms extends MagicFilter {
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [4/4]", false);
 		Highlander.waitingPanel.setProgressMaximum(map.size()*24);
 		progress = 0;
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		for (Map<String,Map<Integer,Integer>> sampleMap : map.values()){
 			for (Map<Integer,Integer> chrMap : sampleMap.values()){
 				Highlander.waitingPanel.setProgressValue(progress++);
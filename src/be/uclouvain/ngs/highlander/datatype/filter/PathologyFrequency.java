@@ -48,6 +48,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 import be.uclouvain.ngs.highlander.datatype.filter.CustomFilter.ComparisonOperator;
 
 public class PathologyFrequency extends MagicFilter {
@@ -273,11 +274,11 @@ public class PathologyFrequency extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		if (samples.isEmpty()) {
 			nVariants = 0;
-			return new HashMap<Integer, String>();
+			return new HashMap<Integer, Long>();
 		}
 
 		Highlander.waitingPanel.start(true);
@@ -291,12 +292,12 @@ public class PathologyFrequency extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/3]", true);
-		Map<Integer, String> ids = new HashMap<Integer, String>();
+		Map<Integer, Long> ids = new HashMap<Integer, Long>();
 
 		StringBuilder query = new StringBuilder();
 		query.append(
@@ -343,7 +344,7 @@ public class PathologyFrequency extends MagicFilter {
 			while (res.next()){
 				Highlander.waitingPanel.setProgressValue(progress++);
 				int id = res.getInt(Field.variant_sample_id.getName());
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				ids.put(id, uniqueVariant);
 			}
 		}
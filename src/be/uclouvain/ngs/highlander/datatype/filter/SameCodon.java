@@ -49,6 +49,7 @@ import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
 import be.uclouvain.ngs.highlander.datatype.SNPEffect.VariantType;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 public class SameCodon extends MagicFilter {
 
@@ -215,11 +216,11 @@ public class SameCodon extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		if (samples.isEmpty()) {
 			nVariants = 0;
-			return new HashMap<Integer, String>();
+			return new HashMap<Integer, Long>();
 		}
 
 		Highlander.waitingPanel.start(true);
@@ -233,14 +234,14 @@ public class SameCodon extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/4]", true);
 		Map<String, Map<String, Map<String, Map<Integer,Integer>>>> map = new HashMap<>();
 		Map<String, Map<String, Map<String, Map<Integer,Integer>>>> proteinPos = new HashMap<>();
-		Map<Integer, String> idVariants = new HashMap<Integer, String>();
+		Map<Integer, Long> idVariants = new HashMap<Integer, Long>();
 
 		StringBuilder query = new StringBuilder();
 		query.append(
@@ -276,7 +277,7 @@ public class SameCodon extends MagicFilter {
 			while (res.next()){
 				Highlander.waitingPanel.setProgressValue(progress++);
 				int id = res.getInt(Field.variant_sample_id.getName());
-				String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+				long uniqueVariant = VariantKey.getKey(res);
 				String sample = res.getString(Field.sample.getName()).toUpperCase();
 				String gene = res.getString(Field.gene_symbol.getName());
 				String chr = res.getString(Field.chr.getName());
@@ -311,7 +312,7 @@ public class SameCodon extends MagicFilter {
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [4/4]", false);
 		Highlander.waitingPanel.setProgressMaximum(map.size()*24);
 		progress = 0;
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		for (String sample : map.keySet()){
 			for (String gene : map.get(sample).keySet()){
 				for (String chr : map.get(sample).get(gene).keySet()){
@@ -48,6 +48,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 
 import java.util.Set;
 
@@ -285,7 +286,7 @@ public class SampleSpecificVariants extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		Highlander.waitingPanel.start(true);
 		Analysis analysis = Highlander.getCurrentAnalysis();
@@ -298,14 +299,14 @@ public class SampleSpecificVariants extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/2]", false);
 		Highlander.waitingPanel.setProgressMaximum(samples.size()*4);
 		int progress = 0;
-		Map<Integer,String> ids = new HashMap<Integer, String>();
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
 		for (Entry<List<String>, List<String>> e : samples.entrySet()){
 			Highlander.waitingPanel.setProgressValue(progress++);
 			/**
@@ -340,10 +341,10 @@ public class SampleSpecificVariants extends MagicFilter {
 
 				Tools.print("Submitting query to the database ("+getFilterType().getName()+" filter - retreiving to keep variants): ");
 				System.out.println(query.toString());
-				Map<String,List<Integer>> toKeep = new HashMap<String, List<Integer>>();
+				Map<Long,List<Integer>> toKeep = new HashMap<Long, List<Integer>>();
 				try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString(), true)) {
 					while (res.next()){
-						String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+						long uniqueVariant = VariantKey.getKey(res);
 						if (!toKeep.containsKey(uniqueVariant)){
 							toKeep.put(uniqueVariant, new ArrayList<Integer>());
 						}				
@@ -351,7 +352,7 @@ public class SampleSpecificVariants extends MagicFilter {
 					}
 				}
 				if (toKeepOperator.get(e.getKey()) == LogicalOperator.AND){
-					for(Iterator<String> it = toKeep.keySet().iterator() ; it.hasNext() ; ){
+					for(Iterator<Long> it = toKeep.keySet().iterator() ; it.hasNext() ; ){
 						if (toKeep.get(it.next()).size() < e.getKey().size()) it.remove();
 					}
 				}
@@ -375,16 +376,16 @@ public class SampleSpecificVariants extends MagicFilter {
 				
 				Tools.print("Submitting query to the database ("+getFilterType().getName()+" filter - retreiving to remove variants): ");
 				System.out.println(query.toString());
-				Set<String> toRemove = new HashSet<String>();
+				Set<Long> toRemove = new HashSet<Long>();
 				try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString(), true)) {
 					while (res.next()){
-						String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+						long uniqueVariant = VariantKey.getKey(res);
 						toRemove.add(uniqueVariant);
 					}
 				}
 				Highlander.waitingPanel.setProgressValue(progress++);			
 				toKeep.keySet().removeAll(toRemove);
-				for (String variant : toKeep.keySet()){
+				for (long variant : toKeep.keySet()){
 					for (int id : toKeep.get(variant)){
 						ids.put(id, variant);
 					}
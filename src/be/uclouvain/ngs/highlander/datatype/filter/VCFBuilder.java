@@ -0,0 +1,585 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.datatype.filter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import be.uclouvain.ngs.highlander.Highlander;
+import be.uclouvain.ngs.highlander.Tools;
+import be.uclouvain.ngs.highlander.UI.misc.WaitingPanel.CancelException;
+import be.uclouvain.ngs.highlander.database.Field;
+import be.uclouvain.ngs.highlander.database.Field.Annotation;
+import be.uclouvain.ngs.highlander.database.Field.JSon;
+import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
+import be.uclouvain.ngs.highlander.database.Results;
+import be.uclouvain.ngs.highlander.datatype.AnalysisFull;
+import be.uclouvain.ngs.highlander.datatype.SNPEffect.Zygosity;
+import be.uclouvain.ngs.highlander.io.IndexedBgzipWriter;
+
+/**
+ * Build VCF files from variants given in any order, for FilterExporter.toVCF() and VariantsTable.toVCF().
+ *
+ * Variants are kept in memory by groups of RUN_SIZE, each group is sorted and written in temporary files, one per chromosome (a run).
+ * The runs of each chromosome are then merged by position, so only the current record of each run and the records of one site
+ * (same position and reference, giving one line of the VCF) are in memory, whatever the number of variants.
+ * If a file name ends with .gz, the VCF is compressed with bgzip and indexed with tabix.
+ */
+public class VCFBuilder implements AutoCloseable {
+
+	public static final int RUN_SIZE = 200_000;
+
+	/**
+	 * Fields needed for each variant, before the INFO and FORMAT fields
+	 */
+	public static final Field[] MANDATORY = new Field[]{
+			Field.chr, Field.pos, Field.reference, Field.alternative, Field.dbsnp_id, Field.confidence, Field.filters,
+			Field.sample, Field.zygosity, Field.allelic_depth_ref, Field.allelic_depth_alt, Field.read_depth,
+	};
+	//Columns of the records, the chromosome (given by the run) is replaced by the variant_sample_id
+	private static final int V_ID = 0;
+	private static final int V_POS = 1;
+	private static final int V_REF = 2;
+	private static final int V_ALT = 3;
+	private static final int V_DBSNP = 4;
+	private static final int V_QUAL = 5;
+	private static final int V_FILTER = 6;
+	private static final int V_SAMPLE = 7;
+	private static final int V_GT = 8;
+	private static final int V_ADREF = 9;
+	private static final int V_ADALT = 10;
+	private static final int V_DP = 11;
+	private static final int V_FIELDS = 12;
+
+	/**
+	 * Order of the records in a chromosome: position, reference, alternative and variant_sample_id
+	 */
+	private static final Comparator<String[]> ORDER = new Comparator<String[]>() {
+		@Override
+		public int compare(String[] a, String[] b) {
+			int cmp = Integer.compare(Integer.parseInt(a[V_POS]), Integer.parseInt(b[V_POS]));
+			if (cmp == 0) cmp = a[V_REF].compareTo(b[V_REF]);
+			if (cmp == 0) cmp = a[V_ALT].compareTo(b[V_ALT]);
+			if (cmp == 0) cmp = Integer.compare(Integer.parseInt(a[V_ID]), Integer.parseInt(b[V_ID]));
+			return cmp;
+		}
+	};
+
+	private interface SiteWriter {
+		public void write(String chr, List<String[]> site) throws IOException;
+	}
+
+	private final String sampleFilter;
+	private final List<Field> infos = new ArrayList<Field>();
+	private final List<Field> formats = new ArrayList<Field>();
+	private final File tempDir;
+	private final Map<String, List<String[]>> buffer = new HashMap<String, List<String[]>>(); // chromosome -> records not yet in a run
+	private final Map<String, List<File>> runs = new HashMap<String, List<File>>(); // chromosome -> runs
+	private final Set<String> samples = new TreeSet<String>();
+	private int buffered = 0;
+	private int runCount = 0;
+
+	/**
+	 * @param columns exported columns, those that are INFO or FORMAT fields are added to the VCF
+	 * @param sampleFilter if not null, only this sample is exported
+	 */
+	public VCFBuilder(List<Field> columns, String sampleFilter) throws IOException {
+		this.sampleFilter = sampleFilter;
+		List<Field> mandatory = Arrays.asList(MANDATORY);
+		for (Field f : columns){
+			if (mandatory.contains(f) || infos.contains(f) || formats.contains(f)) continue;
+			if (f.getAnnotationCode() == Annotation.VCF) {
+				if (f.getAnnotationHeaders()[0].equals("FORMAT")) formats.add(f);
+				else if (f.getAnnotationHeaders()[0].equals("INFO")) infos.add(f);
+			}else {
+				if (f.getJSonPath() == JSon.CALLS) formats.add(f);
+				else if (f.getJSonPath() == JSon.INFO) infos.add(f);
+			}
+		}
+		tempDir = Files.createTempDirectory("highlander_vcf_").toFile();
+	}
+
+	/**
+	 * @return fields which values must be given to add(), in this order
+	 */
+	public List<Field> getFields(){
+		List<Field> fields = new ArrayList<Field>(Arrays.asList(MANDATORY));
+		fields.addAll(infos);
+		fields.addAll(formats);
+		return fields;
+	}
+
+	/**
+	 * Add a variant, the values are copied.
+	 * @param values values of the fields given by getFields(), in the same order
+	 */
+	public void add(int variantSampleId, Object[] values) throws IOException {
+		if (values[0] == null || values[V_SAMPLE] == null) return;
+		String sample = values[V_SAMPLE].toString();
+		if (sampleFilter != null && !sample.equalsIgnoreCase(sampleFilter)) return;
+		String[] record = new String[values.length];
+		record[V_ID] = Integer.toString(variantSampleId);
+		for (int c = 1 ; c < values.length ; c++){
+			record[c] = (values[c] == null) ? "" : values[c].toString().replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		}
+		samples.add(record[V_SAMPLE]);
+		String chromosome = values[0].toString();
+		if (!buffer.containsKey(chromosome)) buffer.put(chromosome, new ArrayList<String[]>());
+		buffer.get(chromosome).add(record);
+		if (++buffered >= RUN_SIZE) flush();
+	}
+
+	/**
+	 * Sort the records in memory and write them in a new run of their chromosome
+	 */
+	private void flush() throws IOException {
+		for (String chromosome : buffer.keySet()){
+			List<String[]> records = buffer.get(chromosome);
+			Collections.sort(records, ORDER);
+			File run = new File(tempDir, "run" + (runCount++) + ".tsv");
+			if (!runs.containsKey(chromosome)) runs.put(chromosome, new ArrayList<File>());
+			runs.get(chromosome).add(run);
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(run.toPath()), StandardCharsets.UTF_8), 1 << 16)){
+				for (String[] record : records){
+					writer.write(String.join("\t", record));
+					writer.write('\n');
+				}
+			}
+		}
+		buffer.clear();
+		buffered = 0;
+	}
+
+	/**
+	 * Write all variants in one VCF, with a column for each sample
+	 */
+	public void write(File file) throws Exception {
+		List<String> vcfSamples = new ArrayList<String>((sampleFilter == null) ? samples : Collections.singleton(sampleFilter));
+		try (VCFOutput output = new VCFOutput(file, getHeader(Highlander.getCurrentAnalysis()), vcfSamples)){
+			writeSites(new SiteWriter() {
+				@Override
+				public void write(String chr, List<String[]> site) throws IOException {
+					output.writeRecord(chr, site, getRecord(chr, site, vcfSamples));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write the variants of each sample in its own VCF, named prefix_sample.vcf, with the same content as write() with this sample as filter.
+	 * All files are written at the same time, so the variants are read only once.
+	 */
+	public void writePerSample(String prefix) throws Exception {
+		List<String> headerLines = getHeader(Highlander.getCurrentAnalysis());
+		Map<String, VCFOutput> outputs = new HashMap<String, VCFOutput>();
+		try{
+			for (String sample : samples){
+				outputs.put(sample, new VCFOutput(new File(prefix + "_" + sample + ".vcf"), headerLines, Collections.singletonList(sample)));
+			}
+			writeSites(new SiteWriter() {
+				@Override
+				public void write(String chr, List<String[]> site) throws IOException {
+					Map<String, List<String[]>> sampleSites = new LinkedHashMap<String, List<String[]>>();
+					for (String[] record : site){
+						if (!sampleSites.containsKey(record[V_SAMPLE])) sampleSites.put(record[V_SAMPLE], new ArrayList<String[]>());
+						sampleSites.get(record[V_SAMPLE]).add(record);
+					}
+					for (String sample : sampleSites.keySet()){
+						List<String[]> sampleSite = sampleSites.get(sample);
+						outputs.get(sample).writeRecord(chr, sampleSite, getRecord(chr, sampleSite, Collections.singletonList(sample)));
+					}
+				}
+			});
+		}finally{
+			for (VCFOutput output : outputs.values()){
+				output.close();
+			}
+		}
+	}
+
+	/**
+	 * Give the records of each site to the writer, chromosomes in natural order and sites sorted by position
+	 */
+	private void writeSites(SiteWriter writer) throws Exception {
+		flush();
+		List<String> chromosomes = new ArrayList<String>(runs.keySet());
+		Collections.sort(chromosomes, new Tools.NaturalOrderComparator(true));
+		Highlander.waitingPanel.setProgressString("Exporting "+Tools.doubleToString(chromosomes.size(), 0, false)+" chromosomes", false);
+		Highlander.waitingPanel.setProgressMaximum(chromosomes.size());
+		int progress = 0;
+		for (String chr : chromosomes){
+			if (Highlander.waitingPanel.isCancelled()) throw new CancelException();
+			Highlander.waitingPanel.setProgressValue(progress++);
+			try (RunMerger merger = new RunMerger(runs.get(chr))){
+				List<String[]> site = new ArrayList<String[]>();
+				String[] record;
+				while ((record = merger.next()) != null){
+					if (!site.isEmpty() && (!record[V_POS].equals(site.get(0)[V_POS]) || !record[V_REF].equals(site.get(0)[V_REF]))){
+						writer.write(chr, site);
+						site = new ArrayList<String[]>();
+					}
+					site.add(record);
+				}
+				if (!site.isEmpty()) writer.write(chr, site);
+			}
+		}
+	}
+
+	/**
+	 * Delete the temporary files
+	 */
+	@Override
+	public void close() {
+		for (List<File> files : runs.values()){
+			for (File run : files){
+				run.delete();
+			}
+		}
+		runs.clear();
+		buffer.clear();
+		tempDir.delete();
+	}
+
+	/**
+	 * Read the runs of a chromosome at the same time, giving their records in the order of all runs merged
+	 */
+	private static class RunMerger implements AutoCloseable {
+
+		private static class Head {
+			final BufferedReader reader;
+			String[] record;
+
+			Head(BufferedReader reader){
+				this.reader = reader;
+			}
+		}
+
+		private final List<BufferedReader> readers = new ArrayList<BufferedReader>();
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>(new Comparator<Head>() {
+			@Override
+			public int compare(Head a, Head b) {
+				return ORDER.compare(a.record, b.record);
+			}
+		});
+
+		public RunMerger(List<File> runs) throws IOException {
+			try{
+				for (File run : runs){
+					BufferedReader reader = Files.newBufferedReader(run.toPath(), StandardCharsets.UTF_8);
+					readers.add(reader);
+					advance(new Head(reader));
+				}
+			}catch(IOException ex){
+				close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * @return the next record, or null when all runs have been read
+		 */
+		public String[] next() throws IOException {
+			Head head = heads.poll();
+			if (head == null) return null;
+			String[] record = head.record;
+			advance(head);
+			return record;
+		}
+
+		private void advance(Head head) throws IOException {
+			String line = head.reader.readLine();
+			if (line != null){
+				head.record = line.split("\t", -1);
+				heads.add(head);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (BufferedReader reader : readers){
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * A VCF file, compressed with bgzip and indexed with tabix if its name ends with .gz
+	 */
+	private static class VCFOutput implements AutoCloseable {
+
+		private final Writer plain;
+		private final IndexedBgzipWriter compressed;
+
+		/**
+		 * @param headerLines header without the samples, which are added to the last line
+		 */
+		public VCFOutput(File file, List<String> headerLines, List<String> samples) throws IOException {
+			if (file.getName().toLowerCase().endsWith(".gz")){
+				plain = null;
+				compressed = new IndexedBgzipWriter(file);
+			}else{
+				plain = FilterExporter.openWriter(file);
+				compressed = null;
+			}
+			for (int i=0 ; i < headerLines.size() ; i++){
+				String line = headerLines.get(i);
+				if (i == headerLines.size()-1){
+					for (String sample : samples) {
+						line += "\t" + sample;
+					}
+				}
+				if (compressed != null) compressed.writeHeader(line);
+				else plain.write(line + "\n");
+			}
+		}
+
+		/**
+		 * @param site records of the line, the first one gives the position and reference
+		 */
+		public void writeRecord(String chr, List<String[]> site, String line) throws IOException {
+			if (compressed != null) compressed.writeRecord(chr, Integer.parseInt(site.get(0)[V_POS]), site.get(0)[V_REF].length(), line);
+			else plain.write(line + "\n");
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (compressed != null) compressed.close();
+			else plain.close();
+		}
+	}
+
+	/**
+	 * @return meta-information lines and header line, without the samples
+	 */
+	private List<String> getHeader(AnalysisFull analysis) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		lines.add("##fileformat=VCFv4.3");
+		//FILTER
+		Set<String> possibleFilters = new TreeSet<>();
+		try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, "SELECT `value` FROM "+analysis.getFromPossibleValues()+" WHERE `field` = 'filters'")) {
+			while (res.next()) {
+				for (String f : res.getString(1).split(";")) {
+					possibleFilters.add(f);
+				}
+			}
+		}
+		possibleFilters.remove("PASS");
+		for (String f : possibleFilters) {
+			lines.add("##FILTER=<ID="+f+",Description=\"\">");
+		}
+		//FORMAT
+		lines.add("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+		lines.add("##FORMAT=<ID=AD,Number=R,Type=Integer,Description=\"Allelic depths for the ref and alt alleles in the order listed\">");
+		lines.add("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Approximate read depth (reads with MQ=255 or with bad mates are filtered)\">");
+		for (Field f : formats) {
+			lines.add("##FORMAT=<ID="+f+",Number=G,Type="+f.getVcfClass()+",Description=\""+f.getDescription()+"\">");
+		}
+		//INFO
+		for (Field f : infos) {
+			lines.add("##INFO=<ID="+f+",Number=A,Type="+f.getVcfClass()+",Description=\""+f.getDescription().replaceAll("\"", "'")+"\">");
+		}
+		lines.add("##HighlanderVersion=\""+Highlander.version+", by Raphael Helaers\"");
+		//Headers
+		lines.add("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+		return lines;
+	}
+
+	private static String missingIfEmpty(String value){
+		return (value == null || value.length() == 0) ? "." : value;
+	}
+
+	/**
+	 * Build the VCF record of one site.
+	 * Important: if a variant span multiple genes, only one of them is used.
+	 *
+	 * @param site all records with the same position and reference, sorted by alternative and variant_sample_id
+	 */
+	private String getRecord(String chr, List<String[]> site, List<String> samples){
+		//Records of each alternative, with their first record used for the INFO and ID columns
+		Map<String, List<String[]>> alternatives = new LinkedHashMap<String, List<String[]>>();
+		for (String[] record : site){
+			if (!alternatives.containsKey(record[V_ALT])) alternatives.put(record[V_ALT], new ArrayList<String[]>());
+			alternatives.get(record[V_ALT]).add(record);
+		}
+		StringBuilder sb = new StringBuilder();
+		//CHR
+		sb.append(chr + "\t");
+		//POS
+		sb.append(site.get(0)[V_POS] + "\t");
+		//ID
+		Set<String> distinctIds = new LinkedHashSet<String>();
+		for (List<String[]> records : alternatives.values()) {
+			String dbsnp = records.get(0)[V_DBSNP];
+			if (dbsnp.length() > 0 && !dbsnp.equals(".")) distinctIds.add(dbsnp);
+		}
+		sb.append(distinctIds.isEmpty() ? "." : String.join(";", distinctIds));
+		sb.append("\t");
+		//REF
+		sb.append(site.get(0)[V_REF] + "\t");
+		//ALT
+		sb.append(String.join(",", alternatives.keySet()));
+		sb.append("\t");
+		//QUAL
+		double sumQuals = 0;
+		int numQuals = 0;
+		for (String[] record : site) {
+			if (record[V_QUAL].length() > 0 && !record[V_QUAL].equals(".")) {
+				numQuals++;
+				sumQuals += Double.parseDouble(record[V_QUAL]);
+			}
+		}
+		sb.append((numQuals == 0) ? "." : Tools.doubleToString(sumQuals/(double)numQuals, 2, false, false));
+		sb.append("\t");
+		//FILTER
+		Set<String> distinctFilters = new TreeSet<String>();
+		for (String[] record : site) {
+			if (record[V_FILTER].length() > 0 && !record[V_FILTER].equals(".")) {
+				for (String f : record[V_FILTER].split(";"))
+					if (!f.equalsIgnoreCase("PASS")) distinctFilters.add(f);
+			}
+		}
+		sb.append(distinctFilters.isEmpty() ? "PASS" : String.join(";", distinctFilters));
+		sb.append("\t");
+		//INFO
+		for (int j=0 ; j < infos.size() ; j++) {
+			sb.append(infos.get(j).getName() + "=");
+			int k = 0;
+			for (List<String[]> records : alternatives.values()) {
+				if (k++ > 0) sb.append(",");
+				sb.append(missingIfEmpty(records.get(0)[V_FIELDS+j]).replace(';', '|'));
+			}
+			if (j < infos.size()-1) sb.append(";");
+		}
+		if (infos.isEmpty()) sb.append(".");
+		sb.append("\t");
+		//FORMAT
+		sb.append("GT:AD:DP");
+		for (Field format : formats) {
+			sb.append(":"+format.getName());
+		}
+		Map<String,Integer> altNum = new HashMap<>(); // ALT -> alt pos
+		int l = 1;
+		for (String alt : alternatives.keySet()) {
+			altNum.put(alt, l++);
+		}
+		for (String sample : samples) {
+			sb.append("\t");
+			//GT:AD:DP
+			//First record of each alternative of current sample, ordered by variant_sample_id
+			Map<Integer,String[]> sampleRecords = new TreeMap<>(); //  variant_id -> record
+			Map<String,String[]> sampleAlts = new HashMap<>(); //  ALT -> record
+			for (List<String[]> records : alternatives.values()) {
+				for (String[] record : records) {
+					if (record[V_SAMPLE].equalsIgnoreCase(sample)) {
+						//A variant spanning multiple genes has multiple records, only the first one is used
+						sampleRecords.put(Integer.parseInt(record[V_ID]), record);
+						sampleAlts.put(record[V_ALT], record);
+						break;
+					}
+				}
+			}
+			if (sampleRecords.isEmpty()) {
+				sb.append("./.:.");
+				for (int i=0 ; i < altNum.size() ; i++) {
+					sb.append(",.");
+				}
+				sb.append(":.");
+			}else {
+				String[] first = sampleRecords.values().iterator().next();
+				if (sampleRecords.size() == 1) {
+					Zygosity zig = null;
+					try {
+						zig = Zygosity.valueOf(first[V_GT]);
+					}catch(IllegalArgumentException ex) {
+						zig = null;
+					}
+					int num = altNum.get(first[V_ALT]);
+					if (zig == Zygosity.Heterozygous) sb.append("0/"+num);
+					else if (zig == Zygosity.Homozygous) sb.append(num+"/"+num);
+					else if (zig == Zygosity.Reference) sb.append("0/0");
+					else sb.append("./.");
+				}else {
+					Set<Integer> orderedAlts = new TreeSet<>();
+					for (String[] record : sampleRecords.values()) {
+						orderedAlts.add(altNum.get(record[V_ALT]));
+					}
+					int k = 0;
+					for (int idx : orderedAlts){
+						if (k++ > 0) sb.append("/");
+						sb.append(idx);
+					}
+				}
+				sb.append(":");
+				//AD
+				String[] array = new String[altNum.size()+1];
+				Arrays.fill(array, "0");
+				array[0] = missingIfEmpty(first[V_ADREF]);
+				for (String[] record : sampleRecords.values()) {
+					array[altNum.get(record[V_ALT])] = missingIfEmpty(record[V_ADALT]);
+				}
+				sb.append(String.join(",", array));
+				sb.append(":");
+				//DP
+				sb.append(missingIfEmpty(first[V_DP]));
+			}
+			//Other format fields
+			for (int j=0 ; j < formats.size() ; j++) {
+				sb.append(":");
+				int k = 0;
+				for (String alt : alternatives.keySet()) {
+					if (k++ > 0) sb.append(",");
+					String[] record = sampleAlts.get(alt);
+					sb.append((record == null) ? "." : missingIfEmpty(record[V_FIELDS+infos.size()+j]).replace(':', '|'));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -47,6 +47,7 @@ import be.uclouvain.ngs.highlander.database.HighlanderDatabase;
 import be.uclouvain.ngs.highlander.database.Results;
 import be.uclouvain.ngs.highlander.database.HighlanderDatabase.Schema;
 import be.uclouvain.ngs.highlander.datatype.Analysis;
+import be.uclouvain.ngs.highlander.datatype.VariantKey;
 import be.uclouvain.ngs.highlander.datatype.filter.CustomFilter.ComparisonOperator;
 
 public class VariantsCommonToSamples extends MagicFilter {
@@ -323,7 +324,7 @@ public class VariantsCommonToSamples extends MagicFilter {
 		return nVariants;
 	}
 
-	public Map<Integer,String> getResultIds(Set<String> autoSamples) throws Exception {
+	public Map<Integer,Long> getResultIds(Set<String> autoSamples) throws Exception {
 		nVariants = -1;
 		Highlander.waitingPanel.start(true);
 		Analysis analysis = Highlander.getCurrentAnalysis();
@@ -336,13 +337,13 @@ public class VariantsCommonToSamples extends MagicFilter {
 				Highlander.waitingPanel.setProgressDone();
 				Highlander.waitingPanel.stop();
 				nVariants = 0;
-				return new HashMap<Integer, String>();
+				return new HashMap<Integer, Long>();
 			}
 		}
 
 		Highlander.waitingPanel.setProgressString("Magic filter '" + getFilterType().getName() +"' [2/2]", false);
 		Highlander.waitingPanel.setProgressMaximum(criteria.size()+2);
-		Map<String, Map<String,Integer>> map = new HashMap<String, Map<String,Integer>>();
+		Map<Long, Map<String,Integer>> map = new HashMap<Long, Map<String,Integer>>();
 		int progress = 0;
 		for (VCSCriterion crit : criteria){
 			Highlander.waitingPanel.setProgressValue(progress++);
@@ -379,7 +380,7 @@ public class VariantsCommonToSamples extends MagicFilter {
 			try (Results res = Highlander.getDB().select(Schema.HIGHLANDER, query.toString(), true)) {
 				while (res.next()){
 					int id = res.getInt(Field.variant_sample_id.getName());
-					String uniqueVariant = res.getString(Field.chr.getName()) + "-" + res.getInt(Field.pos.getName()) + "-" + res.getInt(Field.length.getName()) + "-" + res.getString(Field.reference.getName()) + "-" + res.getString(Field.alternative.getName());
+					long uniqueVariant = VariantKey.getKey(res);
 					if (!map.containsKey(uniqueVariant)){
 						map.put(uniqueVariant, new HashMap<String,Integer>());
 					}
@@ -388,8 +389,8 @@ public class VariantsCommonToSamples extends MagicFilter {
 			}
 		}
 		Highlander.waitingPanel.setProgressValue(progress++);
-		Map<Integer,String> ids = new HashMap<Integer, String>();
-		for (String variant : map.keySet()){
+		Map<Integer,Long> ids = new HashMap<Integer, Long>();
+		for (long variant : map.keySet()){
 			Map<String,Integer> variants = map.get(variant);
 			if (variants.size() == criteria.size()){
 				for (int id : variants.values()){
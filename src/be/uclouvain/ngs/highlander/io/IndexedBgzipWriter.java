@@ -0,0 +1,229 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.io;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Write a VCF file compressed with bgzip, and its tabix index (.tbi) when closed.
+ *
+ * Records must be sorted by position and all records of a chromosome must be contiguous, as required by tabix.
+ * Header lines must be written before the first record.
+ */
+public class IndexedBgzipWriter implements AutoCloseable {
+
+	//Tabix preset for VCF files
+	private static final int TBX_VCF = 2;
+	private static final int COL_SEQ = 1;
+	private static final int COL_BEG = 2;
+	private static final int COL_END = 0;
+	private static final int META_CHAR = '#';
+	private static final int LINEAR_SHIFT = 14;
+
+	private static class ReferenceIndex {
+		final String name;
+		final Map<Integer, List<long[]>> bins = new LinkedHashMap<Integer, List<long[]>>();
+		long[] linear = new long[64];
+		int linearSize = 0;
+
+		ReferenceIndex(String name){
+			this.name = name;
+		}
+
+		void add(int beg, int end, long startOffset, long endOffset){
+			int bin = reg2bin(beg, end);
+			List<long[]> chunks = bins.get(bin);
+			if (chunks == null){
+				chunks = new ArrayList<long[]>();
+				bins.put(bin, chunks);
+			}
+			long[] last = chunks.isEmpty() ? null : chunks.get(chunks.size()-1);
+			if (last != null && last[1] == startOffset){
+				last[1] = endOffset;
+			}else{
+				chunks.add(new long[]{startOffset, endOffset});
+			}
+			int first = beg >> LINEAR_SHIFT;
+			int lastWindow = Math.max(beg, end-1) >> LINEAR_SHIFT;
+			if (lastWindow >= linear.length){
+				linear = Arrays.copyOf(linear, Math.max(lastWindow+1, linear.length*2));
+			}
+			for (int w=first ; w <= lastWindow ; w++){
+				if (linear[w] == 0) linear[w] = startOffset;
+			}
+			linearSize = Math.max(linearSize, lastWindow+1);
+		}
+	}
+
+	private final File file;
+	private final BlockCompressedOutputStream out;
+	private final List<ReferenceIndex> references = new ArrayList<ReferenceIndex>();
+	private final Set<String> names = new HashSet<String>();
+	private ReferenceIndex current = null;
+	private int lastPosition = 0;
+
+	public IndexedBgzipWriter(File file){
+		this.file = file;
+		out = new BlockCompressedOutputStream(file);
+	}
+
+	public void writeHeader(String line) throws IOException {
+		if (current != null) throw new IOException("Header lines must be written before records");
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param chr first column of the record
+	 * @param pos second column of the record (1-based)
+	 * @param referenceLength length of the reference allele
+	 * @param line the whole record, without end of line
+	 */
+	public void writeRecord(String chr, int pos, int referenceLength, String line) throws IOException {
+		if (current == null || !current.name.equals(chr)){
+			if (!names.add(chr)) throw new IOException("Records of chromosome " + chr + " are not contiguous, file cannot be indexed");
+			current = new ReferenceIndex(chr);
+			references.add(current);
+			lastPosition = 0;
+		}
+		if (pos < lastPosition) throw new IOException("Records are not sorted ("+chr+":"+pos+" after "+chr+":"+lastPosition+"), file cannot be indexed");
+		lastPosition = pos;
+		long start = out.getFilePointer();
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		int beg = pos-1;
+		current.add(beg, beg + Math.max(1, referenceLength), start, out.getFilePointer());
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+		writeIndex(new File(file.getPath() + ".tbi"));
+	}
+
+	/**
+	 * Compress an uncompressed VCF file, and index it.
+	 */
+	public static void compress(File vcf, File output) throws IOException {
+		try (IndexedBgzipWriter writer = new IndexedBgzipWriter(output)){
+			try (BufferedReader br = new BufferedReader(new FileReader(vcf), 1 << 16)){
+				String line;
+				while ((line = br.readLine()) != null){
+					if (line.length() == 0) continue;
+					if (line.charAt(0) == META_CHAR){
+						writer.writeHeader(line);
+					}else{
+						int t1 = line.indexOf('\t');
+						int t2 = line.indexOf('\t', t1+1);
+						int t3 = line.indexOf('\t', t2+1);
+						int t4 = line.indexOf('\t', t3+1);
+						writer.writeRecord(line.substring(0, t1), Integer.parseInt(line.substring(t1+1, t2)), t4-t3-1, line);
+					}
+				}
+			}
+		}
+	}
+
+	private void writeIndex(File index) throws IOException {
+		ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+		for (ReferenceIndex reference : references){
+			nameBytes.write(reference.name.getBytes(StandardCharsets.UTF_8));
+			nameBytes.write(0);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(new byte[]{'T','B','I',1});
+		writeInt(bytes, references.size());
+		writeInt(bytes, TBX_VCF);
+		writeInt(bytes, COL_SEQ);
+		writeInt(bytes, COL_BEG);
+		writeInt(bytes, COL_END);
+		writeInt(bytes, META_CHAR);
+		writeInt(bytes, 0);
+		writeInt(bytes, nameBytes.size());
+		nameBytes.writeTo(bytes);
+		for (ReferenceIndex reference : references){
+			writeInt(bytes, reference.bins.size());
+			for (Map.Entry<Integer, List<long[]>> bin : reference.bins.entrySet()){
+				writeInt(bytes, bin.getKey());
+				writeInt(bytes, bin.getValue().size());
+				for (long[] chunk : bin.getValue()){
+					writeLong(bytes, chunk[0]);
+					writeLong(bytes, chunk[1]);
+				}
+			}
+			writeInt(bytes, reference.linearSize);
+			long previous = 0;
+			for (int w=0 ; w < reference.linearSize ; w++){
+				if (reference.linear[w] == 0) reference.linear[w] = previous;
+				previous = reference.linear[w];
+				writeLong(bytes, reference.linear[w]);
+			}
+		}
+		try (BlockCompressedOutputStream indexOut = new BlockCompressedOutputStream(index)){
+			bytes.writeTo(indexOut);
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value){
+		out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array(), 0, 4);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long value){
+		out.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array(), 0, 8);
+	}
+
+	/**
+	 * Bin of the UCSC binning scheme containing a 0-based half-open interval, as computed by samtools
+	 */
+	private static int reg2bin(int beg, int end){
+		--end;
+		if (beg>>14 == end>>14) return ((1<<15)-1)/7 + (beg>>14);
+		if (beg>>17 == end>>17) return ((1<<12)-1)/7 + (beg>>17);
+		if (beg>>20 == end>>20) return ((1<<9)-1)/7 + (beg>>20);
+		if (beg>>23 == end>>23) return ((1<<6)-1)/7 + (beg>>23);
+		if (beg>>26 == end>>26) return ((1<<3)-1)/7 + (beg>>26);
+		return 0;
+	}
+
+}
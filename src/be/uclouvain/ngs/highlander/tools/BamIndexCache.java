@@ -0,0 +1,192 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.tools;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.broad.igv.DirectoryManager;
+import org.broad.igv.exceptions.DataLoadException;
+import org.broad.igv.ui.util.MessageUtils;
+import org.broad.igv.util.HttpUtils;
+
+import be.uclouvain.ngs.highlander.Tools;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.seekablestream.SeekableBufferedStream;
+import net.sf.samtools.seekablestream.SeekableFTPStream;
+
+/**
+ * Open distant BAM files, with their index (.bai) downloaded in a persistent cache.
+ *
+ * Index files are kept in the 'bai' subdirectory of the IGV cache directory, named after the md5 of the BAM url and the
+ * last modification date of the index, so they are only downloaded again when the BAM has been re-aligned.
+ * When the server doesn't give a modification date (e.g. FTP), the index is downloaded again if older than one day.
+ */
+public class BamIndexCache {
+
+	public static final long oneDay = 24 * 60 * 60 * 1000;
+
+	private static final Map<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Open a BAM file from an url (http or ftp), using the cached index
+	 */
+	public static SAMFileReader open(URL url) throws IOException {
+		SAMFileReader samfr = (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
+		samfr.setValidationStringency(ValidationStringency.SILENT);
+		return samfr;
+	}
+
+	public static File getIndexFile(URL url, String indexPath) throws IOException {
+		String urlString = url.toString();
+		//The same BAM can be opened by several threads, only one of them downloads the index
+		synchronized (locks.computeIfAbsent(urlString, k -> new Object())) {
+			String key;
+			try {
+				key = Tools.md5Encryption(urlString);
+			}catch (NoSuchAlgorithmException ex) {
+				throw new IOException(ex);
+			}
+			File directory = new File(DirectoryManager.getCacheDirectory(), "bai");
+			directory.mkdirs();
+			long lastModified = getLastModified((indexPath != null && indexPath.length() > 0) ? indexPath : urlString + ".bai");
+			File indexFile = new File(directory, key + "_" + lastModified + ".bai");
+
+			// Crude staleness check -- if the modification date is unknown and more than a day old discard
+			if (lastModified == 0 && System.currentTimeMillis() - indexFile.lastModified() > oneDay) {
+				indexFile.delete();
+			}
+
+			if (!indexFile.exists() || indexFile.length() < 1) {
+				//Download in a temporary file first, so another process never reads a partial index
+				File download = File.createTempFile(key + "_", ".tmp", directory);
+				try {
+					loadIndexFile(urlString, indexPath, download);
+					File[] previous = directory.listFiles((dir, name) -> name.startsWith(key + "_") && name.endsWith(".bai"));
+					if (previous != null) {
+						for (File file : previous) {
+							file.delete();
+						}
+					}
+					if (!download.renameTo(indexFile)) {
+						throw new IOException("Cannot move index file to " + indexFile);
+					}
+				}finally {
+					download.delete();
+				}
+			}
+
+			return indexFile;
+		}
+	}
+
+	/**
+	 * @return last modification date given by the server, or 0 if unknown
+	 */
+	private static long getLastModified(String indexURL) {
+		try {
+			URLConnection connection = new URL(indexURL).openConnection();
+			if (connection instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection)connection;
+				http.setRequestMethod("HEAD");
+				try {
+					if (http.getResponseCode() == HttpURLConnection.HTTP_OK) {
+						return http.getLastModified();
+					}
+				}finally {
+					http.disconnect();
+				}
+			}
+		}catch (IOException ex) {
+			//Index will be considered as stale after one day
+		}
+		return 0;
+	}
+
+	private static void loadIndexFile(String path, String indexPath, File indexFile) throws IOException {
+		InputStream is = null;
+		OutputStream os = null;
+
+		try {
+			String idx = (indexPath != null && indexPath.length() > 0) ? indexPath : path + ".bai";
+			URL indexURL = new URL(idx);
+			os = new FileOutputStream(indexFile);
+			try {
+				is = HttpUtils.getInstance().openConnectionStream(indexURL);
+			} catch (FileNotFoundException e) {
+				// Try other index convention
+				String baseName = path.substring(0, path.length() - 4);
+				indexURL = new URL(baseName + ".bai");
+
+				try {
+					is = org.broad.igv.util.HttpUtils.getInstance().openConnectionStream(indexURL);
+				} catch (FileNotFoundException e1) {
+					MessageUtils.showMessage("Index file not found for file: " + path);
+					throw new DataLoadException("Index file not found for file: " + path, path);
+				}
+			}
+			byte[] buf = new byte[512000];
+			int bytesRead;
+			while ((bytesRead = is.read(buf)) != -1) {
+				os.write(buf, 0, bytesRead);
+			}
+
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}
+	}
+
+}
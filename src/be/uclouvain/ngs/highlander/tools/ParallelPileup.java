@@ -0,0 +1,227 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import be.uclouvain.ngs.highlander.datatype.Interval;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Count the patterns of reads (see ReadPileup) at a set of positions in many BAM files.
+ *
+ * BAM files are read in parallel, each one by a single thread that keeps the same reader for all positions.
+ * Positions of a BAM are read with scan(): close positions are merged into regions, and each region is read only once,
+ * instead of querying (and decompressing) the same part of the BAM for each position.
+ */
+public class ParallelPileup {
+
+	public static final String NREADS = "#reads";
+	public static final int DEFAULT_THREADS = 8;
+
+	/**
+	 * Positions separated by less bases are read in the same region.
+	 * Reading the reads between them costs less than a new query, which decompresses again the first blocks.
+	 */
+	private static final int MAX_GAP_IN_REGION = 1000;
+
+	public interface BamSource {
+		/**
+		 * @return the reader of the BAM, or null if the BAM is not available
+		 */
+		SAMFileReader open() throws Exception;
+	}
+
+	private final int nthreads;
+	private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * @param nthreads number of BAM files read at the same time
+	 */
+	public ParallelPileup(int nthreads) {
+		this.nthreads = Math.max(1, nthreads);
+	}
+
+	/**
+	 * Reads of each BAM are counted for each position (only reads entirely covering the position).
+	 * For positions of size 1, A, C, G and T are always present. The number of reads is under NREADS.
+	 * A BAM that cannot be read is reported on the error output and in getFailures(), and is absent from the results.
+	 *
+	 * @param bams BAM name -> source of the reader, which is closed after all positions are read
+	 * @param onBamDone called by the threads after each BAM (e.g. to show progress), can be null
+	 * @return BAM name -> position -> pattern -> number of reads (BAM not available or that failed are absent)
+	 */
+	public Map<String, Map<Interval, Map<String, Integer>>> count(Map<String, BamSource> bams, Set<Interval> positions, Consumer<String> onBamDone) throws InterruptedException {
+		List<Interval> sorted = new ArrayList<Interval>(new TreeSet<Interval>(positions));
+		failures.clear();
+		Map<String, Map<Interval, Map<String, Integer>>> results = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+		for (String bam : bams.keySet()) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Map<Interval, Map<String, Integer>> bamPatterns = new TreeMap<>();
+					SAMFileReader samfr = null;
+					try {
+						samfr = bams.get(bam).open();
+						if (samfr != null) {
+							String[] chromosomes = new String[sorted.size()];
+							int[] starts = new int[sorted.size()];
+							int[] ends = new int[sorted.size()];
+							ReadPileup.PatternCounts[] counts = new ReadPileup.PatternCounts[sorted.size()];
+							for (int i=0 ; i < sorted.size() ; i++){
+								chromosomes[i] = sorted.get(i).getChromosome(samfr.getFileHeader());
+								starts[i] = sorted.get(i).getStart();
+								ends[i] = sorted.get(i).getEnd();
+								counts[i] = new ReadPileup.PatternCounts();
+							}
+							ReadPileup pileup = new ReadPileup();
+							scan(samfr, chromosomes, starts, ends, (i, record) -> {
+								//Check if the interval falls completely inside the read, drop it if not
+								if (pileup.extract(record, starts[i], ends[i])){
+									counts[i].add(pileup);
+								}
+							});
+							for (int i=0 ; i < sorted.size() ; i++){
+								Interval pos = sorted.get(i);
+								Map<String, Integer> patterns = new HashMap<String, Integer>();
+								if(pos.getSize() == 1){
+									patterns.put("A", 0);
+									patterns.put("C", 0);
+									patterns.put("G", 0);
+									patterns.put("T", 0);
+								}
+								counts[i].addTo(patterns);
+								patterns.put(NREADS, counts[i].getTotal());
+								bamPatterns.put(pos, patterns);
+							}
+							//Only complete results are given, a BAM failing during the scan must not look like a BAM without reads
+							results.put(bam, bamPatterns);
+						}
+					}catch(Exception ex){
+						System.err.println("BamViewer: problem with bam " + bam);
+						ex.printStackTrace();
+						failures.put(bam, ex);
+					}finally {
+						if (samfr != null) samfr.close();
+					}
+					if (onBamDone != null) onBamDone.accept(bam);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(100, TimeUnit.DAYS);
+		return results;
+	}
+
+	/**
+	 * @return BAM name -> exception, for the BAM files that could not be read by the last count()
+	 */
+	public Map<String, Exception> getFailures(){
+		return failures;
+	}
+
+	public interface ReadConsumer {
+		void accept(int position, SAMRecord record);
+	}
+
+	/**
+	 * Give to the consumer each read of the BAM overlapping each position, as samfr.query(chr, start, end, false) would return.
+	 * Positions are sorted and merged into regions, each region is queried once and its reads are dispatched
+	 * to the positions they overlap, using a window sliding along the sorted positions.
+	 *
+	 * @param chromosomes chromosome of each position, as named in the BAM header
+	 * @param starts start of each position
+	 * @param ends end of each position (inclusive)
+	 * @param consumer called with the index of the position in the arrays, for each read overlapping it
+	 */
+	public static void scan(SAMFileReader samfr, String[] chromosomes, int[] starts, int[] ends, ReadConsumer consumer){
+		Integer[] order = new Integer[starts.length];
+		for (int i=0 ; i < order.length ; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> {
+			int c = chromosomes[a].compareTo(chromosomes[b]);
+			if (c == 0) c = Integer.compare(starts[a], starts[b]);
+			if (c == 0) c = Integer.compare(ends[a], ends[b]);
+			return c;
+		});
+		int next = 0;
+		while (next < order.length){
+			int regionFirst = next;
+			String chr = chromosomes[order[next]];
+			int regionStart = starts[order[next]];
+			int regionEnd = ends[order[next]];
+			next++;
+			while (next < order.length && chromosomes[order[next]].equals(chr) && starts[order[next]] <= regionEnd + MAX_GAP_IN_REGION){
+				regionEnd = Math.max(regionEnd, ends[order[next]]);
+				next++;
+			}
+			int regionLast = next;
+			//First position of the region that can still overlap a read, as reads are sorted by start
+			int first = regionFirst;
+			SAMRecordIterator it = samfr.query(chr, regionStart, regionEnd, false);
+			try {
+				while(it.hasNext()){
+					SAMRecord record = it.next();
+					int readStart = record.getAlignmentStart();
+					//Same rule as the BAM query: an unmapped read placed with its mate only covers its start
+					int readEnd = (record.getReadUnmappedFlag()) ? readStart : record.getAlignmentEnd();
+					while (first < regionLast && ends[order[first]] < readStart){
+						first++;
+					}
+					for (int p=first ; p < regionLast && starts[order[p]] <= readEnd ; p++){
+						if (ends[order[p]] >= readStart){
+							consumer.accept(order[p], record);
+						}
+					}
+				}
+			}finally {
+				it.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,295 @@
+/*****************************************************************************************
+*
+* Highlander - Copyright (C) <2012-2020> <Universit catholique de Louvain (UCLouvain)>
+* 	
+* List of the contributors to the development of Highlander: see LICENSE file.
+* Description and complete License: see LICENSE file.
+* 	
+* This program (Highlander) is free software: 
+* you can redistribute it and/or modify it under the terms of the 
+* GNU General Public License as published by the Free Software Foundation, 
+* either version 3 of the License, or (at your option) any later version.
+* 
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with this program (see COPYING file).  If not, 
+* see <http://www.gnu.org/licenses/>.
+* 
+*****************************************************************************************/
+
+/**
+*
+* @author Raphael Helaers
+*
+*/
+
+package be.uclouvain.ngs.highlander.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Extract the pattern found in a read at a given interval, as ViewBam.getPattern() did, without building the whole read.
+ *
+ * The CIGAR elements are walked twice: a first time to compute the offsets of the interval in the read,
+ * and a second time to copy only the bases of the interval in a buffer reused for all reads.
+ * Use one instance per thread.
+ *
+ * Pattern syntax: bases aligned to the reference are in upper case, inserted bases in lower case, deleted bases are '-'.
+ * Insertions just before and just after the interval are included.
+ */
+public class ReadPileup {
+
+	private static final byte[] SHOW = "SHOW".getBytes();
+
+	private byte[] pattern = new byte[64];
+	private int length = 0;
+
+	/**
+	 * Extract the pattern of the read at interval [startPos,endPos] (inclusive).
+	 *
+	 * @return false if the interval is not entirely contained in the read
+	 */
+	public boolean extract(SAMRecord rec, int startPos, int endPos, boolean includeSoftClipped){
+		length = 0;
+		Cigar cigar = rec.getCigar();
+		byte[] read = rec.getReadBases();
+		int n = cigar.numCigarElements();
+		if (n == 0 || read.length == 0) return false; //cigar or bases unavailable
+		//First pass: offsets of the interval in the read, as built by ViewBam.getPattern()
+		int offsetStart = startPos - rec.getUnclippedStart();
+		int offsetEnd = endPos + 1 - rec.getUnclippedStart();
+		int refPos = rec.getUnclippedStart();
+		int readLength = 0;
+		for (int e=0 ; e < n ; e++){
+			CigarElement element = cigar.getCigarElement(e);
+			int len = element.getLength();
+			boolean last = (e == n-1);
+			switch(element.getOperator()){
+			case M:
+			case EQ:
+			case X:
+			case D:
+				readLength += len;
+				refPos += len;
+				break;
+			case I:
+				readLength += len;
+				if (refPos < startPos) offsetStart += len;
+				if (refPos <= endPos+1) offsetEnd += len;
+				break;
+			case S:
+				if (includeSoftClipped) {
+					readLength += len;
+				}else if (!last) {
+					offsetStart -= len;
+					offsetEnd -= len;
+				}
+				refPos += len;
+				break;
+			case H:
+				if (!last) {
+					offsetStart -= len;
+					offsetEnd -= len;
+				}
+				refPos += len;
+				break;
+			case N:
+				//!!!! Never encountered, so never tested !!!!
+				if (!last) return show();
+				for (int t=0 ; t < len ; t++){
+					if (refPos < startPos) offsetStart--;
+					if (refPos <= endPos+1) offsetEnd--;
+					refPos++;
+				}
+				break;
+			case P:
+				//!!!! Never encountered, so never tested !!!!
+				if (!last) return show();
+				break;
+			default:
+				System.err.println("Unsupported CIGAR operation : " + element.getOperator());
+				break;
+			}
+		}
+		if (offsetStart < 0 || offsetEnd > readLength || offsetEnd < offsetStart) return false;
+		//Second pass: copy only the bases in [offsetStart, offsetEnd[
+		if (pattern.length < offsetEnd - offsetStart) pattern = new byte[(offsetEnd - offsetStart) * 2];
+		int patternPos = 0;
+		int readPos = 0;
+		for (int e=0 ; e < n && patternPos < offsetEnd ; e++){
+			CigarElement element = cigar.getCigarElement(e);
+			int len = element.getLength();
+			switch(element.getOperator()){
+			case M:
+			case EQ:
+			case X:
+				copy(read, readPos, len, patternPos, offsetStart, offsetEnd, false);
+				readPos += len;
+				patternPos += len;
+				break;
+			case I:
+				copy(read, readPos, len, patternPos, offsetStart, offsetEnd, true);
+				readPos += len;
+				patternPos += len;
+				break;
+			case D:
+				for (int i=Math.max(patternPos, offsetStart) ; i < Math.min(patternPos+len, offsetEnd) ; i++){
+					pattern[length++] = '-';
+				}
+				patternPos += len;
+				break;
+			case S:
+				if (includeSoftClipped) {
+					copy(read, readPos, len, patternPos, offsetStart, offsetEnd, false);
+					patternPos += len;
+				}
+				readPos += len;
+				break;
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	public boolean extract(SAMRecord rec, int startPos, int endPos){
+		return extract(rec, startPos, endPos, false);
+	}
+
+	private void copy(byte[] read, int readPos, int len, int patternPos, int offsetStart, int offsetEnd, boolean lowerCase){
+		int from = Math.max(patternPos, offsetStart);
+		int to = Math.min(patternPos+len, offsetEnd);
+		for (int i=from ; i < to ; i++){
+			byte base = read[readPos + i - patternPos];
+			pattern[length++] = (lowerCase) ? (byte)Character.toLowerCase(base) : base;
+		}
+	}
+
+	private boolean show(){
+		System.arraycopy(SHOW, 0, pattern, 0, SHOW.length);
+		length = SHOW.length;
+		return true;
+	}
+
+	public int length(){
+		return length;
+	}
+
+	public byte charAt(int index){
+		return pattern[index];
+	}
+
+	/**
+	 * Compare the last extracted pattern to a string, without creating a new String
+	 */
+	public boolean equalsIgnoreCase(String other){
+		if (other.length() != length) return false;
+		for (int i=0 ; i < length ; i++){
+			if (Character.toUpperCase((char)pattern[i]) != Character.toUpperCase(other.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the last extracted pattern
+	 */
+	public String getPattern(){
+		return new String(pattern, 0, length);
+	}
+
+	/**
+	 * Count patterns of many reads. A String is only created the first time a pattern is found.
+	 */
+	public static class PatternCounts {
+
+		private final Map<Key, int[]> counts = new HashMap<>();
+		private final Key probe = new Key();
+		private int total = 0;
+
+		private static class Key {
+			byte[] bytes = new byte[64];
+			int length;
+			int hash;
+
+			void set(byte[] source, int sourceLength){
+				if (bytes.length < sourceLength) bytes = new byte[sourceLength * 2];
+				System.arraycopy(source, 0, bytes, 0, sourceLength);
+				length = sourceLength;
+				hash = 1;
+				for (int i=0 ; i < length ; i++){
+					hash = 31 * hash + bytes[i];
+				}
+			}
+
+			@Override
+			public int hashCode(){
+				return hash;
+			}
+
+			@Override
+			public boolean equals(Object obj){
+				if (!(obj instanceof Key)) return false;
+				Key other = (Key)obj;
+				if (length != other.length) return false;
+				for (int i=0 ; i < length ; i++){
+					if (bytes[i] != other.bytes[i]) return false;
+				}
+				return true;
+			}
+
+			@Override
+			public String toString(){
+				return new String(bytes, 0, length);
+			}
+		}
+
+		public void add(ReadPileup pileup){
+			add(pileup.pattern, pileup.length);
+		}
+
+		public void add(byte[] pattern, int length){
+			probe.set(pattern, length);
+			int[] count = counts.get(probe);
+			if (count == null){
+				Key key = new Key();
+				key.set(pattern, length);
+				count = new int[1];
+				counts.put(key, count);
+			}
+			count[0]++;
+			total++;
+		}
+
+		/**
+		 * @return number of patterns added
+		 */
+		public int getTotal(){
+			return total;
+		}
+
+		/**
+		 * Add the counts of each pattern to the given map (pattern -> count)
+		 */
+		public void addTo(Map<String, Integer> patterns){
+			for (Map.Entry<Key, int[]> entry : counts.entrySet()){
+				String pattern = entry.getKey().toString();
+				patterns.put(pattern, patterns.getOrDefault(pattern, 0) + entry.getValue()[0]);
+			}
+		}
+
+		public void clear(){
+			counts.clear();
+			total = 0;
+		}
+	}
+
+}
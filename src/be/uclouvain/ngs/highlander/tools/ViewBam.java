@@ -31,13 +31,10 @@ package be.uclouvain.ngs.highlander.tools;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 
 import java.text.DateFormat;
@@ -45,7 +42,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -58,10 +54,6 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
-import org.broad.igv.DirectoryManager;
-import org.broad.igv.exceptions.DataLoadException;
-import org.broad.igv.ui.util.MessageUtils;
-import org.broad.igv.util.HttpUtils;
 
 import be.uclouvain.ngs.highlander.Highlander;
 import be.uclouvain.ngs.highlander.Parameters;
@@ -76,8 +68,6 @@ import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
-import net.sf.samtools.seekablestream.SeekableBufferedStream;
-import net.sf.samtools.seekablestream.SeekableFTPStream;
 
 public class ViewBam {
 
@@ -87,10 +77,11 @@ public class ViewBam {
 	public final static int T = 3;
 	public final static int N = 4;
 
-	public static final long oneDay = 24 * 60 * 60 * 1000;
-
-	private final Map<String,SAMFileReader> inputBams = new TreeMap<String, SAMFileReader>();
-	static Hashtable<String, File> indexFileCache = new Hashtable<String, File>();
+	/**
+	 * BAM files are only opened when read, and closed afterwards
+	 */
+	private final Map<String,ParallelPileup.BamSource> inputBams = new TreeMap<String, ParallelPileup.BamSource>();
+	private int nthreads = ParallelPileup.DEFAULT_THREADS;
 
 	public ViewBam(String directory, boolean recursive){
 		File dir = new File(directory);
@@ -103,9 +94,7 @@ public class ViewBam {
 		for (File file : bams){
 			if (file.getName().endsWith(".bam")) {
 				System.err.print(".");
-				SAMFileReader samfr= new SAMFileReader(file);
-				samfr.setValidationStringency(ValidationStringency.SILENT);
-				inputBams.put(file.getName(), samfr);
+				inputBams.put(file.getName(), getSource(file));
 			}
 		}
 		System.err.println("!");
@@ -124,9 +113,7 @@ public class ViewBam {
 		}
 		for (File file : bams){
 			System.err.print(".");
-			SAMFileReader samfr= new SAMFileReader(file);
-			samfr.setValidationStringency(ValidationStringency.SILENT);
-			inputBams.put(file.getName(), samfr);
+			inputBams.put(file.getName(), getSource(file));
 		}
 		System.err.println("!");
 	}
@@ -136,14 +123,20 @@ public class ViewBam {
 			for (String sample : samples.get(analysis)) {
 				File file = new File(analyzesPath + "/" + analysis + "/" + sample + ".bam");
 				System.err.print(".");
-				SAMFileReader samfr= new SAMFileReader(file);
-				samfr.setValidationStringency(ValidationStringency.SILENT);
-				inputBams.put(analysis + "|" + sample, samfr);
+				inputBams.put(analysis + "|" + sample, getSource(file));
 			}
 		}
 		System.err.println("!");
 	}
 
+	private static ParallelPileup.BamSource getSource(File file){
+		return () -> {
+			SAMFileReader samfr= new SAMFileReader(file);
+			samfr.setValidationStringency(ValidationStringency.SILENT);
+			return samfr;
+		};
+	}
+
 	private List<File> getFiles(File directory, boolean recursive){
 		List<File> output = new ArrayList<File>();
 		for (File f : directory.listFiles()){
@@ -158,101 +151,28 @@ public class ViewBam {
 		return output;
 	}
 
+	/**
+	 * Number of BAM files read at the same time by getPatterns()
+	 */
+	public void setThreads(int nthreads){
+		this.nthreads = nthreads;
+	}
+
 	public ViewBam(URL url) throws IOException {
-		SAMFileReader samfr= (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
-		samfr.setValidationStringency(ValidationStringency.SILENT);
-		inputBams.put(url.getFile(), samfr);
+		inputBams.put(url.getFile(), () -> BamIndexCache.open(url));
 	}
 
+	/**
+	 * BAM files and their index are only opened when read, by the threads of getPatterns()
+	 */
 	public ViewBam(Map<AnalysisFull, Set<String>> samples, URL urlPath) throws Exception {
 		for (AnalysisFull analysis : samples.keySet()) {
 			for (String sample : samples.get(analysis)) {
-			System.err.print(".");
-			URL url = new URL(urlPath + "/" + analysis + "/" + sample+".bam");
-			SAMFileReader samfr= (url.toString().startsWith("ftp")) ? new SAMFileReader(new SeekableBufferedStream(new SeekableFTPStream(url)), getIndexFile(url, null), false) : new SAMFileReader(url, getIndexFile(url, null), false);
-			samfr.setValidationStringency(ValidationStringency.SILENT);
-			inputBams.put(analysis + "|" + sample, samfr);
-		}
-		}
-		System.err.println("!");
-	}	
-
-	File getIndexFile(URL url, String indexPath) throws IOException {
-
-		String urlString = url.toString();
-		File indexFile = getTmpIndexFile(urlString);
-
-		// Crude staleness check -- if more than a day old discard
-		long age = System.currentTimeMillis() - indexFile.lastModified();
-		if (age > oneDay) {
-			indexFile.delete();
-		}
-
-		if (!indexFile.exists() || indexFile.length() < 1) {
-			loadIndexFile(urlString, indexPath, indexFile);
-			indexFile.deleteOnExit();
-		}
-
-		return indexFile;
-
-	}
-
-	private File getTmpIndexFile(String bamURL) throws IOException {
-		File indexFile = indexFileCache.get(bamURL);
-		if (indexFile == null) {
-			indexFile = File.createTempFile("index_", ".bai", DirectoryManager.getCacheDirectory());
-			indexFile.deleteOnExit();
-			indexFileCache.put(bamURL, indexFile);
-		}
-		return indexFile;
-	}
-
-	private void loadIndexFile(String path, String indexPath, File indexFile) throws IOException {
-		InputStream is = null;
-		OutputStream os = null;
-
-		try {
-			String idx = (indexPath != null && indexPath.length() > 0) ? indexPath : path + ".bai";
-			URL indexURL = new URL(idx);
-			os = new FileOutputStream(indexFile);
-			try {
-				is = HttpUtils.getInstance().openConnectionStream(indexURL);
-			} catch (FileNotFoundException e) {
-				// Try other index convention
-				String baseName = path.substring(0, path.length() - 4);
-				indexURL = new URL(baseName + ".bai");
-
-				try {
-					is = org.broad.igv.util.HttpUtils.getInstance().openConnectionStream(indexURL);
-				} catch (FileNotFoundException e1) {
-					MessageUtils.showMessage("Index file not found for file: " + path);
-					throw new DataLoadException("Index file not found for file: " + path, path);
-				}
-			}
-			byte[] buf = new byte[512000];
-			int bytesRead;
-			while ((bytesRead = is.read(buf)) != -1) {
-				os.write(buf, 0, bytesRead);
-			}
-
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-				}
+				URL url = new URL(urlPath + "/" + analysis + "/" + sample+".bam");
+				inputBams.put(analysis + "|" + sample, () -> BamIndexCache.open(url));
 			}
-			if (os != null) {
-				try {
-					os.close();
-				} catch (IOException e) {
-					e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-				}
-			}
-
 		}
-	}
+	}	
 
 	/**
 	 * 
@@ -265,39 +185,57 @@ public class ViewBam {
 		Set<Variant> validated = new HashSet<Variant>();
 		int counter = 0;
 		Map<Variant,Integer> founds = new HashMap<Variant, Integer>();
-		for (Variant candidate : candidates){
+		List<Variant> list = new ArrayList<Variant>(candidates);
+		int[] starts = new int[list.size()];
+		int[] ends = new int[list.size()];
+		String[] alternatives = new String[list.size()];
+		for (int i=0 ; i < list.size() ; i++){
+			Variant candidate = list.get(i);
 			founds.put(candidate, 0);
+			starts[i] = candidate.getPosition();
+			ends[i] = starts[i] + candidate.getReference().length() -1;
+			String alternative = candidate.getAlternative();
+			if (candidate.getVariantType() == VariantType.DEL){
+				for (int a = alternative.length() ; a < candidate.getReference().length() ; a++){
+					alternative += "-";
+				}
+			}
+			alternatives[i] = alternative;
 		}
 		int nbams = inputBams.size();
-		for (SAMFileReader bam : inputBams.values()){
-			for (Variant candidate : candidates){
-				counter++;
-				int startPos = candidate.getPosition();
-				int endPos = startPos + candidate.getReference().length() -1;
-				String reference = candidate.getReference();					
-				String alternative = candidate.getAlternative();
-				if (candidate.getVariantType() == VariantType.DEL){
-					for (int i = alternative.length() ; i < reference.length() ; i++){
-						alternative += "-";
+		ReadPileup pileup = new ReadPileup();
+		for (String name : inputBams.keySet()){
+			SAMFileReader bam = null;
+			try {
+				bam = inputBams.get(name).open();
+				if (bam != null) {
+					//All candidates are read in one pass on the bam (see ParallelPileup.scan())
+					String[] chromosomes = new String[list.size()];
+					for (int i=0 ; i < list.size() ; i++){
+						chromosomes[i] = list.get(i).getChromosome(bam.getFileHeader());
 					}
-				}
-				SAMRecordIterator it =  bam.query(candidate.getChromosome(bam.getFileHeader()), startPos, endPos, false);
-				int reads = 0;
-				int altfound = 0;
-				while(it.hasNext()){
-					Optional<String> optionalPattern = ViewBam.getPattern(it.next(), startPos, endPos);
-					if (optionalPattern.isPresent()){
-						String pattern = optionalPattern.get();
-						reads++;
-						if(alternative.equalsIgnoreCase(pattern)){
-							altfound++;
+					int[] reads = new int[list.size()];
+					int[] altfound = new int[list.size()];
+					ParallelPileup.scan(bam, chromosomes, starts, ends, (i, record) -> {
+						if (pileup.extract(record, starts[i], ends[i])){
+							reads[i]++;
+							if(pileup.equalsIgnoreCase(alternatives[i])){
+								altfound[i]++;
+							}
 						}
+					});
+					for (int i=0 ; i < list.size() ; i++){
+						if (reads[i] > 4 && altfound[i] > 1) founds.put(list.get(i), founds.get(list.get(i))+1);
 					}
 				}
-				it.close();
-				if (reads > 4 && altfound > 1) founds.put(candidate, founds.get(candidate)+1);
-				if (counter % (500*nbams) == 0) System.out.println(df.format(System.currentTimeMillis()) + " - " + (int)(counter/(double)nbams) + "/" + candidates.size() + " candidates checked on all bams ...");
+			}catch(Exception ex){
+				System.err.println("BamViewer: problem with bam " + name);
+				ex.printStackTrace();
+			}finally {
+				if (bam != null) bam.close();
 			}
+			counter++;
+			System.out.println(df.format(System.currentTimeMillis()) + " - " + counter + "/" + nbams + " bams checked for " + candidates.size() + " candidates ...");
 		}
 		for (Variant candidate : candidates){
 			double prop = (double)founds.get(candidate)/(double)nbams;
@@ -306,51 +244,22 @@ public class ViewBam {
 		return validated;
 	}  
 
+	/**
+	 * BAM files are read in parallel (see setThreads()), and closed afterwards.
+	 */
 	public Map<Interval, Object[][]> getPatterns(Set<Interval> positions) throws Exception {
+		Map<String, Map<Interval, Map<String,Integer>>> counts = new ParallelPileup(nthreads).count(inputBams, positions, (bam) -> System.err.print("+"));
 		Map<Interval,Map<String,Map<String,Integer>>> intervals = new TreeMap<Interval, Map<String,Map<String,Integer>>>();
-		String NREADS="#reads";
-		for (String bam : inputBams.keySet()){
-			System.err.print("+");
-			try {
-				for (Interval pos : positions){
-					if (!intervals.containsKey(pos)){
-						intervals.put(pos, new TreeMap<String, Map<String,Integer>>());
-					}
-					Map<String,Map<String,Integer>> bams = intervals.get(pos); 
-					if (!bams.containsKey(bam)){
-						Map<String, Integer> patterns = new HashMap<String, Integer>();
-						if(pos.getSize() == 1){
-							patterns.put("A", 0);
-							patterns.put("C", 0);
-							patterns.put("G", 0);
-							patterns.put("T", 0);
-						}
-						bams.put(bam, patterns);
-					}
-					Map<String,Integer> patterns = bams.get(bam);								
-					SAMRecordIterator it =  inputBams.get(bam).query(pos.getChromosome(inputBams.get(bam).getFileHeader()), pos.getStart(), pos.getEnd(), false);
-					int total = 0;
-					while(it.hasNext()){
-						//Check if the interval falls completely inside the read, drop it if not									
-						Optional<String> optionalPattern = ViewBam.getPattern(it.next(), pos.getStart(), pos.getEnd());
-						if (optionalPattern.isPresent()){
-							String pattern = optionalPattern.get();
-							if (!patterns.containsKey(pattern)){
-								patterns.put(pattern, 0);
-							}
-							patterns.put(pattern, patterns.get(pattern)+1);
-							total++;
-						}
-					}
-					it.close();
-					patterns.put(NREADS, total);
+		for (Interval pos : positions){
+			Map<String,Map<String,Integer>> bams = new TreeMap<String, Map<String,Integer>>();
+			for (String bam : counts.keySet()){
+				if (counts.get(bam).containsKey(pos)){
+					bams.put(bam, counts.get(bam).get(pos));
 				}
-				inputBams.get(bam).close();
-			}catch(Exception ex){
-				System.err.println("BamViewer: problem with bam " + bam);
-				ex.printStackTrace();
 			}
+			intervals.put(pos, bams);
 		}
+		String NREADS=ParallelPileup.NREADS;
 		System.err.println();
 		System.err.println("Creating matrix");
 		Map<Interval, Object[][]> res = new TreeMap<Interval, Object[][]>();
@@ -486,6 +395,7 @@ public class ViewBam {
 	/**
 	 * Return the pattern found in given read at interval [startPos,endPos] (inclusive).
 	 * Return null if the interval is not entirely contained in the read.
+	 * To check many reads, use a ReadPileup directly, which avoids creating a String for each read.
 	 * 
 	 * @param rec
 	 * @param startPos
@@ -493,97 +403,9 @@ public class ViewBam {
 	 * @return
 	 */
 	public static Optional<String> getPattern(SAMRecord rec, int startPos, int endPos, boolean includeSoftClipped){
-		int start = rec.getUnclippedStart();
-		String read = rec.getReadString();
-		int offsetStart = startPos-start;
-		int offsetEnd = endPos+1-start;
-		StringBuilder sb = new StringBuilder();
-		char[] cigar = rec.getCigarString().toCharArray();
-		int readPos=0;
-		int refPos = start;
-		if (cigar[0] == '*') return Optional.empty(); //cigar unavailable
-		for (int c=0 ; c < cigar.length ; c++){
-			String times = "";
-			while (Character.isDigit(cigar[c])){
-				times += cigar[c++];
-			}
-			for (int t=0 ; t < Integer.parseInt(times) ; t++){
-				switch(cigar[c]){
-				case 'M':
-				case '=':
-				case 'X':
-					//Alignment match (can be a sequence match or mismatch)
-					//Add the base in upper case, increase the position relative to the reference
-					sb.append(read.charAt(readPos++));
-					refPos++;
-					break;
-				case 'I':
-					//Insertion to the reference
-					//Add the base in lower case, increase the offset
-					sb.append((""+read.charAt(readPos++)).toLowerCase());
-					if (refPos < startPos) offsetStart++;
-					if (refPos <= endPos+1) offsetEnd++;
-					break;
-				case 'D':
-					//Deletion from the reference
-					//add "-", increase the position relative to the reference
-					sb.append("-");
-					refPos++;
-					break;
-				case 'S':
-					//Soft clipping (base present in the read)
-					//don't add the base (generate useless patterns), increase the position relative to the reference and decrease the offset if we are not at the end of the read
-					if (!includeSoftClipped) {
-						if (c+1 < cigar.length) {
-							offsetStart--;
-							offsetEnd--;
-						}
-						readPos++;
-					}else {
-						sb.append(read.charAt(readPos++));
-					}
-					refPos++;
-					break;
-				case 'H':
-					//Hard clipping (base NOT present in the read)
-					//increase the position relative to the reference and decrease the offset if we are not at the end of the read
-					if (c+1 < cigar.length) {
-						offsetStart--;
-						offsetEnd--;
-					}
-					refPos++;
-					break;
-				case 'N':
-					//skipped region from the reference
-					//For mRNA-to-genome alignment, an N operation represents an intron. For other types of alignments, the interpretation of N is not defined.
-					//increase the position relative to the reference and decrease the offset
-					//!!!! Never encountered, so never tested !!!!
-					if (c+1 < cigar.length) return Optional.of("SHOW");
-					if (refPos < startPos) offsetStart--;
-					if (refPos <= endPos+1) offsetEnd--;
-					if (c+1 < cigar.length) {
-						offsetStart--;
-						offsetEnd--;
-					}
-					refPos++;
-					break;
-				case 'P':
-					//Padding (silent deletion from padded reference)
-					//Nothing to do, inexistant in the ref, inexistant in the read. Only useful with multiple alignments.
-					//!!!! Never encountered, so never tested !!!!
-					if (c+1 < cigar.length) return Optional.of("SHOW");
-					break;
-				default:
-					System.err.println("Unsupported CIGAR operation : " + cigar[c]);
-					break;
-				}
-			}
-		}
-		String fullRead = sb.toString();
-		//Check if the interval falls completely inside the read, drop it if not
-		if (offsetStart >= 0 && offsetEnd <= fullRead.length()){
-			String pattern = fullRead.substring(offsetStart,offsetEnd);
-			return Optional.of(pattern);
+		ReadPileup pileup = new ReadPileup();
+		if (pileup.extract(rec, startPos, endPos, includeSoftClipped)){
+			return Optional.of(pileup.getPattern());
 		}
 		return Optional.empty();
 	}
@@ -595,39 +417,42 @@ public class ViewBam {
 	public Object[][] cisCheck(Interval pos){
 		String NREADS="#reads";
 		Map<String,Map<String,Integer>> bams = new TreeMap<String, Map<String,Integer>>();
+		ReadPileup pileup = new ReadPileup();
+		ReadPileup.PatternCounts counts = new ReadPileup.PatternCounts();
+		byte[] pat = new byte[3];
 		for (String bam : inputBams.keySet()){
 			System.err.print("+");
+			SAMFileReader samfr = null;
 			try {
+				samfr = inputBams.get(bam).open();
+				if (samfr == null) continue;
 				Map<String, Integer> patterns = new HashMap<String, Integer>();
-				bams.put(bam, patterns);
-				SAMRecordIterator it =  inputBams.get(bam).query(pos.getChromosome(inputBams.get(bam).getFileHeader()), pos.getStart(), pos.getEnd(), false);
-				int total = 0;
+				SAMRecordIterator it =  samfr.query(pos.getChromosome(samfr.getFileHeader()), pos.getStart(), pos.getEnd(), false);
+				counts.clear();
 				while(it.hasNext()){
 					//Check if the interval falls completely inside the read, drop it if not		
 					SAMRecord record = it.next();
-					Optional<String> optionalPattern = ViewBam.getPattern(record, pos.getStart(), pos.getEnd());
-					if (optionalPattern.isPresent()){
-						String pattern = optionalPattern.get();
+					if (pileup.extract(record, pos.getStart(), pos.getEnd())){
+						//First and last bases aligned to the reference (skipping inserted bases in lower case), and strand of the read
 						int c=0;
-						while (!pattern.substring(c,c+1).equals("-") && pattern.substring(c,c+1).equals(pattern.substring(c,c+1).toLowerCase())) c++;
-						String pat = "" + pattern.charAt(c);
-						c=pattern.length();
-						while (!pattern.substring(c-1,c).equals("-") && pattern.substring(c-1,c).equals(pattern.substring(c-1,c).toLowerCase())) c--;
-						pat += pattern.charAt(c-1);
-						pat += (record.getReadNegativeStrandFlag()) ? "-" : "+";
-						if (!patterns.containsKey(pat)){
-							patterns.put(pat, 0);
-						}
-						patterns.put(pat, patterns.get(pat)+1);
-						total++;
+						while (c < pileup.length()-1 && pileup.charAt(c) != '-' && Character.toLowerCase(pileup.charAt(c)) == pileup.charAt(c)) c++;
+						pat[0] = pileup.charAt(c);
+						c=pileup.length();
+						while (c > 1 && pileup.charAt(c-1) != '-' && Character.toLowerCase(pileup.charAt(c-1)) == pileup.charAt(c-1)) c--;
+						pat[1] = pileup.charAt(c-1);
+						pat[2] = (byte)((record.getReadNegativeStrandFlag()) ? '-' : '+');
+						counts.add(pat, pat.length);
 					}
 				}
 				it.close();
-				patterns.put(NREADS, total);
-				inputBams.get(bam).close();
+				counts.addTo(patterns);
+				patterns.put(NREADS, counts.getTotal());
+				bams.put(bam, patterns);
 			}catch(Exception ex){
 				System.err.println("BamViewer: problem with bam " + bam);
 				ex.printStackTrace();
+			}finally {
+				if (samfr != null) samfr.close();
 			}
 		}
 		System.err.println();
@@ -683,6 +508,7 @@ public class ViewBam {
 		String samples = null;
 		String genome = null;
 		boolean recursive = false;
+		int threads = ParallelPileup.DEFAULT_THREADS;
 		for (int i=0 ; i < args.length ; i++){
 			if (args[i].equals("--input") || args[i].equals("-I")){
 				input = args[++i];
@@ -706,6 +532,8 @@ public class ViewBam {
 				tool = args[++i];				
 			}else if (args[i].equals("--config") || args[i].equals("-c")){
 				argConfig = args[++i];
+			}else if (args[i].equals("--threads") || args[i].equals("-t")){
+				threads = Integer.parseInt(args[++i]);
 			}else if (args[i].equals("--help") || args[i].equals("-h")){
 				System.out.println("Usage : you MUST give a list of interval using --list and/or --int arguments");
 				System.out.println("--tool/-T [tool]: possible tools are "
@@ -724,6 +552,7 @@ public class ViewBam {
 				System.out.println("--samples/-S: list of samples to check, with their analysis, as \"analysis|sample;analysis|sample;...\". All analyses must have the same reference (you don't need to add a --reference argument).");
 				System.out.println("--url/-u: url pointing to a directory containing bam files");
 				System.out.println("--recursive/-r: take bam files from subdirectories too");
+				System.out.println("--threads/-t [number]: number of bam files read at the same time (default is "+ParallelPileup.DEFAULT_THREADS+")");
 				System.out.println("--config/-c [filename] : give config file to use as parameter");
 				return;			
 			}
@@ -772,6 +601,7 @@ public class ViewBam {
 			}else{
 				vb = new ViewBam("/data/highlander/bam", recursive);
 			}
+			vb.setThreads(threads);
 			if (reference == null) {
 				reference = new Reference("GRCh37");
 			}